@@ -9,12 +9,21 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -27,6 +36,7 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.MissingOptionException;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
@@ -128,14 +138,28 @@ public class Application implements CommandLineRunner {
   public void run(String... args) throws Exception {
     Options options = new Options();
     
+    options.addOption("annotations", true, "Comma-separated list of mappings from annotation "
+        + "properties to string concept properties, e.g. for cross-references or comments. Each "
+        + "mapping has the format [code]=[annotation property IRI].");
+    
     options.addOption("c", "code", true, "Indicates which annotation property contains the "
         + "concepts' codes. If the value is not set, then the IRI of the class is used. If the "
         + "class is imported then the full IRI is used. If the class is defined in the ontology "
         + "then the short form is used.");
     
+    options.addOption("chunkSize", true, "The number of concepts in each file when using the "
+        + "ndjson or bundle output formats. Defaults to 10000.");
+    
+    options.addOption("closure", true, "A file where the transitive closure of the hierarchy is "
+        + "written. If the file name ends in .bin then a memory-mappable binary file is written. "
+        + "Otherwise a tab-separated closure table is written.");
+    
     options.addOption("codeReplace", true, "Two strings separated by a comma. Replaces the first"
         + " string with the second string in all local codes.");
     
+    options.addOption("compact", false, "Use the compact output profile. Only true-valued boolean "
+        + "properties are emitted and designations that duplicate the display are skipped.");
+    
     options.addOption("compositional", false, "Flag to indicate that the code system defines a "
         + "post-coordination grammar.");
     
@@ -159,6 +183,10 @@ public class Application implements CommandLineRunner {
     options.addOption("definition", true, "Indicates which annotation property contains the "
         + "concepts' definitions.");
     
+    options.addOption("delta", true, "The output file for the changes since the previous release. "
+        + "Requires -previous. The changes are written as a code system fragment where each concept "
+        + "has a delta property with value added, changed or removed.");
+    
     options.addOption("description", true, "The description of the code system. This option takes "
         + "precedence over -descriptionProp.");
     
@@ -168,12 +196,29 @@ public class Application implements CommandLineRunner {
     options.addOption("experimental", false, "Indicates if the code system is for testing "
         + "purposes or real usage.");
     
+    options.addOption("extractModule", false, "Only classify and emit the main classes and the "
+        + "imported classes that are their ancestors, using a syntactic locality module of the "
+        + "imports closure.");
+    
+    options.addOption("extractors", true, "Comma-separated list of fully qualified names of "
+        + "classes that implement PropertyExtractor, used to populate the concepts from "
+        + "annotations.");
+    
+    options.addOption("filterAxioms", false, "Drop the axioms that are not needed to create the "
+        + "code system as the ontology is loaded, to reduce memory use. Only declarations, class "
+        + "and object property axioms and the annotations of the requested annotation properties "
+        + "are kept, and the assertions about individuals if classes are defined with nominals.");
+    
+    options.addOption("hierarchy", true, "How the concept hierarchy is represented. Valid values "
+        + "are flat and nested. In flat mode every concept uses parent properties. In nested mode "
+        + "concepts are placed in their parent's concept list. Defaults to flat.");
+    
     options.addOption(
         Option.builder("i")
         .required(true)
         .hasArg(true)
         .longOpt("input")
-        .desc("The input OWL file.")
+        .desc("The input OWL file. Can be compressed with gzip or bzip2 or be a zip archive.")
         .build()
     );
     
@@ -183,6 +228,21 @@ public class Application implements CommandLineRunner {
     options.addOption("identifier", true, "Comma-separated list of additional business "
         + "identifiers. Each business identifer has the format [system]|[value].");
     
+    options.addOption("importCache", true, "The directory where imports downloaded over HTTP are "
+        + "cached and revalidated with conditional requests. If neither this option nor -offline "
+        + "is set then imports are not cached.");
+    
+    options.addOption("importIndex", true, "The file where the index of the local ontology files "
+        + "found in the -importPaths directories is kept between runs. Defaults to "
+        + ".fhir-owl/import-index.txt in the home directory.");
+    
+    options.addOption("importPaths", true, "Comma-separated list of directories and "
+        + "catalog-v001.xml files used to resolve imports to local files instead of downloading "
+        + "them.");
+    
+    options.addOption("importThreads", true, "The number of imports that are downloaded "
+        + "concurrently. Defaults to 4.");
+    
     options.addOption("includeDeprecated", false, "Include all OWL classes, including deprecated "
         + "ones.");
     
@@ -194,6 +254,11 @@ public class Application implements CommandLineRunner {
     options.addOption("mainNs", true, "Comma-separated list of namespace prefixes that determine "
         + "which classes are part of the main ontology.");
     
+    options.addOption("multiParent", true, "How concepts with multiple parents are handled in "
+        + "nested mode. Valid values are property and first. With property these concepts stay at "
+        + "the top level and use parent properties. With first they are nested under their first "
+        + "parent and use parent properties for the rest. Defaults to property.");
+    
     options.addOption("n", "name", true, "Used to specify the computer-friendly name of the code "
         + "system. This option takes precedence over -nameProp.");
     
@@ -202,15 +267,48 @@ public class Application implements CommandLineRunner {
         + "specified property is not found, then the RDFS:label property is used by default. If "
         + "no label can be found using the property then the ontology IRI is used. ");
     
+    options.addOption("noPrettyPrint", false, "Write the JSON output without indentation or line "
+        + "breaks.");
+    
     options.addOption(
         Option.builder("o")
-        .required(true)
+        .required(false)
         .hasArg(true)
         .longOpt("output")
-        .desc("The output FHIR JSON file.")
+        .desc("The output FHIR JSON file. If the file name ends in .gz or .zst then the output is "
+            + "compressed with gzip or zstd, respectively. Required unless -outputs is used.")
         .build()
     );
     
+    options.addOption("offline", false, "Resolve imports from the cache of downloaded imports "
+        + "only, without making any requests. Uses .fhir-owl/import-cache in the home directory "
+        + "unless -importCache is set.");
+    
+    options.addOption("outputFormat", true, "The output format. Valid values are json, ndjson and "
+        + "bundle. json writes a single code system. ndjson and bundle write the concepts to "
+        + "rolling files with -chunkSize concepts each, plus a header file with the code system "
+        + "metadata. Defaults to json.");
+    
+    options.addOption("outputs", true, "A file with the definitions of several code systems "
+        + "created from a single load and classification of each input, one per line. Each line "
+        + "has the options of one code system, such as -i, -o, -url, -mainNs or -roots, which "
+        + "override the ones on the command line.");
+    
+    options.addOption("parseThreads", true, "The number of threads used to parse a large RDF/XML "
+        + "or N-Triples input. Defaults to 1, which uses the OWL API parser.");
+    
+    options.addOption("partitionThreads", true, "The number of independent partitions of the "
+        + "ontology that are classified concurrently, each with its own reasoner. Partitions do "
+        + "not share any classes or properties. Defaults to 1, which classifies the ontology as a "
+        + "whole.");
+    
+    options.addOption("prefixes", true, "Comma-separated list of prefix declarations used to "
+        + "shorten the codes of imported concepts. Each declaration has the format "
+        + "[prefix]=[namespace], e.g. obo=http://purl.obolibrary.org/obo/.");
+    
+    options.addOption("previous", true, "Comma-separated list of files with the previous release "
+        + "of the code system, in any of the output formats. Requires -delta.");
+    
     options.addOption("publisher", true, "The publisher of the code system. This option takes "
         + "precedence over -publisherProp.");
     
@@ -219,14 +317,49 @@ public class Application implements CommandLineRunner {
     
     options.addOption("purpose", true, "Explanation of why this code system is needed.");
     
+    options.addOption("reasonerThreads", true, "The number of worker threads of each reasoner. "
+        + "Defaults to the number of processors, divided by -partitionThreads.");
+    
+    options.addOption("relationships", true, "Comma-separated list of mappings from object "
+        + "properties to concept properties. Each mapping has the format [code]=[object property "
+        + "IRI], e.g. part_of=http://purl.obolibrary.org/obo/BFO_0000050.");
+    
+    options.addOption("roots", true, "Comma-separated list of class IRIs. Only these classes and "
+        + "their descendants are emitted.");
+    
     options.addOption("s", "synonyms", true, "Comma-separated list of annotation properties on "
         + "OWL classes that contain the concepts' synonyms.");
     
+    options.addOption("searchIndex", true, "A file where a memory-mappable search index over the "
+        + "concepts' displays and synonyms is written, for prefix and infix lookups.");
+    
+    options.addOption("serve", true, "After the transformation, serve $lookup, $subsumes, "
+        + "$validate-code and $expand for the generated code system on this port.");
+    
+    options.addOption("server", true, "The base URL of a FHIR server to upload the code system to, "
+        + "in addition to writing the output file.");
+    
     options.addOption("status", true, "Code system status. Valid values are draft, active, "
         + "retired and unknown");
     
+    options.addOption("streaming", false, "Stream the RDF triples of the input and build the "
+        + "hierarchy from the asserted parents, without loading the ontology or classifying it.");
+    
     options.addOption("t", "title", true, "A human-friendly name for the code system.");
     
+    options.addOption("taxonomyCache", true, "A directory where the classification of the "
+        + "imports of the ontology is stored, so it is reused by ontologies that import the same "
+        + "ontologies, in the same run or in later runs.");
+    
+    options.addOption("uploadThreads", true, "The maximum number of code systems uploaded to "
+        + "FHIR servers concurrently. Uploads run in the background while the other code systems "
+        + "are created. Defaults to 4.");
+    
+    options.addOption("uploadThreshold", true, "The maximum number of concepts of a code system "
+        + "that are kept in memory until it is uploaded to the FHIR server. The concepts of larger "
+        + "code systems are spooled to a temporary file and streamed from it into the request. "
+        + "Defaults to 100000.");
+    
     options.addOption("url", true, "Canonical identifier of the code system. If this option is"
         + " not specified then the ontology’s IRI will be used. If the ontology has no IRI then "
         + "the transformation fails.");
@@ -239,6 +372,13 @@ public class Application implements CommandLineRunner {
         + "this option is not specified then the value will be constructed from the URI of the "
         + "code system.");
     
+    options.addOption("valueSetPageSize", true, "The number of concepts in each page of the "
+        + "value set expansions. Defaults to 1000.");
+    
+    options.addOption("valueSets", true, "A directory where pre-computed expansions of the value "
+        + "set with all the concepts and of the value sets defined by the root, deprecated and "
+        + "imported filters are written.");
+    
     options.addOption("versionNeeded", false, "Flag to indicate if the code system commits "
         + "to concept permanence across versions.");
     
@@ -247,15 +387,35 @@ public class Application implements CommandLineRunner {
       // parse the command line arguments
       CommandLine line = parser.parse(options, args);
       
-      CodeSystemProperties csp = loadCodeSystemProperties(line);
-      ConceptProperties cp = loadConceptProperties(line);
+      final List<OutputDefinition> outputs = new ArrayList<>();
+      if (line.hasOption("outputs")) {
+        for (String[] outputArgs : readOutputs(new File(line.getOptionValue("outputs")))) {
+          outputs.add(loadOutputDefinition(parser.parse(options, 
+              mergeArgs(options, line, outputArgs))));
+        }
+        if (outputs.isEmpty()) {
+          throw new InvalidPropertyException("The outputs file has no outputs.");
+        }
+      } else {
+        outputs.add(loadOutputDefinition(line));
+      }
+      
+      for (OutputDefinition output : outputs) {
+        if (output.getCodeSystemProperties().getServePort() != null 
+            && System.getProperty("sun.net.httpserver.nodelay") == null) {
+          // Without this responses on kept-alive connections wait for delayed acknowledgements
+          System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+      }
       
       try {
-        if (line.hasOption("mainNs")) {
-          fhirOwlService.transform(csp, cp, new HashSet<String>(
-              Arrays.asList(line.getOptionValue("mainNs").split("[,]"))));
-        } else {
-          fhirOwlService.transform(csp, cp);
+        fhirOwlService.transform(outputs);
+        
+        for (OutputDefinition output : outputs) {
+          if (output.getCodeSystemProperties().getServePort() != null) {
+            // The server threads keep the application running
+            return;
+          }
         }
       } catch (Throwable t) {
         System.out.println("There was a problem transforming the OWL file into FHIR: " 
@@ -272,6 +432,78 @@ public class Application implements CommandLineRunner {
     exit(0);
   }
   
+  /**
+   * Reads the outputs file. Each line that is not empty or a comment has the options of one code 
+   * system. Values with spaces can be enclosed in double quotes.
+   * 
+   * @param file The outputs file.
+   * @return The arguments of each output.
+   * @throws IOException If the file cannot be read.
+   */
+  private List<String[]> readOutputs(File file) throws IOException {
+    final List<String[]> res = new ArrayList<>();
+    final Pattern token = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final List<String> args = new ArrayList<>();
+      final Matcher m = token.matcher(line);
+      while (m.find()) {
+        args.add(m.group(1) != null ? m.group(1) : m.group(2));
+      }
+      res.add(args.toArray(new String[args.size()]));
+    }
+    return res;
+  }
+  
+  /**
+   * Combines the options on the command line with the ones of an output. The options of the 
+   * output take precedence.
+   * 
+   * @param options The supported options.
+   * @param line The command line.
+   * @param outputArgs The arguments of the output.
+   * @return The combined arguments.
+   */
+  private String[] mergeArgs(Options options, CommandLine line, String[] outputArgs) {
+    final Set<String> overridden = new HashSet<>();
+    overridden.add("outputs");
+    for (String arg : outputArgs) {
+      final Option opt = arg.startsWith("-") ? options.getOption(arg) : null;
+      if (opt != null) {
+        overridden.add(opt.getOpt());
+      }
+    }
+    
+    final List<String> res = new ArrayList<>();
+    for (Option opt : line.getOptions()) {
+      if (!overridden.contains(opt.getOpt())) {
+        res.add("-" + opt.getOpt());
+        if (opt.hasArg()) {
+          res.add(opt.getValue());
+        }
+      }
+    }
+    res.addAll(Arrays.asList(outputArgs));
+    return res.toArray(new String[res.size()]);
+  }
+  
+  private OutputDefinition loadOutputDefinition(CommandLine line) throws ParseException {
+    if (!line.hasOption("o")) {
+      throw new MissingOptionException(Collections.singletonList("o"));
+    }
+    
+    Set<String> mainNamespaces = null;
+    if (line.hasOption("mainNs")) {
+      mainNamespaces = new HashSet<String>(
+          Arrays.asList(line.getOptionValue("mainNs").split("[,]")));
+    }
+    return new OutputDefinition(loadCodeSystemProperties(line), loadConceptProperties(line), 
+        mainNamespaces);
+  }
+  
   private ConceptProperties loadConceptProperties(CommandLine line) {
     ConceptProperties res = new ConceptProperties();
     
@@ -311,6 +543,26 @@ public class Application implements CommandLineRunner {
       res.setLabelsToExclude(val);
     }
     
+    val = line.getOptionValue("prefixes");
+    if (val != null) {
+      res.setImportPrefixes(val);
+    }
+    
+    val = line.getOptionValue("relationships");
+    if (val != null) {
+      res.setRelationships(val);
+    }
+    
+    val = line.getOptionValue("annotations");
+    if (val != null) {
+      res.setAnnotationProperties(val);
+    }
+    
+    val = line.getOptionValue("extractors");
+    if (val != null) {
+      res.setExtractors(val);
+    }
+    
     return res;
   }
   
@@ -322,6 +574,12 @@ public class Application implements CommandLineRunner {
     res.setExperimental(line.hasOption("experimental"));
     res.setCompositional(line.hasOption("compositional"));
     res.setVersionNeeded(line.hasOption("versionNeeded"));
+    res.setCompact(line.hasOption("compact"));
+    res.setPrettyPrint(!line.hasOption("noPrettyPrint"));
+    res.setExtractModule(line.hasOption("extractModule"));
+    res.setStreaming(line.hasOption("streaming"));
+    res.setOffline(line.hasOption("offline"));
+    res.setFilterAxioms(line.hasOption("filterAxioms"));
     
     String val = line.getOptionValue("id");
     if (val != null) {
@@ -418,6 +676,121 @@ public class Application implements CommandLineRunner {
       res.setContent(val);
     }
     
+    val = line.getOptionValue("outputFormat");
+    if (val != null) {
+      res.setOutputFormat(val);
+    }
+    
+    val = line.getOptionValue("chunkSize");
+    if (val != null) {
+      res.setChunkSize(val);
+    }
+    
+    val = line.getOptionValue("server");
+    if (val != null) {
+      res.setServer(val);
+    }
+    
+    val = line.getOptionValue("parseThreads");
+    if (val != null) {
+      res.setParseThreads(val);
+    }
+    
+    val = line.getOptionValue("uploadThreads");
+    if (val != null) {
+      res.setUploadThreads(val);
+    }
+    
+    val = line.getOptionValue("uploadThreshold");
+    if (val != null) {
+      res.setUploadThreshold(val);
+    }
+    
+    val = line.getOptionValue("previous");
+    if (val != null) {
+      res.setPrevious(val);
+    }
+    
+    val = line.getOptionValue("delta");
+    if (val != null) {
+      res.setDelta(new File(val));
+    }
+    
+    val = line.getOptionValue("valueSets");
+    if (val != null) {
+      res.setValueSets(new File(val));
+    }
+    
+    val = line.getOptionValue("valueSetPageSize");
+    if (val != null) {
+      res.setValueSetPageSize(val);
+    }
+    
+    val = line.getOptionValue("searchIndex");
+    if (val != null) {
+      res.setSearchIndex(new File(val));
+    }
+    
+    val = line.getOptionValue("closure");
+    if (val != null) {
+      res.setClosure(new File(val));
+    }
+    
+    val = line.getOptionValue("serve");
+    if (val != null) {
+      res.setServePort(val);
+    }
+    
+    val = line.getOptionValue("roots");
+    if (val != null) {
+      res.setRoots(val);
+    }
+    
+    val = line.getOptionValue("importPaths");
+    if (val != null) {
+      res.setImportPaths(val);
+    }
+    
+    val = line.getOptionValue("importIndex");
+    if (val != null) {
+      res.setImportIndex(new File(val));
+    }
+    
+    val = line.getOptionValue("importCache");
+    if (val != null) {
+      res.setImportCache(new File(val));
+    }
+    
+    val = line.getOptionValue("importThreads");
+    if (val != null) {
+      res.setImportThreads(val);
+    }
+    
+    val = line.getOptionValue("partitionThreads");
+    if (val != null) {
+      res.setPartitionThreads(val);
+    }
+    
+    val = line.getOptionValue("reasonerThreads");
+    if (val != null) {
+      res.setReasonerThreads(val);
+    }
+    
+    val = line.getOptionValue("taxonomyCache");
+    if (val != null) {
+      res.setTaxonomyCache(new File(val));
+    }
+    
+    val = line.getOptionValue("hierarchy");
+    if (val != null) {
+      res.setHierarchy(val);
+    }
+    
+    val = line.getOptionValue("multiParent");
+    if (val != null) {
+      res.setMultiParent(val);
+    }
+    
     return res;
   }
 
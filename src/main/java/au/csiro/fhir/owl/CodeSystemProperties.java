@@ -54,6 +54,35 @@ public class CodeSystemProperties extends OwlProperties {
   private boolean compositional = false;
   private boolean versionNeeded = false;
   private String content = "complete";
+  private String hierarchy = "flat";
+  private String multiParent = "property";
+  private boolean compact = false;
+  private boolean prettyPrint = true;
+  private String outputFormat = "json";
+  private int chunkSize = 10000;
+  private String server = null;
+  private int uploadThreads = 4;
+  private int uploadThreshold = 100000;
+  private List<File> previous = new ArrayList<>();
+  private File delta = null;
+  private File valueSets = null;
+  private int valueSetPageSize = 1000;
+  private File searchIndex = null;
+  private File closure = null;
+  private Integer servePort = null;
+  private boolean extractModule = false;
+  private List<String> roots = new ArrayList<>();
+  private boolean streaming = false;
+  private int parseThreads = 1;
+  private List<File> importPaths = new ArrayList<>();
+  private File importIndex = null;
+  private File importCache = null;
+  private boolean offline = false;
+  private int importThreads = 4;
+  private boolean filterAxioms = false;
+  private int partitionThreads = 1;
+  private Integer reasonerThreads = null;
+  private File taxonomyCache = null;
 
   private final Set<String> contentValues = new HashSet<>(Arrays.asList(
       new String[] { "not-present", "example", "fragment", "complete", "supplement" })
@@ -63,6 +92,18 @@ public class CodeSystemProperties extends OwlProperties {
       new String[] { "draft", "active", "retired", "unknown" })
   );
   
+  private final Set<String> hierarchyValues = new HashSet<>(Arrays.asList(
+      new String[] { "flat", "nested" })
+  );
+  
+  private final Set<String> multiParentValues = new HashSet<>(Arrays.asList(
+      new String[] { "property", "first" })
+  );
+  
+  private final Set<String> outputFormatValues = new HashSet<>(Arrays.asList(
+      new String[] { "json", "ndjson", "bundle" })
+  );
+  
   private final Set<String> contactSystemValues = new HashSet<>(Arrays.asList(
       new String[] { "phone", "fax", "email", "pager", "url", "sms", "other" })
   );
@@ -216,6 +257,115 @@ public class CodeSystemProperties extends OwlProperties {
     this.content = content;
   }
   
+  /**
+   * Sets and validates the <i>hierarchy</i> property.
+   * 
+   * @param hierarchy The hierarchy property.
+   * @throws InvalidPropertyException If the string is not a valid hierarchy mode.
+   */
+  public void setHierarchy(String hierarchy) {
+    if (!hierarchyValues.contains(hierarchy)) {
+      throw new InvalidPropertyException("Invalid hierarchy value '" + hierarchy 
+          + "'. Valid values are: " + hierarchyValues);
+    }
+    this.hierarchy = hierarchy;
+  }
+  
+  /**
+   * Sets and validates the <i>multiParent</i> property.
+   * 
+   * @param multiParent The multiParent property.
+   * @throws InvalidPropertyException If the string is not a valid multiple parent policy.
+   */
+  public void setMultiParent(String multiParent) {
+    if (!multiParentValues.contains(multiParent)) {
+      throw new InvalidPropertyException("Invalid multiParent value '" + multiParent 
+          + "'. Valid values are: " + multiParentValues);
+    }
+    this.multiParent = multiParent;
+  }
+  
+  /**
+   * Sets and validates the <i>outputFormat</i> property.
+   * 
+   * @param outputFormat The outputFormat property.
+   * @throws InvalidPropertyException If the string is not a valid output format.
+   */
+  public void setOutputFormat(String outputFormat) {
+    if (!outputFormatValues.contains(outputFormat)) {
+      throw new InvalidPropertyException("Invalid outputFormat value '" + outputFormat 
+          + "'. Valid values are: " + outputFormatValues);
+    }
+    this.outputFormat = outputFormat;
+  }
+  
+  /**
+   * Sets and validates the number of concepts in each chunk when using a chunked output format.
+   * 
+   * @param chunkSize The chunk size.
+   * @throws InvalidPropertyException If the chunk size is not a positive integer.
+   */
+  public void setChunkSize(String chunkSize) {
+    this.chunkSize = parsePositiveInt("chunkSize", chunkSize);
+  }
+  
+  /**
+   * Sets and validates the maximum number of code systems that are uploaded to FHIR servers 
+   * concurrently.
+   * 
+   * @param uploadThreads The number of concurrent uploads.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setUploadThreads(String uploadThreads) {
+    this.uploadThreads = parsePositiveInt("uploadThreads", uploadThreads);
+  }
+  
+  /**
+   * Sets and validates the maximum number of concepts of a code system that are kept in memory 
+   * until it is uploaded to a FHIR server. The concepts of larger code systems are spooled to a 
+   * temporary file.
+   * 
+   * @param uploadThreshold The threshold.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setUploadThreshold(String uploadThreshold) {
+    this.uploadThreshold = parsePositiveInt("uploadThreshold", uploadThreshold);
+  }
+  
+  /**
+   * Sets and validates the number of concepts in each page of the value set expansions.
+   * 
+   * @param valueSetPageSize The page size.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setValueSetPageSize(String valueSetPageSize) {
+    this.valueSetPageSize = parsePositiveInt("valueSetPageSize", valueSetPageSize);
+  }
+  
+  /**
+   * Sets and validates the port used to serve the generated code system.
+   * 
+   * @param servePort The port.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setServePort(String servePort) {
+    this.servePort = parsePositiveInt("serve", servePort);
+  }
+  
+  private int parsePositiveInt(String name, String value) {
+    int res;
+    try {
+      res = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      res = -1;
+    }
+    if (res < 1) {
+      throw new InvalidPropertyException("Invalid " + name + " value '" + value 
+          + "'. It should be a positive integer.");
+    }
+    return res;
+  }
+  
   /**
    * Returns the input file.
    * 
@@ -630,5 +780,502 @@ public class CodeSystemProperties extends OwlProperties {
   public void setNameProp(String nameProp) {
     this.nameProp = nameProp;
   }
+
+  /**
+   * Returns the hierarchy mode. Valid values are <i>flat</i> and <i>nested</i>.
+   * 
+   * @return the hierarchy
+   */
+  public String getHierarchy() {
+    return hierarchy;
+  }
+  
+  /**
+   * Indicates if concepts should be nested under their parents.
+   * 
+   * @return true if the hierarchy mode is <i>nested</i>
+   */
+  public boolean isNested() {
+    return "nested".equals(hierarchy);
+  }
+
+  /**
+   * Returns the policy used to nest concepts with multiple parents. Valid values are 
+   * <i>property</i> and <i>first</i>.
+   * 
+   * @return the multiParent
+   */
+  public String getMultiParent() {
+    return multiParent;
+  }
+
+  /**
+   * Indicates if the compact output profile should be used. In this profile only true-valued 
+   * boolean properties are emitted and designations that duplicate the display are skipped.
+   * 
+   * @return the compact
+   */
+  public boolean isCompact() {
+    return compact;
+  }
+
+  /**
+   * Sets the flag that indicates if the compact output profile should be used.
+   * 
+   * @param compact the compact to set
+   */
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
+  /**
+   * Indicates if the JSON output should be pretty printed.
+   * 
+   * @return the prettyPrint
+   */
+  public boolean isPrettyPrint() {
+    return prettyPrint;
+  }
+
+  /**
+   * Sets the flag that indicates if the JSON output should be pretty printed.
+   * 
+   * @param prettyPrint the prettyPrint to set
+   */
+  public void setPrettyPrint(boolean prettyPrint) {
+    this.prettyPrint = prettyPrint;
+  }
+
+  /**
+   * Returns the output format. Valid values are <i>json</i>, <i>ndjson</i> and <i>bundle</i>.
+   * 
+   * @return the outputFormat
+   */
+  public String getOutputFormat() {
+    return outputFormat;
+  }
+
+  /**
+   * Returns the number of concepts in each chunk when using a chunked output format.
+   * 
+   * @return the chunkSize
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Returns the base URL of the FHIR server the code system is uploaded to. Null if the code 
+   * system should not be uploaded.
+   * 
+   * @return the server
+   */
+  public String getServer() {
+    return server;
+  }
+
+  /**
+   * Sets the base URL of the FHIR server the code system is uploaded to.
+   * 
+   * @param server the server to set
+   */
+  public void setServer(String server) {
+    this.server = server;
+  }
+
+  /**
+   * Returns the maximum number of code systems that are uploaded to FHIR servers concurrently.
+   * 
+   * @return the uploadThreads
+   */
+  public int getUploadThreads() {
+    return uploadThreads;
+  }
+
+  /**
+   * Returns the maximum number of concepts of a code system that are kept in memory until it is 
+   * uploaded to a FHIR server.
+   * 
+   * @return the uploadThreshold
+   */
+  public int getUploadThreshold() {
+    return uploadThreshold;
+  }
+
+  /**
+   * Returns the files with the previous release of the code system.
+   * 
+   * @return the previous release files
+   */
+  public List<File> getPrevious() {
+    return previous;
+  }
+
+  /**
+   * Sets the files with the previous release of the code system.
+   * 
+   * @param previous comma-separated list of files
+   */
+  public void setPrevious(String previous) {
+    this.previous.clear();
+    for (String file : previous.split("[,]")) {
+      this.previous.add(new File(file));
+    }
+  }
+
+  /**
+   * Returns the file where the changes since the previous release are written. Null if no delta 
+   * should be created.
+   * 
+   * @return the delta
+   */
+  public File getDelta() {
+    return delta;
+  }
+
+  /**
+   * Sets the file where the changes since the previous release are written.
+   * 
+   * @param delta the delta to set
+   */
+  public void setDelta(File delta) {
+    this.delta = delta;
+  }
+
+  /**
+   * Returns the directory where the value set expansions are written. Null if no expansions 
+   * should be created.
+   * 
+   * @return the valueSets
+   */
+  public File getValueSets() {
+    return valueSets;
+  }
+
+  /**
+   * Sets the directory where the value set expansions are written.
+   * 
+   * @param valueSets the valueSets to set
+   */
+  public void setValueSets(File valueSets) {
+    this.valueSets = valueSets;
+  }
+
+  /**
+   * Returns the number of concepts in each page of the value set expansions.
+   * 
+   * @return the valueSetPageSize
+   */
+  public int getValueSetPageSize() {
+    return valueSetPageSize;
+  }
+
+  /**
+   * Returns the file where the search index is written. Null if no search index should be 
+   * created.
+   * 
+   * @return the searchIndex
+   */
+  public File getSearchIndex() {
+    return searchIndex;
+  }
+
+  /**
+   * Sets the file where the search index is written.
+   * 
+   * @param searchIndex the searchIndex to set
+   */
+  public void setSearchIndex(File searchIndex) {
+    this.searchIndex = searchIndex;
+  }
+
+  /**
+   * Returns the file where the transitive closure is written. Null if the closure should not be 
+   * computed.
+   * 
+   * @return the closure
+   */
+  public File getClosure() {
+    return closure;
+  }
+
+  /**
+   * Sets the file where the transitive closure is written.
+   * 
+   * @param closure the closure to set
+   */
+  public void setClosure(File closure) {
+    this.closure = closure;
+  }
+
+  /**
+   * Returns the port used to serve the generated code system. Null if the code system should not 
+   * be served.
+   * 
+   * @return the servePort
+   */
+  public Integer getServePort() {
+    return servePort;
+  }
+
+  /**
+   * Indicates if only the module of the main classes should be classified and emitted. In this 
+   * case imported classes are only emitted if they are ancestors of main classes.
+   * 
+   * @return the extractModule
+   */
+  public boolean isExtractModule() {
+    return extractModule;
+  }
+
+  /**
+   * Sets the flag that indicates if only the module of the main classes should be classified and 
+   * emitted.
+   * 
+   * @param extractModule the extractModule to set
+   */
+  public void setExtractModule(boolean extractModule) {
+    this.extractModule = extractModule;
+  }
+
+  /**
+   * Returns the IRIs of the classes whose subtrees are emitted. If empty then all classes are 
+   * emitted.
+   * 
+   * @return the roots
+   */
+  public List<String> getRoots() {
+    return roots;
+  }
+
+  /**
+   * Sets the IRIs of the classes whose subtrees are emitted.
+   * 
+   * @param roots comma-separated list of class IRIs
+   */
+  public void setRoots(String roots) {
+    this.roots.clear();
+    for (String root : roots.split("[,]")) {
+      this.roots.add(root.trim());
+    }
+  }
+
+  /**
+   * Indicates if the input should be streamed as RDF triples instead of loaded and classified. 
+   * Only suitable for hierarchy-only vocabularies.
+   * 
+   * @return the streaming
+   */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Sets the flag that indicates if the input should be streamed as RDF triples.
+   * 
+   * @param streaming the streaming to set
+   */
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Returns the number of threads used to parse the input. If it is 1 then the input is parsed by
+   * the OWL API.
+   * 
+   * @return the parseThreads
+   */
+  public int getParseThreads() {
+    return parseThreads;
+  }
+
+  /**
+   * Sets and validates the number of threads used to parse the input.
+   * 
+   * @param parseThreads The number of threads.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setParseThreads(String parseThreads) {
+    this.parseThreads = parsePositiveInt("parseThreads", parseThreads);
+  }
+
+  /**
+   * Returns the directories and catalog files used to resolve imports to local files.
+   * 
+   * @return the importPaths
+   */
+  public List<File> getImportPaths() {
+    return importPaths;
+  }
+
+  /**
+   * Sets and validates the directories and catalog files used to resolve imports to local files.
+   * 
+   * @param importPaths comma-separated list of directories and catalog files
+   * @throws InvalidPropertyException If one of the paths does not exist.
+   */
+  public void setImportPaths(String importPaths) {
+    this.importPaths.clear();
+    for (String path : importPaths.split("[,]")) {
+      final File file = new File(path.trim());
+      if (!file.exists()) {
+        throw new InvalidPropertyException("Import path " + file + " does not exist.");
+      }
+      this.importPaths.add(file);
+    }
+  }
+
+  /**
+   * Returns the file where the index of the local ontology files is kept between runs. Null if 
+   * the default location is used.
+   * 
+   * @return the importIndex
+   */
+  public File getImportIndex() {
+    return importIndex;
+  }
+
+  /**
+   * Sets the file where the index of the local ontology files is kept between runs.
+   * 
+   * @param importIndex the importIndex to set
+   */
+  public void setImportIndex(File importIndex) {
+    this.importIndex = importIndex;
+  }
+
+  /**
+   * Returns the directory where downloaded imports are cached. Null if imports are not cached, or 
+   * if the default location is used in offline mode.
+   * 
+   * @return the importCache
+   */
+  public File getImportCache() {
+    return importCache;
+  }
+
+  /**
+   * Sets the directory where downloaded imports are cached.
+   * 
+   * @param importCache the importCache to set
+   */
+  public void setImportCache(File importCache) {
+    this.importCache = importCache;
+  }
+
+  /**
+   * Indicates if imports should only be resolved from the cache, without making any requests.
+   * 
+   * @return the offline
+   */
+  public boolean isOffline() {
+    return offline;
+  }
+
+  /**
+   * Sets the flag that indicates if imports should only be resolved from the cache.
+   * 
+   * @param offline the offline to set
+   */
+  public void setOffline(boolean offline) {
+    this.offline = offline;
+  }
+
+  /**
+   * Returns the number of imports that are downloaded concurrently.
+   * 
+   * @return the importThreads
+   */
+  public int getImportThreads() {
+    return importThreads;
+  }
+
+  /**
+   * Sets and validates the number of imports that are downloaded concurrently.
+   * 
+   * @param importThreads The number of threads.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setImportThreads(String importThreads) {
+    this.importThreads = parsePositiveInt("importThreads", importThreads);
+  }
+
+  /**
+   * Indicates if the axioms that are not needed to create the code system should be dropped as 
+   * the ontology is loaded.
+   * 
+   * @return the filterAxioms
+   */
+  public boolean isFilterAxioms() {
+    return filterAxioms;
+  }
+
+  /**
+   * Sets the flag that indicates if the axioms that are not needed should be dropped on load.
+   * 
+   * @param filterAxioms the filterAxioms to set
+   */
+  public void setFilterAxioms(boolean filterAxioms) {
+    this.filterAxioms = filterAxioms;
+  }
+
+  /**
+   * Returns the number of independent partitions of the ontology that are classified 
+   * concurrently, each with its own reasoner. 1 if the ontology is classified as a whole.
+   * 
+   * @return the partitionThreads
+   */
+  public int getPartitionThreads() {
+    return partitionThreads;
+  }
+
+  /**
+   * Sets and validates the number of partitions of the ontology that are classified concurrently.
+   * 
+   * @param partitionThreads The number of threads.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setPartitionThreads(String partitionThreads) {
+    this.partitionThreads = parsePositiveInt("partitionThreads", partitionThreads);
+  }
+
+  /**
+   * Returns the number of worker threads of each reasoner. Null if the default of the reasoner 
+   * should be used.
+   * 
+   * @return the reasonerThreads
+   */
+  public Integer getReasonerThreads() {
+    return reasonerThreads;
+  }
+
+  /**
+   * Sets and validates the number of worker threads of each reasoner.
+   * 
+   * @param reasonerThreads The number of threads.
+   * @throws InvalidPropertyException If the value is not a positive integer.
+   */
+  public void setReasonerThreads(String reasonerThreads) {
+    this.reasonerThreads = parsePositiveInt("reasonerThreads", reasonerThreads);
+  }
+
+  /**
+   * Returns the directory where the classifications of imports are stored. Null if they are not 
+   * reused.
+   * 
+   * @return the taxonomyCache
+   */
+  public File getTaxonomyCache() {
+    return taxonomyCache;
+  }
+
+  /**
+   * Sets the directory where the classifications of imports are stored.
+   * 
+   * @param taxonomyCache the taxonomyCache to set
+   */
+  public void setTaxonomyCache(File taxonomyCache) {
+    this.taxonomyCache = taxonomyCache;
+  }
   
 }
@@ -7,10 +7,14 @@ package au.csiro.fhir.owl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.semanticweb.owlapi.model.IRI;
 import org.semanticweb.owlapi.model.OWLAnnotationProperty;
 import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
 
 /**
  * The configuration properties to populate the concept of a code system based on the contents of 
@@ -28,6 +32,13 @@ public class ConceptProperties extends OwlProperties {
   private String stringToReplaceInCodes = null;
   private String replacementStringInCodes = null;
   private List<String> labelsToExclude = new ArrayList<>();
+  private Map<String, String> importPrefixes = new LinkedHashMap<>();
+  private Map<String, String> relationships = new LinkedHashMap<>();
+  private Map<String, String> annotationProperties = new LinkedHashMap<>();
+  private List<String> extractors = new ArrayList<>();
+  
+  private static final List<String> RESERVED_PROPERTY_CODES = Arrays.asList(
+      new String[] { "parent", "imported", "root", "deprecated" });
   
   private final List<String> defaultDesignationProps = Arrays.asList(
       new String[] { RDFS_LABEL });
@@ -169,4 +180,118 @@ public class ConceptProperties extends OwlProperties {
     return labelsToExclude;
   }
   
+  /**
+   * Parses the prefixes used to shorten the codes of imported concepts.
+   * 
+   * @param s A comma-separated list of prefix declarations. Each declaration has the format 
+   *     [prefix]=[namespace].
+   * @throws InvalidPropertyException If the string is not well formed.
+   */
+  public void setImportPrefixes(String s) {
+    importPrefixes.clear();
+    for (String part : s.split("[,]")) {
+      final int idx = part.indexOf('=');
+      if (idx < 1 || idx == part.length() - 1) {
+        throw new InvalidPropertyException("Invalid prefix declaration '" + part 
+            + "'. Valid format is [prefix]=[namespace].");
+      }
+      importPrefixes.put(part.substring(idx + 1), part.substring(0, idx));
+    }
+  }
+  
+  /**
+   * Returns the prefixes used to shorten the codes of imported concepts, indexed by namespace.
+   * 
+   * @return the importPrefixes
+   */
+  public Map<String, String> getImportPrefixes() {
+    return importPrefixes;
+  }
+  
+  /**
+   * Parses the mappings from object properties to concept properties.
+   * 
+   * @param s A comma-separated list of mappings. Each mapping has the format 
+   *     [property code]=[object property IRI].
+   * @throws InvalidPropertyException If the string is not well formed.
+   */
+  public void setRelationships(String s) {
+    relationships = parsePropertyMappings(s, "relationship mapping", "object property IRI");
+  }
+  
+  /**
+   * Returns the codes of the concept properties populated from existential restrictions, indexed 
+   * by object property.
+   * 
+   * @param factory
+   * 
+   * @return the relationships
+   */
+  public Map<OWLObjectProperty, String> getRelationships(OWLDataFactory factory) {
+    final Map<OWLObjectProperty, String> res = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry : relationships.entrySet()) {
+      res.put(factory.getOWLObjectProperty(IRI.create(entry.getKey())), entry.getValue());
+    }
+    return res;
+  }
+  
+  /**
+   * Parses the mappings from annotation properties to concept properties.
+   * 
+   * @param s A comma-separated list of mappings. Each mapping has the format 
+   *     [property code]=[annotation property IRI].
+   * @throws InvalidPropertyException If the string is not well formed.
+   */
+  public void setAnnotationProperties(String s) {
+    annotationProperties = parsePropertyMappings(s, "annotation mapping", 
+        "annotation property IRI");
+  }
+  
+  /**
+   * Returns the codes of the concept properties populated from annotations, indexed by annotation 
+   * property IRI.
+   * 
+   * @return the annotationProperties
+   */
+  public Map<String, String> getAnnotationProperties() {
+    return annotationProperties;
+  }
+  
+  /**
+   * Sets the additional property extractors.
+   * 
+   * @param s A comma-separated list of fully qualified class names.
+   */
+  public void setExtractors(String s) {
+    extractors.clear();
+    extractors.addAll(Arrays.asList(s.split("[,]")));
+  }
+  
+  /**
+   * Returns the fully qualified class names of the additional property extractors.
+   * 
+   * @return the extractors
+   */
+  public List<String> getExtractors() {
+    return extractors;
+  }
+  
+  private Map<String, String> parsePropertyMappings(String s, String name, String target) {
+    final Map<String, String> res = new LinkedHashMap<>();
+    for (String part : s.split("[,]")) {
+      final int idx = part.indexOf('=');
+      if (idx < 1 || idx == part.length() - 1) {
+        throw new InvalidPropertyException("Invalid " + name + " '" + part 
+            + "'. Valid format is [property code]=[" + target + "].");
+      }
+      final String code = part.substring(0, idx);
+      if (RESERVED_PROPERTY_CODES.contains(code)) {
+        throw new InvalidPropertyException("Invalid " + name + " '" + part 
+            + "'. The property code " + code + " is reserved.");
+      }
+      res.put(part.substring(idx + 1), code);
+    }
+    return res;
+  }
+  
 }
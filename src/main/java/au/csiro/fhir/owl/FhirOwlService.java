@@ -5,29 +5,69 @@
 
 package au.csiro.fhir.owl;
 
+import au.csiro.fhir.owl.extractor.AnnotationPropertyExtractor;
+import au.csiro.fhir.owl.extractor.DefinitionExtractor;
+import au.csiro.fhir.owl.extractor.PropertyExtractor;
+import au.csiro.fhir.owl.loader.ArchiveInput;
+import au.csiro.fhir.owl.loader.AxiomFilter;
+import au.csiro.fhir.owl.loader.HttpImportCache;
+import au.csiro.fhir.owl.loader.LocalImportMapper;
+import au.csiro.fhir.owl.loader.ParallelRdfLoader;
+import au.csiro.fhir.owl.output.BundleFileSink;
+import au.csiro.fhir.owl.output.ClosureSink;
+import au.csiro.fhir.owl.output.CodeSystemFileSink;
+import au.csiro.fhir.owl.output.CompositeConceptSink;
+import au.csiro.fhir.owl.output.ConceptSink;
+import au.csiro.fhir.owl.output.DeltaFileSink;
+import au.csiro.fhir.owl.output.FhirServerSink;
+import au.csiro.fhir.owl.output.FhirUploader;
+import au.csiro.fhir.owl.output.NdjsonFileSink;
+import au.csiro.fhir.owl.output.QueuedConceptSink;
+import au.csiro.fhir.owl.output.SearchIndexSink;
+import au.csiro.fhir.owl.output.ValueSetExpansionSink;
+import au.csiro.fhir.owl.query.QueryEngineBuilder;
+import au.csiro.fhir.owl.query.TerminologyServer;
+import au.csiro.fhir.owl.reasoner.PartitionedReasoner;
+import au.csiro.fhir.owl.reasoner.TaxonomyCache;
+import au.csiro.fhir.owl.source.OboReader;
+import au.csiro.fhir.owl.source.RdfStreamReader;
+import au.csiro.fhir.owl.source.SourceConcept;
+import au.csiro.fhir.owl.source.SourceVocabulary;
 import ca.uhn.fhir.context.FhirContext;
 
 import com.google.common.base.Optional;
+import com.google.gson.Gson;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.PostConstruct;
 
@@ -47,28 +87,45 @@ import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.ContactDetail;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.openrdf.rio.RDFFormat;
+import org.semanticweb.elk.owlapi.ElkReasonerConfiguration;
 import org.semanticweb.elk.owlapi.ElkReasonerFactory;
+import org.semanticweb.elk.reasoner.config.ReasonerConfiguration;
 import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.ClassExpressionType;
 import org.semanticweb.owlapi.model.IRI;
 import org.semanticweb.owlapi.model.OWLAnnotation;
+import org.semanticweb.owlapi.model.OWLAnnotationAssertionAxiom;
 import org.semanticweb.owlapi.model.OWLAnnotationProperty;
 import org.semanticweb.owlapi.model.OWLAnnotationValue;
+import org.semanticweb.owlapi.model.OWLAxiom;
 import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
 import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLEntity;
 import org.semanticweb.owlapi.model.OWLLiteral;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
+import org.semanticweb.owlapi.model.OWLObjectSomeValuesFrom;
 import org.semanticweb.owlapi.model.OWLOntology;
 import org.semanticweb.owlapi.model.OWLOntologyCreationException;
 import org.semanticweb.owlapi.model.OWLOntologyID;
+import org.semanticweb.owlapi.model.OWLOntologyIRIMapper;
 import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
 import org.semanticweb.owlapi.model.parameters.Imports;
 import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.NullReasonerProgressMonitor;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.OWLReasonerConfiguration;
 import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
 import org.semanticweb.owlapi.search.EntitySearcher;
 import org.semanticweb.owlapi.util.SimpleIRIMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import uk.ac.manchester.cs.owlapi.modularity.ModuleType;
+import uk.ac.manchester.cs.owlapi.modularity.SyntacticLocalityModuleExtractor;
 
 /**
  * Main service.
@@ -81,6 +138,11 @@ public class FhirOwlService {
   
   private static final Log log = LogFactory.getLog(FhirOwlService.class);
   
+  /**
+   * The maximum number of concepts that are waiting to be written.
+   */
+  private static final int SINK_QUEUE_SIZE = 1024;
+  
   @Value("#{'${ontoserver.owl.defaults.publisher}'.split(',')}")
   private List<String> defaultPublisherProps;
 
@@ -96,8 +158,17 @@ public class FhirOwlService {
   @Autowired
   private FhirContext ctx;
   
+  @Autowired
+  private Gson gson;
+  
   private final Map<IRI, IRI> iriMap = new HashMap<>();
   
+  /**
+   * The caches of the classifications of imports, by directory. They are kept while the service 
+   * runs so ontologies transformed later reuse the classifications in memory.
+   */
+  private final Map<File, TaxonomyCache> taxonomyCaches = new HashMap<>();
+  
   @PostConstruct
   private void init() {
     log.info("Checking for IRI mappings in home directory " + System.getProperty("user.home"));
@@ -143,15 +214,77 @@ public class FhirOwlService {
    */
   public void transform(CodeSystemProperties csp, ConceptProperties cp, Set<String> mainNamespaces)
       throws IOException, OWLOntologyCreationException {
+    transform(Collections.singletonList(new OutputDefinition(csp, cp, mainNamespaces)));
+  }
+  
+  /**
+   * Transforms OWL files into several FHIR code systems. The ontology of each input is loaded and 
+   * classified once and its code systems are then created concurrently. The inputs are 
+   * transformed one after the other, so the ones that import the same ontologies can reuse their 
+   * classification.
+   * 
+   * @param outputs The definitions of the code systems.
+   * 
+   * @throws IOException If an IO error ocurrs.
+   * @throws OWLOntologyCreationException If there is a problem loading the ontology.
+   */
+  public void transform(List<OutputDefinition> outputs) 
+      throws IOException, OWLOntologyCreationException {
     log.info("Creating code systems");
     
-    final CodeSystem codeSystem = createCodeSystem(csp, cp, mainNamespaces);
+    final List<ConceptSink> sinks = new ArrayList<>();
+    final List<QueryEngineBuilder> engineBuilders = new ArrayList<>();
+    final Map<File, List<Integer>> inputs = new LinkedHashMap<>();
+    for (int i = 0; i < outputs.size(); i++) {
+      final CodeSystemProperties csp = outputs.get(i).getCodeSystemProperties();
+      inputs.computeIfAbsent(csp.getInput(), k -> new ArrayList<>()).add(i);
+    }
+    for (List<Integer> indexes : inputs.values()) {
+      checkLoadProperties(outputs, indexes);
+    }
     
-    final File output = csp.getOutput();
-    try (BufferedWriter bw = new BufferedWriter(new FileWriter(output))) {
-      log.info("Writing code system to file: " + output.getAbsolutePath());
-      ctx.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(codeSystem, bw);
-      log.info("Done!");
+    // The uploads of all the code systems share one pool, so they run in the background while the 
+    // next inputs are transformed
+    final FhirUploader uploader = createUploader(outputs);
+    try {
+      for (int i = 0; i < outputs.size(); i++) {
+        final CodeSystemProperties csp = outputs.get(i).getCodeSystemProperties();
+        final CompositeConceptSink sink = createSink(csp, uploader);
+        QueryEngineBuilder engineBuilder = null;
+        if (csp.getServePort() != null) {
+          engineBuilder = new QueryEngineBuilder();
+          sink.add(engineBuilder);
+        }
+        sinks.add(sink);
+        engineBuilders.add(engineBuilder);
+      }
+      
+      for (List<Integer> indexes : inputs.values()) {
+        final List<OutputDefinition> inputOutputs = new ArrayList<>();
+        final List<ConceptSink> inputSinks = new ArrayList<>();
+        for (int i : indexes) {
+          inputOutputs.add(outputs.get(i));
+          inputSinks.add(sinks.get(i));
+        }
+        createCodeSystems(inputOutputs, inputSinks);
+      }
+      
+      if (uploader != null) {
+        log.info("Waiting for the uploads to finish");
+        uploader.await();
+      }
+    } finally {
+      if (uploader != null) {
+        uploader.close();
+      }
+    }
+    log.info("Done!");
+    
+    for (int i = 0; i < outputs.size(); i++) {
+      if (engineBuilders.get(i) != null) {
+        new TerminologyServer(ctx, engineBuilders.get(i).getEngine(), 
+            outputs.get(i).getCodeSystemProperties().getServePort()).start();
+      }
     }
   }
   
@@ -169,6 +302,84 @@ public class FhirOwlService {
     transform(csp, cp, null);
   }
   
+  /**
+   * Creates the sink that writes the concepts in the requested output format and, if requested, 
+   * writes the changes since the previous release, the value set expansions, the search index and 
+   * the transitive closure, and uploads them to a server.
+   * 
+   * @param csp The code system properties.
+   * @param uploader The uploader used by the outputs that upload to a server.
+   * @return The sink.
+   */
+  private CompositeConceptSink createSink(CodeSystemProperties csp, FhirUploader uploader) {
+    final File output = csp.getOutput();
+    final String format = csp.getOutputFormat();
+    if (!"json".equals(format) && csp.isNested()) {
+      throw new InvalidPropertyException("The nested hierarchy mode can only be used with the "
+          + "json output format.");
+    }
+    if (csp.getPrevious().isEmpty() != (csp.getDelta() == null)) {
+      throw new InvalidPropertyException("The -previous and -delta options must be used together.");
+    }
+    
+    final CompositeConceptSink res = new CompositeConceptSink();
+    if ("ndjson".equals(format)) {
+      res.add(new NdjsonFileSink(ctx, output, csp.getChunkSize(), csp.isPrettyPrint()));
+    } else if ("bundle".equals(format)) {
+      res.add(new BundleFileSink(ctx, output, csp.getChunkSize(), csp.isPrettyPrint()));
+    } else {
+      res.add(new CodeSystemFileSink(ctx, output, csp.isPrettyPrint(), csp.isNested(), 
+          "first".equals(csp.getMultiParent())));
+    }
+    
+    if (csp.getDelta() != null) {
+      res.add(new DeltaFileSink(ctx, csp.getPrevious(), csp.getDelta(), csp.isPrettyPrint()));
+    }
+    
+    if (csp.getValueSets() != null) {
+      res.add(new ValueSetExpansionSink(ctx, csp.getValueSets(), csp.getValueSetPageSize(), 
+          csp.isPrettyPrint()));
+    }
+    
+    if (csp.getSearchIndex() != null) {
+      res.add(new SearchIndexSink(csp.getSearchIndex()));
+    }
+    
+    if (csp.getClosure() != null) {
+      res.add(new ClosureSink(csp.getClosure()));
+    }
+    
+    final String server = csp.getServer();
+    if (server != null) {
+      res.add(new FhirServerSink(uploader, server, csp.getUploadThreshold()));
+    }
+    return res;
+  }
+  
+  /**
+   * Creates the uploader shared by the outputs that upload to a FHIR server.
+   * 
+   * @param outputs The definitions of the code systems.
+   * @return The uploader or null if none of the outputs upload to a server.
+   * @throws InvalidPropertyException If the outputs use different values for -uploadThreads.
+   */
+  private FhirUploader createUploader(List<OutputDefinition> outputs) {
+    CodeSystemProperties first = null;
+    for (OutputDefinition output : outputs) {
+      final CodeSystemProperties csp = output.getCodeSystemProperties();
+      if (csp.getServer() == null) {
+        continue;
+      }
+      if (first == null) {
+        first = csp;
+      } else if (first.getUploadThreads() != csp.getUploadThreads()) {
+        throw new InvalidPropertyException("All the outputs must use the same -uploadThreads "
+            + "because their uploads share one pool.");
+      }
+    }
+    return first != null ? new FhirUploader(ctx, gson, first.getUploadThreads()) : null;
+  }
+  
   private String[] getLinesFromInputStream(InputStream is) throws IOException {
     final List<String> res = new ArrayList<>();
     BufferedReader br = null;
@@ -196,89 +407,1077 @@ public class FhirOwlService {
     }
   }
   
+  /**
+   * Adds a mapper that resolves imports to cached copies of the documents downloaded over HTTP, 
+   * if a cache directory or offline mode is requested.
+   * 
+   * @param manager The ontology manager.
+   * @param csp The code system properties.
+   * @return The mapper or null if imports are downloaded by the OWL API on every run.
+   */
+  private HttpImportCache addImportCache(OWLOntologyManager manager, CodeSystemProperties csp) {
+    if (csp.getImportCache() == null && !csp.isOffline()) {
+      return null;
+    }
+    final File cacheDir = csp.getImportCache() != null 
+        ? csp.getImportCache() : HttpImportCache.getDefaultCacheDir();
+    final HttpImportCache cache = new HttpImportCache(cacheDir, csp.isOffline(), 
+        csp.getImportThreads(), manager);
+    manager.getIRIMappers().add(cache);
+    return cache;
+  }
+  
+  /**
+   * Adds a mapper that resolves imports to the local files in the import paths, if any.
+   * 
+   * @param manager The ontology manager.
+   * @param csp The code system properties.
+   * @return The mapper or null if there are no import paths.
+   * 
+   * @throws IOException If a catalog or the index cannot be read.
+   */
+  private LocalImportMapper addImportMapper(OWLOntologyManager manager, CodeSystemProperties csp) 
+      throws IOException {
+    if (csp.getImportPaths().isEmpty()) {
+      return null;
+    }
+    final File indexFile = csp.getImportIndex() != null 
+        ? csp.getImportIndex() : LocalImportMapper.getDefaultIndexFile();
+    final LocalImportMapper mapper = new LocalImportMapper(csp.getImportPaths(), indexFile);
+    manager.getIRIMappers().add(mapper);
+    return mapper;
+  }
+  
   private Set<IRI> getIris(Set<OWLClass> classes) {
     final Set<IRI> res = new HashSet<>();
     for (OWLClass oc : classes) {
       res.add(oc.getIRI());
     }
-    return res;
+    return res;
+  }
+  
+  /**
+   * Checks that the outputs of the same input agree on the options used to load and classify it, 
+   * because it is only loaded and classified once.
+   * 
+   * @param outputs The definitions of the code systems.
+   * @param indexes The indexes of the outputs of the input.
+   * @throws InvalidPropertyException If the outputs use different values for any of the options.
+   */
+  private void checkLoadProperties(List<OutputDefinition> outputs, List<Integer> indexes) {
+    final CodeSystemProperties first = outputs.get(indexes.get(0)).getCodeSystemProperties();
+    for (int i : indexes) {
+      final CodeSystemProperties csp = outputs.get(i).getCodeSystemProperties();
+      checkSameValue("importCache", first.getImportCache(), csp.getImportCache(), first);
+      checkSameValue("offline", first.isOffline(), csp.isOffline(), first);
+      checkSameValue("importThreads", first.getImportThreads(), csp.getImportThreads(), first);
+      checkSameValue("importPaths", first.getImportPaths(), csp.getImportPaths(), first);
+      checkSameValue("importIndex", first.getImportIndex(), csp.getImportIndex(), first);
+      checkSameValue("filterAxioms", first.isFilterAxioms(), csp.isFilterAxioms(), first);
+      checkSameValue("parseThreads", first.getParseThreads(), csp.getParseThreads(), first);
+      checkSameValue("streaming", first.isStreaming(), csp.isStreaming(), first);
+      checkSameValue("partitionThreads", first.getPartitionThreads(), csp.getPartitionThreads(), 
+          first);
+      checkSameValue("reasonerThreads", first.getReasonerThreads(), csp.getReasonerThreads(), 
+          first);
+      checkSameValue("taxonomyCache", first.getTaxonomyCache(), csp.getTaxonomyCache(), first);
+    }
+  }
+  
+  private void checkSameValue(String option, Object firstValue, Object value, 
+      CodeSystemProperties first) {
+    if (!Objects.equals(firstValue, value)) {
+      throw new InvalidPropertyException("All the outputs of input " + first.getInput() 
+          + " must use the same -" + option + " because the input is only loaded and classified "
+          + "once.");
+    }
+  }
+  
+  /**
+   * Loads and classifies an ontology and creates one code system for each output definition. The 
+   * code systems are created concurrently, sharing the ontology and the reasoner.
+   * 
+   * @param outputs The definitions of the code systems.
+   * @param sinks The sinks that receive the metadata and the concepts of each code system.
+   * 
+   * @throws IOException If there is an I/O issue writing the concepts.
+   * @throws OWLOntologyCreationException If there is a problem loading the ontology.
+   */
+  private void createCodeSystems(List<OutputDefinition> outputs, List<ConceptSink> sinks) 
+      throws IOException, OWLOntologyCreationException {
+    
+    final CodeSystemProperties firstCsp = outputs.get(0).getCodeSystemProperties();
+    final File input = firstCsp.getInput();
+    
+    // The ontology is read from several threads when there is more than one output
+    OWLOntologyManager manager = outputs.size() > 1 
+        ? OWLManager.createConcurrentOWLOntologyManager() 
+        : OWLManager.createOWLOntologyManager();
+    // Mappers added later take precedence, so the cache is only used for imports that are not 
+    // available locally
+    final HttpImportCache importCache = addImportCache(manager, firstCsp);
+    addIriMappings(manager);
+    final LocalImportMapper importMapper = addImportMapper(manager, firstCsp);
+    AxiomFilter axiomFilter = null;
+    if (firstCsp.isFilterAxioms()) {
+      final Set<IRI> props = new HashSet<>();
+      for (String prop : getSourceProperties(outputs)) {
+        props.add(IRI.create(prop));
+      }
+      axiomFilter = new AxiomFilter(props);
+      axiomFilter.install(manager, outputs.size() > 1);
+    }
+    
+    // OBO files and hierarchy-only vocabularies can be read without building the OWL object 
+    // model. OBO files with logical definitions still need to be classified. Compressed and 
+    // archived inputs are decompressed as they are read.
+    final SourceVocabulary vocabulary;
+    OWLOntology loadedOnt = null;
+    try (ArchiveInput archive = ArchiveInput.isArchive(input) ? new ArchiveInput(input) : null) {
+      vocabulary = readVocabulary(outputs, input, archive);
+      if (vocabulary == null) {
+        log.info("Loading ontology from file " + input.getAbsolutePath());
+        if (importCache != null && archive == null) {
+          importCache.prefetchImports(input);
+        }
+        loadedOnt = loadOntology(manager, input, archive, firstCsp.getParseThreads());
+        if (importMapper != null) {
+          importMapper.save();
+        }
+        if (axiomFilter != null) {
+          axiomFilter.dropUnusedAssertions(loadedOnt);
+          axiomFilter.logStats();
+        }
+      }
+    } finally {
+      if (importCache != null) {
+        importCache.shutdown();
+      }
+    }
+    
+    if (vocabulary != null) {
+      final List<Callable<Void>> tasks = new ArrayList<>();
+      for (int i = 0; i < outputs.size(); i++) {
+        final OutputDefinition output = outputs.get(i);
+        final ConceptSink sink = sinks.get(i);
+        tasks.add(() -> {
+          try (QueuedConceptSink queued = new QueuedConceptSink(sink, SINK_QUEUE_SIZE)) {
+            createCodeSystem(vocabulary, output, queued);
+          }
+          return null;
+        });
+      }
+      runAll(tasks);
+      return;
+    }
+    
+    final OWLOntology rootOnt = loadedOnt;
+    final OWLDataFactory factory = manager.getOWLDataFactory();
+    
+    // The labels and the classes in the main ontology do not depend on the classification, so 
+    // they are extracted in the background while the ontology is classified. The imports closure 
+    // is computed up front because the manager caches it and is not safe for concurrent use.
+    final Set<OWLOntology> closure = rootOnt.getImportsClosure();
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      final Map<OWLAnnotationProperty, Future<Map<IRI, String>>> labels = new HashMap<>();
+      for (OutputDefinition output : outputs) {
+        final OWLAnnotationProperty prop = output.getConceptProperties().getDisplay(factory);
+        if (!labels.containsKey(prop)) {
+          labels.put(prop, executor.submit(() -> getLabels(closure, prop)));
+        }
+      }
+      
+      // We implement the two supported mechanisms to determine which concepts belong in the
+      // main ontology. If the main namespaces are provided then those are used. Otherwise
+      // we need to calculate which concepts are defined in the main file and are not
+      // defined in the imported ontologies
+      boolean needsIrisInMain = false;
+      for (OutputDefinition output : outputs) {
+        final Set<String> mainNamespaces = output.getMainNamespaces();
+        needsIrisInMain |= mainNamespaces == null || mainNamespaces.isEmpty();
+      }
+      final Future<Set<IRI>> irisInMainFuture = needsIrisInMain 
+          ? executor.submit(() -> getIrisInMain(rootOnt, closure)) 
+          : CompletableFuture.completedFuture(Collections.<IRI>emptySet());
+      
+      // If requested, only the module of the main classes is classified. Imported classes 
+      // outside the module cannot be ancestors of main classes, so they are not needed. The 
+      // module can only be used if every output requests it, and then it includes the main 
+      // classes of all of them, which have to be found before classifying.
+      boolean useModule = true;
+      for (OutputDefinition output : outputs) {
+        useModule &= output.getCodeSystemProperties().isExtractModule();
+      }
+      final List<Set<OWLClass>> moduleMainClasses = useModule 
+          ? getMainClasses(outputs, rootOnt, await(irisInMainFuture)) : null;
+      final Set<OWLClass> allMainClasses = new HashSet<>();
+      if (useModule) {
+        for (Set<OWLClass> classes : moduleMainClasses) {
+          allMainClasses.addAll(classes);
+        }
+      }
+      final OWLOntology ontToClassify = useModule 
+          ? extractModule(manager, rootOnt, allMainClasses) : rootOnt;
+      
+      // Classify root ontology
+      log.info("Classifying ontology " + getOntologyName(firstCsp, rootOnt, factory));
+      final OWLReasoner reasoner = classify(ontToClassify, firstCsp);
+      
+      final Set<IRI> irisInMain = await(irisInMainFuture);
+      final List<Set<OWLClass>> mainClasses = useModule ? moduleMainClasses 
+          : getMainClasses(outputs, rootOnt, irisInMain);
+      
+      final List<Callable<Void>> tasks = new ArrayList<>();
+      for (int i = 0; i < outputs.size(); i++) {
+        final OutputDefinition output = outputs.get(i);
+        final Set<OWLClass> outputMainClasses = mainClasses.get(i);
+        final Map<IRI, String> outputLabels = await(labels.get(
+            output.getConceptProperties().getDisplay(factory)));
+        final ConceptSink sink = sinks.get(i);
+        tasks.add(() -> {
+          try (QueuedConceptSink queued = new QueuedConceptSink(sink, SINK_QUEUE_SIZE)) {
+            createCodeSystem(output, rootOnt, ontToClassify, reasoner, irisInMain, 
+                outputMainClasses, outputLabels, queued);
+          }
+          return null;
+        });
+      }
+      runAll(tasks);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Classifies an ontology with ELK. If requested, the classification of its imports is reused or 
+   * the independent partitions of the ontology are classified concurrently, each with its own 
+   * reasoner.
+   * 
+   * @param ont The ontology.
+   * @param csp The code system properties, with the number of threads and the taxonomy cache.
+   * @return The reasoner, after classification.
+   * 
+   * @throws OWLOntologyCreationException If the ontologies given to the reasoners cannot be 
+   *     created.
+   */
+  private OWLReasoner classify(OWLOntology ont, CodeSystemProperties csp) 
+      throws OWLOntologyCreationException {
+    final int partitionThreads = csp.getPartitionThreads();
+    Integer reasonerThreads = csp.getReasonerThreads();
+    if (reasonerThreads == null && partitionThreads > 1) {
+      reasonerThreads = Math.max(1, 
+          Runtime.getRuntime().availableProcessors() / partitionThreads);
+    }
+    final ReasonerConfiguration elkConfig = ReasonerConfiguration.getConfiguration();
+    if (reasonerThreads != null) {
+      elkConfig.setParameter(ReasonerConfiguration.NUM_OF_WORKING_THREADS, 
+          reasonerThreads.toString());
+    }
+    if (csp.getTaxonomyCache() != null) {
+      elkConfig.setParameter(ReasonerConfiguration.INCREMENTAL_MODE_ALLOWED, "true");
+    }
+    final OWLReasonerConfiguration config = new ElkReasonerConfiguration(
+        ElkReasonerConfiguration.getDefaultOwlReasonerConfiguration(
+            new NullReasonerProgressMonitor()), elkConfig);
+    final OWLReasonerFactory reasonerFactory = new ElkReasonerFactory();
+    
+    // Ontologies without imports, or whose classification cannot be reused, are classified as usual
+    if (csp.getTaxonomyCache() != null) {
+      final OWLReasoner reasoner = getTaxonomyCache(csp.getTaxonomyCache()).classify(ont, 
+          reasonerFactory, config);
+      if (reasoner != null) {
+        return reasoner;
+      }
+    }
+    if (partitionThreads > 1) {
+      return PartitionedReasoner.classify(ont, reasonerFactory, config, partitionThreads);
+    }
+    final OWLReasoner reasoner = reasonerFactory.createReasoner(ont, config);
+    reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+    return reasoner;
+  }
+  
+  /**
+   * Returns the cache of the classifications of imports that uses a directory. 
+   * 
+   * @param cacheDir The directory.
+   * @return The cache.
+   */
+  private TaxonomyCache getTaxonomyCache(File cacheDir) {
+    synchronized (taxonomyCaches) {
+      return taxonomyCaches.computeIfAbsent(cacheDir.getAbsoluteFile(), TaxonomyCache::new);
+    }
+  }
+  
+  /**
+   * Returns the IRIs of the classes that are defined in the main ontology and are not defined in 
+   * the imported ontologies.
+   * 
+   * @param rootOnt The root ontology.
+   * @param closure The imports closure of the root ontology.
+   * @return The IRIs.
+   */
+  private Set<IRI> getIrisInMain(OWLOntology rootOnt, Set<OWLOntology> closure) {
+    // Get concepts in main ontology
+    final Set<IRI> res = getIris(rootOnt.getClassesInSignature(Imports.EXCLUDED));
+    
+    // Remove concepts in imported ontologies from the ones in the main ontology
+    for (OWLOntology ont : closure) {
+      if (!ont.equals(rootOnt)) {
+        res.removeAll(getIris(ont.getClassesInSignature(Imports.EXCLUDED)));
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Returns the classes in the main ontology of the outputs that request a module.
+   * 
+   * @param outputs The definitions of the code systems.
+   * @param rootOnt The root ontology.
+   * @param irisInMain The IRIs defined in the main ontology and not in the imports.
+   * @return The main classes of each output, or null for the outputs that do not request a 
+   *     module.
+   */
+  private List<Set<OWLClass>> getMainClasses(List<OutputDefinition> outputs, 
+      OWLOntology rootOnt, Set<IRI> irisInMain) {
+    final List<Set<OWLClass>> res = new ArrayList<>();
+    for (OutputDefinition output : outputs) {
+      res.add(output.getCodeSystemProperties().isExtractModule() 
+          ? getMainClasses(rootOnt, output.getMainNamespaces(), irisInMain) : null);
+    }
+    return res;
+  }
+  
+  /**
+   * Returns the preferred terms of all the classes in an imports closure.
+   * 
+   * @param closure The imports closure.
+   * @param preferredTermProp The annotation property that holds the preferred term.
+   * @return A map of class IRIs to their preferred terms. Classes without a preferred term are 
+   *     not included.
+   */
+  private Map<IRI, String> getLabels(Set<OWLOntology> closure, 
+      OWLAnnotationProperty preferredTermProp) {
+    final Map<IRI, String> res = new HashMap<>();
+    for (OWLOntology ont : closure) {
+      for (OWLClass oc : ont.getClassesInSignature()) {
+        String pt = getPreferedTerm(oc, ont, preferredTermProp, Collections.emptyList());
+        if (pt != null) {
+          res.put(oc.getIRI(), pt);
+        }
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Waits for a task that runs in the background.
+   * 
+   * @param future The result of the task.
+   * @return The result.
+   * 
+   * @throws IOException If the task fails with an I/O issue or the thread is interrupted.
+   */
+  private <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while creating the code systems.", e);
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+  
+  /**
+   * Reads the input without building the OWL object model, if possible. This is done for OBO 
+   * files when no relationships are requested and for any RDF file when streaming is requested.
+   * Compressed and archived inputs are decompressed as they are read. The asserted parents that 
+   * are not direct parents are removed, so the hierarchy is the same as after classification.
+   * 
+   * @param outputs The definitions of the code systems.
+   * @param input The input file.
+   * @param archive The compressed or archived input. Null if the input is a plain file.
+   * @return The vocabulary or null if the input needs to be loaded with the OWL API.
+   * 
+   * @throws IOException If the input cannot be read.
+   */
+  private SourceVocabulary readVocabulary(List<OutputDefinition> outputs, File input, 
+      ArchiveInput archive) throws IOException {
+    final String name = archive != null ? archive.getName() : input.getName();
+    if (name.toLowerCase(Locale.ROOT).endsWith(".obo") && !hasRelationships(outputs)) {
+      final OboReader reader = new OboReader(getSourceProperties(outputs));
+      final SourceVocabulary vocabulary;
+      if (archive != null) {
+        try (InputStream in = archive.openStream()) {
+          vocabulary = reader.read(in);
+        }
+      } else {
+        vocabulary = reader.read(input);
+      }
+      if (vocabulary.isClassificationRequired()) {
+        log.info("The OBO file needs to be classified, so it is loaded with the OWL API");
+        return null;
+      }
+      return reduceParents(vocabulary);
+    } else if (outputs.get(0).getCodeSystemProperties().isStreaming()) {
+      final RdfStreamReader reader = new RdfStreamReader(getSourceProperties(outputs));
+      if (archive != null) {
+        try (InputStream in = archive.openStream()) {
+          return reduceParents(reader.read(in, name, archive.getDocumentIri().toString()));
+        }
+      }
+      return reduceParents(reader.read(input));
+    }
+    return null;
+  }
+  
+  private SourceVocabulary reduceParents(SourceVocabulary vocabulary) {
+    final int removed = vocabulary.reduceParents(
+        OWLManager.getOWLDataFactory().getOWLThing().getIRI().toString());
+    if (removed > 0) {
+      log.info("Removed " + removed + " asserted parents that are not direct parents");
+    }
+    return vocabulary;
+  }
+  
+  /**
+   * Loads the root ontology. Large RDF/XML and N-Triples files can be parsed with several threads.
+   * Compressed files are decompressed as they are parsed and the imports of a zip archive are 
+   * resolved from its entries.
+   * 
+   * @param manager The ontology manager.
+   * @param input The input file.
+   * @param archive The compressed or archived input. Null if the input is a plain file.
+   * @param parseThreads The number of threads used to parse the input.
+   * @return The root ontology, with its imports loaded.
+   * 
+   * @throws IOException If the input cannot be read.
+   * @throws OWLOntologyCreationException If the ontology cannot be loaded.
+   */
+  private OWLOntology loadOntology(OWLOntologyManager manager, File input, ArchiveInput archive, 
+      int parseThreads) throws IOException, OWLOntologyCreationException {
+    if (archive != null) {
+      if (parseThreads > 1) {
+        log.info("The input is compressed, so it is parsed with a single thread");
+      }
+      final OWLOntologyIRIMapper mapper = archive.getIriMapper();
+      if (mapper != null) {
+        manager.getIRIMappers().add(mapper);
+      }
+      return manager.loadOntologyFromOntologyDocument(archive.getDocumentSource());
+    }
+    if (parseThreads > 1) {
+      final RDFFormat format = ParallelRdfLoader.getFormat(input);
+      if (format != null) {
+        return new ParallelRdfLoader(parseThreads).load(manager, input, format);
+      }
+      log.info("The input is not RDF/XML or N-Triples, so it is parsed with a single thread");
+    }
+    return manager.loadOntologyFromOntologyDocument(input);
+  }
+  
+  /**
+   * Runs the tasks that create the code systems. A single task runs in the calling thread and 
+   * several tasks run concurrently.
+   * 
+   * @param tasks The tasks.
+   * 
+   * @throws IOException If one of the tasks fails with an I/O issue.
+   */
+  private void runAll(List<Callable<Void>> tasks) throws IOException {
+    final ExecutorService executor = tasks.size() == 1 ? null 
+        : Executors.newFixedThreadPool(
+            Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+    try {
+      if (executor == null) {
+        tasks.get(0).call();
+        return;
+      }
+      final List<Future<Void>> futures = new ArrayList<>();
+      for (Callable<Void> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while creating the code systems.", e);
+        } catch (ExecutionException e) {
+          throw unwrap(e.getCause());
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw unwrap(e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+  
+  private IOException unwrap(Throwable cause) {
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else {
+      return new IOException(cause);
+    }
+  }
+  
+  /**
+   * Indicates if any of the outputs maps existential restrictions to concept properties. These 
+   * need the OWL object model.
+   * 
+   * @param outputs The definitions of the code systems.
+   * @return true if any of the outputs has relationships.
+   */
+  private boolean hasRelationships(List<OutputDefinition> outputs) {
+    final OWLDataFactory factory = OWLManager.getOWLDataFactory();
+    for (OutputDefinition output : outputs) {
+      if (!output.getConceptProperties().getRelationships(factory).isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Returns the IRIs of the annotation properties that have to be kept when streaming the input, 
+   * for all the outputs.
+   * 
+   * @param outputs The definitions of the code systems.
+   * @return The IRIs of the annotation properties.
+   */
+  private Set<String> getSourceProperties(List<OutputDefinition> outputs) {
+    final OWLDataFactory factory = OWLManager.getOWLDataFactory();
+    final Set<OWLAnnotationProperty> props = new HashSet<>();
+    for (OutputDefinition output : outputs) {
+      final CodeSystemProperties csp = output.getCodeSystemProperties();
+      final ConceptProperties cp = output.getConceptProperties();
+      props.add(cp.getCode(factory));
+      props.add(cp.getDisplay(factory));
+      props.addAll(cp.getDesignations(factory));
+      props.add(csp.getNameProp(factory));
+      props.addAll(csp.getPublisherProps(factory));
+      props.addAll(csp.getDescriptionProps(factory));
+    }
+    props.remove(null);
+    
+    final Set<String> res = new HashSet<>();
+    for (OWLAnnotationProperty prop : props) {
+      res.add(prop.getIRI().toString());
+    }
+    for (OutputDefinition output : outputs) {
+      for (PropertyExtractor extractor : createExtractors(output.getConceptProperties(), 
+          factory)) {
+        for (IRI iri : extractor.getAnnotationProperties()) {
+          res.add(iri.toString());
+        }
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Creates a code system from a vocabulary that was streamed from the input. The hierarchy is 
+   * built from the asserted parents, without reasoning, and classes without parents are children 
+   * of Thing, as they would be after classification.
+   * 
+   * @param vocabulary The vocabulary.
+   * @param output The definition of the code system.
+   * @param sink The sink that receives the code system metadata and the concepts.
+   * 
+   * @throws IOException If there is an I/O issue writing the concepts.
+   */
+  private void createCodeSystem(SourceVocabulary vocabulary, OutputDefinition output, 
+      ConceptSink sink) throws IOException {
+    final CodeSystemProperties csp = output.getCodeSystemProperties();
+    final ConceptProperties cp = output.getConceptProperties();
+    final Set<String> mainNamespaces = output.getMainNamespaces();
+    final OWLDataFactory factory = OWLManager.getOWLDataFactory();
+    if (!cp.getRelationships(factory).isEmpty()) {
+      throw new InvalidPropertyException("Relationships need the OWL object model and cannot be "
+          + "used when the input is streamed.");
+    }
+    
+    final OWLAnnotationProperty nameProp = csp.getNameProp(factory);
+    final CodeSystem cs = createCodeSystemMetadata(csp, vocabulary.getOntologyIri(), 
+        vocabulary.getVersionIri(), 
+        nameProp != null ? getHeaderAnnotation(vocabulary, Arrays.asList(nameProp)) : null, 
+        getHeaderAnnotation(vocabulary, csp.getPublisherProps(factory)), 
+        getHeaderAnnotation(vocabulary, csp.getDescriptionProps(factory)));
+    
+    final List<PropertyExtractor> extractors = createExtractors(cp, factory);
+    for (PropertyExtractor extractor : extractors) {
+      extractor.declare(cs);
+    }
+    
+    // Determine which classes are emitted, as in the OWL path. There are no imports, so only 
+    // the main namespaces can make a class imported.
+    final String thing = factory.getOWLThing().getIRI().toString();
+    Set<String> selected = null;
+    if (csp.isExtractModule()) {
+      final List<String> mainClasses = new ArrayList<>();
+      for (SourceConcept concept : vocabulary.getConcepts()) {
+        if (!isImported(IRI.create(concept.getIri()), mainNamespaces, Collections.emptySet(), 
+            false)) {
+          mainClasses.add(concept.getIri());
+        }
+      }
+      selected = getAncestorsOrSelf(vocabulary, mainClasses, thing);
+      log.info("Emitting " + mainClasses.size() + " main classes and " 
+          + (selected.size() - mainClasses.size()) + " imported ancestors");
+    }
+    
+    final List<String> roots = csp.getRoots();
+    if (!roots.isEmpty()) {
+      final Set<String> subtrees = getSubtrees(vocabulary, roots, thing);
+      if (selected != null) {
+        selected.retainAll(subtrees);
+      } else {
+        selected = subtrees;
+      }
+      log.info("Emitting " + selected.size() + " classes in the subtrees of " + roots);
+    }
+    
+    final boolean includeDeprecated = csp.isIncludeDeprecated();
+    final OWLAnnotationProperty codeProp = cp.getCode(factory);
+    final OWLAnnotationProperty preferredTermProp = cp.getDisplay(factory);
+    final List<String> synonymProps = new ArrayList<>();
+    for (OWLAnnotationProperty prop : cp.getDesignations(factory)) {
+      synonymProps.add(prop.getIRI().toString());
+    }
+    final String stringToReplaceInCodes = cp.getStringToReplaceInCodes();
+    final String replacementStringInCodes = cp.getReplacementStringInCodes();
+    final List<String> labelsToExclude = cp.getLabelsToExclude();
+    final Map<String, String> importPrefixes = cp.getImportPrefixes();
+    final boolean compact = csp.isCompact();
+    
+    final List<SourceConcept> concepts = new ArrayList<>();
+    if (vocabulary.getConcept(thing) == null && (selected == null || selected.contains(thing))) {
+      concepts.add(new SourceConcept(thing));
+    }
+    concepts.addAll(vocabulary.getConcepts());
+    
+    sink.start(cs);
+    
+    int count = 0;
+    for (SourceConcept concept : concepts) {
+      if (selected != null && !selected.contains(concept.getIri())) {
+        continue;
+      }
+      final ConceptDefinitionComponent cdc = processConcept(concept, vocabulary, thing, 
+          mainNamespaces, selected, includeDeprecated, 
+          codeProp != null ? codeProp.getIRI().toString() : null, 
+          preferredTermProp != null ? preferredTermProp.getIRI().toString() : null, 
+          synonymProps, stringToReplaceInCodes, replacementStringInCodes, labelsToExclude, 
+          importPrefixes, compact);
+      if (cdc != null) {
+        extractProperties(cdc, concept, extractors, factory);
+        sink.accept(cdc);
+        count++;
+      }
+    }
+    
+    cs.setCount(count);
+    
+    sink.finish(cs);
+  }
+  
+  private String getHeaderAnnotation(SourceVocabulary vocabulary, 
+      Collection<OWLAnnotationProperty> props) {
+    for (OWLAnnotationProperty prop : props) {
+      final String value = vocabulary.getHeaderAnnotation(prop.getIRI().toString());
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Returns the parents of a concept in a streamed vocabulary. Classes without asserted parents 
+   * are children of Thing.
+   */
+  private List<String> getParents(SourceConcept concept, String thing) {
+    if (concept.getIri().equals(thing)) {
+      return Collections.emptyList();
+    } else if (concept.getParents().isEmpty()) {
+      return Collections.singletonList(thing);
+    } else {
+      return concept.getParents();
+    }
+  }
+  
+  /**
+   * Returns some classes of a streamed vocabulary and all their asserted ancestors.
+   * 
+   * @param vocabulary The vocabulary.
+   * @param classes The IRIs of the classes.
+   * @param thing The IRI of Thing.
+   * @return The IRIs of the classes and their ancestors.
+   */
+  private Set<String> getAncestorsOrSelf(SourceVocabulary vocabulary, Collection<String> classes, 
+      String thing) {
+    final Set<String> res = new HashSet<>(classes);
+    final Deque<String> queue = new ArrayDeque<>(classes);
+    while (!queue.isEmpty()) {
+      final SourceConcept concept = vocabulary.getConcept(queue.poll());
+      final List<String> parents = concept != null ? getParents(concept, thing) 
+          : Collections.singletonList(thing);
+      for (String parent : parents) {
+        if (res.add(parent)) {
+          queue.add(parent);
+        }
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Returns the classes in the subtrees rooted at some classes of a streamed vocabulary, according 
+   * to the asserted hierarchy.
+   * 
+   * @param vocabulary The vocabulary.
+   * @param roots The IRIs of the root classes.
+   * @param thing The IRI of Thing.
+   * @return The IRIs of the classes in the subtrees.
+   */
+  private Set<String> getSubtrees(SourceVocabulary vocabulary, List<String> roots, 
+      String thing) {
+    final Map<String, List<String>> children = new HashMap<>();
+    for (SourceConcept concept : vocabulary.getConcepts()) {
+      for (String parent : getParents(concept, thing)) {
+        children.computeIfAbsent(parent, k -> new ArrayList<>()).add(concept.getIri());
+      }
+    }
+    
+    final Set<String> res = new HashSet<>();
+    final Deque<String> queue = new ArrayDeque<>();
+    for (String root : roots) {
+      if (!root.equals(thing) && vocabulary.getConcept(root) == null) {
+        throw new InvalidPropertyException("Root class " + root + " was not found in the "
+            + "ontology.");
+      }
+      if (res.add(root)) {
+        queue.add(root);
+      }
+    }
+    while (!queue.isEmpty()) {
+      for (String child : children.getOrDefault(queue.poll(), Collections.emptyList())) {
+        if (res.add(child)) {
+          queue.add(child);
+        }
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Creates a concept from a class of a streamed vocabulary. Follows the same rules as 
+   * {@link #processClass}, using the asserted parents instead of the classified hierarchy.
+   * 
+   * @return The concept or null if it is not emitted.
+   */
+  private ConceptDefinitionComponent processConcept(SourceConcept concept, 
+      SourceVocabulary vocabulary, 
+      String thing, 
+      Set<String> mainNamespaces, 
+      Set<String> selected, 
+      boolean includeDeprecated, 
+      String codeProp, 
+      String preferredTermProp, 
+      List<String> synonymProps, 
+      String stringToReplaceInCodes, 
+      String replacementStringInCodes, 
+      List<String> labelsToExclude, 
+      Map<String, String> importPrefixes, 
+      boolean compact) {
+    
+    final boolean isDeprecated = concept.isDeprecated();
+    if (!includeDeprecated && isDeprecated) {
+      return null; // Skip this concept because it is deprecated
+    }
+    
+    final IRI iri = IRI.create(concept.getIri());
+    final Set<IRI> irisInMain = Collections.emptySet();
+    final boolean imported = isImported(iri, mainNamespaces, irisInMain, false);
+    
+    String code = null;
+    if (codeProp != null && !concept.getAnnotations(codeProp).isEmpty()) {
+      code = concept.getAnnotations(codeProp).get(0);
+    }
+    if (code == null) {
+      code = imported ? getImportedCode(iri, importPrefixes) : iri.getShortForm();
+    }
+    if (!imported && stringToReplaceInCodes != null && replacementStringInCodes != null) {
+      code = code.replace(stringToReplaceInCodes, replacementStringInCodes);
+    }
+    
+    final ConceptDefinitionComponent cdc = new ConceptDefinitionComponent();
+    cdc.setCode(code);
+    
+    addBooleanProperty(cdc, "imported", imported, compact);
+    
+    boolean isRoot = concept.getIri().equals(thing);
+    int numParents = 0;
+    boolean hasParentsNotEmitted = false;
+    for (String parent : getParents(concept, thing)) {
+      if (selected != null && !selected.contains(parent)) {
+        hasParentsNotEmitted = true;
+        continue;
+      }
+      if (!includeDeprecated) {
+        final SourceConcept parentConcept = vocabulary.getConcept(parent);
+        if (parentConcept != null && parentConcept.isDeprecated()) {
+          continue;
+        }
+      }
+      
+      final ConceptPropertyComponent parentProp = cdc.addProperty();
+      parentProp.setCode("parent");
+      parentProp.setValue(new CodeType(getReferencedCode(IRI.create(parent), mainNamespaces, 
+          irisInMain, false, stringToReplaceInCodes, replacementStringInCodes, 
+          importPrefixes)));
+      numParents++;
+    }
+    if (numParents == 0 && hasParentsNotEmitted) {
+      isRoot = true;
+    }
+    
+    addBooleanProperty(cdc, "root", isRoot, compact);
+    addBooleanProperty(cdc, "deprecated", isDeprecated, compact);
+    
+    final SortedSet<String> labels = new TreeSet<>();
+    String preferredTerm = null;
+    if (preferredTermProp != null) {
+      labels.addAll(concept.getAnnotations(preferredTermProp));
+      for (String label : labels) {
+        if (!labelsToExclude.contains(label)) {
+          preferredTerm = label;
+          break;
+        }
+      }
+    }
+    
+    final Set<String> synonyms = new HashSet<>();
+    for (String prop : synonymProps) {
+      for (String label : concept.getAnnotations(prop)) {
+        if (!labelsToExclude.contains(label)) {
+          synonyms.add(label);
+        }
+      }
+    }
+    synonyms.remove(preferredTerm);
+    
+    if (preferredTerm == null && synonyms.isEmpty()) {
+      if (!labels.isEmpty()) {
+        cdc.setDisplay(labels.first());
+      } else if (vocabulary.getConcept(concept.getIri()) == null) {
+        // Thing when it is not in the vocabulary
+        cdc.setDisplay(code);
+      } else {
+        log.warn("Could not find label for class " + iri.toString());
+        cdc.setDisplay(iri.toString());
+      }
+    } else if (preferredTerm == null) {
+      // No prefererd term but there are synonyms so pick any one as the display
+      preferredTerm = synonyms.iterator().next();
+      synonyms.remove(preferredTerm);
+      
+      cdc.setDisplay(preferredTerm);
+      addSynonyms(synonyms, cdc, compact);
+    } else {
+      cdc.setDisplay(preferredTerm);
+      addSynonyms(synonyms, cdc, compact);
+    }
+    
+    return cdc;
   }
   
-  private CodeSystem createCodeSystem(CodeSystemProperties csp, ConceptProperties cp, 
-      Set<String> mainNamespaces) 
-      throws OWLOntologyCreationException {
-    
-    final File input = csp.getInput();
-    
-    log.info("Loading ontology from file " + input.getAbsolutePath());
-    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
-    addIriMappings(manager);
-    final OWLOntology rootOnt = manager.loadOntologyFromOntologyDocument(input);
-    
-    // We only need the preferred term property here
-    final OWLDataFactory factory = manager.getOWLDataFactory();
-    final OWLAnnotationProperty preferredTermProp = cp.getDisplay(factory);
-    
-    // We implement the two supported mechanisms to determine which concepts belong in the
-    // main ontology. If the main namespaces are provided then those are used. Otherwise
-    // we need to calculate which concepts are defined in the main file and are not
-    // defined in the imported ontologies
-    final Set<IRI> irisInMain = new HashSet<>();
-    if (mainNamespaces == null || mainNamespaces.isEmpty()) {
-      // Get concepts in main ontology
-      irisInMain.addAll(getIris(rootOnt.getClassesInSignature(Imports.EXCLUDED)));
-      
-      // Get all concepts in imported ontologies
-      final Set<IRI> importedIris = new HashSet<>();
-      for (OWLOntology io : rootOnt.getImports()) {
-        importedIris.addAll(getIris(io.getClassesInSignature(Imports.INCLUDED)));
+  /**
+   * Runs the extractors on a concept of a streamed vocabulary. The annotation values are passed 
+   * as string literals.
+   */
+  private void extractProperties(ConceptDefinitionComponent cdc, SourceConcept concept, 
+      List<PropertyExtractor> extractors, OWLDataFactory factory) {
+    for (PropertyExtractor extractor : extractors) {
+      final List<OWLAnnotation> annotations = new ArrayList<>();
+      for (IRI prop : extractor.getAnnotationProperties()) {
+        for (String value : concept.getAnnotations(prop.toString())) {
+          annotations.add(factory.getOWLAnnotation(factory.getOWLAnnotationProperty(prop), 
+              factory.getOWLLiteral(value)));
+        }
       }
-      
-      // Remove concepts in imported ontologies from the ones in the main ontology
-      irisInMain.removeAll(importedIris);
+      extractor.extract(cdc, annotations);
     }
+  }
+  
+  /**
+   * Creates a code system from a loaded and classified ontology.
+   * 
+   * @param output The definition of the code system.
+   * @param rootOnt The root ontology.
+   * @param ontToClassify The ontology that was classified. Either the root ontology or a module.
+   * @param reasoner The OWL reasoner, after classification.
+   * @param irisInMain The IRIs defined in the main ontology and not in the imports.
+   * @param mainClasses The main classes, if only they and their ancestors should be emitted. 
+   *     Otherwise null.
+   * @param labels The preferred terms of the classes in the imports closure.
+   * @param sink The sink that receives the code system metadata and the concepts.
+   * 
+   * @throws IOException If there is an I/O issue writing the concepts.
+   */
+  private void createCodeSystem(OutputDefinition output, OWLOntology rootOnt, 
+      OWLOntology ontToClassify, OWLReasoner reasoner, Set<IRI> irisInMain, 
+      Set<OWLClass> mainClasses, Map<IRI, String> labels, ConceptSink sink) throws IOException {
+    final CodeSystemProperties csp = output.getCodeSystemProperties();
+    final ConceptProperties cp = output.getConceptProperties();
+    final Set<String> mainNamespaces = output.getMainNamespaces();
+    final OWLDataFactory factory = rootOnt.getOWLOntologyManager().getOWLDataFactory();
     
-    // Extract labels for all classes
-    final Map<IRI, String> iriDisplayMap = new HashMap<>();
-    for (OWLClass owlClass : rootOnt.getClassesInSignature(Imports.INCLUDED)) {
-      iriDisplayMap.put(owlClass.getIRI(), null);
+    // When using a module, only the main classes and their ancestors are emitted
+    Set<OWLClass> selected = null;
+    if (mainClasses != null) {
+      selected = new HashSet<>(mainClasses);
+      synchronized (reasoner) {
+        for (OWLClass owlClass : mainClasses) {
+          selected.addAll(reasoner.getEquivalentClasses(owlClass).getEntities());
+          selected.addAll(reasoner.getSuperClasses(owlClass, false).getFlattened());
+        }
+      }
+      log.info("Emitting " + mainClasses.size() + " main classes and " 
+          + (selected.size() - mainClasses.size()) + " imported ancestors");
     }
     
-    final Set<OWLOntology> closure = manager.getImportsClosure(rootOnt);
-    for (OWLOntology ont : closure) {
-      for (OWLClass oc : ont.getClassesInSignature()) {
-        if (iriDisplayMap.containsKey(oc.getIRI())) {
-          String pt = getPreferedTerm(oc, ont, preferredTermProp, Collections.emptyList());
-          if (pt != null) {
-            iriDisplayMap.put(oc.getIRI(), pt);
-          }
-        }
+    // When roots are specified, only the classes in their subtrees are emitted
+    final List<String> roots = csp.getRoots();
+    if (!roots.isEmpty()) {
+      final Set<OWLClass> subtrees = getSubtrees(rootOnt, factory, reasoner, roots);
+      if (selected != null) {
+        selected.retainAll(subtrees);
+      } else {
+        selected = subtrees;
       }
+      log.info("Emitting " + selected.size() + " classes in the subtrees of " + roots);
     }
     
-    // Make sure there are no null labels
-    final Set<IRI> unnamed = new HashSet<>();
-    for (IRI key : iriDisplayMap.keySet()) {
-      String display = iriDisplayMap.get(key);
+    // Get the labels of all the classes that are emitted, making sure there are no null labels
+    final Map<IRI, String> iriDisplayMap = new HashMap<>();
+    for (OWLClass owlClass : selected != null ? selected 
+        : ontToClassify.getClassesInSignature(Imports.INCLUDED)) {
+      final IRI key = owlClass.getIRI();
+      final String display = labels.get(key);
       if (display == null) {
         log.warn("Could not find label for class " + key.toString());
-        unnamed.add(key);
+        iriDisplayMap.put(key, key.toString());
+      } else {
+        iriDisplayMap.put(key, display);
       }
     }
     
-    for (IRI un : unnamed) {
-      iriDisplayMap.put(un, un.toString());
+    // Create code system
+    createCodeSystem(rootOnt, factory, reasoner, mainNamespaces, irisInMain, iriDisplayMap, 
+        selected, csp, cp, sink);
+  }
+  
+  /**
+   * Returns the classes in the main ontology.
+   * 
+   * @param rootOnt The root ontology.
+   * @param mainNamespaces The namespaces of concepts that belong in the main ontology. Might be 
+   *     null or empty.
+   * @param irisInMain The IRIs defined in the main ontology and not in the imports.
+   * @return The main classes.
+   */
+  private Set<OWLClass> getMainClasses(OWLOntology rootOnt, Set<String> mainNamespaces, 
+      Set<IRI> irisInMain) {
+    final boolean hasImports = !rootOnt.getImportsDeclarations().isEmpty();
+    final Set<OWLClass> res = new HashSet<>();
+    for (OWLClass owlClass : rootOnt.getClassesInSignature(Imports.INCLUDED)) {
+      if (!isImported(owlClass.getIRI(), mainNamespaces, irisInMain, hasImports)) {
+        res.add(owlClass);
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Returns the classes in the subtrees rooted at some classes, according to the classified 
+   * hierarchy. This includes the roots and their equivalent classes.
+   * 
+   * @param rootOnt The root ontology.
+   * @param factory The OWL factory.
+   * @param reasoner The OWL reasoner, after classification.
+   * @param roots The IRIs of the root classes.
+   * @return The classes in the subtrees.
+   */
+  private Set<OWLClass> getSubtrees(OWLOntology rootOnt, OWLDataFactory factory, 
+      OWLReasoner reasoner, List<String> roots) {
+    final Set<OWLClass> res = new HashSet<>();
+    for (String root : roots) {
+      final IRI iri = IRI.create(root);
+      if (!rootOnt.containsClassInSignature(iri, Imports.INCLUDED)) {
+        throw new InvalidPropertyException("Root class " + root + " was not found in the "
+            + "ontology.");
+      }
+      final OWLClass owlClass = factory.getOWLClass(iri);
+      res.add(owlClass);
+      synchronized (reasoner) {
+        res.addAll(reasoner.getEquivalentClasses(owlClass).getEntities());
+        res.addAll(reasoner.getSubClasses(owlClass, false).getFlattened());
+      }
+    }
+    res.remove(factory.getOWLNothing());
+    return res;
+  }
+  
+  /**
+   * Extracts the syntactic locality-based bottom module of the main classes from the imports 
+   * closure of an ontology. The module preserves all the entailments about the main classes, 
+   * including their subsumption by imported classes, and is usually much smaller than the imports 
+   * closure when the main ontology only uses a few imported classes. The annotations of the 
+   * classes in the module are kept so deprecated parents can still be detected.
+   * 
+   * @param manager The ontology manager.
+   * @param rootOnt The root ontology.
+   * @param mainClasses The classes in the main ontology.
+   * @return The module, as a new anonymous ontology.
+   * 
+   * @throws OWLOntologyCreationException If the module ontology cannot be created.
+   */
+  private OWLOntology extractModule(OWLOntologyManager manager, OWLOntology rootOnt, 
+      Set<OWLClass> mainClasses) throws OWLOntologyCreationException {
+    final Set<OWLOntology> closure = rootOnt.getImportsClosure();
+    final Set<OWLAxiom> logicalAxioms = new HashSet<>();
+    for (OWLOntology ont : closure) {
+      logicalAxioms.addAll(ont.getLogicalAxioms());
     }
     
-    // Classify root ontology
-    log.info("Classifying ontology " + getOntologyName(csp, rootOnt, factory));
-    OWLReasonerFactory reasonerFactory = new ElkReasonerFactory();
-    OWLReasoner reasoner = reasonerFactory.createReasoner(rootOnt);
-    reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
-
-    // Create code system
-    return createCodeSystem(rootOnt, manager.getOWLDataFactory(), reasoner, mainNamespaces, 
-        irisInMain, iriDisplayMap, csp, cp);
+    log.info("Extracting module for " + mainClasses.size() + " main classes from " 
+        + logicalAxioms.size() + " logical axioms");
+    final SyntacticLocalityModuleExtractor extractor = new SyntacticLocalityModuleExtractor(
+        manager, (IRI) null, logicalAxioms, ModuleType.BOT);
+    final Set<OWLAxiom> module = extractor.extract(new HashSet<OWLEntity>(mainClasses));
+    
+    final OWLOntology res = manager.createOntology(module);
+    final Set<OWLAxiom> annotations = new HashSet<>();
+    for (OWLClass owlClass : res.getClassesInSignature()) {
+      for (OWLOntology ont : closure) {
+        annotations.addAll(ont.getAnnotationAssertionAxioms(owlClass.getIRI()));
+      }
+    }
+    manager.addAxioms(res, annotations);
+    log.info("Module has " + res.getLogicalAxiomCount() + " logical axioms and " 
+        + res.getClassesInSignature().size() + " classes");
+    return res;
   }
   
   /**
@@ -292,21 +1491,122 @@ public class FhirOwlService {
    * @param irisInMain The IRIs that belong in the main namespaces. Only populated if
    *     mainNamespaces is empty.
    * @param iriDisplayMap A map of IRIs to their display.
+   * @param selected The classes to emit. If null then all the classes in the ontology and its 
+   *     imports are emitted.
    * @param csp The code system properties.
    * @param cp The concept properties.
+   * @param sink The sink that receives the code system metadata and the concepts as they are 
+   *     created.
    * 
-   * @return The code system.
+   * @throws IOException If there is an I/O issue writing the concepts.
    */
-  private CodeSystem createCodeSystem(
+  private void createCodeSystem(
       OWLOntology ont, 
       final OWLDataFactory factory, 
       OWLReasoner reasoner, 
       Set<String> mainNamespaces, 
       Set<IRI> irisInMain,
       Map<IRI, String> iriDisplayMap,
+      Set<OWLClass> selected,
       CodeSystemProperties csp,
-      ConceptProperties cp) {
+      ConceptProperties cp,
+      ConceptSink sink) throws IOException {
+    
+    final OWLOntologyID ontId = ont.getOntologyID();
+    final Optional<IRI> iri = ontId.getOntologyIRI();
+    final Optional<IRI> v = ontId.getVersionIRI();
+    final OWLAnnotationProperty nameProp = csp.getNameProp(factory);
+    final CodeSystem cs = createCodeSystemMetadata(csp, 
+        iri.isPresent() ? iri.get().toString() : null, 
+        v.isPresent() ? v.get().toString() : null, 
+        nameProp != null ? getOntologyAnnotationValue(ont, Arrays.asList(nameProp)) : null, 
+        getOntologyAnnotationValue(ont, csp.getPublisherProps(factory)), 
+        getOntologyAnnotationValue(ont, csp.getDescriptionProps(factory)));
+    
+    // Properties added by the extractors
+    final List<PropertyExtractor> extractors = createExtractors(cp, factory);
+    for (PropertyExtractor extractor : extractors) {
+      extractor.declare(cs);
+    }
+    
+    // Properties for the mapped existential restrictions
+    final Map<OWLObjectProperty, String> relationships = cp.getRelationships(factory);
+    for (Map.Entry<OWLObjectProperty, String> entry : relationships.entrySet()) {
+      final String propIri = entry.getKey().getIRI().toString();
+      PropertyComponent relProp = cs.addProperty();
+      relProp.setCode(entry.getValue());
+      relProp.setUri(propIri);
+      relProp.setType(PropertyType.CODE);
+      relProp.setDescription("Concepts related through existential restrictions on " 
+          + propIri + ".");
+    }
+    
+    // Determine if there are imports
+    final boolean hasImports = !ont.getImportsDeclarations().isEmpty();
+    
+    
+    final boolean includeDeprecated = csp.isIncludeDeprecated();
+    final OWLAnnotationProperty codeProp = cp.getCode(factory);
+    final OWLAnnotationProperty preferredTermProp = cp.getDisplay(factory);
+    final List<OWLAnnotationProperty> synonymProps = cp.getDesignations(factory);
+    final String stringToReplaceInCodes = cp.getStringToReplaceInCodes();
+    final String replacementStringInCodes = cp.getReplacementStringInCodes();
+    final List<String> labelsToExclude = cp.getLabelsToExclude();
+    final Map<String, String> importPrefixes = cp.getImportPrefixes();
+    final boolean compact = csp.isCompact();
+    final Map<OWLClass, List<ConceptPropertyComponent>> relationshipIndex = indexRelationships(
+        ont, relationships, selected, mainNamespaces, irisInMain, hasImports, 
+        stringToReplaceInCodes, replacementStringInCodes, importPrefixes);
+    final Map<IRI, List<OWLAnnotation>> annotationIndex = indexAnnotations(ont, extractors, 
+        selected);
+    
+    final Set<OWLClass> classes = selected != null ? new HashSet<>(selected) 
+        : ont.getClassesInSignature(Imports.INCLUDED);
+    OWLClass thing = factory.getOWLThing();
+    if (selected == null && !classes.contains(thing)) {
+      classes.add(thing);
+    }
+    
+    sink.start(cs);
+    
+    int count = 0;
+    for (OWLClass owlClass : classes) {
+      final ConceptDefinitionComponent cdc = processClass(owlClass, ont, reasoner, mainNamespaces, 
+          irisInMain, iriDisplayMap, selected, includeDeprecated, codeProp, preferredTermProp, 
+          synonymProps, hasImports, stringToReplaceInCodes, replacementStringInCodes, 
+          labelsToExclude, importPrefixes, compact);
+      if (cdc != null) {
+        final List<ConceptPropertyComponent> props = relationshipIndex.get(owlClass);
+        if (props != null) {
+          cdc.getProperty().addAll(props);
+        }
+        extractProperties(cdc, owlClass, extractors, annotationIndex);
+        sink.accept(cdc);
+        count++;
+      }
+    }
     
+    // Count
+    cs.setCount(count);
+    
+    sink.finish(cs);
+  }
+  
+  /**
+   * Creates the code system metadata, including the property and filter declarations that are 
+   * common to all the inputs.
+   * 
+   * @param csp The code system properties.
+   * @param ontologyIri The IRI of the ontology. Might be null.
+   * @param versionIri The version IRI of the ontology. Might be null.
+   * @param nameFromProp The name from the ontology annotations. Might be null.
+   * @param publisherFromProp The publisher from the ontology annotations. Might be null.
+   * @param descriptionFromProp The description from the ontology annotations. Might be null.
+   * @return The code system, without concepts.
+   */
+  private CodeSystem createCodeSystemMetadata(CodeSystemProperties csp, String ontologyIri, 
+      String versionIri, String nameFromProp, String publisherFromProp, 
+      String descriptionFromProp) {
     // Populate basic code system info
     final CodeSystem cs = new CodeSystem();
     
@@ -322,17 +1622,13 @@ public class FhirOwlService {
       cs.setLanguage(language);
     }
     
-    final OWLOntologyID ontId = ont.getOntologyID();
-    final Optional<IRI> iri = ontId.getOntologyIRI();
-    final Optional<IRI> v = ontId.getVersionIRI();
-    
     // URL
     final String url = csp.getUrl();
     if (url != null) {
       cs.setUrl(url);
     } else {
-      if (iri.isPresent()) {
-        cs.setUrl(iri.get().toString());
+      if (ontologyIri != null) {
+        cs.setUrl(ontologyIri);
       } else {
         throw new NoIdException();
       }
@@ -346,15 +1642,24 @@ public class FhirOwlService {
     if (version != null) {
       cs.setVersion(version);
     } else {
-      if (v.isPresent()) {
-        cs.setVersion(v.get().toString());
+      if (versionIri != null) {
+        cs.setVersion(versionIri);
       } else {
         cs.setVersion("NA");
       }
     }
     
     // Name
-    final String name = getOntologyName(csp, ont, factory);
+    String name = csp.getName();
+    if (name == null) {
+      name = nameFromProp;
+    }
+    if (name == null) {
+      if (ontologyIri == null) {
+        throw new RuntimeException("The ontology has no IRI!");
+      }
+      name = ontologyIri;
+    }
     cs.setName(name);
     
     // Title
@@ -383,8 +1688,6 @@ public class FhirOwlService {
     if (publisher != null) {
       cs.setPublisher(publisher);
     } else {
-      final List<OWLAnnotationProperty> publisherProps = csp.getPublisherProps(factory);
-      final String publisherFromProp = getOntologyAnnotationValue(ont, publisherProps);
       if (publisherFromProp != null) { 
         cs.setPublisher(publisherFromProp);
       }
@@ -401,8 +1704,6 @@ public class FhirOwlService {
     if (description != null) {
       cs.setDescription(description);
     } else {
-      final List<OWLAnnotationProperty> descriptionProps = csp.getDescriptionProps(factory);
-      final String descriptionFromProp = getOntologyAnnotationValue(ont, descriptionProps);
       if (descriptionFromProp != null) { 
         cs.setDescription(descriptionFromProp);
       }
@@ -470,40 +1771,9 @@ public class FhirOwlService {
       .setValue("True or false.");
     cs.addFilter().setCode("imported").addOperator(FilterOperator.EQUAL).setValue("True or false");
     
-    // Determine if there are imports
-    final boolean hasImports = !ont.getImportsDeclarations().isEmpty();
-    
-    
-    final boolean includeDeprecated = csp.isIncludeDeprecated();
-    final OWLAnnotationProperty codeProp = cp.getCode(factory);
-    final OWLAnnotationProperty preferredTermProp = cp.getDisplay(factory);
-    final List<OWLAnnotationProperty> synonymProps = cp.getDesignations(factory);
-    final String stringToReplaceInCodes = cp.getStringToReplaceInCodes();
-    final String replacementStringInCodes = cp.getReplacementStringInCodes();
-    final List<String> labelsToExclude = cp.getLabelsToExclude();
-    
-    int count = 0;
-    
-    final Set<OWLClass> classes = ont.getClassesInSignature(Imports.INCLUDED);
-    OWLClass thing = factory.getOWLThing();
-    if (!classes.contains(thing)) {
-      classes.add(thing);
-    }
-    
-    for (OWLClass owlClass : classes) {
-      if (processClass(owlClass, cs, ont, reasoner, mainNamespaces, irisInMain, iriDisplayMap, 
-          includeDeprecated, codeProp, preferredTermProp, synonymProps, hasImports, 
-          stringToReplaceInCodes, replacementStringInCodes, labelsToExclude)) {
-        count++;
-      }
-    }
-    
-    // Count
-    cs.setCount(count);
-
     return cs;
   }
-
+  
   private String createVsUrl(String url) {    
     if (url.contains("?")) {
       return url + "&vs";
@@ -514,17 +1784,31 @@ public class FhirOwlService {
 
   private boolean addHierarchyFields(final OWLReasoner reasoner, OWLClass owlClass, 
       ConceptDefinitionComponent cdc, boolean isRoot, Set<String> mainNamespaces, 
-      Set<IRI> irisInMain, boolean includeDeprecated, String stringToReplaceInCodes,
-      String replacementStringInCodes, boolean hasImports) {
-    // Add hierarchy-related fields
-    final Set<OWLClass> parents = reasoner.getSuperClasses(owlClass, true).getFlattened();
+      Set<IRI> irisInMain, Set<OWLClass> selected, boolean includeDeprecated, 
+      String stringToReplaceInCodes, String replacementStringInCodes, boolean hasImports, 
+      Map<String, String> importPrefixes) {
+    // Add hierarchy-related fields. The reasoner is shared by the outputs created concurrently.
+    final Set<OWLClass> parents;
+    final Set<OWLClass> equivalents;
+    synchronized (reasoner) {
+      parents = reasoner.getSuperClasses(owlClass, true).getFlattened();
+      equivalents = reasoner.getEquivalentClasses(owlClass).getEntities();
+    }
     
     log.debug("Found " + parents.size() + " parents for concept " + owlClass.getIRI());
+    int numParents = 0;
+    boolean hasParentsNotEmitted = false;
     for (OWLClass parent : parents) {
       if (parent.isOWLNothing()) { 
         continue;
       }
       
+      // Parents that are not emitted are skipped, e.g. the parents of the roots of a subtree
+      if (selected != null && !selected.contains(parent)) {
+        hasParentsNotEmitted = true;
+        continue;
+      }
+      
       // If excluding deprecated class then also exclude from parents. In some ontologies
       // deprecated classes are still in the hierarchy, e.g. MONDO.
       if (!includeDeprecated) {
@@ -533,25 +1817,21 @@ public class FhirOwlService {
         }
       }
       
-      final IRI iri = parent.getIRI();
       final ConceptPropertyComponent parentProp = cdc.addProperty();
       parentProp.setCode("parent");
-      
-      final boolean imported = isImported(iri, mainNamespaces, irisInMain, hasImports);
-      if (!imported) {
-        String code = iri.getShortForm();
-        if (!imported && stringToReplaceInCodes != null && replacementStringInCodes != null) {
-          code = code.replace(stringToReplaceInCodes, replacementStringInCodes);
-        }
-        parentProp.setValue(new CodeType(code));
-      } else {
-        final String code = iri.toString();
-        parentProp.setValue(new CodeType(code));
-      }
+      parentProp.setValue(new CodeType(getReferencedCode(parent.getIRI(), mainNamespaces, 
+          irisInMain, hasImports, stringToReplaceInCodes, replacementStringInCodes, 
+          importPrefixes)));
+      numParents++;
+    }
+    
+    // The roots of a subtree have no emitted parents, so they are the roots of the code system
+    if (numParents == 0 && hasParentsNotEmitted) {
+      isRoot = true;
     }
 
     // Check if this concept is equivalent to Thing - in this case it is a root
-    for (OWLClass eq : reasoner.getEquivalentClasses(owlClass)) {
+    for (OWLClass eq : equivalents) {
       if (eq.isOWLThing()) {
         isRoot = true;
         break;
@@ -560,6 +1840,233 @@ public class FhirOwlService {
     return isRoot;
   }
   
+  /**
+   * Returns the code used to refer to a class from another concept, e.g. in a parent property.
+   * 
+   * @param iri The IRI of the class.
+   * @param mainNamespaces The namespaces of concepts that belong in the main ontology. Might be 
+   *     empty.
+   * @param irisInMain The IRIs that belong in the main namespaces.
+   * @param hasImports If the ontology has imports.
+   * @param stringToReplaceInCodes The string to replace in local codes. Might be null.
+   * @param replacementStringInCodes The replacement string. Might be null.
+   * @param importPrefixes The prefixes used to shorten imported codes, indexed by namespace.
+   * @return The code.
+   */
+  private String getReferencedCode(IRI iri, Set<String> mainNamespaces, Set<IRI> irisInMain, 
+      boolean hasImports, String stringToReplaceInCodes, String replacementStringInCodes, 
+      Map<String, String> importPrefixes) {
+    if (isImported(iri, mainNamespaces, irisInMain, hasImports)) {
+      return getImportedCode(iri, importPrefixes);
+    }
+    String code = iri.getShortForm();
+    if (stringToReplaceInCodes != null && replacementStringInCodes != null) {
+      code = code.replace(stringToReplaceInCodes, replacementStringInCodes);
+    }
+    return code;
+  }
+  
+  /**
+   * Indexes the existential restrictions that are mapped to concept properties. All the 
+   * SubClassOf(A, R some B) axioms in the imports closure are scanned once, where A and B are 
+   * named classes and R is one of the mapped object properties, and a property with code B is 
+   * created for A.
+   * 
+   * @param ont The ontology.
+   * @param relationships The codes of the concept properties, indexed by object property.
+   * @param selected The classes that are emitted. If null then all classes are emitted.
+   * @param mainNamespaces The namespaces of concepts that belong in the main ontology. Might be 
+   *     empty.
+   * @param irisInMain The IRIs that belong in the main namespaces.
+   * @param hasImports If the ontology has imports.
+   * @param stringToReplaceInCodes The string to replace in local codes. Might be null.
+   * @param replacementStringInCodes The replacement string. Might be null.
+   * @param importPrefixes The prefixes used to shorten imported codes, indexed by namespace.
+   * @return The properties of each class.
+   */
+  private Map<OWLClass, List<ConceptPropertyComponent>> indexRelationships(OWLOntology ont, 
+      Map<OWLObjectProperty, String> relationships, Set<OWLClass> selected, 
+      Set<String> mainNamespaces, Set<IRI> irisInMain, boolean hasImports, 
+      String stringToReplaceInCodes, String replacementStringInCodes, 
+      Map<String, String> importPrefixes) {
+    final Map<OWLClass, List<ConceptPropertyComponent>> res = new HashMap<>();
+    if (relationships.isEmpty()) {
+      return res;
+    }
+    
+    int count = 0;
+    for (OWLSubClassOfAxiom ax : ont.getAxioms(AxiomType.SUBCLASS_OF, Imports.INCLUDED)) {
+      final OWLClassExpression sup = ax.getSuperClass();
+      if (ax.getSubClass().isAnonymous() 
+          || sup.getClassExpressionType() != ClassExpressionType.OBJECT_SOME_VALUES_FROM) {
+        continue;
+      }
+      final OWLObjectSomeValuesFrom some = (OWLObjectSomeValuesFrom) sup;
+      if (some.getProperty().isAnonymous() || some.getFiller().isAnonymous()) {
+        continue;
+      }
+      final String code = relationships.get(some.getProperty().asOWLObjectProperty());
+      if (code == null) {
+        continue;
+      }
+      
+      final OWLClass owlClass = ax.getSubClass().asOWLClass();
+      final OWLClass target = some.getFiller().asOWLClass();
+      if (selected != null && (!selected.contains(owlClass) || !selected.contains(target))) {
+        continue;
+      }
+      
+      final ConceptPropertyComponent prop = new ConceptPropertyComponent();
+      prop.setCode(code);
+      prop.setValue(new CodeType(getReferencedCode(target.getIRI(), mainNamespaces, irisInMain, 
+          hasImports, stringToReplaceInCodes, replacementStringInCodes, importPrefixes)));
+      List<ConceptPropertyComponent> props = res.get(owlClass);
+      if (props == null) {
+        props = new ArrayList<>();
+        res.put(owlClass, props);
+      }
+      props.add(prop);
+      count++;
+    }
+    log.info("Found " + count + " relationships for " + res.size() + " classes");
+    return res;
+  }
+  
+  /**
+   * Creates the property extractors: one for the definitions, if the definition property is set, 
+   * one for each annotation property mapped to a concept property, the ones named in the concept 
+   * properties and the ones registered as services.
+   * 
+   * @param cp The concept properties.
+   * @param factory The OWL factory.
+   * @return The extractors.
+   */
+  private List<PropertyExtractor> createExtractors(ConceptProperties cp, 
+      OWLDataFactory factory) {
+    final List<PropertyExtractor> res = new ArrayList<>();
+    final OWLAnnotationProperty definitionProp = cp.getDefinition(factory);
+    if (definitionProp != null) {
+      res.add(new DefinitionExtractor(definitionProp.getIRI()));
+    }
+    
+    for (Map.Entry<String, String> entry : cp.getAnnotationProperties().entrySet()) {
+      res.add(new AnnotationPropertyExtractor(IRI.create(entry.getKey()), entry.getValue()));
+    }
+    
+    for (String className : cp.getExtractors()) {
+      try {
+        res.add(Class.forName(className).asSubclass(PropertyExtractor.class)
+            .getDeclaredConstructor().newInstance());
+      } catch (ClassNotFoundException | ClassCastException | NoSuchMethodException 
+          | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+        throw new InvalidPropertyException("Invalid extractor " + className + ". It must be a "
+            + "class that implements PropertyExtractor and has a public no-argument "
+            + "constructor.", e);
+      }
+    }
+    
+    for (PropertyExtractor extractor : ServiceLoader.load(PropertyExtractor.class)) {
+      res.add(extractor);
+    }
+    return res;
+  }
+  
+  /**
+   * Indexes the annotations needed by the extractors. All the annotation assertions in the 
+   * imports closure are scanned once and the ones that use the properties of an extractor are 
+   * kept, indexed by subject.
+   * 
+   * @param ont The ontology.
+   * @param extractors The extractors.
+   * @param selected The classes that are emitted. If null then all classes are emitted.
+   * @return The annotations of each class.
+   */
+  private Map<IRI, List<OWLAnnotation>> indexAnnotations(OWLOntology ont, 
+      List<PropertyExtractor> extractors, Set<OWLClass> selected) {
+    final Map<IRI, List<OWLAnnotation>> res = new HashMap<>();
+    final Set<IRI> props = new HashSet<>();
+    for (PropertyExtractor extractor : extractors) {
+      props.addAll(extractor.getAnnotationProperties());
+    }
+    if (props.isEmpty()) {
+      return res;
+    }
+    final Set<IRI> selectedIris = selected != null ? getIris(selected) : null;
+    
+    int count = 0;
+    for (OWLAnnotationAssertionAxiom ax 
+        : ont.getAxioms(AxiomType.ANNOTATION_ASSERTION, Imports.INCLUDED)) {
+      if (!(ax.getSubject() instanceof IRI) || !props.contains(ax.getProperty().getIRI())) {
+        continue;
+      }
+      final IRI subject = (IRI) ax.getSubject();
+      if (selectedIris != null && !selectedIris.contains(subject)) {
+        continue;
+      }
+      List<OWLAnnotation> annotations = res.get(subject);
+      if (annotations == null) {
+        annotations = new ArrayList<>();
+        res.put(subject, annotations);
+      }
+      annotations.add(ax.getAnnotation());
+      count++;
+    }
+    log.info("Found " + count + " annotations for " + res.size() + " classes");
+    return res;
+  }
+  
+  /**
+   * Runs the extractors on a concept, passing each one the annotations it needs.
+   * 
+   * @param cdc The concept.
+   * @param owlClass The class of the concept.
+   * @param extractors The extractors.
+   * @param annotationIndex The annotations of each class.
+   */
+  private void extractProperties(ConceptDefinitionComponent cdc, OWLClass owlClass, 
+      List<PropertyExtractor> extractors, Map<IRI, List<OWLAnnotation>> annotationIndex) {
+    if (extractors.isEmpty()) {
+      return;
+    }
+    final List<OWLAnnotation> annotations = annotationIndex.get(owlClass.getIRI());
+    for (PropertyExtractor extractor : extractors) {
+      final Set<IRI> props = extractor.getAnnotationProperties();
+      final List<OWLAnnotation> filtered = new ArrayList<>();
+      if (annotations != null) {
+        for (OWLAnnotation ann : annotations) {
+          if (props.contains(ann.getProperty().getIRI())) {
+            filtered.add(ann);
+          }
+        }
+      }
+      extractor.extract(cdc, filtered);
+    }
+  }
+  
+  /**
+   * Returns the code of an imported concept. This is the full IRI unless it starts with one of the
+   * declared namespaces, in which case it is shortened to a CURIE using the longest match.
+   * 
+   * @param iri The IRI of the imported concept.
+   * @param importPrefixes The declared prefixes, indexed by namespace. Might be empty.
+   * @return The code.
+   */
+  private String getImportedCode(IRI iri, Map<String, String> importPrefixes) {
+    final String s = iri.toString();
+    String namespace = null;
+    for (String ns : importPrefixes.keySet()) {
+      if (s.startsWith(ns) && s.length() > ns.length() 
+          && (namespace == null || ns.length() > namespace.length())) {
+        namespace = ns;
+      }
+    }
+    
+    if (namespace == null) {
+      return s;
+    }
+    return importPrefixes.get(namespace) + ":" + s.substring(namespace.length());
+  }
+  
   /**
    * Determines if an OWL class is deprecated based on annotations.
    * 
@@ -716,13 +2223,13 @@ public class FhirOwlService {
     }
   }
   
-  private boolean processClass(OWLClass owlClass, 
-      CodeSystem cs, 
+  private ConceptDefinitionComponent processClass(OWLClass owlClass, 
       OWLOntology ont, 
       OWLReasoner reasoner, 
       Set<String> mainNamespaces, 
       Set<IRI> irisInMain, 
       Map<IRI, String> iriDisplayMap, 
+      Set<OWLClass> selected,
       boolean includeDeprecated, 
       OWLAnnotationProperty codeProp,
       OWLAnnotationProperty preferredTermProp, 
@@ -730,15 +2237,17 @@ public class FhirOwlService {
       boolean hasImports,
       String stringToReplaceInCodes,
       String replacementStringInCodes,
-      List<String> labelsToExclude) {
+      List<String> labelsToExclude,
+      Map<String, String> importPrefixes,
+      boolean compact) {
     
     if (owlClass.isOWLNothing()) {
-      return false;
+      return null;
     }
     
     final boolean isDeprecated = isDeprecated(owlClass, ont);
     if (!includeDeprecated && isDeprecated) {
-      return false; // Skip this concept because it is deprecated
+      return null; // Skip this concept because it is deprecated
     }
     
     final IRI iri = owlClass.getIRI();
@@ -752,7 +2261,7 @@ public class FhirOwlService {
       code = getCode(owlClass, ont, codeProp);
     } 
     if (code == null) {
-      code = imported ? iri.toString() : iri.getShortForm();
+      code = imported ? getImportedCode(iri, importPrefixes) : iri.getShortForm();
     }
     
     // We only do code replacements for local codes - not for imported
@@ -768,23 +2277,17 @@ public class FhirOwlService {
       cdc.setDisplay("Thing");
     }
     
-    final ConceptPropertyComponent importedProp = cdc.addProperty();
-    importedProp.setCode("imported");
     // This is hard to detect appropriately because the classes declared in an ontology
     // can be declared with an arbitrary namespace.
-    importedProp.setValue(new BooleanType(imported));
+    addBooleanProperty(cdc, "imported", imported, compact);
 
     boolean isRoot = false;
     isRoot = addHierarchyFields(reasoner, owlClass, cdc, isRoot, mainNamespaces, irisInMain, 
-        includeDeprecated, stringToReplaceInCodes, replacementStringInCodes, hasImports);
-
-    ConceptPropertyComponent prop = cdc.addProperty();
-    prop.setCode("root");
-    prop.setValue(new BooleanType(isRoot));
+        selected, includeDeprecated, stringToReplaceInCodes, replacementStringInCodes, hasImports, 
+        importPrefixes);
 
-    prop = cdc.addProperty();
-    prop.setCode("deprecated");
-    prop.setValue(new BooleanType(isDeprecated));
+    addBooleanProperty(cdc, "root", isRoot, compact);
+    addBooleanProperty(cdc, "deprecated", isDeprecated, compact);
     
     String preferredTerm = getPreferedTerm(owlClass, ont, preferredTermProp, labelsToExclude);
     final Set<String> synonyms = getSynonyms(owlClass, ont, preferredTerm, synonymProps, 
@@ -803,18 +2306,47 @@ public class FhirOwlService {
       synonyms.remove(preferredTerm);
       
       cdc.setDisplay(preferredTerm);
-      addSynonyms(synonyms, cdc);
+      addSynonyms(synonyms, cdc, compact);
     } else {
       cdc.setDisplay(preferredTerm);
-      addSynonyms(synonyms, cdc);
+      addSynonyms(synonyms, cdc, compact);
     }
     
-    cs.addConcept(cdc);
-    return true;
+    return cdc;
+  }
+  
+  /**
+   * Adds a boolean property to a concept. In compact mode only true values are added, so a missing
+   * property means false.
+   * 
+   * @param cdc The concept.
+   * @param code The code of the property.
+   * @param value The value of the property.
+   * @param compact If the compact output profile is being used.
+   */
+  private void addBooleanProperty(ConceptDefinitionComponent cdc, String code, boolean value, 
+      boolean compact) {
+    if (compact && !value) {
+      return;
+    }
+    final ConceptPropertyComponent prop = cdc.addProperty();
+    prop.setCode(code);
+    prop.setValue(new BooleanType(value));
   }
   
-  private void addSynonyms(Set<String> synonyms, ConceptDefinitionComponent cdc) {
+  private void addSynonyms(Set<String> synonyms, ConceptDefinitionComponent cdc, 
+      boolean compact) {
+    final Set<String> seen = new HashSet<>();
+    if (compact) {
+      seen.add(normalise(cdc.getDisplay()));
+    }
     for (String syn : synonyms) {
+      // In compact mode skip designations that only differ from the display or other designations
+      // in case or surrounding whitespace
+      if (compact && !seen.add(normalise(syn))) {
+        continue;
+      }
+      
       // This is a synonym - but we don't know the language
       ConceptDefinitionDesignationComponent cddc = cdc.addDesignation();
       cddc.setValue(syn);
@@ -823,4 +2355,8 @@ public class FhirOwlService {
     }
   }
   
+  private String normalise(String s) {
+    return s == null ? null : s.trim().toLowerCase(Locale.ROOT);
+  }
+  
 }
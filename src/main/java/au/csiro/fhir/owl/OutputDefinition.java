@@ -0,0 +1,63 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl;
+
+import java.util.Set;
+
+/**
+ * The definition of one of the code systems created from an ontology. Several definitions can
+ * share a single load and classification of the ontology.
+ *
+ */
+public class OutputDefinition {
+
+  private final CodeSystemProperties codeSystemProperties;
+  private final ConceptProperties conceptProperties;
+  private final Set<String> mainNamespaces;
+
+  /**
+   * Constructor.
+   *
+   * @param codeSystemProperties The code system properties, including the output files.
+   * @param conceptProperties The concept properties.
+   * @param mainNamespaces The namespaces that correspond to the main ontology. Might be null.
+   */
+  public OutputDefinition(CodeSystemProperties codeSystemProperties,
+      ConceptProperties conceptProperties, Set<String> mainNamespaces) {
+    this.codeSystemProperties = codeSystemProperties;
+    this.conceptProperties = conceptProperties;
+    this.mainNamespaces = mainNamespaces;
+  }
+
+  /**
+   * Returns the code system properties.
+   *
+   * @return the codeSystemProperties
+   */
+  public CodeSystemProperties getCodeSystemProperties() {
+    return codeSystemProperties;
+  }
+
+  /**
+   * Returns the concept properties.
+   *
+   * @return the conceptProperties
+   */
+  public ConceptProperties getConceptProperties() {
+    return conceptProperties;
+  }
+
+  /**
+   * Returns the namespaces that correspond to the main ontology.
+   *
+   * @return the mainNamespaces, or null if the classes in the main ontology are determined from
+   *     the imports
+   */
+  public Set<String> getMainNamespaces() {
+    return mainNamespaces;
+  }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.extractor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.CodeSystem.PropertyComponent;
+import org.hl7.fhir.r4.model.CodeSystem.PropertyType;
+import org.hl7.fhir.r4.model.StringType;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAnnotation;
+import org.semanticweb.owlapi.model.OWLLiteral;
+
+/**
+ * Adds a string property to the concepts for every value of an annotation property, e.g. for
+ * cross-references or comments. Literal values are used as they are and IRI values are written
+ * in full. The values of each concept are sorted and duplicates are removed.
+ */
+public class AnnotationPropertyExtractor implements PropertyExtractor {
+
+  private final IRI property;
+  private final String code;
+
+  /**
+   * Constructor.
+   *
+   * @param property The annotation property.
+   * @param code The code of the concept property.
+   */
+  public AnnotationPropertyExtractor(IRI property, String code) {
+    this.property = property;
+    this.code = code;
+  }
+
+  @Override
+  public Set<IRI> getAnnotationProperties() {
+    return Collections.singleton(property);
+  }
+
+  @Override
+  public void declare(CodeSystem codeSystem) {
+    final PropertyComponent prop = codeSystem.addProperty();
+    prop.setCode(code);
+    prop.setUri(property.toString());
+    prop.setType(PropertyType.STRING);
+    prop.setDescription("Values of the annotation property " + property + ".");
+  }
+
+  @Override
+  public void extract(ConceptDefinitionComponent concept, List<OWLAnnotation> annotations) {
+    final SortedSet<String> values = new TreeSet<>();
+    for (OWLAnnotation ann : annotations) {
+      if (ann.getValue() instanceof OWLLiteral) {
+        values.add(((OWLLiteral) ann.getValue()).getLiteral());
+      } else if (ann.getValue() instanceof IRI) {
+        values.add(ann.getValue().toString());
+      }
+    }
+    for (String value : values) {
+      final ConceptPropertyComponent prop = concept.addProperty();
+      prop.setCode(code);
+      prop.setValue(new StringType(value));
+    }
+  }
+
+}
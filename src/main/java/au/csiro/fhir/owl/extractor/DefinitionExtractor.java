@@ -0,0 +1,60 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.extractor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAnnotation;
+import org.semanticweb.owlapi.model.OWLLiteral;
+
+/**
+ * Sets the definition of the concepts from an annotation property. If a class has several
+ * definitions then the first one in alphabetical order is used, as with the display.
+ */
+public class DefinitionExtractor implements PropertyExtractor {
+
+  private final IRI property;
+
+  /**
+   * Constructor.
+   *
+   * @param property The annotation property that contains the definitions.
+   */
+  public DefinitionExtractor(IRI property) {
+    this.property = property;
+  }
+
+  @Override
+  public Set<IRI> getAnnotationProperties() {
+    return Collections.singleton(property);
+  }
+
+  @Override
+  public void declare(CodeSystem codeSystem) {
+    // The definition is a concept element, not a property
+  }
+
+  @Override
+  public void extract(ConceptDefinitionComponent concept, List<OWLAnnotation> annotations) {
+    final SortedSet<String> candidates = new TreeSet<>();
+    for (OWLAnnotation ann : annotations) {
+      if (ann.getValue() instanceof OWLLiteral) {
+        candidates.add(((OWLLiteral) ann.getValue()).getLiteral());
+      }
+    }
+    if (!candidates.isEmpty()) {
+      concept.setDefinition(candidates.first());
+    }
+  }
+
+}
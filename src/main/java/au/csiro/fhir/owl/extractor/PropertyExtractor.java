@@ -0,0 +1,52 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.extractor;
+
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAnnotation;
+
+/**
+ * Populates concepts from the annotations of their OWL classes. Extractors declare the annotation
+ * properties they need and are fed from a single pass over the annotation assertions of the
+ * ontology, so they never need to look up the annotations themselves.
+ *
+ * <p>Besides the built-in extractors, implementations can be registered with the
+ * <i>-extractors</i> option or as services in
+ * <i>META-INF/services/au.csiro.fhir.owl.extractor.PropertyExtractor</i>. They must have a public
+ * no-argument constructor. A new instance is created for each code system.
+ */
+public interface PropertyExtractor {
+
+  /**
+   * Returns the annotation properties this extractor needs.
+   *
+   * @return The IRIs of the annotation properties.
+   */
+  Set<IRI> getAnnotationProperties();
+
+  /**
+   * Called once before any concepts are created, to declare the properties this extractor adds
+   * to the concepts.
+   *
+   * @param codeSystem The code system metadata.
+   */
+  void declare(CodeSystem codeSystem);
+
+  /**
+   * Called once for every concept.
+   *
+   * @param concept The concept.
+   * @param annotations The annotations of the concept's class that use one of the properties
+   *     returned by {@link #getAnnotationProperties()}. Might be empty.
+   */
+  void extract(ConceptDefinitionComponent concept, List<OWLAnnotation> annotations);
+
+}
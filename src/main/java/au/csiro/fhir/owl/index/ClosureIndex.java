@@ -0,0 +1,207 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+
+/**
+ * Reads a binary transitive closure written by {@link au.csiro.fhir.owl.output.ClosureSink}. The
+ * file is memory-mapped and the ancestor bitmaps are used in place, without deserialising them.
+ *
+ * <p>The file starts with a header with the magic number, the format version, the number of
+ * concepts, the size of the largest record and the offsets of four sections. All values are
+ * big-endian except the bitmaps, which use the portable Roaring format.
+ * <ol>
+ *   <li>Records: the ancestors of each concept as a Roaring bitmap of concept ordinals, in the
+ *   order they were computed. A concept is not its own ancestor.</li>
+ *   <li>Codes: a string table indexed by concept ordinal, in the same format as the
+ *   {@link SearchIndex} string tables.</li>
+ *   <li>Sorted codes: the concept ordinals sorted by the UTF-8 bytes of their codes, as ints.</li>
+ *   <li>Index: the offset of the record of each concept, as longs indexed by concept ordinal.</li>
+ * </ol>
+ *
+ * <p>The records can be larger than a single mapping, so they are mapped in overlapping windows
+ * that extend past their nominal end by the size of the largest record. This guarantees every
+ * record is fully contained in the window where it starts.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class ClosureIndex {
+
+  /**
+   * The magic number at the start of the file, "FOCL".
+   */
+  public static final int MAGIC = 0x464F434C;
+
+  /**
+   * The version of the file format.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * The size of the header in bytes.
+   */
+  public static final int HEADER_SIZE = 4 * 4 + 4 * 8;
+
+  private static final long WINDOW_SIZE = 1L << 30;
+
+  private final ByteBuffer[] windows;
+  private final ByteBuffer meta;
+  private final int conceptCount;
+  private final long recordsOffset;
+  private final int codes;
+  private final int sortedCodes;
+  private final int index;
+
+  private ClosureIndex(FileChannel ch) throws IOException {
+    final ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+    if (header.getInt(0) != MAGIC) {
+      throw new IOException("Not a closure file.");
+    }
+    if (header.getInt(4) != VERSION) {
+      throw new IOException("Unsupported closure file version " + header.getInt(4) + ".");
+    }
+    conceptCount = header.getInt(8);
+    final int maxRecordSize = header.getInt(12);
+    recordsOffset = header.getLong(16);
+    final long codesOffset = header.getLong(24);
+    final long sortedOffset = header.getLong(32);
+    final long indexOffset = header.getLong(40);
+
+    final long metaSize = ch.size() - codesOffset;
+    if (metaSize > Integer.MAX_VALUE) {
+      throw new IOException("Closure file has more than 2GB of codes.");
+    }
+    meta = ch.map(FileChannel.MapMode.READ_ONLY, codesOffset, metaSize);
+    codes = 0;
+    sortedCodes = (int) (sortedOffset - codesOffset);
+    index = (int) (indexOffset - codesOffset);
+
+    final int numWindows = (int) ((codesOffset - recordsOffset + WINDOW_SIZE - 1) / WINDOW_SIZE);
+    windows = new ByteBuffer[numWindows];
+    for (int i = 0; i < numWindows; i++) {
+      final long start = recordsOffset + i * WINDOW_SIZE;
+      final long size = Math.min(WINDOW_SIZE + maxRecordSize, codesOffset - start);
+      windows[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+  }
+
+  /**
+   * Memory-maps a closure file.
+   *
+   * @param file The closure file.
+   * @return The closure index.
+   * @throws IOException If the file cannot be mapped or is not a closure file.
+   */
+  public static ClosureIndex open(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel ch = raf.getChannel()) {
+      // The mappings stay valid after the channel is closed
+      return new ClosureIndex(ch);
+    }
+  }
+
+  /**
+   * Returns the number of concepts.
+   *
+   * @return The number of concepts.
+   */
+  public int getConceptCount() {
+    return conceptCount;
+  }
+
+  /**
+   * Returns the code of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The code.
+   */
+  public String getCode(int concept) {
+    final int blob = codes + 4 * (conceptCount + 1);
+    final int start = meta.getInt(codes + 4 * concept);
+    final int end = meta.getInt(codes + 4 * (concept + 1));
+    final byte[] bytes = new byte[end - start];
+    for (int k = 0; k < bytes.length; k++) {
+      bytes[k] = meta.get(blob + start + k);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the ordinal of a code.
+   *
+   * @param code The code.
+   * @return The concept ordinal or -1 if the code is unknown.
+   */
+  public int getOrdinal(String code) {
+    final byte[] key = code.getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = conceptCount - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int concept = meta.getInt(sortedCodes + 4 * mid);
+      final int c = compareCode(concept, key);
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid - 1;
+      } else {
+        return concept;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the ancestors of a concept, not including the concept itself. The bitmap is backed by
+   * the mapped file.
+   *
+   * @param concept The concept ordinal.
+   * @return The ordinals of the ancestors.
+   */
+  public ImmutableRoaringBitmap getAncestors(int concept) {
+    final long offset = meta.getLong(index + 8 * concept) - recordsOffset;
+    final ByteBuffer bb = windows[(int) (offset / WINDOW_SIZE)].duplicate();
+    // Through Buffer so the class also runs on Java 8 when compiled with a newer JDK
+    ((Buffer) bb).position((int) (offset % WINDOW_SIZE));
+    return new ImmutableRoaringBitmap(bb.slice());
+  }
+
+  /**
+   * Indicates if a concept subsumes another one, i.e. if it is the same concept or one of its
+   * ancestors.
+   *
+   * @param a The ordinal of the potential ancestor.
+   * @param b The ordinal of the potential descendant.
+   * @return true if a subsumes b.
+   */
+  public boolean subsumes(int a, int b) {
+    return a == b || getAncestors(b).contains(a);
+  }
+
+  private int compareCode(int concept, byte[] key) {
+    final int blob = codes + 4 * (conceptCount + 1);
+    final int start = meta.getInt(codes + 4 * concept);
+    final int len = meta.getInt(codes + 4 * (concept + 1)) - start;
+    final int n = Math.min(len, key.length);
+    for (int k = 0; k < n; k++) {
+      final int c = Integer.compare(meta.get(blob + start + k) & 0xff, key[k] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return Integer.compare(len, key.length);
+  }
+
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a search index written by {@link au.csiro.fhir.owl.output.SearchIndexSink}. The file is
+ * memory-mapped and queried in place, so opening an index does not parse anything.
+ *
+ * <p>The file starts with a header with the magic number, the format version, the number of
+ * concepts, terms and trigrams, and the offsets of six sections. All values are big-endian.
+ * <ol>
+ *   <li>Codes: a string table indexed by concept ordinal.</li>
+ *   <li>Displays: a string table indexed by concept ordinal.</li>
+ *   <li>Terms: a string table with the distinct normalised displays and designations, sorted by
+ *   their UTF-8 bytes.</li>
+ *   <li>Term postings: the sorted concept ordinals of each term.</li>
+ *   <li>Trigram keys: the sorted distinct trigrams of all the terms, three UTF-16 characters
+ *   packed in a long.</li>
+ *   <li>Trigram postings: the sorted term ordinals of each trigram.</li>
+ * </ol>
+ * A string table is an array of <i>n + 1</i> ints with the start of each string relative to the
+ * end of the array, followed by the UTF-8 bytes. A postings list is an array of <i>n + 1</i> ints
+ * with the start of each list, followed by the values.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class SearchIndex {
+
+  /**
+   * The magic number at the start of the file, "FOSI".
+   */
+  public static final int MAGIC = 0x464F5349;
+
+  /**
+   * The version of the file format.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * The size of the header in bytes.
+   */
+  public static final int HEADER_SIZE = 5 * 4 + 6 * 8;
+
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private final ByteBuffer buf;
+  private final int conceptCount;
+  private final int termCount;
+  private final int trigramCount;
+  private final int codes;
+  private final int displays;
+  private final int terms;
+  private final int termPostings;
+  private final int trigramKeys;
+  private final int trigramPostings;
+
+  private SearchIndex(ByteBuffer buf) throws IOException {
+    this.buf = buf;
+    if (buf.getInt(0) != MAGIC) {
+      throw new IOException("Not a search index.");
+    }
+    if (buf.getInt(4) != VERSION) {
+      throw new IOException("Unsupported search index version " + buf.getInt(4) + ".");
+    }
+    conceptCount = buf.getInt(8);
+    termCount = buf.getInt(12);
+    trigramCount = buf.getInt(16);
+    codes = (int) buf.getLong(20);
+    displays = (int) buf.getLong(28);
+    terms = (int) buf.getLong(36);
+    termPostings = (int) buf.getLong(44);
+    trigramKeys = (int) buf.getLong(52);
+    trigramPostings = (int) buf.getLong(60);
+  }
+
+  /**
+   * Memory-maps a search index.
+   *
+   * @param file The index file.
+   * @return The search index.
+   * @throws IOException If the file cannot be mapped or is not a search index.
+   */
+  public static SearchIndex open(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel ch = raf.getChannel()) {
+      if (ch.size() > Integer.MAX_VALUE) {
+        throw new IOException("Search index " + file + " is larger than 2GB.");
+      }
+      // The mapping stays valid after the channel is closed
+      return new SearchIndex(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+    }
+  }
+
+  /**
+   * Normalises a term for indexing and searching: compatibility decomposition, removal of
+   * diacritics, lower case and collapsed whitespace.
+   *
+   * @param text The text.
+   * @return The normalised text.
+   */
+  public static String normalise(String text) {
+    String res = Normalizer.normalize(text, Normalizer.Form.NFKD);
+    res = COMBINING_MARKS.matcher(res).replaceAll("");
+    res = res.toLowerCase(Locale.ROOT);
+    return WHITESPACE.matcher(res).replaceAll(" ").trim();
+  }
+
+  /**
+   * Packs a trigram into a long.
+   *
+   * @param s The string.
+   * @param i The index of the first character of the trigram.
+   * @return The trigram key.
+   */
+  public static long trigram(String s, int i) {
+    return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+  }
+
+  /**
+   * Returns the number of concepts in the index.
+   *
+   * @return The number of concepts.
+   */
+  public int getConceptCount() {
+    return conceptCount;
+  }
+
+  /**
+   * Returns the code of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The code.
+   */
+  public String getCode(int concept) {
+    return getString(codes, conceptCount, concept);
+  }
+
+  /**
+   * Returns the display of a concept, or an empty string if it has none.
+   *
+   * @param concept The concept ordinal.
+   * @return The display.
+   */
+  public String getDisplay(int concept) {
+    return getString(displays, conceptCount, concept);
+  }
+
+  /**
+   * Finds the concepts with a display or designation that starts with some text, in term order.
+   *
+   * @param prefix The text. It is normalised before searching.
+   * @param limit The maximum number of concepts to return.
+   * @return The concept ordinals.
+   */
+  public int[] findByPrefix(String prefix, int limit) {
+    final byte[] key = normalise(prefix).getBytes(StandardCharsets.UTF_8);
+    final Set<Integer> res = new LinkedHashSet<>();
+
+    // Lower bound of the prefix in the sorted terms
+    int lo = 0;
+    int hi = termCount;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (compareTerm(mid, key) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    for (int t = lo; t < termCount && res.size() < limit && termStartsWith(t, key); t++) {
+      addConcepts(t, res, limit);
+    }
+    return toArray(res);
+  }
+
+  /**
+   * Finds the concepts with a display or designation that contains some text. Texts with less
+   * than three characters are searched as prefixes.
+   *
+   * @param text The text. It is normalised before searching.
+   * @param limit The maximum number of concepts to return.
+   * @return The concept ordinals.
+   */
+  public int[] findBySubstring(String text, int limit) {
+    final String norm = normalise(text);
+    if (norm.length() < 3) {
+      return findByPrefix(norm, limit);
+    }
+
+    // Intersect the term lists of all the trigrams, shortest first
+    int[] candidates = null;
+    final long[] keys = new long[norm.length() - 2];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = trigram(norm, i);
+    }
+    final int[] lists = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      lists[i] = findTrigram(keys[i]);
+      if (lists[i] < 0) {
+        return new int[0];
+      }
+    }
+    final Integer[] order = new Integer[lists.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Integer.compare(postingsSize(trigramPostings, lists[a]),
+        postingsSize(trigramPostings, lists[b])));
+    for (int i : order) {
+      candidates = intersect(candidates, lists[i]);
+      if (candidates.length == 0) {
+        return candidates;
+      }
+    }
+
+    // Trigrams can match in different places so each candidate is checked
+    final Set<Integer> res = new LinkedHashSet<>();
+    for (int i = 0; i < candidates.length && res.size() < limit; i++) {
+      if (getString(terms, termCount, candidates[i]).contains(norm)) {
+        addConcepts(candidates[i], res, limit);
+      }
+    }
+    return toArray(res);
+  }
+
+  private void addConcepts(int term, Set<Integer> res, int limit) {
+    final int start = postingsStart(termPostings, term);
+    final int end = postingsStart(termPostings, term + 1);
+    final int values = termPostings + 4 * (termCount + 1);
+    for (int i = start; i < end && res.size() < limit; i++) {
+      res.add(buf.getInt(values + 4 * i));
+    }
+  }
+
+  private int findTrigram(long key) {
+    int lo = 0;
+    int hi = trigramCount - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final long k = buf.getLong(trigramKeys + 8 * mid);
+      if (k < key) {
+        lo = mid + 1;
+      } else if (k > key) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int[] intersect(int[] current, int trigram) {
+    final int start = postingsStart(trigramPostings, trigram);
+    final int end = postingsStart(trigramPostings, trigram + 1);
+    final int values = trigramPostings + 4 * (trigramCount + 1);
+    if (current == null) {
+      final int[] res = new int[end - start];
+      for (int i = start; i < end; i++) {
+        res[i - start] = buf.getInt(values + 4 * i);
+      }
+      return res;
+    }
+
+    final int[] res = new int[Math.min(current.length, end - start)];
+    int n = 0;
+    int i = 0;
+    int j = start;
+    while (i < current.length && j < end) {
+      final int v = buf.getInt(values + 4 * j);
+      if (current[i] < v) {
+        i++;
+      } else if (current[i] > v) {
+        j++;
+      } else {
+        res[n++] = v;
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(res, n);
+  }
+
+  private int postingsStart(int section, int i) {
+    return buf.getInt(section + 4 * i);
+  }
+
+  private int postingsSize(int section, int i) {
+    return postingsStart(section, i + 1) - postingsStart(section, i);
+  }
+
+  private String getString(int section, int count, int i) {
+    final int blob = section + 4 * (count + 1);
+    final int start = buf.getInt(section + 4 * i);
+    final int end = buf.getInt(section + 4 * (i + 1));
+    final byte[] bytes = new byte[end - start];
+    for (int k = 0; k < bytes.length; k++) {
+      bytes[k] = buf.get(blob + start + k);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Compares the UTF-8 bytes of a term with a key, as unsigned bytes.
+   */
+  private int compareTerm(int term, byte[] key) {
+    final int blob = terms + 4 * (termCount + 1);
+    final int start = buf.getInt(terms + 4 * term);
+    final int len = buf.getInt(terms + 4 * (term + 1)) - start;
+    final int n = Math.min(len, key.length);
+    for (int k = 0; k < n; k++) {
+      final int c = Integer.compare(buf.get(blob + start + k) & 0xff, key[k] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return Integer.compare(len, key.length);
+  }
+
+  private boolean termStartsWith(int term, byte[] key) {
+    final int blob = terms + 4 * (termCount + 1);
+    final int start = buf.getInt(terms + 4 * term);
+    final int len = buf.getInt(terms + 4 * (term + 1)) - start;
+    if (len < key.length) {
+      return false;
+    }
+    for (int k = 0; k < key.length; k++) {
+      if (buf.get(blob + start + k) != key[k]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] toArray(Set<Integer> set) {
+    final int[] res = new int[set.size()];
+    int i = 0;
+    for (int v : set) {
+      res[i++] = v;
+    }
+    return res;
+  }
+
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.loader;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.semanticweb.owlapi.io.OWLOntologyDocumentSource;
+import org.semanticweb.owlapi.io.OWLOntologyDocumentSourceBase;
+import org.semanticweb.owlapi.io.OWLOntologyInputSourceException;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntologyIRIMapper;
+
+/**
+ * An ontology input that is compressed with gzip or bzip2, or bundled in a zip archive with its
+ * imports. The documents are decompressed as they are parsed, so nothing is extracted to disk.
+ *
+ * <p>The root document of a zip archive is the only ontology document at the top level of the
+ * archive or, if there are several, the one with the same base name as the archive, e.g.
+ * <i>hp.owl</i> in <i>hp.zip</i>. Imports are resolved from the entries of the archive whose file
+ * name matches the last segment of the imported IRI, with or without the extension.
+ */
+public class ArchiveInput implements Closeable {
+
+  private static final Log log = LogFactory.getLog(ArchiveInput.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final String[] ONTOLOGY_EXTENSIONS = { ".owl", ".rdf", ".xml", ".owx", ".ttl",
+    ".nt", ".n3", ".ofn", ".omn", ".obo", ".jsonld" };
+
+  private final File file;
+  private final ZipFile zipFile;
+  private final String name;
+  private final ZipEntry rootEntry;
+  private final Map<String, ZipEntry> entries = new HashMap<>();
+
+  /**
+   * Constructor. Zip archives are indexed to find the root document and the imports.
+   *
+   * @param file The compressed file or archive.
+   * @throws IOException If the archive cannot be read or its root document cannot be determined.
+   */
+  public ArchiveInput(File file) throws IOException {
+    this.file = file;
+    final String fileName = file.getName();
+    final String lowerName = fileName.toLowerCase(Locale.ROOT);
+    if (lowerName.endsWith(".zip")) {
+      zipFile = new ZipFile(file);
+      try {
+        rootEntry = indexEntries(fileName.substring(0, fileName.length() - 4));
+      } catch (IOException e) {
+        zipFile.close();
+        throw e;
+      }
+      name = getFileName(rootEntry.getName());
+      log.info("Reading " + rootEntry.getName() + " from archive " + file.getAbsolutePath());
+    } else if (lowerName.endsWith(".gz") || lowerName.endsWith(".bz2")) {
+      zipFile = null;
+      rootEntry = null;
+      name = fileName.substring(0, fileName.lastIndexOf('.'));
+    } else {
+      throw new IllegalArgumentException("Unsupported archive " + fileName);
+    }
+  }
+
+  /**
+   * Indicates if a file is compressed with gzip or bzip2 or is a zip archive.
+   *
+   * @param file The file.
+   * @return True if the file is compressed or archived, based on its extension.
+   */
+  public static boolean isArchive(File file) {
+    final String lowerName = file.getName().toLowerCase(Locale.ROOT);
+    return lowerName.endsWith(".gz") || lowerName.endsWith(".bz2")
+        || lowerName.endsWith(".zip");
+  }
+
+  /**
+   * Returns the file name of the root document, without the compression extension, e.g.
+   * <i>hp.obo</i> for <i>hp.obo.gz</i>. Used to determine the format of the document.
+   *
+   * @return The name of the root document.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the IRI of the root document. This is a <i>jar:</i> IRI for an entry of a zip
+   * archive.
+   *
+   * @return The IRI.
+   */
+  public IRI getDocumentIri() {
+    return zipFile != null ? getEntryIri(rootEntry) : IRI.create(file);
+  }
+
+  /**
+   * Opens a decompressing stream over the root document.
+   *
+   * @return The stream.
+   * @throws IOException If the document cannot be read.
+   */
+  public InputStream openStream() throws IOException {
+    if (zipFile != null) {
+      return new BufferedInputStream(zipFile.getInputStream(rootEntry), BUFFER_SIZE);
+    }
+    final InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    try {
+      if (file.getName().toLowerCase(Locale.ROOT).endsWith(".gz")) {
+        return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+      } else {
+        // Files compressed with parallel bzip2 tools have several streams
+        return new BufferedInputStream(new BZip2CompressorInputStream(in, true), BUFFER_SIZE);
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a document source for the root document. Each parser that is tried gets a new
+   * decompressing stream.
+   *
+   * @return The document source.
+   */
+  public OWLOntologyDocumentSource getDocumentSource() {
+    final IRI documentIri = getDocumentIri();
+    return new OWLOntologyDocumentSourceBase(null, null) {
+      @Override
+      public IRI getDocumentIRI() {
+        return documentIri;
+      }
+
+      @Override
+      public boolean isInputStreamAvailable() {
+        return true;
+      }
+
+      @Override
+      public InputStream getInputStream() {
+        try {
+          return openStream();
+        } catch (IOException e) {
+          throw new OWLOntologyInputSourceException(e);
+        }
+      }
+
+      @Override
+      public boolean isReaderAvailable() {
+        return true;
+      }
+
+      @Override
+      public Reader getReader() {
+        try {
+          return new InputStreamReader(wrap(openStream()), "UTF-8");
+        } catch (IOException e) {
+          throw new OWLOntologyInputSourceException(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a mapper that resolves imports to the entries of a zip archive. The entries are read
+   * in place through <i>jar:</i> IRIs.
+   *
+   * @return The mapper, or null if the input is not a zip archive.
+   */
+  public OWLOntologyIRIMapper getIriMapper() {
+    if (zipFile == null) {
+      return null;
+    }
+    return iri -> {
+      final String path = iri.toString();
+      if (path.startsWith("jar:")) {
+        return null;
+      }
+      String segment = path;
+      final int idx = Math.max(segment.lastIndexOf('/'), segment.lastIndexOf('#'));
+      if (idx >= 0) {
+        segment = segment.substring(idx + 1);
+      }
+      ZipEntry entry = entries.get(segment);
+      if (entry == null) {
+        entry = entries.get(stripExtension(segment));
+      }
+      if (entry == null || entry == rootEntry) {
+        return null;
+      }
+      log.info("Resolving import " + iri + " from archive entry " + entry.getName());
+      return getEntryIri(entry);
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (zipFile != null) {
+      zipFile.close();
+    }
+  }
+
+  /**
+   * Indexes the ontology documents in the archive by file name, with and without the extension,
+   * and returns the root document. Entries closer to the top level take precedence.
+   */
+  private ZipEntry indexEntries(String archiveBaseName) throws IOException {
+    final List<ZipEntry> documents = new ArrayList<>();
+    final Enumeration<? extends ZipEntry> en = zipFile.entries();
+    while (en.hasMoreElements()) {
+      final ZipEntry entry = en.nextElement();
+      if (!entry.isDirectory() && isOntologyDocument(entry.getName())) {
+        documents.add(entry);
+      }
+    }
+    Collections.sort(documents, (a, b) -> Integer.compare(getDepth(a), getDepth(b)));
+    log.info("Found " + documents.size() + " ontology documents in archive "
+        + file.getAbsolutePath());
+
+    final List<ZipEntry> topLevel = new ArrayList<>();
+    for (ZipEntry entry : documents) {
+      final String entryName = getFileName(entry.getName());
+      entries.putIfAbsent(entryName, entry);
+      entries.putIfAbsent(stripExtension(entryName), entry);
+      if (getDepth(entry) == getDepth(documents.get(0))) {
+        topLevel.add(entry);
+      }
+    }
+
+    if (topLevel.size() == 1) {
+      return topLevel.get(0);
+    }
+    for (ZipEntry entry : topLevel) {
+      if (stripExtension(getFileName(entry.getName())).equals(archiveBaseName)) {
+        return entry;
+      }
+    }
+    if (topLevel.isEmpty()) {
+      throw new IOException("Archive " + file.getAbsolutePath()
+          + " does not contain any ontology documents.");
+    }
+    final List<String> names = new ArrayList<>();
+    for (ZipEntry entry : topLevel) {
+      names.add(entry.getName());
+    }
+    throw new IOException("Unable to determine the root ontology of archive "
+        + file.getAbsolutePath() + ". Candidates are " + names + ". Name the archive after the "
+        + "root ontology, e.g. " + stripExtension(getFileName(names.get(0))) + ".zip.");
+  }
+
+  private IRI getEntryIri(ZipEntry entry) {
+    return IRI.create("jar:" + file.toURI() + "!/" + entry.getName());
+  }
+
+  private static boolean isOntologyDocument(String entryName) {
+    final String lowerName = entryName.toLowerCase(Locale.ROOT);
+    if (lowerName.startsWith("meta-inf/") || getFileName(lowerName).startsWith("catalog")) {
+      return false;
+    }
+    for (String ext : ONTOLOGY_EXTENSIONS) {
+      if (lowerName.endsWith(ext)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int getDepth(ZipEntry entry) {
+    int depth = 0;
+    for (char c : entry.getName().toCharArray()) {
+      if (c == '/') {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  private static String getFileName(String entryName) {
+    return entryName.substring(entryName.lastIndexOf('/') + 1);
+  }
+
+  private static String stripExtension(String fileName) {
+    final int idx = fileName.lastIndexOf('.');
+    return idx > 0 ? fileName.substring(0, idx) : fileName;
+  }
+
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.loader;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.semanticweb.owlapi.model.AddAxiom;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.EntityType;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAnnotationAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLDeclarationAxiom;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyBuilder;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.model.OWLOntologyID;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.parameters.ChangeApplied;
+
+import uk.ac.manchester.cs.owl.owlapi.OWLOntologyFactoryImpl;
+import uk.ac.manchester.cs.owl.owlapi.OWLOntologyImpl;
+import uk.ac.manchester.cs.owl.owlapi.concurrent.ConcurrentOWLOntologyBuilder;
+
+/**
+ * Drops the axioms that are not needed to create the code systems as the ontologies are parsed,
+ * so they are never stored. The following axioms are kept:
+ * <ul>
+ *   <li>Declarations. They are kept because the parsers use them to interpret the axioms of the
+ *   ontologies that import them.</li>
+ *   <li>The class and object property axioms, which are the ones used by the reasoner and by the
+ *   relationships.</li>
+ *   <li>The class assertions, object property assertions and same individual axioms, which change
+ *   the class hierarchy when classes are defined with nominals, i.e. <i>ObjectHasValue</i> or
+ *   <i>ObjectOneOf</i>. For example, if <i>A</i> is equivalent to <i>r some {a}</i> and <i>a</i>
+ *   is a <i>B</i> then <i>A</i> is a subclass of <i>r some B</i>. Since this is only known once
+ *   the whole imports closure is parsed, they are removed with the declarations of individuals
+ *   by {@link #dropUnusedAssertions(OWLOntology)} if no nominals are used.</li>
+ *   <li>The annotation assertions of the requested annotation properties and of the
+ *   <i>deprecated</i> properties.</li>
+ * </ul>
+ *
+ * <p>Negative and data property assertions, different individuals axioms, data property axioms,
+ * annotation property axioms, keys, rules and datatype definitions are dropped, and so are the
+ * annotations of the axioms that are kept.
+ */
+public class AxiomFilter implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Log log = LogFactory.getLog(AxiomFilter.class);
+
+  private static final Set<AxiomType<?>> DROPPED_TYPES = new HashSet<>(Arrays.asList(
+      AxiomType.NEGATIVE_OBJECT_PROPERTY_ASSERTION, AxiomType.DATA_PROPERTY_ASSERTION,
+      AxiomType.NEGATIVE_DATA_PROPERTY_ASSERTION, AxiomType.DIFFERENT_INDIVIDUALS,
+      AxiomType.DATA_PROPERTY_DOMAIN, AxiomType.DATA_PROPERTY_RANGE, AxiomType.SUB_DATA_PROPERTY,
+      AxiomType.EQUIVALENT_DATA_PROPERTIES, AxiomType.DISJOINT_DATA_PROPERTIES,
+      AxiomType.FUNCTIONAL_DATA_PROPERTY, AxiomType.HAS_KEY, AxiomType.SWRL_RULE,
+      AxiomType.DATATYPE_DEFINITION, AxiomType.SUB_ANNOTATION_PROPERTY_OF,
+      AxiomType.ANNOTATION_PROPERTY_DOMAIN, AxiomType.ANNOTATION_PROPERTY_RANGE));
+
+  private static final Set<AxiomType<?>> ASSERTION_TYPES = new HashSet<>(Arrays.asList(
+      AxiomType.CLASS_ASSERTION, AxiomType.OBJECT_PROPERTY_ASSERTION, AxiomType.SAME_INDIVIDUAL));
+
+  private final Set<IRI> annotationProperties;
+  private final AtomicLong numKept = new AtomicLong();
+  private final AtomicLong numDropped = new AtomicLong();
+  private volatile boolean usesNominals = false;
+
+  /**
+   * Constructor.
+   *
+   * @param annotationProperties The IRIs of the annotation properties whose assertions are kept.
+   */
+  public AxiomFilter(Set<IRI> annotationProperties) {
+    this.annotationProperties = annotationProperties;
+  }
+
+  /**
+   * Makes the manager create ontologies that only store the axioms accepted by this filter. Must
+   * be called before any ontology is loaded.
+   *
+   * @param manager The ontology manager.
+   * @param concurrent True if the manager is concurrent, so the ontologies are wrapped to allow
+   *     concurrent reads.
+   */
+  public void install(OWLOntologyManager manager, boolean concurrent) {
+    OWLOntologyBuilder builder = new FilteringOntologyBuilder(this);
+    if (concurrent) {
+      builder = new ConcurrentOWLOntologyBuilder(builder, new ReentrantReadWriteLock());
+    }
+    manager.getOntologyFactories().set(new OWLOntologyFactoryImpl(builder));
+  }
+
+  /**
+   * Returns the axiom that should be stored instead of an axiom that is added to an ontology.
+   *
+   * @param axiom The axiom.
+   * @return The axiom without its annotations, or null if it is not needed.
+   */
+  public OWLAxiom filter(OWLAxiom axiom) {
+    if (!accept(axiom)) {
+      numDropped.incrementAndGet();
+      return null;
+    }
+    numKept.incrementAndGet();
+    return axiom.isAnnotated() ? axiom.getAxiomWithoutAnnotations() : axiom;
+  }
+
+  /**
+   * Removes the assertions about individuals and their declarations from an ontology and its
+   * imports if none of the axioms that were kept use nominals, so they cannot change the class
+   * hierarchy. Must be called after the ontology is loaded.
+   *
+   * @param ontology The ontology.
+   */
+  public void dropUnusedAssertions(OWLOntology ontology) {
+    if (usesNominals) {
+      log.info("Keeping the assertions about individuals because classes are defined with "
+          + "nominals");
+      return;
+    }
+    long removed = 0;
+    for (OWLOntology ont : ontology.getImportsClosure()) {
+      final Set<OWLAxiom> axioms = new HashSet<>();
+      for (AxiomType<?> type : ASSERTION_TYPES) {
+        axioms.addAll(ont.getAxioms(type));
+      }
+      for (OWLDeclarationAxiom ax : ont.getAxioms(AxiomType.DECLARATION)) {
+        if (ax.getEntity().isType(EntityType.NAMED_INDIVIDUAL)) {
+          axioms.add(ax);
+        }
+      }
+      if (!axioms.isEmpty()) {
+        ont.getOWLOntologyManager().removeAxioms(ont, axioms);
+        removed += axioms.size();
+      }
+    }
+    numKept.addAndGet(-removed);
+    numDropped.addAndGet(removed);
+  }
+
+  /**
+   * Logs the number of axioms that were kept and dropped.
+   */
+  public void logStats() {
+    log.info("Kept " + numKept.get() + " axioms and dropped " + numDropped.get()
+        + " that are not needed");
+  }
+
+  private boolean accept(OWLAxiom axiom) {
+    final AxiomType<?> type = axiom.getAxiomType();
+    if (AxiomType.DECLARATION.equals(type)) {
+      return true;
+    } else if (AxiomType.ANNOTATION_ASSERTION.equals(type)) {
+      final IRI prop = ((OWLAnnotationAssertionAxiom) axiom).getProperty().getIRI();
+      return annotationProperties.contains(prop) || "deprecated".equals(prop.getShortForm());
+    } else if (DROPPED_TYPES.contains(type)) {
+      return false;
+    }
+    // Individuals only appear in the other axioms in ObjectHasValue and ObjectOneOf
+    if (!usesNominals && !ASSERTION_TYPES.contains(type)
+        && !axiom.getIndividualsInSignature().isEmpty()) {
+      usesNominals = true;
+    }
+    return true;
+  }
+
+  private static class FilteringOntologyBuilder implements OWLOntologyBuilder {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AxiomFilter filter;
+
+    FilteringOntologyBuilder(AxiomFilter filter) {
+      this.filter = filter;
+    }
+
+    @Override
+    public OWLOntology createOWLOntology(OWLOntologyManager manager, OWLOntologyID ontologyId) {
+      return new FilteringOntology(manager, ontologyId, filter);
+    }
+  }
+
+  private static class FilteringOntology extends OWLOntologyImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AxiomFilter filter;
+
+    FilteringOntology(OWLOntologyManager manager, OWLOntologyID ontologyId, AxiomFilter filter) {
+      super(manager, ontologyId);
+      this.filter = filter;
+    }
+
+    @Override
+    public ChangeApplied applyChange(OWLOntologyChange change) {
+      if (!(change instanceof AddAxiom)) {
+        return super.applyChange(change);
+      }
+      final OWLAxiom axiom = filter.filter(change.getAxiom());
+      if (axiom == null) {
+        return ChangeApplied.NO_OPERATION;
+      }
+      return super.applyChange(axiom == change.getAxiom() ? change : new AddAxiom(this, axiom));
+    }
+
+    @Override
+    public ChangeApplied applyChanges(List<? extends OWLOntologyChange> changes) {
+      ChangeApplied res = ChangeApplied.NO_OPERATION;
+      for (OWLOntologyChange change : changes) {
+        final ChangeApplied applied = applyChange(change);
+        if (applied == ChangeApplied.UNSUCCESSFULLY) {
+          return applied;
+        } else if (applied == ChangeApplied.SUCCESSFULLY) {
+          res = applied;
+        }
+      }
+      return res;
+    }
+  }
+
+}
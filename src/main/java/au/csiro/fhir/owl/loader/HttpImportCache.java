@@ -0,0 +1,360 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.loader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntologyIRIMapper;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.OWLRuntimeException;
+
+/**
+ * Resolves imports that are not available locally to cached copies of the documents downloaded
+ * over HTTP, so they are not downloaded on every run.
+ *
+ * <p>The cache directory has two parts. The <i>objects</i> directory has the documents, named
+ * after the SHA-256 digest of their content, so a document that is served from several IRIs is
+ * only stored once. The <i>meta</i> directory has one properties file per IRI, with the digest of
+ * the document and the <i>ETag</i> and <i>Last-Modified</i> headers of the response. Cached
+ * documents are revalidated with conditional requests, and a <i>304 Not Modified</i> response
+ * means the cached copy is used without downloading it again. If the server cannot be reached
+ * then the cached copy is used. In offline mode no requests are made and imports that are not
+ * cached cause an error.
+ *
+ * <p>When a document is cached, the imports declared at its start are fetched in the background,
+ * so independent imports are downloaded concurrently instead of one after the other as the OWL
+ * API parses each document.
+ */
+public class HttpImportCache implements OWLOntologyIRIMapper {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Log log = LogFactory.getLog(HttpImportCache.class);
+
+  private static final String ACCEPT = "application/rdf+xml, application/xml; q=0.7, "
+      + "text/xml; q=0.6, text/turtle; q=0.5, text/owl-functional; q=0.5, "
+      + "text/owl-manchester; q=0.5, text/plain; q=0.1, */*; q=0.09";
+
+  private static final int MAX_REDIRECTS = 10;
+
+  private static final int TIMEOUT = 30000;
+
+  private static final int HEADER_SIZE = 64 * 1024;
+
+  private static final Pattern[] IMPORTS = {
+    // RDF/XML
+    Pattern.compile("<(?:[\\w.-]+:)?imports\\s+rdf:resource\\s*=\\s*[\"']([^\"']+)[\"']"),
+    // OWL/XML
+    Pattern.compile("<(?:[\\w.-]+:)?Import>\\s*([^<\\s]+)\\s*</"),
+    // Functional and Manchester syntax
+    Pattern.compile("(?m)^\\s*Import(?:\\(|:)\\s*<([^>]+)>"),
+    // Turtle
+    Pattern.compile("owl:imports\\s+<([^>]+)>")
+  };
+
+  private final File objectsDir;
+  private final File metaDir;
+  private final boolean offline;
+  private final transient ExecutorService executor;
+  private final transient OWLOntologyManager manager;
+
+  /**
+   * The fetches that have been started in this run, by IRI.
+   */
+  private final Map<String, Future<File>> fetches = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param cacheDir The cache directory.
+   * @param offline If true then no requests are made and only cached documents are used.
+   * @param threads The number of documents that are downloaded concurrently.
+   * @param manager The manager that loads the ontology. Its other IRI mappers are used to avoid
+   *     fetching imports that are available locally.
+   */
+  public HttpImportCache(File cacheDir, boolean offline, int threads,
+      OWLOntologyManager manager) {
+    this.objectsDir = new File(cacheDir, "objects");
+    this.metaDir = new File(cacheDir, "meta");
+    this.offline = offline;
+    this.manager = manager;
+    this.executor = Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r, "import-fetch");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Returns the default location of the cache, <i>.fhir-owl/import-cache</i> in the home
+   * directory.
+   *
+   * @return The cache directory.
+   */
+  public static File getDefaultCacheDir() {
+    return new File(new File(System.getProperty("user.home"), ".fhir-owl"), "import-cache");
+  }
+
+  @Override
+  public IRI getDocumentIRI(IRI ontologyIri) {
+    if (!isHttp(ontologyIri.toString())) {
+      return null;
+    }
+    try {
+      return IRI.create(fetch(ontologyIri.toString()).get());
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw new OWLRuntimeException("Unable to resolve import " + ontologyIri + ": "
+          + cause.getMessage(), cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OWLRuntimeException(e);
+    }
+  }
+
+  /**
+   * Starts fetching the imports declared at the start of a local document, e.g. the root
+   * ontology, before the OWL API parses it.
+   *
+   * @param document The document.
+   */
+  public void prefetchImports(File document) {
+    try {
+      prefetchImports(readHeader(document));
+    } catch (IOException e) {
+      log.warn("Unable to read the imports of " + document + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Stops the threads that download documents.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private Future<File> fetch(String iri) {
+    return fetches.computeIfAbsent(iri, k -> executor.submit(() -> {
+      final File file = resolve(k);
+      prefetchImports(file);
+      return file;
+    }));
+  }
+
+  private void prefetchImports(String header) {
+    for (Pattern pattern : IMPORTS) {
+      final Matcher m = pattern.matcher(header);
+      while (m.find()) {
+        final String iri = m.group(1).trim();
+        if (isHttp(iri) && !fetches.containsKey(iri) && !isMappedLocally(IRI.create(iri))) {
+          log.info("Prefetching import " + iri);
+          fetch(iri);
+        }
+      }
+    }
+  }
+
+  private boolean isMappedLocally(IRI iri) {
+    for (OWLOntologyIRIMapper mapper : manager.getIRIMappers()) {
+      if (mapper != this && mapper.getDocumentIRI(iri) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the cached copy of a document, downloading or revalidating it first unless in offline
+   * mode.
+   */
+  private File resolve(String iri) throws IOException {
+    final File metaFile = new File(metaDir, sha256(iri.getBytes(StandardCharsets.UTF_8)));
+    final Properties meta = new Properties();
+    File cached = null;
+    if (metaFile.isFile()) {
+      try (InputStream in = new FileInputStream(metaFile)) {
+        meta.load(in);
+      }
+      final File object = new File(objectsDir, meta.getProperty("sha256", ""));
+      if (object.isFile()) {
+        cached = object;
+      }
+    }
+
+    if (offline) {
+      if (cached == null) {
+        throw new IOException("The document is not cached and offline mode is enabled");
+      }
+      log.info("Using cached copy of " + iri + " (offline)");
+      return cached;
+    }
+
+    try {
+      final File res = download(iri, cached != null ? meta : null, metaFile);
+      return res != null ? res : cached;
+    } catch (IOException e) {
+      if (cached == null) {
+        throw e;
+      }
+      log.warn("Unable to revalidate " + iri + ", using cached copy: " + e.getMessage());
+      return cached;
+    }
+  }
+
+  /**
+   * Downloads a document, following redirects, including the ones between HTTP and HTTPS.
+   *
+   * @return The cached document or null if the cached copy has not been modified.
+   */
+  private File download(String iri, Properties cachedMeta, File metaFile) throws IOException {
+    for (File dir : new File[] { objectsDir, metaDir }) {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create cache directory " + dir);
+      }
+    }
+    String location = iri;
+    for (int i = 0; i <= MAX_REDIRECTS; i++) {
+      final HttpURLConnection conn = (HttpURLConnection) new URL(location).openConnection();
+      conn.setInstanceFollowRedirects(false);
+      conn.setConnectTimeout(TIMEOUT);
+      conn.setReadTimeout(TIMEOUT);
+      conn.setRequestProperty("Accept", ACCEPT);
+      conn.setRequestProperty("Accept-Encoding", "gzip");
+      if (cachedMeta != null) {
+        final String etag = cachedMeta.getProperty("etag");
+        final String lastModified = cachedMeta.getProperty("lastModified");
+        if (etag != null) {
+          conn.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+          conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+      }
+
+      final int code = conn.getResponseCode();
+      if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        conn.disconnect();
+        log.info("Cached copy of " + iri + " is up to date");
+        return null;
+      } else if (code >= 300 && code < 400 && conn.getHeaderField("Location") != null) {
+        location = new URL(new URL(location), conn.getHeaderField("Location")).toString();
+        conn.disconnect();
+        continue;
+      } else if (code != HttpURLConnection.HTTP_OK) {
+        conn.disconnect();
+        throw new IOException("Server returned " + code + " for " + location);
+      }
+
+      log.info("Downloading " + iri + (location.equals(iri) ? "" : " from " + location));
+      final File object = store(conn);
+      final Properties meta = new Properties();
+      meta.setProperty("iri", iri);
+      meta.setProperty("location", location);
+      meta.setProperty("sha256", object.getName());
+      if (conn.getHeaderField("ETag") != null) {
+        meta.setProperty("etag", conn.getHeaderField("ETag"));
+      }
+      if (conn.getHeaderField("Last-Modified") != null) {
+        meta.setProperty("lastModified", conn.getHeaderField("Last-Modified"));
+      }
+      final File tmp = File.createTempFile("meta", ".tmp", metaDir);
+      try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+        meta.store(out, null);
+      }
+      Files.move(tmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      return object;
+    }
+    throw new IOException("Too many redirects for " + iri);
+  }
+
+  /**
+   * Stores the body of a response in the objects directory, named after the digest of its
+   * content.
+   */
+  private File store(HttpURLConnection conn) throws IOException {
+    final MessageDigest md = newDigest();
+    final File tmp = File.createTempFile("object", ".tmp", objectsDir);
+    try {
+      InputStream body = new BufferedInputStream(conn.getInputStream(), 64 * 1024);
+      if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+        body = new GZIPInputStream(body, 64 * 1024);
+      }
+      try (InputStream in = new DigestInputStream(body, md)) {
+        Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      final File object = new File(objectsDir, toHex(md.digest()));
+      Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      return object;
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  private static String readHeader(File file) throws IOException {
+    final byte[] buf = new byte[HEADER_SIZE];
+    int len = 0;
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+        len += n;
+      }
+    }
+    return new String(buf, 0, len, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isHttp(String iri) {
+    final String lower = iri.toLowerCase(Locale.ROOT);
+    return lower.startsWith("http://") || lower.startsWith("https://");
+  }
+
+  private static String sha256(byte[] bytes) {
+    return toHex(newDigest().digest(bytes));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,536 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntologyIRIMapper;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Resolves imports to local files, so they are not downloaded. The files are found in
+ * Protégé-style <i>catalog-v001.xml</i> files and in directories, including their
+ * subdirectories. A directory with a <i>catalog-v001.xml</i> file also uses its mappings.
+ *
+ * <p>The ontology IRI and version IRI of the files in the directories are found by reading the
+ * start of each file. This is done lazily: when an import is resolved, the files whose name
+ * matches the last segment of the IRI are read first and the rest are only read until the import
+ * is found. The IRIs that are found are kept in an index file together with the size and the
+ * modification time of each file, so later runs only read the files that have changed.
+ */
+public class LocalImportMapper implements OWLOntologyIRIMapper {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Log log = LogFactory.getLog(LocalImportMapper.class);
+
+  private static final String CATALOG = "catalog-v001.xml";
+
+  private static final int HEADER_SIZE = 64 * 1024;
+
+  private static final String[] ONTOLOGY_EXTENSIONS = { ".owl", ".rdf", ".xml", ".owx", ".ttl",
+    ".ofn", ".omn", ".obo" };
+
+  private static final Pattern ENTITY = Pattern.compile(
+      "<!ENTITY\\s+([\\w.-]+)\\s+[\"']([^\"']*)[\"']\\s*>");
+  private static final Pattern XML_ONTOLOGY = Pattern.compile(
+      "<(?:[\\w.-]+:)?Ontology\\b([^>]*)>");
+  private static final Pattern XML_ABOUT = Pattern.compile(
+      "\\b(?:rdf:about|ontologyIRI)\\s*=\\s*[\"']([^\"']*)[\"']");
+  private static final Pattern XML_VERSION = Pattern.compile(
+      "\\bversionIRI\\s*=\\s*[\"']([^\"']*)[\"']");
+  private static final Pattern RDF_XML_VERSION = Pattern.compile(
+      "<(?:[\\w.-]+:)?versionIRI\\s+rdf:resource\\s*=\\s*[\"']([^\"']*)[\"']");
+  private static final Pattern XML_BASE = Pattern.compile(
+      "\\bxml:base\\s*=\\s*[\"']([^\"']*)[\"']");
+  private static final Pattern FUNCTIONAL = Pattern.compile(
+      "(?m)^\\s*Ontology(?:\\(|:)\\s*<([^>]+)>(?:\\s*<([^>]+)>)?");
+  private static final Pattern TURTLE = Pattern.compile(
+      "<([^>]+)>\\s+(?:a|rdf:type)\\s+owl:Ontology");
+  private static final Pattern TURTLE_VERSION = Pattern.compile(
+      "owl:versionIRI\\s+<([^>]+)>");
+  private static final Pattern OBO_ONTOLOGY = Pattern.compile("(?m)^ontology:\\s*(\\S+)");
+  private static final Pattern OBO_VERSION = Pattern.compile("(?m)^data-version:\\s*(\\S+)");
+
+  private final List<File> directories = new ArrayList<>();
+  private final Map<IRI, IRI> catalogMappings = new HashMap<>();
+  private final File indexFile;
+
+  /**
+   * The files that have been read, by absolute path.
+   */
+  private final Map<String, IndexEntry> index = new HashMap<>();
+
+  /**
+   * The files that have been read, by ontology IRI and version IRI.
+   */
+  private final Map<String, File> files = new HashMap<>();
+
+  /**
+   * The files in the directories that have not been read yet. Listed on the first import that is
+   * not found in the index.
+   */
+  private Deque<File> pending = null;
+
+  private boolean modified = false;
+
+  /**
+   * Constructor.
+   *
+   * @param paths Directories and catalog files.
+   * @param indexFile The file where the index is kept between runs. Might be null, in which case
+   *     the index is not kept.
+   * @throws IOException If a catalog or the index cannot be read.
+   */
+  public LocalImportMapper(List<File> paths, File indexFile) throws IOException {
+    this.indexFile = indexFile;
+    for (File path : paths) {
+      if (path.isDirectory()) {
+        directories.add(path);
+        final File catalog = new File(path, CATALOG);
+        if (catalog.isFile()) {
+          readCatalog(catalog);
+        }
+      } else {
+        readCatalog(path);
+      }
+    }
+    if (indexFile != null && indexFile.isFile()) {
+      readIndex();
+    }
+  }
+
+  /**
+   * Returns the default location of the index, <i>.fhir-owl/import-index.txt</i> in the home
+   * directory.
+   *
+   * @return The index file.
+   */
+  public static File getDefaultIndexFile() {
+    return new File(new File(System.getProperty("user.home"), ".fhir-owl"), "import-index.txt");
+  }
+
+  @Override
+  public synchronized IRI getDocumentIRI(IRI ontologyIri) {
+    final IRI mapped = catalogMappings.get(ontologyIri);
+    if (mapped != null) {
+      log.info("Resolving import " + ontologyIri + " to " + mapped + " from catalog");
+      return mapped;
+    }
+
+    final String iri = ontologyIri.toString();
+    File file = files.get(iri);
+    if (file != null && !isCurrent(file)) {
+      // The file changed since it was indexed, so it is read again
+      remove(file);
+      if (pending != null && file.isFile()) {
+        pending.addFirst(file);
+      }
+      file = null;
+    }
+    if (file == null && !directories.isEmpty()) {
+      file = search(iri);
+    }
+    if (file == null) {
+      return null;
+    }
+    log.info("Resolving import " + ontologyIri + " to local file " + file);
+    return IRI.create(file);
+  }
+
+  /**
+   * Writes the index, if anything was added to it. The index is written to a temporary file that
+   * replaces the previous one, so concurrent runs do not see a partial index.
+   *
+   * @throws IOException If the index cannot be written.
+   */
+  public synchronized void save() throws IOException {
+    if (indexFile == null || !modified) {
+      return;
+    }
+    final File dir = indexFile.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    final File tmp = File.createTempFile("import-index", ".tmp", dir);
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath()),
+        StandardCharsets.UTF_8))) {
+      w.write("# path\tsize\tmodified\tontology and version IRIs\n");
+      for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+        final IndexEntry ie = entry.getValue();
+        w.write(entry.getKey() + "\t" + ie.length + "\t" + ie.lastModified);
+        for (String iri : ie.iris) {
+          w.write("\t" + iri);
+        }
+        w.write("\n");
+      }
+    }
+    Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    modified = false;
+    log.info("Saved index of " + index.size() + " local ontology files to " + indexFile);
+  }
+
+  /**
+   * Reads the pending files until one with the ontology IRI is found. Files whose name matches
+   * the last segment of the IRI are read first.
+   */
+  private File search(String iri) {
+    if (pending == null) {
+      pending = new ArrayDeque<>();
+      for (File dir : directories) {
+        listFiles(dir, pending);
+      }
+      log.info("Found " + pending.size() + " local ontology files that are not indexed");
+    }
+
+    final String segment = getLastSegment(iri);
+    for (Iterator<File> it = pending.iterator(); it.hasNext(); ) {
+      final File candidate = it.next();
+      if (stripExtension(candidate.getName()).equals(stripExtension(segment))) {
+        it.remove();
+        sniff(candidate);
+        if (candidate.equals(files.get(iri))) {
+          return candidate;
+        }
+      }
+    }
+    while (!pending.isEmpty()) {
+      final File candidate = pending.removeFirst();
+      sniff(candidate);
+      if (candidate.equals(files.get(iri))) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  private void listFiles(File dir, Deque<File> res) {
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        listFiles(child, res);
+      } else if (isOntologyFile(child.getName())) {
+        final IndexEntry entry = index.get(child.getAbsolutePath());
+        if (entry == null || !isCurrent(child)) {
+          remove(child);
+          res.add(child);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the ontology IRI and version IRI of a file and adds them to the index.
+   */
+  private void sniff(File file) {
+    final List<String> iris = new ArrayList<>();
+    try {
+      final String header = readHeader(file);
+      if (file.getName().toLowerCase(Locale.ROOT).endsWith(".obo")) {
+        sniffObo(header, iris);
+      } else {
+        sniffXml(header, iris);
+        if (iris.isEmpty()) {
+          sniffText(header, iris);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Unable to read local ontology file " + file + ": " + e.getMessage());
+    }
+
+    final IndexEntry entry = new IndexEntry(file.length(), file.lastModified(), iris);
+    index.put(file.getAbsolutePath(), entry);
+    for (String iri : iris) {
+      files.putIfAbsent(iri, file);
+    }
+    modified = true;
+  }
+
+  private void sniffXml(String header, List<String> iris) {
+    final Matcher m = XML_ONTOLOGY.matcher(header);
+    if (!m.find()) {
+      return;
+    }
+    final Map<String, String> entities = new HashMap<>();
+    final Matcher em = ENTITY.matcher(header);
+    while (em.find()) {
+      entities.put(em.group(1), em.group(2));
+    }
+    final Matcher bm = XML_BASE.matcher(header);
+    final String base = bm.find() ? expand(bm.group(1), entities) : null;
+
+    final String attributes = m.group(1);
+    final Matcher am = XML_ABOUT.matcher(attributes);
+    if (!am.find()) {
+      return;
+    }
+    addIri(iris, resolve(base, expand(am.group(1), entities)));
+    final Matcher vm = XML_VERSION.matcher(attributes);
+    if (vm.find()) {
+      addIri(iris, resolve(base, expand(vm.group(1), entities)));
+    } else {
+      final Matcher rvm = RDF_XML_VERSION.matcher(header);
+      if (rvm.find(m.end())) {
+        addIri(iris, resolve(base, expand(rvm.group(1), entities)));
+      }
+    }
+  }
+
+  private void sniffText(String header, List<String> iris) {
+    final Matcher fm = FUNCTIONAL.matcher(header);
+    if (fm.find()) {
+      addIri(iris, fm.group(1));
+      addIri(iris, fm.group(2));
+      return;
+    }
+    final Matcher tm = TURTLE.matcher(header);
+    if (tm.find()) {
+      addIri(iris, tm.group(1));
+      final Matcher vm = TURTLE_VERSION.matcher(header);
+      if (vm.find(tm.end())) {
+        addIri(iris, vm.group(1));
+      }
+    }
+  }
+
+  /**
+   * Uses the same ontology IRI and version IRI as the OBO to OWL translation of the OWL API.
+   */
+  private void sniffObo(String header, List<String> iris) {
+    final Matcher om = OBO_ONTOLOGY.matcher(header);
+    if (!om.find()) {
+      return;
+    }
+    final String ontology = om.group(1);
+    if (ontology.startsWith("http://") || ontology.startsWith("https://")) {
+      addIri(iris, ontology);
+      return;
+    }
+    addIri(iris, "http://purl.obolibrary.org/obo/" + ontology + ".owl");
+    final Matcher vm = OBO_VERSION.matcher(header);
+    if (vm.find()) {
+      addIri(iris, "http://purl.obolibrary.org/obo/" + ontology + "/" + vm.group(1) + "/"
+          + ontology + ".owl");
+    }
+  }
+
+  private void readCatalog(File catalog) throws IOException {
+    if (!catalog.isFile()) {
+      throw new IOException("Catalog " + catalog + " does not exist.");
+    }
+    final org.w3c.dom.Document doc;
+    try {
+      final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+      dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      doc = dbf.newDocumentBuilder().parse(catalog);
+    } catch (Exception e) {
+      throw new IOException("Unable to read catalog " + catalog + ": " + e.getMessage(), e);
+    }
+
+    int num = 0;
+    final NodeList uris = doc.getElementsByTagName("uri");
+    for (int i = 0; i < uris.getLength(); i++) {
+      final Element uri = (Element) uris.item(i);
+      final String name = uri.getAttribute("name");
+      final String location = uri.getAttribute("uri");
+      if (name.isEmpty() || location.isEmpty()) {
+        continue;
+      }
+      final URI resolved = getBase(uri, catalog).resolve(location);
+      if ("file".equals(resolved.getScheme()) && !new File(resolved).exists()) {
+        log.warn("Catalog mapping was not added because file " + resolved + " does not exist.");
+        continue;
+      }
+      catalogMappings.put(IRI.create(name), IRI.create(resolved));
+      num++;
+    }
+    log.info("Added " + num + " mappings from catalog " + catalog);
+  }
+
+  /**
+   * Returns the base URI of a catalog element, taking into account the <i>xml:base</i> attributes
+   * of the element and its ancestors.
+   */
+  private URI getBase(Node node, File catalog) {
+    if (node == null || !(node instanceof Element)) {
+      return catalog.getAbsoluteFile().toURI();
+    }
+    final URI parent = getBase(node.getParentNode(), catalog);
+    final String base = ((Element) node).getAttribute("xml:base");
+    return base.isEmpty() ? parent : parent.resolve(base);
+  }
+
+  private void readIndex() throws IOException {
+    try (BufferedReader br = new BufferedReader(new InputStreamReader(
+        new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.startsWith("#") || line.isEmpty()) {
+          continue;
+        }
+        final String[] parts = line.split("\t");
+        if (parts.length < 3) {
+          continue;
+        }
+        final List<String> iris = new ArrayList<>(Arrays.asList(parts).subList(3, parts.length));
+        final IndexEntry entry = new IndexEntry(Long.parseLong(parts[1]),
+            Long.parseLong(parts[2]), iris);
+        // Entries of other directories are kept so they are not lost when the index is saved
+        final File file = new File(parts[0]);
+        index.put(parts[0], entry);
+        if (isUnderDirectory(file)) {
+          for (String iri : iris) {
+            files.putIfAbsent(iri, file);
+          }
+        }
+      }
+    } catch (NumberFormatException e) {
+      log.warn("Ignoring invalid import index " + indexFile);
+      index.clear();
+      files.clear();
+    }
+    log.info("Read index of " + index.size() + " local ontology files from " + indexFile);
+  }
+
+  private boolean isUnderDirectory(File file) {
+    final String path = file.getAbsolutePath();
+    for (File dir : directories) {
+      if (path.startsWith(dir.getAbsolutePath() + File.separator)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isCurrent(File file) {
+    final IndexEntry entry = index.get(file.getAbsolutePath());
+    return entry != null && file.isFile() && file.length() == entry.length
+        && file.lastModified() == entry.lastModified;
+  }
+
+  private void remove(File file) {
+    final IndexEntry entry = index.remove(file.getAbsolutePath());
+    if (entry != null) {
+      for (String iri : entry.iris) {
+        files.remove(iri, file);
+      }
+      modified = true;
+    }
+  }
+
+  private static String readHeader(File file) throws IOException {
+    final byte[] buf = new byte[HEADER_SIZE];
+    int len = 0;
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+        len += n;
+      }
+    }
+    return new String(buf, 0, len, StandardCharsets.UTF_8);
+  }
+
+  private static String expand(String value, Map<String, String> entities) {
+    if (value.indexOf('&') < 0) {
+      return value;
+    }
+    String res = value;
+    for (Map.Entry<String, String> entity : entities.entrySet()) {
+      res = res.replace("&" + entity.getKey() + ";", entity.getValue());
+    }
+    return res;
+  }
+
+  private static String resolve(String base, String iri) {
+    if (base == null || iri.contains(":")) {
+      return iri;
+    }
+    try {
+      return URI.create(base).resolve(iri).toString();
+    } catch (IllegalArgumentException e) {
+      return iri;
+    }
+  }
+
+  private static void addIri(List<String> iris, String iri) {
+    if (iri != null && !iri.isEmpty() && !iris.contains(iri)) {
+      iris.add(iri);
+    }
+  }
+
+  private static boolean isOntologyFile(String name) {
+    final String lowerName = name.toLowerCase(Locale.ROOT);
+    if (lowerName.startsWith("catalog")) {
+      return false;
+    }
+    for (String ext : ONTOLOGY_EXTENSIONS) {
+      if (lowerName.endsWith(ext)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String getLastSegment(String iri) {
+    final int idx = Math.max(iri.lastIndexOf('/'), iri.lastIndexOf('#'));
+    return idx >= 0 ? iri.substring(idx + 1) : iri;
+  }
+
+  private static String stripExtension(String fileName) {
+    final int idx = fileName.lastIndexOf('.');
+    return idx > 0 ? fileName.substring(0, idx) : fileName;
+  }
+
+  private static class IndexEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long length;
+    private final long lastModified;
+    private final List<String> iris;
+
+    IndexEntry(long length, long lastModified, List<String> iris) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.iris = iris;
+    }
+  }
+
+}
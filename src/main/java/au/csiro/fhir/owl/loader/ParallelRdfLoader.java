@@ -0,0 +1,582 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.BasicParserSettings;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.semanticweb.owlapi.formats.NTriplesDocumentFormat;
+import org.semanticweb.owlapi.formats.RDFXMLDocumentFormat;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.rdf.rdfxml.parser.OWLRDFConsumer;
+import org.semanticweb.owlapi.rdf.rdfxml.parser.RDFConsumer;
+import org.semanticweb.owlapi.rdf.rdfxml.parser.RDFParser;
+import org.semanticweb.owlapi.rio.RioAnonymousNodeChecker;
+import org.semanticweb.owlapi.rio.RioOWLRDFConsumerAdapter;
+import org.xml.sax.InputSource;
+
+/**
+ * Loads a large RDF/XML or N-Triples document using several threads. The file is memory-mapped
+ * and split into chunks: RDF/XML files at the boundaries of the top-level elements inside
+ * <i>rdf:RDF</i> and N-Triples files at line boundaries. Each RDF/XML chunk is parsed as a
+ * document with the original prolog and root element, so entities, namespaces and
+ * <i>xml:base</i> still apply.
+ *
+ * <p>The chunks are parsed concurrently, with the same parsers the OWL API uses, and their
+ * triples are passed in batches to a single OWL API RDF consumer, which builds the axioms and
+ * adds them to the ontology. The consumer does not depend on the order of the triples, and blank
+ * node identifiers that are scoped to the document, such as <i>rdf:nodeID</i>, are preserved so
+ * nodes that are referenced from several chunks are merged. Imports are loaded by the consumer,
+ * as they are when the OWL API parses the document.
+ */
+public class ParallelRdfLoader {
+
+  private static final Log log = LogFactory.getLog(ParallelRdfLoader.class);
+
+  private static final long WINDOW_SIZE = 1L << 30;
+  private static final int MIN_CHUNK_SIZE = 1 << 20;
+  private static final int BATCH_SIZE = 10000;
+
+  private final int threads;
+
+  /**
+   * Constructor.
+   *
+   * @param threads The number of threads used to parse the chunks.
+   */
+  public ParallelRdfLoader(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * Returns the RDF format of a file, if it can be loaded in parallel. N-Triples files are
+   * recognised by their extension and RDF/XML files by their content.
+   *
+   * @param file The file.
+   * @return The format, or null if the file is not RDF/XML or N-Triples.
+   * @throws IOException If the file cannot be read.
+   */
+  public static RDFFormat getFormat(File file) throws IOException {
+    if (file.getName().toLowerCase(Locale.ROOT).endsWith(".nt")) {
+      return RDFFormat.NTRIPLES;
+    }
+    final byte[] start = new byte[4096];
+    final int len;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      len = raf.read(start);
+    }
+    if (len <= 0) {
+      return null;
+    }
+    final String s = new String(start, 0, len, StandardCharsets.UTF_8);
+    return s.contains("<rdf:RDF") ? RDFFormat.RDFXML : null;
+  }
+
+  /**
+   * Loads an ontology into a manager.
+   *
+   * @param manager The ontology manager.
+   * @param file The RDF/XML or N-Triples file.
+   * @param format The format of the file.
+   * @return The ontology.
+   * @throws IOException If the file cannot be read or parsed.
+   * @throws OWLOntologyCreationException If the ontology cannot be created.
+   */
+  public OWLOntology load(OWLOntologyManager manager, File file, RDFFormat format)
+      throws IOException, OWLOntologyCreationException {
+    final List<Chunk> chunks;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel ch = raf.getChannel()) {
+      final long chunkSize = Math.max(MIN_CHUNK_SIZE, ch.size() / (threads * 4));
+      chunks = RDFFormat.NTRIPLES.equals(format) ? splitLines(ch, chunkSize)
+          : splitElements(ch, chunkSize);
+    }
+    log.info("Parsing " + chunks.size() + " chunks of " + file.getAbsolutePath() + " with "
+        + threads + " threads");
+
+    final OWLOntology ont = manager.createOntology();
+    final OWLRDFConsumer consumer;
+    if (RDFFormat.NTRIPLES.equals(format)) {
+      consumer = new RioOWLRDFConsumerAdapter(ont, new RioAnonymousNodeChecker(),
+          manager.getOntologyLoaderConfiguration());
+      consumer.setOntologyFormat(new NTriplesDocumentFormat());
+    } else {
+      consumer = new OWLRDFConsumer(ont, manager.getOntologyLoaderConfiguration());
+      consumer.setOntologyFormat(new RDFXMLDocumentFormat());
+    }
+
+    // An empty batch marks the end of a chunk
+    final BlockingQueue<List<Triple>> queue = new ArrayBlockingQueue<>(threads * 4);
+    final AtomicReference<Exception> error = new AtomicReference<>();
+    final String baseUri = file.toURI().toString();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Chunk chunk : chunks) {
+        executor.submit(() -> {
+          try {
+            parse(file, chunk, format, baseUri, queue);
+          } catch (Exception e) {
+            error.compareAndSet(null, e);
+          }
+          queue.put(Collections.emptyList());
+          return null;
+        });
+      }
+
+      consumer.startModel(IRI.create(baseUri));
+      int finished = 0;
+      long numTriples = 0;
+      while (finished < chunks.size()) {
+        final List<Triple> batch = queue.take();
+        if (batch.isEmpty()) {
+          finished++;
+        } else if (error.get() == null) {
+          for (Triple triple : batch) {
+            triple.replay(consumer);
+          }
+          numTriples += batch.size();
+        }
+      }
+      if (error.get() != null) {
+        throw new IOException("Could not parse " + file.getAbsolutePath() + ": "
+            + error.get().getMessage(), error.get());
+      }
+      consumer.endModel();
+      log.info("Parsed " + numTriples + " triples");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while parsing " + file.getAbsolutePath(), e);
+    } catch (RDFHandlerException e) {
+      throw new IOException("Could not parse " + file.getAbsolutePath() + ": " + e.getMessage(),
+          e);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    manager.setOntologyFormat(ont, consumer.getOntologyFormat());
+    return ont;
+  }
+
+  /**
+   * Parses a chunk and puts its triples in the queue, in batches. RDF/XML is parsed with the OWL
+   * API parser, so literals and blank nodes are handled exactly as when the whole document is
+   * parsed, and N-Triples with the Rio parser that the OWL API also uses.
+   */
+  private void parse(File file, Chunk chunk, RDFFormat format, String baseUri,
+      BlockingQueue<List<Triple>> queue) throws Exception {
+    final Batcher batcher = new Batcher(queue);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel ch = raf.getChannel()) {
+      final MappedByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY, chunk.start,
+          chunk.end - chunk.start);
+      InputStream is = new ByteBufferInputStream(bb);
+      if (chunk.header != null) {
+        is = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+            new ByteArrayInputStream(chunk.header), is, new ByteArrayInputStream(chunk.footer))));
+      }
+
+      if (RDFFormat.NTRIPLES.equals(format)) {
+        final org.openrdf.rio.RDFParser parser = Rio.createParser(format);
+        // Blank node labels are scoped to the document, so they must match across chunks
+        parser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+        parser.getParserConfig().set(BasicParserSettings.VERIFY_DATATYPE_VALUES, false);
+        parser.setRDFHandler(new RDFHandlerBase() {
+          @Override
+          public void handleStatement(Statement st) {
+            batcher.add(c -> ((RioOWLRDFConsumerAdapter) c).handleStatement(st));
+          }
+        });
+        parser.parse(is, baseUri);
+      } else {
+        final InputSource source = new InputSource(is);
+        source.setSystemId(baseUri);
+        new RDFParser().parse(source, new TripleCollector(batcher));
+      }
+    }
+    batcher.flush();
+  }
+
+  /**
+   * Splits an N-Triples file at the first line break after each chunk size.
+   */
+  private List<Chunk> splitLines(FileChannel ch, long chunkSize) throws IOException {
+    final MappedFile mf = new MappedFile(ch);
+    final List<Chunk> res = new ArrayList<>();
+    long start = 0;
+    while (start < mf.size) {
+      long end = Math.min(start + chunkSize, mf.size);
+      while (end < mf.size && mf.get(end - 1) != '\n') {
+        end++;
+      }
+      res.add(new Chunk(start, end, null, null));
+      start = end;
+    }
+    return res;
+  }
+
+  /**
+   * Splits an RDF/XML file at the boundaries of the top-level elements. The scan skips the
+   * prolog, comments, processing instructions and CDATA sections and tracks quoted attribute
+   * values, so markup characters inside them are ignored.
+   */
+  private List<Chunk> splitElements(FileChannel ch, long chunkSize) throws IOException {
+    final MappedFile mf = new MappedFile(ch);
+
+    // Find the start tag of the root element, after the prolog
+    long pos = 0;
+    long rootStart = -1;
+    while (rootStart < 0) {
+      pos = mf.indexOf((byte) '<', pos);
+      if (pos < 0) {
+        throw new IOException("No root element found.");
+      }
+      if (mf.startsWith(pos, "<?")) {
+        pos = mf.indexOf("?>", pos) + 2;
+      } else if (mf.startsWith(pos, "<!--")) {
+        pos = mf.indexOf("-->", pos) + 3;
+      } else if (mf.startsWith(pos, "<!")) {
+        pos = skipDeclaration(mf, pos);
+      } else {
+        rootStart = pos;
+      }
+    }
+    final long headerEnd = skipTag(mf, rootStart);
+    final byte[] header = mf.getBytes(0, headerEnd);
+    String rootName = new String(mf.getBytes(rootStart + 1, Math.min(headerEnd, rootStart + 256)),
+        StandardCharsets.UTF_8);
+    rootName = rootName.split("[\\s>/]")[0];
+    final byte[] footer = ("</" + rootName + ">").getBytes(StandardCharsets.UTF_8);
+
+    final List<Chunk> res = new ArrayList<>();
+    long chunkStart = headerEnd;
+    int depth = 0;
+    pos = headerEnd;
+    while (true) {
+      pos = mf.indexOf((byte) '<', pos);
+      if (pos < 0) {
+        throw new IOException("The root element is not closed.");
+      }
+      if (mf.startsWith(pos, "<!--")) {
+        pos = mf.indexOf("-->", pos) + 3;
+      } else if (mf.startsWith(pos, "<![CDATA[")) {
+        pos = mf.indexOf("]]>", pos) + 3;
+      } else if (mf.startsWith(pos, "<?")) {
+        pos = mf.indexOf("?>", pos) + 2;
+      } else if (mf.startsWith(pos, "</")) {
+        if (depth == 0) {
+          // End of the root element
+          if (pos > chunkStart) {
+            res.add(new Chunk(chunkStart, pos, header, footer));
+          }
+          return res;
+        }
+        depth--;
+        pos = skipTag(mf, pos);
+      } else {
+        pos = skipTag(mf, pos);
+        if (mf.get(pos - 2) != '/') {
+          depth++;
+        }
+      }
+      if (depth == 0 && pos - chunkStart >= chunkSize) {
+        res.add(new Chunk(chunkStart, pos, header, footer));
+        chunkStart = pos;
+      }
+    }
+  }
+
+  /**
+   * Returns the position after the end of a tag, ignoring the characters in quoted attribute
+   * values.
+   */
+  private long skipTag(MappedFile mf, long pos) throws IOException {
+    byte quote = 0;
+    for (long i = pos + 1; i < mf.size; i++) {
+      final byte b = mf.get(i);
+      if (quote != 0) {
+        if (b == quote) {
+          quote = 0;
+        }
+      } else if (b == '"' || b == '\'') {
+        quote = b;
+      } else if (b == '>') {
+        return i + 1;
+      }
+    }
+    throw new IOException("Unterminated tag at offset " + pos + ".");
+  }
+
+  /**
+   * Returns the position after the end of a declaration such as DOCTYPE, which might have an
+   * internal subset with its own declarations.
+   */
+  private long skipDeclaration(MappedFile mf, long pos) throws IOException {
+    byte quote = 0;
+    int brackets = 0;
+    for (long i = pos + 2; i < mf.size; i++) {
+      final byte b = mf.get(i);
+      if (quote != 0) {
+        if (b == quote) {
+          quote = 0;
+        }
+      } else if (b == '"' || b == '\'') {
+        quote = b;
+      } else if (b == '[') {
+        brackets++;
+      } else if (b == ']') {
+        brackets--;
+      } else if (b == '>' && brackets == 0) {
+        return i + 1;
+      }
+    }
+    throw new IOException("Unterminated declaration at offset " + pos + ".");
+  }
+
+  /**
+   * A range of the file, with the prolog and root element that wrap it for RDF/XML.
+   */
+  private static class Chunk {
+    final long start;
+    final long end;
+    final byte[] header;
+    final byte[] footer;
+
+    Chunk(long start, long end, byte[] header, byte[] footer) {
+      this.start = start;
+      this.end = end;
+      this.header = header;
+      this.footer = footer;
+    }
+  }
+
+  /**
+   * A read-only file mapped in windows, which can be larger than a single mapping.
+   */
+  private static class MappedFile {
+    final long size;
+    final ByteBuffer[] windows;
+
+    MappedFile(FileChannel ch) throws IOException {
+      size = ch.size();
+      windows = new ByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+      for (int i = 0; i < windows.length; i++) {
+        final long start = i * WINDOW_SIZE;
+        windows[i] = ch.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(WINDOW_SIZE, size - start));
+      }
+    }
+
+    byte get(long pos) {
+      return windows[(int) (pos / WINDOW_SIZE)].get((int) (pos % WINDOW_SIZE));
+    }
+
+    byte[] getBytes(long start, long end) {
+      final byte[] res = new byte[(int) (end - start)];
+      for (int i = 0; i < res.length; i++) {
+        res[i] = get(start + i);
+      }
+      return res;
+    }
+
+    boolean startsWith(long pos, String s) {
+      if (pos + s.length() > size) {
+        return false;
+      }
+      for (int i = 0; i < s.length(); i++) {
+        if (get(pos + i) != s.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    long indexOf(byte b, long from) {
+      for (long i = from; i < size; i++) {
+        if (get(i) == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    long indexOf(String s, long from) throws IOException {
+      for (long i = from; i < size; i++) {
+        if (startsWith(i, s)) {
+          return i;
+        }
+      }
+      throw new IOException("Could not find " + s + " after offset " + from + ".");
+    }
+  }
+
+  /**
+   * An input stream over a byte buffer.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer bb;
+
+    ByteBufferInputStream(ByteBuffer bb) {
+      this.bb = bb;
+    }
+
+    @Override
+    public int read() {
+      return bb.hasRemaining() ? bb.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!bb.hasRemaining()) {
+        return -1;
+      }
+      final int n = Math.min(len, bb.remaining());
+      bb.get(b, off, n);
+      return n;
+    }
+  }
+
+  /**
+   * A triple, or another event of the parser, that is replayed on the consumer.
+   */
+  private interface Triple {
+    void replay(OWLRDFConsumer consumer) throws RDFHandlerException;
+  }
+
+  /**
+   * Groups the triples of a chunk in batches and puts them in the queue.
+   */
+  private static class Batcher {
+    private final BlockingQueue<List<Triple>> queue;
+    private List<Triple> batch = new ArrayList<>(BATCH_SIZE);
+
+    Batcher(BlockingQueue<List<Triple>> queue) {
+      this.queue = queue;
+    }
+
+    void add(Triple triple) {
+      batch.add(triple);
+      if (batch.size() == BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    void flush() {
+      if (batch.isEmpty()) {
+        return;
+      }
+      try {
+        queue.put(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+      batch = new ArrayList<>(BATCH_SIZE);
+    }
+  }
+
+  /**
+   * Collects the events of the OWL API RDF/XML parser. Objects are remapped when they are
+   * replayed, as the parser does when it is connected to the consumer directly. The model is
+   * started and ended once for the whole document.
+   */
+  private static class TripleCollector implements RDFConsumer {
+    private final Batcher batcher;
+
+    TripleCollector(Batcher batcher) {
+      this.batcher = batcher;
+    }
+
+    @Override
+    public void startModel(IRI documentIri) {
+      // Started once by the loader
+    }
+
+    @Override
+    public void endModel() {
+      // Ended once by the loader
+    }
+
+    @Override
+    public void statementWithResourceValue(String subject, String predicate, String object) {
+      batcher.add(c -> c.statementWithResourceValue(subject, predicate,
+          c.remapOnlyIfRemapped(object)));
+    }
+
+    @Override
+    public void statementWithResourceValue(IRI subject, IRI predicate, IRI object) {
+      batcher.add(c -> c.statementWithResourceValue(subject, predicate, object));
+    }
+
+    @Override
+    public void statementWithLiteralValue(String subject, String predicate, String object,
+        String language, String datatype) {
+      batcher.add(c -> c.statementWithLiteralValue(subject, predicate, object, language,
+          datatype));
+    }
+
+    @Override
+    public void statementWithLiteralValue(IRI subject, IRI predicate, String object,
+        String language, IRI datatype) {
+      batcher.add(c -> c.statementWithLiteralValue(subject, predicate, object, language,
+          datatype));
+    }
+
+    @Override
+    public void logicalURI(IRI logicalUri) {
+      batcher.add(c -> c.logicalURI(logicalUri));
+    }
+
+    @Override
+    public void includeModel(String logicalUri, String physicalUri) {
+      batcher.add(c -> c.includeModel(logicalUri, physicalUri));
+    }
+
+    @Override
+    public IRI remapIRI(IRI iri) {
+      return iri;
+    }
+
+    @Override
+    public String remapOnlyIfRemapped(String iri) {
+      return iri;
+    }
+
+    @Override
+    public void addPrefix(String abbreviation, String value) {
+      batcher.add(c -> c.addPrefix(abbreviation, value));
+    }
+  }
+
+}
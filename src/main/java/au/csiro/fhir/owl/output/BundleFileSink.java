@@ -0,0 +1,101 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Writes the concepts as a sequence of FHIR Bundle files. Each bundle is a collection with a
+ * single code system fragment that contains the concepts of the chunk. Only the concepts of the
+ * current chunk are kept in memory.
+ */
+public class BundleFileSink extends ChunkedFileSink {
+
+  private CodeSystem header;
+  private List<ConceptDefinitionComponent> chunk = new ArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param output The output file used to name the chunks and the header.
+   * @param chunkSize The number of concepts in each bundle.
+   * @param prettyPrint If the JSON should be pretty printed.
+   */
+  public BundleFileSink(FhirContext ctx, File output, int chunkSize, boolean prettyPrint) {
+    super(ctx, output, chunkSize, prettyPrint);
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) throws IOException {
+    header = codeSystem;
+    chunk.clear();
+    super.start(codeSystem);
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) throws IOException {
+    chunk.add(concept);
+    if (chunk.size() == chunkSize) {
+      writeChunk();
+    }
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    if (!chunk.isEmpty()) {
+      writeChunk();
+    }
+    super.finish(codeSystem);
+  }
+
+  private void writeChunk() throws IOException {
+    final File file = nextChunkFile();
+    final Bundle bundle = createBundle(header, chunk, getChunks());
+    try (Writer w = openPart(file)) {
+      ctx.newJsonParser().setPrettyPrint(prettyPrint).encodeResourceToWriter(bundle, w);
+    }
+    commitPart(file);
+    chunk = new ArrayList<>();
+  }
+
+  /**
+   * Creates a collection bundle with a code system fragment that contains a chunk of concepts.
+   *
+   * @param header The code system metadata.
+   * @param concepts The concepts in the chunk.
+   * @param chunkNumber The number of the chunk, starting at 1.
+   * @return The bundle.
+   */
+  private static Bundle createBundle(CodeSystem header, List<ConceptDefinitionComponent> concepts,
+      int chunkNumber) {
+    final CodeSystem fragment = header.copy();
+    if (header.hasId()) {
+      fragment.setId(header.getIdElement().getIdPart() + "-" + chunkNumber);
+    }
+    fragment.setContent(CodeSystemContentMode.FRAGMENT);
+    fragment.setConcept(concepts);
+    fragment.setCount(concepts.size());
+
+    final Bundle bundle = new Bundle();
+    bundle.setType(BundleType.COLLECTION);
+    bundle.addEntry().setResource(fragment);
+    return bundle;
+  }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import au.csiro.fhir.owl.util.CompressionUtils;
+import au.csiro.fhir.owl.util.FileUtils;
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+
+/**
+ * Base class for sinks that write the concepts to a sequence of rolling files with a fixed
+ * number of concepts each, plus a header file with the code system metadata. Given an output file
+ * <i>out.ndjson.gz</i>, the chunks are written to <i>out-00001.ndjson.gz</i>,
+ * <i>out-00002.ndjson.gz</i>, etc., and the header to <i>out-header.json.gz</i>.
+ *
+ * <p>Each file is written under a temporary <i>.part</i> name and renamed as soon as it is
+ * complete, so downstream loaders can start ingesting chunks before the transformation finishes.
+ * The header is written before the first chunk and rewritten with the final count at the end.
+ */
+public abstract class ChunkedFileSink implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(ChunkedFileSink.class);
+
+  protected final FhirContext ctx;
+  protected final int chunkSize;
+  protected final boolean prettyPrint;
+
+  private final File dir;
+  private final String baseName;
+  private final String extension;
+  private final String compressionExtension;
+
+  private int chunks = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param output The output file used to name the chunks and the header.
+   * @param chunkSize The number of concepts in each chunk.
+   * @param prettyPrint If the JSON files should be pretty printed. Does not apply to NDJSON.
+   */
+  protected ChunkedFileSink(FhirContext ctx, File output, int chunkSize, boolean prettyPrint) {
+    this.ctx = ctx;
+    this.chunkSize = chunkSize;
+    this.prettyPrint = prettyPrint;
+    this.dir = output.getAbsoluteFile().getParentFile();
+    this.compressionExtension = CompressionUtils.getCompressionExtension(output);
+
+    final String name = CompressionUtils.getUncompressedName(output);
+    final int idx = name.lastIndexOf('.');
+    if (idx > 0) {
+      this.baseName = name.substring(0, idx);
+      this.extension = name.substring(idx);
+    } else {
+      this.baseName = name;
+      this.extension = "";
+    }
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) throws IOException {
+    chunks = 0;
+    writeHeader(codeSystem);
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    writeHeader(codeSystem);
+    log.info("Wrote " + codeSystem.getCount() + " concepts in " + chunks + " chunks to "
+        + new File(dir, baseName + "-*" + extension + compressionExtension));
+  }
+
+  /**
+   * Returns the number of chunks that have been started.
+   *
+   * @return The number of chunks.
+   */
+  protected int getChunks() {
+    return chunks;
+  }
+
+  /**
+   * Returns the file for the next chunk and increments the chunk count.
+   *
+   * @return The file.
+   */
+  protected File nextChunkFile() {
+    chunks++;
+    return new File(dir, String.format("%s-%05d%s%s", baseName, chunks, extension,
+        compressionExtension));
+  }
+
+  /**
+   * Opens a writer to the temporary file used while a file is being written.
+   *
+   * @param file The final file.
+   * @return The writer.
+   * @throws IOException If the file cannot be opened.
+   */
+  protected Writer openPart(File file) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(
+        CompressionUtils.newOutputStream(getPartFile(file)), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Renames the temporary file of a completed file to its final name.
+   *
+   * @param file The final file.
+   * @throws IOException If the file cannot be renamed.
+   */
+  protected void commitPart(File file) throws IOException {
+    FileUtils.replace(getPartFile(file), file);
+  }
+
+  private File getPartFile(File file) {
+    // The compression is selected from the extension so the part suffix goes before it
+    final String name = file.getName();
+    return new File(dir, name.substring(0, name.length() - compressionExtension.length())
+        + ".part" + compressionExtension);
+  }
+
+  private void writeHeader(CodeSystem codeSystem) throws IOException {
+    final File header = new File(dir, baseName + "-header.json" + compressionExtension);
+    try (Writer w = openPart(header)) {
+      ctx.newJsonParser().setPrettyPrint(prettyPrint).encodeResourceToWriter(codeSystem, w);
+    }
+    commitPart(header);
+  }
+
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import au.csiro.fhir.owl.index.ClosureIndex;
+import au.csiro.fhir.owl.util.CompressionUtils;
+import au.csiro.fhir.owl.util.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Computes the transitive closure of the classified hierarchy from the parent properties of the
+ * concepts and writes it either as a closure table or as a binary file that can be queried with
+ * {@link ClosureIndex}. If the output file name ends in <i>.bin</i> then the binary format is
+ * used. Otherwise a tab-separated table with one descendant and ancestor pair per line is
+ * written, optionally compressed.
+ *
+ * <p>The ancestors of each concept are kept in a compressed Roaring bitmap. The hierarchy is
+ * processed in topological levels, where a concept is in the level after its deepest parent, and
+ * the concepts in each level are computed in parallel using all the available processors. Each
+ * level is written as soon as it is complete and the bitmap of a concept is released once all its
+ * children have been computed, so only the frontier of the hierarchy is kept in memory.
+ *
+ * <p>The output is written to a temporary <i>.part</i> file that is only renamed to the output
+ * file once the whole closure has been written, so a failed run, e.g. because the hierarchy has a
+ * cycle, never leaves a file that looks complete.
+ */
+public class ClosureSink implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(ClosureSink.class);
+
+  private final File output;
+
+  private final Map<String, Integer> ordinals = new HashMap<>();
+  private final List<String> codes = new ArrayList<>();
+  private final List<String> parentCodes = new ArrayList<>();
+  private int[] parentConcepts = new int[1024];
+  private int numParents = 0;
+  private int[] parentStarts = new int[1024];
+
+  /**
+   * Constructor.
+   *
+   * @param output The output file.
+   */
+  public ClosureSink(File output) {
+    this.output = output;
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) {
+    ordinals.clear();
+    codes.clear();
+    parentCodes.clear();
+    numParents = 0;
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) {
+    final int ordinal = codes.size();
+    ordinals.put(concept.getCode(), ordinal);
+    codes.add(concept.getCode());
+
+    if (ordinal + 1 >= parentStarts.length) {
+      parentStarts = Arrays.copyOf(parentStarts, parentStarts.length * 2);
+    }
+    parentStarts[ordinal] = numParents;
+    for (ConceptPropertyComponent prop : concept.getProperty()) {
+      if ("parent".equals(prop.getCode()) && prop.getValue() instanceof CodeType) {
+        // Parents are resolved at the end because they might not have been seen yet
+        parentCodes.add(((CodeType) prop.getValue()).getValue());
+        if (numParents == parentConcepts.length) {
+          parentConcepts = Arrays.copyOf(parentConcepts, parentConcepts.length * 2);
+        }
+        parentConcepts[numParents++] = ordinal;
+      }
+    }
+    parentStarts[ordinal + 1] = numParents;
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    final int n = codes.size();
+
+    // Resolve the parents, skipping those that are not concepts, and build the children lists
+    final int[] parents = new int[numParents];
+    final int[] childCounts = new int[n];
+    for (int i = 0; i < numParents; i++) {
+      final Integer p = ordinals.get(parentCodes.get(i));
+      parents[i] = p != null ? p : -1;
+      if (p != null) {
+        childCounts[p]++;
+      }
+    }
+    parentCodes.clear();
+    final int[] childStarts = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      childStarts[i + 1] = childStarts[i] + childCounts[i];
+    }
+    final int[] children = new int[childStarts[n]];
+    final int[] fill = Arrays.copyOf(childStarts, n);
+    for (int i = 0; i < numParents; i++) {
+      if (parents[i] >= 0) {
+        children[fill[parents[i]]++] = parentConcepts[i];
+      }
+    }
+
+    final int[] pendingParents = new int[n];
+    int[] level = new int[n];
+    int levelSize = 0;
+    for (int c = 0; c < n; c++) {
+      for (int i = parentStarts[c]; i < parentStarts[c + 1]; i++) {
+        if (parents[i] >= 0) {
+          pendingParents[c]++;
+        }
+      }
+      if (pendingParents[c] == 0) {
+        level[levelSize++] = c;
+      }
+    }
+
+    final RoaringBitmap[] ancestors = new RoaringBitmap[n];
+    final int[] pendingChildren = childCounts.clone();
+    int processed = 0;
+    int levels = 0;
+    long pairs = 0;
+    try (ClosureWriter writer = isBinary(output) ? new BinaryClosureWriter(output, codes)
+        : new TableClosureWriter(output, codes)) {
+      while (levelSize > 0) {
+        levels++;
+        final int[] current = Arrays.copyOf(level, levelSize);
+
+        // The parents are all in previous levels, so the concepts in a level are independent
+        IntStream.of(current).parallel().forEach(c -> {
+          final RoaringBitmap res = new RoaringBitmap();
+          for (int i = parentStarts[c]; i < parentStarts[c + 1]; i++) {
+            final int p = parents[i];
+            if (p >= 0) {
+              res.add(p);
+              res.or(ancestors[p]);
+            }
+          }
+          res.runOptimize();
+          ancestors[c] = res;
+        });
+
+        levelSize = 0;
+        for (int c : current) {
+          writer.write(c, ancestors[c]);
+          pairs += ancestors[c].getLongCardinality();
+          for (int i = childStarts[c]; i < childStarts[c + 1]; i++) {
+            if (--pendingParents[children[i]] == 0) {
+              level[levelSize++] = children[i];
+            }
+          }
+        }
+
+        // Release the bitmaps that are no longer needed
+        for (int c : current) {
+          for (int i = parentStarts[c]; i < parentStarts[c + 1]; i++) {
+            if (parents[i] >= 0 && --pendingChildren[parents[i]] == 0) {
+              ancestors[parents[i]] = null;
+            }
+          }
+          if (childCounts[c] == 0) {
+            ancestors[c] = null;
+          }
+        }
+        processed += current.length;
+      }
+
+      if (processed < n) {
+        throw new IOException("The hierarchy has a cycle. Only " + processed + " of " + n
+            + " concepts could be processed.");
+      }
+      writer.commit();
+    }
+    log.info("Wrote transitive closure with " + pairs + " ancestor pairs in " + levels
+        + " levels to " + output.getAbsolutePath());
+  }
+
+  private static boolean isBinary(File file) {
+    return file.getName().toLowerCase(Locale.ROOT).endsWith(".bin");
+  }
+
+  private static File getPartFile(File file) {
+    // The compression is selected from the extension so the part suffix goes before it
+    final String ext = CompressionUtils.getCompressionExtension(file);
+    final String name = file.getName();
+    return new File(file.getAbsoluteFile().getParentFile(),
+        name.substring(0, name.length() - ext.length()) + ".part" + ext);
+  }
+
+  /**
+   * Writes the closure to the <i>.part</i> file of the output file. {@link #commit()} completes
+   * it and renames it to the output file. Closing the writer without committing deletes it.
+   */
+  private interface ClosureWriter extends AutoCloseable {
+
+    void write(int concept, RoaringBitmap ancestors) throws IOException;
+
+    void commit() throws IOException;
+
+    @Override
+    void close() throws IOException;
+  }
+
+  /**
+   * Writes a tab-separated closure table.
+   */
+  private static class TableClosureWriter implements ClosureWriter {
+
+    private final File file;
+    private final File part;
+    private final Writer writer;
+    private final List<String> codes;
+    private boolean committed = false;
+
+    TableClosureWriter(File file, List<String> codes) throws IOException {
+      this.file = file;
+      this.part = getPartFile(file);
+      this.writer = new BufferedWriter(new OutputStreamWriter(
+          CompressionUtils.newOutputStream(part), StandardCharsets.UTF_8));
+      this.codes = codes;
+      writer.write("descendant\tancestor\n");
+    }
+
+    @Override
+    public void write(int concept, RoaringBitmap ancestors) throws IOException {
+      final String code = codes.get(concept);
+      final IntIterator it = ancestors.getIntIterator();
+      while (it.hasNext()) {
+        writer.write(code);
+        writer.write('\t');
+        writer.write(codes.get(it.next()));
+        writer.write('\n');
+      }
+    }
+
+    @Override
+    public void commit() throws IOException {
+      writer.close();
+      FileUtils.replace(part, file);
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        try {
+          writer.close();
+        } finally {
+          part.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the binary format read by {@link ClosureIndex}. The records are streamed and the
+   * codes, the offsets and the header are written when the closure is committed.
+   */
+  private static class BinaryClosureWriter implements ClosureWriter {
+
+    private final File file;
+    private final File part;
+    private final RandomAccessFile raf;
+    private final DataOutputStream out;
+    private final List<String> codes;
+    private final long[] offsets;
+    private long position = ClosureIndex.HEADER_SIZE;
+    private int maxRecordSize = 0;
+    private boolean committed = false;
+
+    BinaryClosureWriter(File file, List<String> codes) throws IOException {
+      this.file = file;
+      this.part = getPartFile(file);
+      this.raf = new RandomAccessFile(part, "rw");
+      raf.setLength(0);
+      raf.seek(ClosureIndex.HEADER_SIZE);
+      this.out = new DataOutputStream(new BufferedOutputStream(
+          Channels.newOutputStream(raf.getChannel()), 64 * 1024));
+      this.codes = codes;
+      this.offsets = new long[codes.size()];
+    }
+
+    @Override
+    public void write(int concept, RoaringBitmap ancestors) throws IOException {
+      offsets[concept] = position;
+      ancestors.serialize(out);
+      final int size = ancestors.serializedSizeInBytes();
+      position += size;
+      maxRecordSize = Math.max(maxRecordSize, size);
+    }
+
+    @Override
+    public void commit() throws IOException {
+      final long codesOffset = position;
+      final byte[][] codeBytes = new byte[codes.size()][];
+      for (int i = 0; i < codeBytes.length; i++) {
+        codeBytes[i] = codes.get(i).getBytes(StandardCharsets.UTF_8);
+      }
+      int offset = 0;
+      out.writeInt(offset);
+      for (byte[] code : codeBytes) {
+        offset += code.length;
+        out.writeInt(offset);
+      }
+      for (byte[] code : codeBytes) {
+        out.write(code);
+      }
+
+      final long sortedOffset = codesOffset + 4L * (codeBytes.length + 1) + offset;
+      final Integer[] sorted = new Integer[codeBytes.length];
+      for (int i = 0; i < sorted.length; i++) {
+        sorted[i] = i;
+      }
+      Arrays.sort(sorted, (a, b) -> compareUnsigned(codeBytes[a], codeBytes[b]));
+      for (int c : sorted) {
+        out.writeInt(c);
+      }
+
+      final long indexOffset = sortedOffset + 4L * sorted.length;
+      for (long o : offsets) {
+        out.writeLong(o);
+      }
+      out.flush();
+
+      raf.seek(0);
+      raf.writeInt(ClosureIndex.MAGIC);
+      raf.writeInt(ClosureIndex.VERSION);
+      raf.writeInt(codeBytes.length);
+      raf.writeInt(maxRecordSize);
+      raf.writeLong(ClosureIndex.HEADER_SIZE);
+      raf.writeLong(codesOffset);
+      raf.writeLong(sortedOffset);
+      raf.writeLong(indexOffset);
+      raf.close();
+      FileUtils.replace(part, file);
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        try {
+          raf.close();
+        } finally {
+          part.delete();
+        }
+      }
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+      final int n = Math.min(a.length, b.length);
+      for (int i = 0; i < n; i++) {
+        final int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return Integer.compare(a.length, b.length);
+    }
+  }
+
+}
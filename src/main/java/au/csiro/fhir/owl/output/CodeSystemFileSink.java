@@ -0,0 +1,134 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import au.csiro.fhir.owl.util.CompressionUtils;
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+
+/**
+ * Writes the whole code system as a single FHIR JSON file. Concepts are kept in memory until all
+ * of them have been created, optionally nested under their parents, and then written.
+ */
+public class CodeSystemFileSink implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(CodeSystemFileSink.class);
+
+  private final FhirContext ctx;
+  private final File output;
+  private final boolean prettyPrint;
+  private final boolean nested;
+  private final boolean firstParent;
+
+  private final List<ConceptDefinitionComponent> concepts = new ArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param output The output file. Compressed if it has a compression extension.
+   * @param prettyPrint If the JSON should be pretty printed.
+   * @param nested If concepts should be nested under their parents.
+   * @param firstParent If concepts with multiple parents should be nested under their first
+   *     parent.
+   */
+  public CodeSystemFileSink(FhirContext ctx, File output, boolean prettyPrint, boolean nested,
+      boolean firstParent) {
+    this.ctx = ctx;
+    this.output = output;
+    this.prettyPrint = prettyPrint;
+    this.nested = nested;
+    this.firstParent = firstParent;
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) {
+    concepts.clear();
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) {
+    concepts.add(concept);
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    final CodeSystem cs = codeSystem.copy();
+    if (nested) {
+      nestConcepts(cs, concepts, firstParent);
+    } else {
+      cs.setConcept(concepts);
+    }
+
+    try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+        CompressionUtils.newOutputStream(output), StandardCharsets.UTF_8))) {
+      log.info("Writing code system to file: " + output.getAbsolutePath());
+      ctx.newJsonParser().setPrettyPrint(prettyPrint).encodeResourceToWriter(cs, bw);
+    }
+  }
+
+  /**
+   * Places each concept in the concept list of its parent, using the parent properties
+   * calculated from the classified hierarchy. Concepts with no parents, or whose parents were not
+   * emitted, are added at the top level. Concepts with multiple parents are either left at the top
+   * level with all their parent properties or, if firstParent is set, nested under the parent
+   * with the lowest code and keep parent properties for the remaining ones.
+   *
+   * @param cs The code system.
+   * @param concepts The concepts, with their parent properties.
+   * @param firstParent If concepts with multiple parents should be nested under their first
+   *     parent.
+   */
+  private void nestConcepts(CodeSystem cs, List<ConceptDefinitionComponent> concepts,
+      boolean firstParent) {
+    final Map<String, ConceptDefinitionComponent> codeConceptMap = new HashMap<>();
+    for (ConceptDefinitionComponent cdc : concepts) {
+      codeConceptMap.put(cdc.getCode(), cdc);
+    }
+
+    int nested = 0;
+    for (ConceptDefinitionComponent cdc : concepts) {
+      ConceptPropertyComponent selected = null;
+      int numParents = 0;
+      for (ConceptPropertyComponent prop : cdc.getProperty()) {
+        if (!"parent".equals(prop.getCode())) {
+          continue;
+        }
+        numParents++;
+        final String parentCode = prop.getValueCodeType().getCode();
+        if (codeConceptMap.containsKey(parentCode) && (selected == null
+            || parentCode.compareTo(selected.getValueCodeType().getCode()) < 0)) {
+          selected = prop;
+        }
+      }
+
+      if (selected == null || (numParents > 1 && !firstParent)) {
+        cs.addConcept(cdc);
+      } else {
+        cdc.getProperty().remove(selected);
+        codeConceptMap.get(selected.getValueCodeType().getCode()).addConcept(cdc);
+        nested++;
+      }
+    }
+    log.info("Nested " + nested + " of " + concepts.size() + " concepts under their parents");
+  }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Forwards the code system and its concepts to several sinks, in order, so all of them are
+ * populated in a single pass.
+ */
+public class CompositeConceptSink implements ConceptSink {
+
+  private final List<ConceptSink> sinks = new ArrayList<>();
+
+  /**
+   * Adds a sink.
+   *
+   * @param sink The sink.
+   * @return This sink.
+   */
+  public CompositeConceptSink add(ConceptSink sink) {
+    sinks.add(sink);
+    return this;
+  }
+
+  /**
+   * Returns the number of sinks.
+   *
+   * @return The number of sinks.
+   */
+  public int size() {
+    return sinks.size();
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) throws IOException {
+    for (ConceptSink sink : sinks) {
+      sink.start(codeSystem);
+    }
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) throws IOException {
+    for (ConceptSink sink : sinks) {
+      sink.accept(concept);
+    }
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    for (ConceptSink sink : sinks) {
+      sink.finish(codeSystem);
+    }
+  }
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import au.csiro.fhir.owl.util.CompressionUtils;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Calculates per-concept content hashes from fhir-owl output, reading it with a streaming JSON
+ * parser so the previous release is never fully materialised. Supported inputs are code systems,
+ * bundles of code systems (the bundle output format) and NDJSON files with one concept per line,
+ * optionally compressed. Flat and nested hierarchies produce the same hashes because nesting is
+ * treated as a <i>parent</i> property.
+ */
+public class ConceptDigests {
+
+  private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+  private final Map<String, Long> digests = new HashMap<>();
+
+  private String version = null;
+
+  /**
+   * Reads a file and adds the hashes of all its concepts.
+   *
+   * @param file The file.
+   * @throws IOException If there is an I/O issue or the file is not valid JSON.
+   */
+  public void read(File file) throws IOException {
+    try (Reader r = new InputStreamReader(CompressionUtils.newInputStream(file),
+        StandardCharsets.UTF_8)) {
+      final JsonReader jr = new JsonReader(r);
+      // NDJSON files have several top-level values
+      jr.setLenient(true);
+      while (jr.peek() != JsonToken.END_DOCUMENT) {
+        readTopLevel(jr);
+      }
+    }
+  }
+
+  /**
+   * Returns the concept hashes, indexed by code.
+   *
+   * @return The hashes.
+   */
+  public Map<String, Long> getDigests() {
+    return digests;
+  }
+
+  /**
+   * Returns the version of the code system that was read, if the input had one.
+   *
+   * @return The version or null.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Calculates the hash of a single flat concept, with its parents represented as properties.
+   *
+   * @param concept The concept.
+   * @return The hash.
+   */
+  public static long digest(ConceptDefinitionComponent concept) {
+    try {
+      // Going through JSON guarantees the hashes match the ones read from previous releases
+      final StringWriter sw = new StringWriter();
+      ConceptJsonWriter.write(concept, sw);
+      final JsonReader jr = new JsonReader(new StringReader(sw.toString()));
+      final Map<String, Long> res = new HashMap<>();
+      jr.beginObject();
+      readConcept(jr, null, null, res);
+      return res.get(concept.getCode());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void readTopLevel(JsonReader jr) throws IOException {
+    jr.beginObject();
+    if (!jr.hasNext()) {
+      jr.endObject();
+      return;
+    }
+    final String first = jr.nextName();
+    if ("resourceType".equals(first)) {
+      readResource(jr, jr.nextString());
+    } else {
+      // An NDJSON line with a concept
+      readConcept(jr, first, null, digests);
+    }
+  }
+
+  private void readResource(JsonReader jr, String resourceType) throws IOException {
+    while (jr.hasNext()) {
+      final String name = jr.nextName();
+      if ("CodeSystem".equals(resourceType) && "concept".equals(name)) {
+        readConcepts(jr, null, digests);
+      } else if ("CodeSystem".equals(resourceType) && "version".equals(name)) {
+        version = jr.nextString();
+      } else if ("Bundle".equals(resourceType) && "entry".equals(name)) {
+        jr.beginArray();
+        while (jr.hasNext()) {
+          jr.beginObject();
+          while (jr.hasNext()) {
+            if ("resource".equals(jr.nextName())) {
+              jr.beginObject();
+              if (!"resourceType".equals(jr.nextName())) {
+                throw new IOException("Expected resourceType as the first element of a resource.");
+              }
+              readResource(jr, jr.nextString());
+            } else {
+              jr.skipValue();
+            }
+          }
+          jr.endObject();
+        }
+        jr.endArray();
+      } else {
+        jr.skipValue();
+      }
+    }
+    jr.endObject();
+  }
+
+  /**
+   * Reads the rest of a concept object, after beginObject and possibly after its first name, and
+   * adds its hash to the map. The hash is calculated from a canonical form with sorted elements.
+   */
+  private static void readConcept(JsonReader jr, String firstName, String parentCode,
+      Map<String, Long> res) throws IOException {
+    String code = null;
+    String display = null;
+    String definition = null;
+    final List<String> designations = new ArrayList<>();
+    final List<String> properties = new ArrayList<>();
+    if (parentCode != null) {
+      // Same canonical form as a parent property
+      properties.add("code=parent|valueCode=" + parentCode);
+    }
+
+    String name = firstName;
+    while (name != null || jr.hasNext()) {
+      if (name == null) {
+        name = jr.nextName();
+      }
+      switch (name) {
+        case "code":
+          code = jr.nextString();
+          break;
+        case "display":
+          display = jr.nextString();
+          break;
+        case "definition":
+          definition = jr.nextString();
+          break;
+        case "designation":
+          jr.beginArray();
+          while (jr.hasNext()) {
+            designations.add(readFlatObject(jr));
+          }
+          jr.endArray();
+          break;
+        case "property":
+          jr.beginArray();
+          while (jr.hasNext()) {
+            properties.add(readFlatObject(jr));
+          }
+          jr.endArray();
+          break;
+        case "concept":
+          // fhir-owl and HAPI always write the code first
+          if (code == null) {
+            throw new IOException("Found nested concepts before the code of a concept.");
+          }
+          readConcepts(jr, code, res);
+          break;
+        default:
+          jr.skipValue();
+      }
+      name = null;
+    }
+    jr.endObject();
+
+    if (code == null) {
+      throw new IOException("Found a concept without a code.");
+    }
+
+    Collections.sort(designations);
+    Collections.sort(properties);
+    final StringBuilder sb = new StringBuilder();
+    sb.append(code).append('\u0000').append(display).append('\u0000').append(definition);
+    for (String d : designations) {
+      sb.append('\u0001').append(d);
+    }
+    for (String p : properties) {
+      sb.append('\u0002').append(p);
+    }
+    res.put(code, hashFunction.hashString(sb, StandardCharsets.UTF_8).asLong());
+  }
+
+  private static void readConcepts(JsonReader jr, String parentCode, Map<String, Long> res)
+      throws IOException {
+    jr.beginArray();
+    while (jr.hasNext()) {
+      jr.beginObject();
+      readConcept(jr, null, parentCode, res);
+    }
+    jr.endArray();
+  }
+
+  /**
+   * Reads a designation or property as a canonical string with its elements sorted by name.
+   * Nested objects, such as codings, are flattened.
+   */
+  private static String readFlatObject(JsonReader jr) throws IOException {
+    final List<String> parts = new ArrayList<>();
+    readFlatObject(jr, "", parts);
+    Collections.sort(parts);
+    return String.join("|", parts);
+  }
+
+  private static void readFlatObject(JsonReader jr, String prefix, List<String> parts)
+      throws IOException {
+    jr.beginObject();
+    while (jr.hasNext()) {
+      final String name = prefix + jr.nextName();
+      final JsonToken token = jr.peek();
+      if (token == JsonToken.BEGIN_OBJECT) {
+        readFlatObject(jr, name + ".", parts);
+      } else if (token == JsonToken.BEGIN_ARRAY || token == JsonToken.NULL) {
+        jr.skipValue();
+      } else if (token == JsonToken.BOOLEAN) {
+        parts.add(name + "=" + jr.nextBoolean());
+      } else {
+        // Numbers are read as strings so they keep their lexical form
+        parts.add(name + "=" + jr.nextString());
+      }
+    }
+    jr.endObject();
+  }
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * Writes individual concepts as FHIR JSON objects. The HAPI parser only encodes whole resources,
+ * so this is used where concepts are written on their own, e.g. one per line in NDJSON files.
+ * Only the elements that are populated by the transformation are supported.
+ */
+public class ConceptJsonWriter {
+
+  /**
+   * Writes a concept, and any nested concepts, as a single-line JSON object.
+   *
+   * @param concept The concept.
+   * @param writer The writer. It is flushed but not closed.
+   * @throws IOException If there is an I/O issue.
+   */
+  public static void write(ConceptDefinitionComponent concept, Writer writer) throws IOException {
+    final JsonWriter jw = new JsonWriter(writer);
+    write(concept, jw);
+    jw.flush();
+  }
+
+  /**
+   * Writes a concept, and any nested concepts, as a JSON object.
+   *
+   * @param concept The concept.
+   * @param jw The JSON writer.
+   * @throws IOException If there is an I/O issue.
+   */
+  public static void write(ConceptDefinitionComponent concept, JsonWriter jw) throws IOException {
+    jw.beginObject();
+    jw.name("code").value(concept.getCode());
+    if (concept.hasDisplay()) {
+      jw.name("display").value(concept.getDisplay());
+    }
+    if (concept.hasDefinition()) {
+      jw.name("definition").value(concept.getDefinition());
+    }
+
+    if (concept.hasDesignation()) {
+      jw.name("designation").beginArray();
+      for (ConceptDefinitionDesignationComponent cddc : concept.getDesignation()) {
+        jw.beginObject();
+        if (cddc.hasLanguage()) {
+          jw.name("language").value(cddc.getLanguage());
+        }
+        if (cddc.hasUse()) {
+          jw.name("use");
+          writeCoding(cddc.getUse(), jw);
+        }
+        jw.name("value").value(cddc.getValue());
+        jw.endObject();
+      }
+      jw.endArray();
+    }
+
+    if (concept.hasProperty()) {
+      jw.name("property").beginArray();
+      for (ConceptPropertyComponent cpc : concept.getProperty()) {
+        jw.beginObject();
+        jw.name("code").value(cpc.getCode());
+        writeValue(cpc.getValue(), jw);
+        jw.endObject();
+      }
+      jw.endArray();
+    }
+
+    if (concept.hasConcept()) {
+      jw.name("concept").beginArray();
+      for (ConceptDefinitionComponent child : concept.getConcept()) {
+        write(child, jw);
+      }
+      jw.endArray();
+    }
+    jw.endObject();
+  }
+
+  private static void writeValue(Type value, JsonWriter jw) throws IOException {
+    if (value instanceof CodeType) {
+      jw.name("valueCode").value(((CodeType) value).getValue());
+    } else if (value instanceof BooleanType) {
+      jw.name("valueBoolean").value(((BooleanType) value).booleanValue());
+    } else if (value instanceof IntegerType) {
+      jw.name("valueInteger").value(((IntegerType) value).getValue());
+    } else if (value instanceof DecimalType) {
+      jw.name("valueDecimal").value(((DecimalType) value).getValue());
+    } else if (value instanceof DateTimeType) {
+      jw.name("valueDateTime").value(((DateTimeType) value).getValueAsString());
+    } else if (value instanceof StringType) {
+      jw.name("valueString").value(((StringType) value).getValue());
+    } else if (value instanceof Coding) {
+      jw.name("valueCoding");
+      writeCoding((Coding) value, jw);
+    } else if (value != null) {
+      throw new IllegalArgumentException("Unsupported property value type "
+          + value.getClass().getName());
+    }
+  }
+
+  private static void writeCoding(Coding coding, JsonWriter jw) throws IOException {
+    jw.beginObject();
+    if (coding.hasSystem()) {
+      jw.name("system").value(coding.getSystem());
+    }
+    if (coding.hasVersion()) {
+      jw.name("version").value(coding.getVersion());
+    }
+    if (coding.hasCode()) {
+      jw.name("code").value(coding.getCode());
+    }
+    if (coding.hasDisplay()) {
+      jw.name("display").value(coding.getDisplay());
+    }
+    jw.endObject();
+  }
+
+}
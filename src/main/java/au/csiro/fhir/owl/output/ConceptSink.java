@@ -0,0 +1,46 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import java.io.IOException;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Receives the concepts of a code system as they are created. Sinks that need any information
+ * from a concept after {@link #accept(ConceptDefinitionComponent)} returns must copy it, because
+ * other sinks might modify the concept later on.
+ */
+public interface ConceptSink {
+
+  /**
+   * Called before any concepts are created.
+   *
+   * @param codeSystem The code system metadata, including the property and filter declarations.
+   *     It has no concepts and no count.
+   * @throws IOException If there is an I/O issue.
+   */
+  void start(CodeSystem codeSystem) throws IOException;
+
+  /**
+   * Called once for every concept, in the order they are created. Concepts are flat and their
+   * parents are represented with <i>parent</i> properties.
+   *
+   * @param concept The concept.
+   * @throws IOException If there is an I/O issue.
+   */
+  void accept(ConceptDefinitionComponent concept) throws IOException;
+
+  /**
+   * Called after all the concepts have been created.
+   *
+   * @param codeSystem The code system metadata, with the final count.
+   * @throws IOException If there is an I/O issue.
+   */
+  void finish(CodeSystem codeSystem) throws IOException;
+
+}
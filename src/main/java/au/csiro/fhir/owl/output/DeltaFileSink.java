@@ -0,0 +1,125 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import au.csiro.fhir.owl.util.CompressionUtils;
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.PropertyType;
+import org.hl7.fhir.r4.model.CodeType;
+
+/**
+ * Writes the differences between the code system being created and a previous release as a code
+ * system fragment. The fragment only contains the concepts that were added or changed, in full,
+ * and the concepts that were removed, with just their code. Each concept has a <i>delta</i>
+ * property with the value <i>added</i>, <i>changed</i> or <i>removed</i>.
+ *
+ * <p>Concepts are compared using content hashes. Only the hashes of the previous release are kept
+ * in memory, plus the concepts that go in the delta.
+ */
+public class DeltaFileSink implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(DeltaFileSink.class);
+
+  private final FhirContext ctx;
+  private final List<File> previous;
+  private final File output;
+  private final boolean prettyPrint;
+
+  private Map<String, Long> previousDigests;
+  private String previousVersion;
+  private final List<ConceptDefinitionComponent> added = new ArrayList<>();
+  private final List<ConceptDefinitionComponent> changed = new ArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param previous The files of the previous release.
+   * @param output The file the delta is written to.
+   * @param prettyPrint If the JSON should be pretty printed.
+   */
+  public DeltaFileSink(FhirContext ctx, List<File> previous, File output, boolean prettyPrint) {
+    this.ctx = ctx;
+    this.previous = previous;
+    this.output = output;
+    this.prettyPrint = prettyPrint;
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) throws IOException {
+    final ConceptDigests digests = new ConceptDigests();
+    for (File file : previous) {
+      log.info("Reading previous release from " + file.getAbsolutePath());
+      digests.read(file);
+    }
+    previousDigests = digests.getDigests();
+    previousVersion = digests.getVersion();
+    log.info("Found " + previousDigests.size() + " concepts in previous release "
+        + (previousVersion != null ? previousVersion : ""));
+    added.clear();
+    changed.clear();
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) {
+    final Long previousDigest = previousDigests.remove(concept.getCode());
+    if (previousDigest == null) {
+      added.add(withDelta(concept.copy(), "added"));
+    } else if (previousDigest != ConceptDigests.digest(concept)) {
+      changed.add(withDelta(concept.copy(), "changed"));
+    }
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    final CodeSystem cs = codeSystem.copy();
+    cs.setContent(CodeSystemContentMode.FRAGMENT);
+    cs.addProperty()
+      .setCode("delta")
+      .setType(PropertyType.CODE)
+      .setDescription("Indicates if the concept was added, changed or removed since "
+          + (previousVersion != null ? "version " + previousVersion : "the previous release")
+          + ".");
+
+    cs.getConcept().addAll(added);
+    cs.getConcept().addAll(changed);
+    // Whatever was not seen in this release has been removed
+    for (String code : new TreeSet<>(previousDigests.keySet())) {
+      cs.addConcept(withDelta(new ConceptDefinitionComponent(new CodeType(code)), "removed"));
+    }
+    cs.setCount(cs.getConcept().size());
+
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(
+        CompressionUtils.newOutputStream(output), StandardCharsets.UTF_8))) {
+      ctx.newJsonParser().setPrettyPrint(prettyPrint).encodeResourceToWriter(cs, w);
+    }
+    log.info("Wrote delta with " + added.size() + " added, " + changed.size() + " changed and "
+        + previousDigests.size() + " removed concepts to " + output.getAbsolutePath());
+  }
+
+  private ConceptDefinitionComponent withDelta(ConceptDefinitionComponent concept, String delta) {
+    concept.addProperty().setCode("delta").setValue(new CodeType(delta));
+    return concept;
+  }
+
+}
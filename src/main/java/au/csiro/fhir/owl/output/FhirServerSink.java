@@ -0,0 +1,121 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Uploads the code system to a FHIR server as a single, complete CodeSystem resource, with a
+ * {@link FhirUploader}. If the code system has no more than a threshold number of concepts then
+ * they are kept in memory until it is uploaded. The concepts of larger code systems are spooled
+ * to a temporary file as they are created, and the request body is streamed from that file.
+ *
+ * <p>The upload runs in the background, so {@link #finish(CodeSystem)} only waits if the
+ * uploader already has the maximum number of uploads in flight. Failures are reported by later
+ * uploads and by {@link FhirUploader#await()}.
+ */
+public class FhirServerSink implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(FhirServerSink.class);
+
+  private final FhirUploader uploader;
+  private final String baseUrl;
+  private final int threshold;
+
+  private List<ConceptDefinitionComponent> buffer = new ArrayList<>();
+  private File spool;
+  private Writer spoolWriter;
+
+  /**
+   * Constructor.
+   *
+   * @param uploader The uploader that sends the code system.
+   * @param baseUrl The base URL of the FHIR server.
+   * @param threshold The maximum number of concepts of a code system that are kept in memory.
+   */
+  public FhirServerSink(FhirUploader uploader, String baseUrl, int threshold) {
+    this.uploader = uploader;
+    this.baseUrl = baseUrl;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) {
+    buffer = new ArrayList<>();
+    spool = null;
+    spoolWriter = null;
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) throws IOException {
+    if (spoolWriter == null) {
+      // Other sinks might modify the concept after this
+      buffer.add(concept.copy());
+      if (buffer.size() > threshold) {
+        log.info("Code system has more than " + threshold + " concepts. Spooling them to upload "
+            + "to " + baseUrl);
+        spool = File.createTempFile("fhir-owl-upload", ".ndjson");
+        spool.deleteOnExit();
+        spoolWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool),
+            StandardCharsets.UTF_8));
+        for (ConceptDefinitionComponent cdc : buffer) {
+          spool(cdc);
+        }
+        buffer = new ArrayList<>();
+      }
+    } else {
+      spool(concept);
+    }
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    try {
+      final CodeSystem cs = codeSystem.copy();
+      if (spoolWriter != null) {
+        spoolWriter.close();
+        spoolWriter = null;
+        cs.setConcept(null);
+        // The uploader deletes the file
+        final File file = spool;
+        spool = null;
+        uploader.upload(baseUrl, cs, file);
+      } else {
+        cs.setConcept(buffer);
+        uploader.upload(baseUrl, cs);
+      }
+    } finally {
+      buffer = new ArrayList<>();
+      if (spoolWriter != null) {
+        spoolWriter.close();
+        spoolWriter = null;
+      }
+      if (spool != null) {
+        spool.delete();
+        spool = null;
+      }
+    }
+  }
+
+  private void spool(ConceptDefinitionComponent concept) throws IOException {
+    ConceptJsonWriter.write(concept, spoolWriter);
+    spoolWriter.write('\n');
+  }
+
+}
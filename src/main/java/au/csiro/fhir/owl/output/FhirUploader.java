@@ -0,0 +1,356 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+
+/**
+ * Uploads complete CodeSystem resources to FHIR servers in the background, so the uploads overlap
+ * with the creation of the other code systems of the run. At most a fixed number of uploads are in
+ * flight at the same time, and new uploads wait until one of them finishes.
+ *
+ * <p>A code system is sent with a PUT if it has an id. Otherwise it is sent with a conditional POST
+ * on its url and version, so sending it again does not create a duplicate. Request bodies are
+ * streamed to the connection, either from the HAPI encoder or, for code systems whose concepts
+ * were spooled to a file, from that file. Failed requests are retried with exponential backoff
+ * when the failure is an I/O error, a 5xx or a 429 response, except POSTs of code systems without
+ * a url, which cannot be made conditional.
+ */
+public class FhirUploader implements Closeable {
+
+  private static final Log log = LogFactory.getLog(FhirUploader.class);
+
+  private static final String FHIR_JSON = "application/fhir+json";
+
+  private static final int MAX_RETRIES = 5;
+
+  private static final long INITIAL_BACKOFF_MILLIS = 500;
+
+  private static final long MAX_BACKOFF_MILLIS = 30000;
+
+  private final FhirContext ctx;
+  private final Gson gson;
+  private final ExecutorService executor;
+  private final Semaphore inFlight;
+  private final List<Future<?>> uploads = new ArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context used to encode code systems.
+   * @param gson The GSON instance used to write the code systems whose concepts were spooled.
+   * @param maxInFlight The maximum number of concurrent uploads.
+   */
+  public FhirUploader(FhirContext ctx, Gson gson, int maxInFlight) {
+    this.ctx = ctx;
+    this.gson = gson;
+    this.executor = Executors.newFixedThreadPool(maxInFlight);
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Uploads a code system with all its concepts. Blocks while the maximum number of uploads are in
+   * flight.
+   *
+   * @param baseUrl The base URL of the FHIR server.
+   * @param codeSystem The code system. It must not be modified afterwards.
+   * @throws IOException If a previous upload failed or if interrupted.
+   */
+  public void upload(String baseUrl, CodeSystem codeSystem) throws IOException {
+    submit(baseUrl, codeSystem, () -> send(baseUrl, codeSystem,
+        w -> ctx.newJsonParser().encodeResourceToWriter(codeSystem, w)));
+  }
+
+  /**
+   * Uploads a code system whose concepts were spooled to a file, one JSON object per line. Blocks
+   * while the maximum number of uploads are in flight. The file is deleted once the upload is
+   * done.
+   *
+   * @param baseUrl The base URL of the FHIR server.
+   * @param header The code system without its concepts. It must not be modified afterwards.
+   * @param spool The file with the concepts.
+   * @throws IOException If a previous upload failed or if interrupted.
+   */
+  public void upload(String baseUrl, CodeSystem header, File spool) throws IOException {
+    try {
+      submit(baseUrl, header, () -> {
+        try {
+          send(baseUrl, header, w -> writeCodeSystem(header, spool, w));
+        } finally {
+          spool.delete();
+        }
+      });
+    } catch (IOException e) {
+      spool.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for all the uploads to finish.
+   *
+   * @throws IOException If any of the uploads failed or if interrupted.
+   */
+  public void await() throws IOException {
+    final List<Future<?>> pending;
+    synchronized (uploads) {
+      pending = new ArrayList<>(uploads);
+    }
+    for (Future<?> f : pending) {
+      get(f);
+    }
+  }
+
+  /**
+   * Stops the uploads that are still running.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private void submit(String baseUrl, CodeSystem cs, Request request) throws IOException {
+    // Fail early if a previous upload has already failed
+    final List<Future<?>> done = new ArrayList<>();
+    synchronized (uploads) {
+      for (Future<?> f : uploads) {
+        if (f.isDone()) {
+          done.add(f);
+        }
+      }
+    }
+    for (Future<?> f : done) {
+      get(f);
+    }
+
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while uploading to " + baseUrl, e);
+    }
+    final boolean idempotent = cs.hasId() || cs.hasUrl();
+    final Future<?> future;
+    try {
+      future = executor.submit(() -> {
+        try {
+          sendWithRetries(request, idempotent);
+          log.info("Uploaded code system " + cs.getUrl() + " to " + baseUrl);
+        } finally {
+          inFlight.release();
+        }
+        return null;
+      });
+    } catch (RuntimeException e) {
+      inFlight.release();
+      throw e;
+    }
+    synchronized (uploads) {
+      uploads.removeAll(done);
+      uploads.add(future);
+    }
+  }
+
+  private static void get(Future<?> f) throws IOException {
+    try {
+      f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while uploading", e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("There was a problem uploading: " + cause.getMessage(), cause);
+    }
+  }
+
+  /**
+   * Writes a code system whose concepts were spooled to a file. The elements of the header are
+   * written as encoded by HAPI, followed by the concepts, which are the last element of a
+   * CodeSystem.
+   */
+  private void writeCodeSystem(CodeSystem header, File spool, Writer w) throws IOException {
+    final JsonObject json = new JsonParser().parse(ctx.newJsonParser()
+        .encodeResourceToString(header)).getAsJsonObject();
+    json.remove("concept");
+
+    final JsonWriter jw = gson.newJsonWriter(w);
+    jw.beginObject();
+    for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+      jw.name(entry.getKey());
+      gson.toJson(entry.getValue(), jw);
+    }
+    jw.name("concept");
+    jw.beginArray();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(spool), StandardCharsets.UTF_8))) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        jw.jsonValue(line);
+      }
+    }
+    jw.endArray();
+    jw.endObject();
+    jw.flush();
+  }
+
+  private static String getIfNoneExist(CodeSystem cs) throws UnsupportedEncodingException {
+    if (!cs.hasUrl()) {
+      return null;
+    }
+    String res = "url=" + URLEncoder.encode(cs.getUrl(), "UTF-8");
+    if (cs.hasVersion()) {
+      res += "&version=" + URLEncoder.encode(cs.getVersion(), "UTF-8");
+    }
+    return res;
+  }
+
+  private void sendWithRetries(Request request, boolean idempotent)
+      throws IOException, InterruptedException {
+    long backoff = INITIAL_BACKOFF_MILLIS;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        request.send();
+        return;
+      } catch (RetryableException e) {
+        if (!idempotent) {
+          throw new IOException(e.getMessage() + " (not retried because the code system has no "
+              + "id or url, so it could be created twice)", e.getCause());
+        }
+        if (attempt == MAX_RETRIES) {
+          throw new IOException(e.getMessage() + " (gave up after " + attempt + " attempts)",
+              e.getCause());
+        }
+        log.warn(e.getMessage() + ". Retrying in " + backoff + " ms.");
+        Thread.sleep(backoff);
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+      }
+    }
+  }
+
+  private void send(String baseUrl, CodeSystem cs, Body body) throws IOException {
+    final String base = baseUrl.endsWith("/")
+        ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    if (cs.hasId()) {
+      send("PUT", base + "/CodeSystem/" + cs.getIdElement().getIdPart(), null, body);
+    } else {
+      send("POST", base + "/CodeSystem", getIfNoneExist(cs), body);
+    }
+  }
+
+  private void send(String method, String url, String ifNoneExist, Body body)
+      throws IOException {
+    final HttpURLConnection conn;
+    try {
+      conn = (HttpURLConnection) new URL(url).openConnection();
+      conn.setRequestMethod(method);
+      conn.setDoOutput(true);
+      conn.setChunkedStreamingMode(64 * 1024);
+      conn.setRequestProperty("Content-Type", FHIR_JSON + ";charset=UTF-8");
+      conn.setRequestProperty("Accept", FHIR_JSON);
+      if (ifNoneExist != null) {
+        conn.setRequestProperty("If-None-Exist", ifNoneExist);
+      }
+      try (Writer w = new BufferedWriter(new OutputStreamWriter(conn.getOutputStream(),
+          StandardCharsets.UTF_8))) {
+        body.write(w);
+      }
+    } catch (IOException e) {
+      throw new RetryableException(method + " " + url + " failed: " + e.getMessage(), e);
+    }
+
+    final int status;
+    try {
+      status = conn.getResponseCode();
+    } catch (IOException e) {
+      throw new RetryableException(method + " " + url + " failed: " + e.getMessage(), e);
+    }
+
+    final String response = readResponse(conn, status);
+    if (status >= 200 && status < 300) {
+      log.info(method + " " + url + " returned " + status);
+    } else if (status >= 500 || status == 429) {
+      throw new RetryableException(method + " " + url + " returned " + status + ": " + response,
+          null);
+    } else {
+      throw new IOException(method + " " + url + " returned " + status + ": " + response);
+    }
+  }
+
+  private String readResponse(HttpURLConnection conn, int status) {
+    // Always consume the response so the connection can be reused
+    try (InputStream is = status >= 400 ? conn.getErrorStream() : conn.getInputStream()) {
+      if (is == null) {
+        return "";
+      }
+      final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      final byte[] buf = new byte[8192];
+      int n;
+      while ((n = is.read(buf)) != -1) {
+        if (baos.size() < 2048) {
+          baos.write(buf, 0, Math.min(n, 2048 - baos.size()));
+        }
+      }
+      return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  private interface Request {
+    void send() throws IOException;
+  }
+
+  private interface Body {
+    void write(Writer writer) throws IOException;
+  }
+
+  private static class RetryableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    RetryableException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Writes the concepts as NDJSON, one concept per line, to rolling files. Concepts are written as
+ * they are created so memory use does not depend on the size of the code system.
+ */
+public class NdjsonFileSink extends ChunkedFileSink {
+
+  private File current;
+  private Writer writer;
+  private int inChunk = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param output The output file used to name the chunks and the header.
+   * @param chunkSize The number of concepts in each file.
+   * @param prettyPrint If the header should be pretty printed.
+   */
+  public NdjsonFileSink(FhirContext ctx, File output, int chunkSize, boolean prettyPrint) {
+    super(ctx, output, chunkSize, prettyPrint);
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) throws IOException {
+    if (writer == null) {
+      current = nextChunkFile();
+      writer = openPart(current);
+    }
+
+    ConceptJsonWriter.write(concept, writer);
+    writer.write('\n');
+
+    if (++inChunk == chunkSize) {
+      closeChunk();
+    }
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    closeChunk();
+    super.finish(codeSystem);
+  }
+
+  private void closeChunk() throws IOException {
+    if (writer != null) {
+      writer.close();
+      commitPart(current);
+      writer = null;
+      current = null;
+      inChunk = 0;
+    }
+  }
+
+}
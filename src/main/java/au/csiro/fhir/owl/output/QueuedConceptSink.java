@@ -0,0 +1,128 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Hands the concepts over to another sink through a bounded queue, so they are written in a
+ * separate thread while the next ones are created. The queue is bounded so the concepts that are
+ * waiting to be written do not pile up in memory when writing is slower than creating them.
+ *
+ * <p>The code system metadata is passed to the other sink in the calling thread, in
+ * {@link #start(CodeSystem)} and in {@link #finish(CodeSystem)}, after all the concepts have been
+ * written. Concepts must not be modified after they are accepted. If the other sink fails, the
+ * exception is thrown by the next call to this sink.
+ */
+public class QueuedConceptSink implements ConceptSink, Closeable {
+
+  private static final ConceptDefinitionComponent END = new ConceptDefinitionComponent();
+
+  private static final long POLL_MILLIS = 100;
+
+  private final ConceptSink sink;
+  private final BlockingQueue<ConceptDefinitionComponent> queue;
+
+  private Thread writer;
+  private volatile Throwable failure;
+
+  /**
+   * Constructor.
+   *
+   * @param sink The sink that writes the concepts.
+   * @param capacity The maximum number of concepts that are waiting to be written.
+   */
+  public QueuedConceptSink(ConceptSink sink, int capacity) {
+    this.sink = sink;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) throws IOException {
+    sink.start(codeSystem);
+    failure = null;
+    queue.clear();
+    writer = new Thread(this::write, "concept-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) throws IOException {
+    put(concept);
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    put(END);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing the concepts.");
+    }
+    writer = null;
+    checkFailure();
+    sink.finish(codeSystem);
+  }
+
+  /**
+   * Stops the writer thread if the concepts were not finished, e.g. because creating them failed.
+   */
+  @Override
+  public void close() {
+    if (writer != null) {
+      writer.interrupt();
+      writer = null;
+    }
+  }
+
+  private void put(ConceptDefinitionComponent concept) throws IOException {
+    try {
+      // The writer stops taking concepts if it fails, so the queue might never have room again
+      while (!queue.offer(concept, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        checkFailure();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing the concepts.");
+    }
+    checkFailure();
+  }
+
+  private void write() {
+    try {
+      for (ConceptDefinitionComponent concept = queue.take(); concept != END;
+          concept = queue.take()) {
+        sink.accept(concept);
+      }
+    } catch (InterruptedException e) {
+      // Closed before finishing
+    } catch (IOException | RuntimeException | Error e) {
+      failure = e;
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    final Throwable t = failure;
+    if (t instanceof IOException) {
+      throw new IOException(t.getMessage(), t);
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    }
+  }
+
+}
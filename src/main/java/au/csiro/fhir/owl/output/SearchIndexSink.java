@@ -0,0 +1,280 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import au.csiro.fhir.owl.index.SearchIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+
+/**
+ * Writes a memory-mappable search index over the displays and designations of the concepts, for
+ * type-ahead lookups. The index has the sorted normalised terms with the concepts that use each
+ * one, for prefix searches, and a trigram table over the terms, for infix searches. The format is
+ * described in {@link SearchIndex}, which is also used to query it.
+ *
+ * <p>Postings are accumulated as packed longs with the term in the high bits and the concept
+ * ordinal in the low bits, so they can be sorted into their final order without boxing.
+ */
+public class SearchIndexSink implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(SearchIndexSink.class);
+
+  private final File output;
+
+  private final List<String> codes = new ArrayList<>();
+  private final List<String> displays = new ArrayList<>();
+  private final Map<String, Integer> termIds = new HashMap<>();
+  private final List<String> terms = new ArrayList<>();
+  private long[] postings = new long[1024];
+  private int numPostings = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param output The index file.
+   */
+  public SearchIndexSink(File output) {
+    this.output = output;
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) {
+    codes.clear();
+    displays.clear();
+    termIds.clear();
+    terms.clear();
+    numPostings = 0;
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) {
+    final int ordinal = codes.size();
+    codes.add(concept.getCode());
+    displays.add(concept.hasDisplay() ? concept.getDisplay() : "");
+    addTerm(concept.getDisplay(), ordinal);
+    for (ConceptDefinitionDesignationComponent designation : concept.getDesignation()) {
+      addTerm(designation.getValue(), ordinal);
+    }
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    // Terms are sorted by their UTF-8 bytes, which is the order used by the binary search
+    final byte[][] termBytes = new byte[terms.size()][];
+    final Integer[] order = new Integer[terms.size()];
+    for (int i = 0; i < termBytes.length; i++) {
+      termBytes[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> compareUnsigned(termBytes[a], termBytes[b]));
+    final int[] rank = new int[order.length];
+    final byte[][] sortedTerms = new byte[order.length][];
+    for (int i = 0; i < order.length; i++) {
+      rank[order[i]] = i;
+      sortedTerms[i] = termBytes[order[i]];
+    }
+    for (int i = 0; i < numPostings; i++) {
+      postings[i] = pack(rank[(int) (postings[i] >>> 32)], (int) postings[i]);
+    }
+    final int termPostingsSize = sortUnique(postings, numPostings);
+
+    // Trigrams of the sorted terms
+    final Map<Long, Integer> trigramIds = new HashMap<>();
+    final List<Long> trigramKeys = new ArrayList<>();
+    long[] trigramPostings = new long[1024];
+    int numTrigramPostings = 0;
+    for (int t = 0; t < order.length; t++) {
+      final String term = terms.get(order[t]);
+      for (int i = 0; i + 3 <= term.length(); i++) {
+        final long key = SearchIndex.trigram(term, i);
+        Integer id = trigramIds.get(key);
+        if (id == null) {
+          id = trigramKeys.size();
+          trigramIds.put(key, id);
+          trigramKeys.add(key);
+        }
+        if (numTrigramPostings == trigramPostings.length) {
+          trigramPostings = Arrays.copyOf(trigramPostings, trigramPostings.length * 2);
+        }
+        trigramPostings[numTrigramPostings++] = pack(id, t);
+      }
+    }
+    final long[] sortedKeys = new long[trigramKeys.size()];
+    for (int i = 0; i < sortedKeys.length; i++) {
+      sortedKeys[i] = trigramKeys.get(i);
+    }
+    Arrays.sort(sortedKeys);
+    final int[] keyRank = new int[sortedKeys.length];
+    for (int i = 0; i < sortedKeys.length; i++) {
+      keyRank[trigramIds.get(sortedKeys[i])] = i;
+    }
+    for (int i = 0; i < numTrigramPostings; i++) {
+      trigramPostings[i] = pack(keyRank[(int) (trigramPostings[i] >>> 32)],
+          (int) trigramPostings[i]);
+    }
+    final int trigramPostingsSize = sortUnique(trigramPostings, numTrigramPostings);
+
+    final byte[][] codeBytes = toBytes(codes);
+    final byte[][] displayBytes = toBytes(displays);
+
+    // Section offsets
+    final long codesOffset = SearchIndex.HEADER_SIZE;
+    final long displaysOffset = codesOffset + stringTableSize(codeBytes);
+    final long termsOffset = displaysOffset + stringTableSize(displayBytes);
+    final long termPostingsOffset = termsOffset + stringTableSize(sortedTerms);
+    final long trigramKeysOffset = termPostingsOffset
+        + postingsSize(sortedTerms.length, termPostingsSize);
+    final long trigramPostingsOffset = trigramKeysOffset + 8L * sortedKeys.length;
+    final long end = trigramPostingsOffset
+        + postingsSize(sortedKeys.length, trigramPostingsSize);
+    if (end > Integer.MAX_VALUE) {
+      throw new IOException("The search index would be larger than 2GB.");
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(output), 64 * 1024))) {
+      out.writeInt(SearchIndex.MAGIC);
+      out.writeInt(SearchIndex.VERSION);
+      out.writeInt(codeBytes.length);
+      out.writeInt(sortedTerms.length);
+      out.writeInt(sortedKeys.length);
+      out.writeLong(codesOffset);
+      out.writeLong(displaysOffset);
+      out.writeLong(termsOffset);
+      out.writeLong(termPostingsOffset);
+      out.writeLong(trigramKeysOffset);
+      out.writeLong(trigramPostingsOffset);
+      writeStringTable(out, codeBytes);
+      writeStringTable(out, displayBytes);
+      writeStringTable(out, sortedTerms);
+      writePostings(out, postings, termPostingsSize, sortedTerms.length);
+      for (long key : sortedKeys) {
+        out.writeLong(key);
+      }
+      writePostings(out, trigramPostings, trigramPostingsSize, sortedKeys.length);
+    }
+    log.info("Wrote search index with " + sortedTerms.length + " terms and " + sortedKeys.length
+        + " trigrams to " + output.getAbsolutePath());
+  }
+
+  private void addTerm(String text, int ordinal) {
+    if (text == null) {
+      return;
+    }
+    final String term = SearchIndex.normalise(text);
+    if (term.isEmpty()) {
+      return;
+    }
+    Integer id = termIds.get(term);
+    if (id == null) {
+      id = terms.size();
+      termIds.put(term, id);
+      terms.add(term);
+    }
+    if (numPostings == postings.length) {
+      postings = Arrays.copyOf(postings, postings.length * 2);
+    }
+    postings[numPostings++] = pack(id, ordinal);
+  }
+
+  private static long pack(int high, int low) {
+    return ((long) high << 32) | (low & 0xffffffffL);
+  }
+
+  /**
+   * Sorts the first n values of an array and removes duplicates.
+   *
+   * @return The number of distinct values.
+   */
+  private static int sortUnique(long[] values, int n) {
+    Arrays.sort(values, 0, n);
+    int res = 0;
+    for (int i = 0; i < n; i++) {
+      if (res == 0 || values[res - 1] != values[i]) {
+        values[res++] = values[i];
+      }
+    }
+    return res;
+  }
+
+  private static int compareUnsigned(byte[] a, byte[] b) {
+    final int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      final int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return Integer.compare(a.length, b.length);
+  }
+
+  private static byte[][] toBytes(List<String> strings) {
+    final byte[][] res = new byte[strings.size()][];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+    }
+    return res;
+  }
+
+  private static long stringTableSize(byte[][] strings) {
+    long res = 4L * (strings.length + 1);
+    for (byte[] s : strings) {
+      res += s.length;
+    }
+    return res;
+  }
+
+  private static long postingsSize(int lists, int values) {
+    return 4L * (lists + 1) + 4L * values;
+  }
+
+  private static void writeStringTable(DataOutputStream out, byte[][] strings) throws IOException {
+    int offset = 0;
+    out.writeInt(offset);
+    for (byte[] s : strings) {
+      offset += s.length;
+      out.writeInt(offset);
+    }
+    for (byte[] s : strings) {
+      out.write(s);
+    }
+  }
+
+  /**
+   * Writes sorted packed postings as the start of each list followed by the values.
+   */
+  private static void writePostings(DataOutputStream out, long[] postings, int n, int lists)
+      throws IOException {
+    int i = 0;
+    for (int list = 0; list < lists; list++) {
+      out.writeInt(i);
+      while (i < n && (int) (postings[i] >>> 32) == list) {
+        i++;
+      }
+    }
+    out.writeInt(n);
+    for (int j = 0; j < n; j++) {
+      out.writeInt((int) postings[j]);
+    }
+  }
+
+}
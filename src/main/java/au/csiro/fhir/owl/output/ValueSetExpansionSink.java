@@ -0,0 +1,218 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import au.csiro.fhir.owl.util.CompressionUtils;
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.r4.model.ValueSet.FilterOperator;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+
+/**
+ * Writes pre-computed expansions of the implicit value set with all the concepts and of the value
+ * sets defined by each value of the <i>root</i>, <i>deprecated</i> and <i>imported</i> filters.
+ * Only the code, display and flags of each concept are kept in memory and all the expansions are
+ * counted in the same pass.
+ *
+ * <p>Each expansion is split in pages of a fixed number of concepts, sorted by code, and each page
+ * is written to its own file, e.g. <i>all-00001.json</i>, <i>root-true-00001.json</i>. The pages
+ * include the expansion total, offset and count so a server can return them as they are.
+ */
+public class ValueSetExpansionSink implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(ValueSetExpansionSink.class);
+
+  private static final String[] FILTERS = { "root", "deprecated", "imported" };
+
+  private static final int DEPRECATED = 1 << 1;
+
+  private final FhirContext ctx;
+  private final File dir;
+  private final int pageSize;
+  private final boolean prettyPrint;
+
+  private final List<String> codes = new ArrayList<>();
+  private final List<String> displays = new ArrayList<>();
+  private byte[] flags = new byte[1024];
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param dir The directory where the expansions are written.
+   * @param pageSize The number of concepts in each page.
+   * @param prettyPrint If the JSON should be pretty printed.
+   */
+  public ValueSetExpansionSink(FhirContext ctx, File dir, int pageSize, boolean prettyPrint) {
+    this.ctx = ctx;
+    this.dir = dir;
+    this.pageSize = pageSize;
+    this.prettyPrint = prettyPrint;
+  }
+
+  @Override
+  public void start(CodeSystem codeSystem) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir.getAbsolutePath());
+    }
+    codes.clear();
+    displays.clear();
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) {
+    // Missing boolean properties are false, as in the compact profile
+    byte f = 0;
+    for (ConceptPropertyComponent prop : concept.getProperty()) {
+      final int idx = Arrays.asList(FILTERS).indexOf(prop.getCode());
+      if (idx >= 0 && prop.getValue() instanceof BooleanType
+          && ((BooleanType) prop.getValue()).booleanValue()) {
+        f |= 1 << idx;
+      }
+    }
+
+    final int i = codes.size();
+    if (i == flags.length) {
+      flags = Arrays.copyOf(flags, flags.length * 2);
+    }
+    flags[i] = f;
+    codes.add(concept.getCode());
+    displays.add(concept.getDisplay());
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) throws IOException {
+    final Integer[] order = new Integer[codes.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> codes.get(a).compareTo(codes.get(b)));
+
+    // The totals of all the expansions are calculated in a single pass
+    final int[] totals = new int[FILTERS.length * 2];
+    for (int i = 0; i < codes.size(); i++) {
+      for (int j = 0; j < FILTERS.length; j++) {
+        totals[j * 2 + ((flags[i] & (1 << j)) != 0 ? 0 : 1)]++;
+      }
+    }
+
+    final Date timestamp = new Date();
+    writeExpansion(codeSystem, order, "all", -1, false, codes.size(), timestamp);
+    for (int j = 0; j < FILTERS.length; j++) {
+      writeExpansion(codeSystem, order, FILTERS[j] + "-true", j, true, totals[j * 2], timestamp);
+      writeExpansion(codeSystem, order, FILTERS[j] + "-false", j, false, totals[j * 2 + 1],
+          timestamp);
+    }
+    log.info("Wrote " + (FILTERS.length * 2 + 1) + " value set expansions to "
+        + dir.getAbsolutePath());
+  }
+
+  /**
+   * Writes the pages of an expansion.
+   *
+   * @param filter The index of the filter or -1 for all the concepts.
+   * @param value The value of the filter.
+   */
+  private void writeExpansion(CodeSystem codeSystem, Integer[] order, String name, int filter,
+      boolean value, int total, Date timestamp) throws IOException {
+    final String identifier = "urn:uuid:" + UUID.randomUUID();
+    final List<ValueSetExpansionContainsComponent> contains = new ArrayList<>();
+    int offset = 0;
+    int page = 0;
+    for (int i : order) {
+      if (filter >= 0 && ((flags[i] & (1 << filter)) != 0) != value) {
+        continue;
+      }
+      final ValueSetExpansionContainsComponent c = new ValueSetExpansionContainsComponent();
+      c.setSystem(codeSystem.getUrl());
+      c.setVersion(codeSystem.getVersion());
+      c.setCode(codes.get(i));
+      c.setDisplay(displays.get(i));
+      if ((flags[i] & DEPRECATED) != 0) {
+        c.setInactive(true);
+      }
+      contains.add(c);
+
+      if (contains.size() == pageSize) {
+        writePage(codeSystem, name, filter, value, identifier, timestamp, total, offset, contains,
+            ++page);
+        offset += contains.size();
+        contains.clear();
+      }
+    }
+    if (!contains.isEmpty() || page == 0) {
+      writePage(codeSystem, name, filter, value, identifier, timestamp, total, offset, contains,
+          ++page);
+    }
+  }
+
+  private void writePage(CodeSystem codeSystem, String name, int filter, boolean value,
+      String identifier, Date timestamp, int total, int offset,
+      List<ValueSetExpansionContainsComponent> contains, int page) throws IOException {
+    final ValueSet vs = new ValueSet();
+    if (codeSystem.hasId()) {
+      vs.setId(codeSystem.getIdElement().getIdPart() + "-" + name);
+    }
+    vs.setStatus(codeSystem.getStatus());
+    vs.setExperimental(codeSystem.getExperimental());
+    vs.setVersion(codeSystem.getVersion());
+    vs.setName(codeSystem.getName());
+    vs.setDate(codeSystem.getDate());
+    vs.setPublisher(codeSystem.getPublisher());
+
+    final String url = codeSystem.getValueSet();
+    final ConceptSetComponent include = vs.getCompose().addInclude()
+        .setSystem(codeSystem.getUrl())
+        .setVersion(codeSystem.getVersion());
+    if (filter < 0) {
+      vs.setUrl(url);
+    } else {
+      vs.setUrl(ValueSetUrls.filtered(url, FILTERS[filter], String.valueOf(value)));
+      include.addFilter()
+        .setProperty(FILTERS[filter])
+        .setOp(FilterOperator.EQUAL)
+        .setValue(String.valueOf(value));
+    }
+
+    final ValueSetExpansionComponent expansion = vs.getExpansion();
+    expansion.setIdentifier(identifier);
+    expansion.setTimestamp(timestamp);
+    expansion.setTotal(total);
+    expansion.setOffset(offset);
+    expansion.addParameter().setName("offset").setValue(new IntegerType(offset));
+    expansion.addParameter().setName("count").setValue(new IntegerType(contains.size()));
+    expansion.setContains(contains);
+
+    final File file = new File(dir, String.format("%s-%05d.json", name, page));
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(
+        CompressionUtils.newOutputStream(file), StandardCharsets.UTF_8))) {
+      ctx.newJsonParser().setPrettyPrint(prettyPrint).encodeResourceToWriter(vs, w);
+    }
+  }
+
+}
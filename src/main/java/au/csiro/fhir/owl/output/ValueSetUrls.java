@@ -0,0 +1,63 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds and parses the URLs of the value sets that filter the concepts of a code system. They
+ * are the URL of the value set of the whole code system followed by one or more
+ * <i>property=value</i> filters, as query parameters.
+ */
+public class ValueSetUrls {
+
+  /**
+   * Returns the URL of a value set that filters the concepts of the code system.
+   *
+   * @param valueSet The URL of the value set of the whole code system.
+   * @param property The filtered property.
+   * @param value The value of the property.
+   * @return The URL of the filtered value set.
+   */
+  public static String filtered(String valueSet, String property, String value) {
+    return valueSet + getSeparator(valueSet) + property + "=" + value;
+  }
+
+  /**
+   * Returns the filters in the URL of a value set.
+   *
+   * @param valueSet The URL of the value set of the whole code system.
+   * @param url The URL of the value set.
+   * @return The values of the filtered properties, in order, with a null value for filters that
+   *     have no value. Empty if the URL is the one of the whole code system and null if it is not
+   *     a value set of the code system.
+   */
+  public static Map<String, String> getFilters(String valueSet, String url) {
+    final Map<String, String> res = new LinkedHashMap<>();
+    if (url.equals(valueSet)) {
+      return res;
+    }
+    final String prefix = valueSet + getSeparator(valueSet);
+    if (!url.startsWith(prefix) || url.length() == prefix.length()) {
+      return null;
+    }
+    for (String filter : url.substring(prefix.length()).split("&")) {
+      final int idx = filter.indexOf('=');
+      if (idx > 0) {
+        res.put(filter.substring(0, idx), filter.substring(idx + 1));
+      } else {
+        res.put(filter, null);
+      }
+    }
+    return res;
+  }
+
+  private static char getSeparator(String valueSet) {
+    return valueSet.contains("?") ? '&' : '?';
+  }
+
+}
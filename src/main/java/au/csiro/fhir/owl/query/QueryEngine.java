@@ -0,0 +1,382 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.query;
+
+import java.util.Arrays;
+
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Answers terminology queries over a generated code system. Concepts are identified by ordinals in
+ * code order. Codes, displays and the hierarchy are stored in primitive arrays, with the parents
+ * and children in compressed sparse row form, and the concepts that match the <i>root</i>,
+ * <i>deprecated</i> and <i>imported</i> filters are stored in Roaring bitmaps.
+ *
+ * <p>Instances are immutable and thread-safe. They are created with {@link QueryEngineBuilder}.
+ */
+public class QueryEngine {
+
+  /**
+   * The outcome of a subsumption test, with the codes used by the $subsumes operation.
+   */
+  public enum SubsumptionOutcome {
+    EQUIVALENT("equivalent"), SUBSUMES("subsumes"), SUBSUMED_BY("subsumed-by"),
+    NOT_SUBSUMED("not-subsumed");
+
+    private final String code;
+
+    SubsumptionOutcome(String code) {
+      this.code = code;
+    }
+
+    /**
+     * Returns the FHIR code of the outcome.
+     *
+     * @return The code.
+     */
+    public String toCode() {
+      return code;
+    }
+  }
+
+  static final int ROOT = 0;
+  static final int DEPRECATED = 1;
+  static final int IMPORTED = 2;
+
+  private static final String[] FILTERS = { "root", "deprecated", "imported" };
+
+  private final String system;
+  private final String version;
+  private final String name;
+  private final String valueSet;
+  private final String[] codes;
+  private final String[] displays;
+  private final String[] definitions;
+  private final int[] designationStarts;
+  private final String[] designationValues;
+  private final String[] designationLanguages;
+  private final int[] parentStarts;
+  private final int[] parents;
+  private final int[] childStarts;
+  private final int[] children;
+  private final RoaringBitmap[] filters;
+  private final RoaringBitmap all;
+
+  QueryEngine(String system, String version, String name, String valueSet, String[] codes,
+      String[] displays, String[] definitions, int[] designationStarts,
+      String[] designationValues, String[] designationLanguages, int[] parentStarts,
+      int[] parents, int[] childStarts, int[] children, RoaringBitmap[] filters) {
+    this.system = system;
+    this.version = version;
+    this.name = name;
+    this.valueSet = valueSet;
+    this.codes = codes;
+    this.displays = displays;
+    this.definitions = definitions;
+    this.designationStarts = designationStarts;
+    this.designationValues = designationValues;
+    this.designationLanguages = designationLanguages;
+    this.parentStarts = parentStarts;
+    this.parents = parents;
+    this.childStarts = childStarts;
+    this.children = children;
+    this.filters = filters;
+    this.all = new RoaringBitmap();
+    all.add(0L, (long) codes.length);
+  }
+
+  /**
+   * Returns the URL of the code system.
+   *
+   * @return The URL.
+   */
+  public String getSystem() {
+    return system;
+  }
+
+  /**
+   * Returns the version of the code system.
+   *
+   * @return The version.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the name of the code system.
+   *
+   * @return The name.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the URL of the value set with all the concepts.
+   *
+   * @return The URL.
+   */
+  public String getValueSet() {
+    return valueSet;
+  }
+
+  /**
+   * Returns the number of concepts.
+   *
+   * @return The number of concepts.
+   */
+  public int size() {
+    return codes.length;
+  }
+
+  /**
+   * Returns the ordinal of a code.
+   *
+   * @param code The code.
+   * @return The ordinal or -1 if the code is unknown.
+   */
+  public int getOrdinal(String code) {
+    if (code == null) {
+      return -1;
+    }
+    final int res = Arrays.binarySearch(codes, code);
+    return res >= 0 ? res : -1;
+  }
+
+  /**
+   * Returns the code of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The code.
+   */
+  public String getCode(int concept) {
+    return codes[concept];
+  }
+
+  /**
+   * Returns the display of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The display or null.
+   */
+  public String getDisplay(int concept) {
+    return displays[concept];
+  }
+
+  /**
+   * Returns the definition of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The definition or null.
+   */
+  public String getDefinition(int concept) {
+    return definitions[concept];
+  }
+
+  /**
+   * Returns the number of designations of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The number of designations.
+   */
+  public int getDesignationCount(int concept) {
+    return designationStarts[concept + 1] - designationStarts[concept];
+  }
+
+  /**
+   * Returns the value of a designation.
+   *
+   * @param concept The concept ordinal.
+   * @param i The index of the designation.
+   * @return The value.
+   */
+  public String getDesignationValue(int concept, int i) {
+    return designationValues[designationStarts[concept] + i];
+  }
+
+  /**
+   * Returns the language of a designation.
+   *
+   * @param concept The concept ordinal.
+   * @param i The index of the designation.
+   * @return The language or null.
+   */
+  public String getDesignationLanguage(int concept, int i) {
+    return designationLanguages[designationStarts[concept] + i];
+  }
+
+  /**
+   * Returns the direct parents of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The ordinals of the parents.
+   */
+  public int[] getParents(int concept) {
+    return Arrays.copyOfRange(parents, parentStarts[concept], parentStarts[concept + 1]);
+  }
+
+  /**
+   * Returns the direct children of a concept.
+   *
+   * @param concept The concept ordinal.
+   * @return The ordinals of the children.
+   */
+  public int[] getChildren(int concept) {
+    return Arrays.copyOfRange(children, childStarts[concept], childStarts[concept + 1]);
+  }
+
+  /**
+   * Indicates if a concept is a root.
+   *
+   * @param concept The concept ordinal.
+   * @return true if the concept is a root.
+   */
+  public boolean isRoot(int concept) {
+    return filters[ROOT].contains(concept);
+  }
+
+  /**
+   * Indicates if a concept is deprecated.
+   *
+   * @param concept The concept ordinal.
+   * @return true if the concept is deprecated.
+   */
+  public boolean isDeprecated(int concept) {
+    return filters[DEPRECATED].contains(concept);
+  }
+
+  /**
+   * Indicates if a concept is imported.
+   *
+   * @param concept The concept ordinal.
+   * @return true if the concept is imported.
+   */
+  public boolean isImported(int concept) {
+    return filters[IMPORTED].contains(concept);
+  }
+
+  /**
+   * Tests the subsumption relationship between two concepts.
+   *
+   * @param a The ordinal of the first concept.
+   * @param b The ordinal of the second concept.
+   * @return The outcome.
+   */
+  public SubsumptionOutcome subsumes(int a, int b) {
+    if (a == b) {
+      return SubsumptionOutcome.EQUIVALENT;
+    } else if (isAncestor(a, b)) {
+      return SubsumptionOutcome.SUBSUMES;
+    } else if (isAncestor(b, a)) {
+      return SubsumptionOutcome.SUBSUMED_BY;
+    } else {
+      return SubsumptionOutcome.NOT_SUBSUMED;
+    }
+  }
+
+  /**
+   * Indicates if a concept is a proper ancestor of another one. Walks up the parents of the
+   * descendant, which is usually a small part of the hierarchy.
+   *
+   * @param ancestor The ordinal of the potential ancestor.
+   * @param descendant The ordinal of the potential descendant.
+   * @return true if the first concept is a proper ancestor of the second one.
+   */
+  public boolean isAncestor(int ancestor, int descendant) {
+    final RoaringBitmap visited = new RoaringBitmap();
+    int[] stack = new int[16];
+    int top = 0;
+    stack[top++] = descendant;
+    while (top > 0) {
+      final int c = stack[--top];
+      for (int i = parentStarts[c]; i < parentStarts[c + 1]; i++) {
+        final int p = parents[i];
+        if (p == ancestor) {
+          return true;
+        }
+        if (visited.checkedAdd(p)) {
+          if (top == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+          }
+          stack[top++] = p;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns a concept and all its descendants.
+   *
+   * @param concept The concept ordinal.
+   * @return The ordinals of the concept and its descendants.
+   */
+  public RoaringBitmap getDescendantsOrSelf(int concept) {
+    final RoaringBitmap res = new RoaringBitmap();
+    res.add(concept);
+    int[] stack = new int[16];
+    int top = 0;
+    stack[top++] = concept;
+    while (top > 0) {
+      final int c = stack[--top];
+      for (int i = childStarts[c]; i < childStarts[c + 1]; i++) {
+        if (res.checkedAdd(children[i])) {
+          if (top == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+          }
+          stack[top++] = children[i];
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Returns all the concepts.
+   *
+   * @return A new bitmap with all the concept ordinals.
+   */
+  public RoaringBitmap getAll() {
+    return all.clone();
+  }
+
+  /**
+   * Returns the concepts that match a filter. Supported properties are <i>root</i>,
+   * <i>deprecated</i> and <i>imported</i>, with values <i>true</i> and <i>false</i>, and
+   * <i>is-a</i> and <i>descendent-of</i>, with a code.
+   *
+   * @param property The filter property.
+   * @param value The filter value.
+   * @return A new bitmap with the matching concept ordinals, or null if the filter is not
+   *     supported.
+   */
+  public RoaringBitmap filter(String property, String value) {
+    final int idx = Arrays.asList(FILTERS).indexOf(property);
+    if (idx >= 0) {
+      if ("true".equals(value)) {
+        return filters[idx].clone();
+      } else if ("false".equals(value)) {
+        return RoaringBitmap.andNot(all, filters[idx]);
+      } else {
+        return null;
+      }
+    } else if ("is-a".equals(property) || "descendent-of".equals(property)) {
+      final int concept = getOrdinal(value);
+      if (concept < 0) {
+        return new RoaringBitmap();
+      }
+      final RoaringBitmap res = getDescendantsOrSelf(concept);
+      if ("descendent-of".equals(property)) {
+        res.remove(concept);
+      }
+      return res;
+    } else {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.query;
+
+import au.csiro.fhir.owl.output.ConceptSink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Builds a {@link QueryEngine} from the concepts as they are created. Only the fields the engine
+ * needs are kept, and they are converted to arrays sorted by code when the code system is
+ * finished.
+ */
+public class QueryEngineBuilder implements ConceptSink {
+
+  private static final Log log = LogFactory.getLog(QueryEngineBuilder.class);
+
+  private final List<String> codes = new ArrayList<>();
+  private final List<String> displays = new ArrayList<>();
+  private final List<String> definitions = new ArrayList<>();
+  private final List<Integer> designationCounts = new ArrayList<>();
+  private final List<String> designationValues = new ArrayList<>();
+  private final List<String> designationLanguages = new ArrayList<>();
+  private final List<Integer> parentCounts = new ArrayList<>();
+  private final List<String> parentCodes = new ArrayList<>();
+  private final RoaringBitmap[] filters = new RoaringBitmap[3];
+
+  private QueryEngine engine;
+
+  @Override
+  public void start(CodeSystem codeSystem) {
+    codes.clear();
+    displays.clear();
+    definitions.clear();
+    designationCounts.clear();
+    designationValues.clear();
+    designationLanguages.clear();
+    parentCounts.clear();
+    parentCodes.clear();
+    for (int i = 0; i < filters.length; i++) {
+      filters[i] = new RoaringBitmap();
+    }
+    engine = null;
+  }
+
+  @Override
+  public void accept(ConceptDefinitionComponent concept) {
+    final int ordinal = codes.size();
+    codes.add(concept.getCode());
+    displays.add(concept.getDisplay());
+    definitions.add(concept.getDefinition());
+
+    designationCounts.add(concept.getDesignation().size());
+    for (ConceptDefinitionDesignationComponent designation : concept.getDesignation()) {
+      designationValues.add(designation.getValue());
+      designationLanguages.add(designation.getLanguage());
+    }
+
+    int numParents = 0;
+    for (ConceptPropertyComponent prop : concept.getProperty()) {
+      final String code = prop.getCode();
+      if ("parent".equals(code) && prop.getValue() instanceof CodeType) {
+        parentCodes.add(((CodeType) prop.getValue()).getValue());
+        numParents++;
+      } else if (prop.getValue() instanceof BooleanType
+          && ((BooleanType) prop.getValue()).booleanValue()) {
+        // Missing boolean properties are false, as in the compact profile
+        if ("root".equals(code)) {
+          filters[QueryEngine.ROOT].add(ordinal);
+        } else if ("deprecated".equals(code)) {
+          filters[QueryEngine.DEPRECATED].add(ordinal);
+        } else if ("imported".equals(code)) {
+          filters[QueryEngine.IMPORTED].add(ordinal);
+        }
+      }
+    }
+    parentCounts.add(numParents);
+  }
+
+  @Override
+  public void finish(CodeSystem codeSystem) {
+    final int n = codes.size();
+
+    // Ordinals in the engine follow code order so codes can be found with a binary search
+    final Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> codes.get(a).compareTo(codes.get(b)));
+    final int[] rank = new int[n];
+    for (int i = 0; i < n; i++) {
+      rank[order[i]] = i;
+    }
+    final Map<String, Integer> ordinals = new HashMap<>();
+    for (int i = 0; i < n; i++) {
+      ordinals.put(codes.get(i), rank[i]);
+    }
+
+    final int[] designationOffsets = new int[n + 1];
+    final int[] parentOffsets = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      designationOffsets[i + 1] = designationOffsets[i] + designationCounts.get(i);
+      parentOffsets[i + 1] = parentOffsets[i] + parentCounts.get(i);
+    }
+
+    final String[] sortedCodes = new String[n];
+    final String[] sortedDisplays = new String[n];
+    final String[] sortedDefinitions = new String[n];
+    final int[] designationStarts = new int[n + 1];
+    final String[] sortedDesignationValues = new String[designationValues.size()];
+    final String[] sortedDesignationLanguages = new String[designationValues.size()];
+    final int[] parentStarts = new int[n + 1];
+    final int[] parents = new int[parentCodes.size()];
+    int numParents = 0;
+    for (int r = 0; r < n; r++) {
+      final int i = order[r];
+      sortedCodes[r] = codes.get(i);
+      sortedDisplays[r] = displays.get(i);
+      sortedDefinitions[r] = definitions.get(i);
+
+      designationStarts[r + 1] = designationStarts[r] + designationCounts.get(i);
+      for (int d = designationOffsets[i]; d < designationOffsets[i + 1]; d++) {
+        final int k = designationStarts[r] + d - designationOffsets[i];
+        sortedDesignationValues[k] = designationValues.get(d);
+        sortedDesignationLanguages[k] = designationLanguages.get(d);
+      }
+
+      for (int p = parentOffsets[i]; p < parentOffsets[i + 1]; p++) {
+        // Parents that are not concepts, e.g. excluded deprecated classes, are skipped
+        final Integer parent = ordinals.get(parentCodes.get(p));
+        if (parent != null) {
+          parents[numParents++] = parent;
+        }
+      }
+      parentStarts[r + 1] = numParents;
+    }
+
+    final int[] childStarts = new int[n + 1];
+    for (int i = 0; i < numParents; i++) {
+      childStarts[parents[i] + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      childStarts[i + 1] += childStarts[i];
+    }
+    final int[] children = new int[numParents];
+    final int[] fill = Arrays.copyOf(childStarts, n);
+    for (int c = 0; c < n; c++) {
+      for (int i = parentStarts[c]; i < parentStarts[c + 1]; i++) {
+        children[fill[parents[i]]++] = c;
+      }
+    }
+
+    final RoaringBitmap[] sortedFilters = new RoaringBitmap[filters.length];
+    for (int f = 0; f < filters.length; f++) {
+      sortedFilters[f] = new RoaringBitmap();
+      for (int i : filters[f]) {
+        sortedFilters[f].add(rank[i]);
+      }
+      sortedFilters[f].runOptimize();
+    }
+
+    engine = new QueryEngine(codeSystem.getUrl(), codeSystem.getVersion(), codeSystem.getName(),
+        codeSystem.getValueSet(), sortedCodes, sortedDisplays, sortedDefinitions,
+        designationStarts, sortedDesignationValues, sortedDesignationLanguages, parentStarts,
+        Arrays.copyOf(parents, numParents), childStarts, children, sortedFilters);
+    log.info("Built query engine with " + n + " concepts");
+  }
+
+  /**
+   * Returns the query engine. Only available after the code system is finished.
+   *
+   * @return The query engine.
+   */
+  public QueryEngine getEngine() {
+    return engine;
+  }
+
+}
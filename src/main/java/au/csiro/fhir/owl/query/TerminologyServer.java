@@ -0,0 +1,410 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.query;
+
+import au.csiro.fhir.owl.output.ValueSetUrls;
+import au.csiro.fhir.owl.query.QueryEngine.SubsumptionOutcome;
+import ca.uhn.fhir.context.FhirContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * A minimal FHIR terminology server that answers $lookup, $subsumes, $validate-code and $expand
+ * from a {@link QueryEngine}, using the HTTP server included in the JDK. Only GET requests with
+ * query parameters are supported.
+ *
+ * <p>Value sets are identified by the URL of the value set with all the concepts, optionally
+ * followed by filters with the same syntax used by the pre-computed expansions, e.g.
+ * <i>[valueset]&amp;root=true</i> or <i>[valueset]&amp;is-a=[code]</i>. Several filters are
+ * combined with a logical and.
+ */
+public class TerminologyServer {
+
+  private static final Log log = LogFactory.getLog(TerminologyServer.class);
+
+  private static final String FHIR_JSON = "application/fhir+json";
+
+  private static final int DEFAULT_COUNT = 1000;
+
+  private final FhirContext ctx;
+  private final QueryEngine engine;
+  private final int port;
+
+  private HttpServer server;
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param engine The query engine.
+   * @param port The port to listen on.
+   */
+  public TerminologyServer(FhirContext ctx, QueryEngine engine, int port) {
+    this.ctx = ctx;
+    this.engine = engine;
+    this.port = port;
+  }
+
+  /**
+   * Starts the server. Requests are handled by a thread pool with two threads per processor. The
+   * threads are not daemons, so the JVM keeps running until {@link #stop()} is called.
+   *
+   * @throws IOException If the server cannot be started.
+   */
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors() * 2));
+    server.start();
+    log.info("Serving " + engine.getSystem() + " on port " + server.getAddress().getPort());
+  }
+
+  /**
+   * Stops the server.
+   */
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+      ((ExecutorService) server.getExecutor()).shutdown();
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    IBaseResource res;
+    int status = 200;
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        throw new RequestException(405, "Only GET requests are supported.");
+      }
+      final String path = exchange.getRequestURI().getPath();
+      final Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+      if (path.endsWith("/CodeSystem/$lookup")) {
+        res = lookup(params);
+      } else if (path.endsWith("/CodeSystem/$subsumes")) {
+        res = subsumes(params);
+      } else if (path.endsWith("/CodeSystem/$validate-code")) {
+        res = validateCode(params, false);
+      } else if (path.endsWith("/ValueSet/$validate-code")) {
+        res = validateCode(params, true);
+      } else if (path.endsWith("/ValueSet/$expand")) {
+        res = expand(params);
+      } else {
+        throw new RequestException(404, "Unsupported operation " + path);
+      }
+    } catch (RequestException e) {
+      status = e.status;
+      res = createOutcome(e.getMessage());
+    } catch (RuntimeException e) {
+      log.warn("There was a problem handling " + exchange.getRequestURI(), e);
+      status = 500;
+      res = createOutcome(e.getMessage());
+    }
+
+    final byte[] body = ctx.newJsonParser().encodeResourceToString(res)
+        .getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", FHIR_JSON + ";charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+  }
+
+  private Parameters lookup(Map<String, String> params) throws RequestException {
+    checkSystem(params.get("system"));
+    final int concept = getConcept(params.get("code"));
+
+    final Parameters res = new Parameters();
+    res.addParameter().setName("name").setValue(new StringType(engine.getName()));
+    if (engine.getVersion() != null) {
+      res.addParameter().setName("version").setValue(new StringType(engine.getVersion()));
+    }
+    if (engine.getDisplay(concept) != null) {
+      res.addParameter().setName("display").setValue(
+          new StringType(engine.getDisplay(concept)));
+    }
+    for (int i = 0; i < engine.getDesignationCount(concept); i++) {
+      final ParametersParameterComponent designation = res.addParameter().setName("designation");
+      if (engine.getDesignationLanguage(concept, i) != null) {
+        designation.addPart().setName("language").setValue(
+            new CodeType(engine.getDesignationLanguage(concept, i)));
+      }
+      designation.addPart().setName("value").setValue(
+          new StringType(engine.getDesignationValue(concept, i)));
+    }
+    if (engine.getDefinition(concept) != null) {
+      addProperty(res, "definition", new StringType(engine.getDefinition(concept)));
+    }
+    for (int parent : engine.getParents(concept)) {
+      addProperty(res, "parent", new CodeType(engine.getCode(parent)));
+    }
+    for (int child : engine.getChildren(concept)) {
+      addProperty(res, "child", new CodeType(engine.getCode(child)));
+    }
+    addProperty(res, "root", new BooleanType(engine.isRoot(concept)));
+    addProperty(res, "deprecated", new BooleanType(engine.isDeprecated(concept)));
+    addProperty(res, "imported", new BooleanType(engine.isImported(concept)));
+    return res;
+  }
+
+  private Parameters subsumes(Map<String, String> params) throws RequestException {
+    checkSystem(params.get("system"));
+    final SubsumptionOutcome outcome = engine.subsumes(getConcept(params.get("codeA")),
+        getConcept(params.get("codeB")));
+    final Parameters res = new Parameters();
+    res.addParameter().setName("outcome").setValue(new CodeType(outcome.toCode()));
+    return res;
+  }
+
+  /**
+   * Validates a code. In the code system operation the code system is in the url parameter. In the
+   * value set operation it is in the system parameter and the url parameter is the value set.
+   */
+  private Parameters validateCode(Map<String, String> params, boolean inValueSet)
+      throws RequestException {
+    checkSystem(params.get(inValueSet ? "system" : "url"));
+    final String code = params.get("code");
+    if (code == null) {
+      throw new RequestException(400, "Missing parameter code.");
+    }
+
+    final Parameters res = new Parameters();
+    final int concept = engine.getOrdinal(code);
+    final RoaringBitmap valueSet = inValueSet ? resolveValueSet(params.get("url")) : null;
+
+    String message = null;
+    if (concept < 0) {
+      message = "Unknown code " + code + " in code system " + engine.getSystem() + ".";
+    } else if (valueSet != null && !valueSet.contains(concept)) {
+      message = "Code " + code + " is not in value set " + params.get("url") + ".";
+    } else if (params.containsKey("display") && !hasDisplay(concept, params.get("display"))) {
+      message = "Display " + params.get("display") + " is not valid for code " + code + ".";
+    }
+
+    res.addParameter().setName("result").setValue(new BooleanType(message == null));
+    if (message != null) {
+      res.addParameter().setName("message").setValue(new StringType(message));
+    }
+    if (concept >= 0 && engine.getDisplay(concept) != null) {
+      res.addParameter().setName("display").setValue(new StringType(engine.getDisplay(concept)));
+    }
+    return res;
+  }
+
+  private ValueSet expand(Map<String, String> params) throws RequestException {
+    final String url = params.get("url");
+    final RoaringBitmap concepts = resolveValueSet(url);
+    if ("true".equals(params.get("activeOnly"))) {
+      concepts.andNot(engine.filter("deprecated", "true"));
+    }
+    final String text = params.get("filter");
+    if (text != null && !text.isEmpty()) {
+      final String lower = text.toLowerCase(Locale.ROOT);
+      final RoaringBitmap matches = new RoaringBitmap();
+      final IntIterator it = concepts.getIntIterator();
+      while (it.hasNext()) {
+        final int c = it.next();
+        final String display = engine.getDisplay(c);
+        if (display != null && display.toLowerCase(Locale.ROOT).contains(lower)) {
+          matches.add(c);
+        }
+      }
+      concepts.and(matches);
+    }
+
+    final int offset = getInt(params, "offset", 0);
+    final int count = getInt(params, "count", DEFAULT_COUNT);
+
+    final ValueSet res = new ValueSet();
+    res.setUrl(url);
+    res.setVersion(engine.getVersion());
+    res.setStatus(PublicationStatus.ACTIVE);
+    final ValueSetExpansionComponent expansion = res.getExpansion();
+    expansion.setTimestamp(new Date());
+    expansion.setTotal(concepts.getCardinality());
+    expansion.setOffset(offset);
+    expansion.addParameter().setName("offset").setValue(new IntegerType(offset));
+    expansion.addParameter().setName("count").setValue(new IntegerType(count));
+
+    if (offset < concepts.getCardinality()) {
+      final PeekableIntIterator it = concepts.getIntIterator();
+      it.advanceIfNeeded(concepts.select(offset));
+      for (int i = 0; i < count && it.hasNext(); i++) {
+        final int c = it.next();
+        final ValueSetExpansionContainsComponent contains = expansion.addContains();
+        contains.setSystem(engine.getSystem());
+        contains.setVersion(engine.getVersion());
+        contains.setCode(engine.getCode(c));
+        contains.setDisplay(engine.getDisplay(c));
+        if (engine.isDeprecated(c)) {
+          contains.setInactive(true);
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Returns the concepts in a value set URL.
+   */
+  private RoaringBitmap resolveValueSet(String url) throws RequestException {
+    if (url == null) {
+      throw new RequestException(400, "Missing parameter url.");
+    }
+    final Map<String, String> filters = ValueSetUrls.getFilters(engine.getValueSet(), url);
+    if (filters == null) {
+      throw new RequestException(404, "Unknown value set " + url + ".");
+    } else if (filters.isEmpty()) {
+      return engine.getAll();
+    }
+
+    RoaringBitmap res = null;
+    for (Map.Entry<String, String> filter : filters.entrySet()) {
+      final RoaringBitmap matches = filter.getValue() != null
+          ? engine.filter(filter.getKey(), filter.getValue()) : null;
+      if (matches == null) {
+        throw new RequestException(400, "Unsupported filter " + filter.getKey()
+            + (filter.getValue() != null ? "=" + filter.getValue() : "") + ".");
+      }
+      if (res == null) {
+        res = matches;
+      } else {
+        res.and(matches);
+      }
+    }
+    return res;
+  }
+
+  private void checkSystem(String system) throws RequestException {
+    if (system != null && !system.equals(engine.getSystem())) {
+      throw new RequestException(404, "Unknown code system " + system + ".");
+    }
+  }
+
+  private int getConcept(String code) throws RequestException {
+    if (code == null) {
+      throw new RequestException(400, "Missing code parameter.");
+    }
+    final int res = engine.getOrdinal(code);
+    if (res < 0) {
+      throw new RequestException(404, "Unknown code " + code + " in code system "
+          + engine.getSystem() + ".");
+    }
+    return res;
+  }
+
+  private boolean hasDisplay(int concept, String display) {
+    if (display.equals(engine.getDisplay(concept))) {
+      return true;
+    }
+    for (int i = 0; i < engine.getDesignationCount(concept); i++) {
+      if (display.equals(engine.getDesignationValue(concept, i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void addProperty(Parameters params, String code, Type value) {
+    final ParametersParameterComponent property = params.addParameter().setName("property");
+    property.addPart().setName("code").setValue(new CodeType(code));
+    property.addPart().setName("value").setValue(value);
+  }
+
+  private static OperationOutcome createOutcome(String message) {
+    final OperationOutcome res = new OperationOutcome();
+    res.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.PROCESSING)
+        .setDiagnostics(message);
+    return res;
+  }
+
+  private static int getInt(Map<String, String> params, String name, int defaultValue)
+      throws RequestException {
+    final String val = params.get(name);
+    if (val == null) {
+      return defaultValue;
+    }
+    try {
+      final int res = Integer.parseInt(val);
+      if (res < 0) {
+        throw new NumberFormatException();
+      }
+      return res;
+    } catch (NumberFormatException e) {
+      throw new RequestException(400, "Invalid " + name + " value " + val + ".");
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    final Map<String, String> res = new HashMap<>();
+    if (query == null) {
+      return res;
+    }
+    for (String param : query.split("&")) {
+      final int idx = param.indexOf('=');
+      if (idx > 0) {
+        res.put(decode(param.substring(0, idx)), decode(param.substring(idx + 1)));
+      }
+    }
+    return res;
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class RequestException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    RequestException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+}
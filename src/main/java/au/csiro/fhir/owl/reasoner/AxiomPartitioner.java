@@ -0,0 +1,132 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.reasoner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLEntity;
+
+/**
+ * Splits a set of axioms into partitions whose signatures are disjoint, using a union-find
+ * structure over the entities. Two axioms end up in the same partition if they are connected
+ * through the entities they use, so the partitions cannot interact and each of them can be
+ * classified on its own.
+ *
+ * <p><i>owl:Thing</i>, <i>owl:Nothing</i>, datatypes and annotation properties do not connect
+ * axioms, because they are used everywhere and do not make the axioms that use them interact.
+ * Axioms that only use these entities are added to every partition.
+ */
+public class AxiomPartitioner {
+
+  private final Map<OWLEntity, Integer> ids = new HashMap<>();
+  private int[] parents = new int[1024];
+  private int[] sizes = new int[1024];
+
+  /**
+   * Partitions the axioms.
+   *
+   * @param axioms The axioms.
+   * @return The partitions, largest first.
+   */
+  public List<Set<OWLAxiom>> partition(Collection<OWLAxiom> axioms) {
+    ids.clear();
+    for (OWLAxiom axiom : axioms) {
+      int first = -1;
+      for (OWLEntity entity : axiom.getSignature()) {
+        if (isConnecting(entity)) {
+          final int id = getId(entity);
+          if (first < 0) {
+            first = id;
+          } else {
+            union(first, id);
+          }
+        }
+      }
+    }
+
+    final Map<Integer, Set<OWLAxiom>> partitions = new HashMap<>();
+    final List<OWLAxiom> global = new ArrayList<>();
+    for (OWLAxiom axiom : axioms) {
+      Integer root = null;
+      for (OWLEntity entity : axiom.getSignature()) {
+        if (isConnecting(entity)) {
+          root = find(ids.get(entity));
+          break;
+        }
+      }
+      if (root == null) {
+        global.add(axiom);
+      } else {
+        partitions.computeIfAbsent(root, k -> new HashSet<>()).add(axiom);
+      }
+    }
+
+    final List<Set<OWLAxiom>> res = new ArrayList<>(partitions.values());
+    if (res.isEmpty() && !global.isEmpty()) {
+      res.add(new HashSet<>());
+    }
+    for (Set<OWLAxiom> partition : res) {
+      partition.addAll(global);
+    }
+    Collections.sort(res, (a, b) -> Integer.compare(b.size(), a.size()));
+    return res;
+  }
+
+  private static boolean isConnecting(OWLEntity entity) {
+    if (entity.isOWLClass()) {
+      return !entity.asOWLClass().isOWLThing() && !entity.asOWLClass().isOWLNothing();
+    }
+    return !entity.isOWLDatatype() && !entity.isOWLAnnotationProperty();
+  }
+
+  private int getId(OWLEntity entity) {
+    Integer id = ids.get(entity);
+    if (id == null) {
+      id = ids.size();
+      if (id == parents.length) {
+        parents = Arrays.copyOf(parents, id * 2);
+        sizes = Arrays.copyOf(sizes, id * 2);
+      }
+      parents[id] = id;
+      sizes[id] = 1;
+      ids.put(entity, id);
+    }
+    return id;
+  }
+
+  private int find(int id) {
+    while (parents[id] != id) {
+      parents[id] = parents[parents[id]];
+      id = parents[id];
+    }
+    return id;
+  }
+
+  private void union(int a, int b) {
+    int rootA = find(a);
+    int rootB = find(b);
+    if (rootA == rootB) {
+      return;
+    }
+    if (sizes[rootA] < sizes[rootB]) {
+      final int tmp = rootA;
+      rootA = rootB;
+      rootB = tmp;
+    }
+    parents[rootB] = rootA;
+    sizes[rootA] += sizes[rootB];
+  }
+
+}
@@ -0,0 +1,562 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.reasoner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLDataProperty;
+import org.semanticweb.owlapi.model.OWLDataPropertyExpression;
+import org.semanticweb.owlapi.model.OWLLiteral;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectPropertyExpression;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLRuntimeException;
+import org.semanticweb.owlapi.model.parameters.Imports;
+import org.semanticweb.owlapi.reasoner.BufferingMode;
+import org.semanticweb.owlapi.reasoner.FreshEntityPolicy;
+import org.semanticweb.owlapi.reasoner.IndividualNodeSetPolicy;
+import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.Node;
+import org.semanticweb.owlapi.reasoner.NodeSet;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.OWLReasonerConfiguration;
+import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
+import org.semanticweb.owlapi.reasoner.ReasonerInterruptedException;
+import org.semanticweb.owlapi.reasoner.impl.OWLClassNode;
+import org.semanticweb.owlapi.reasoner.impl.OWLClassNodeSet;
+import org.semanticweb.owlapi.util.Version;
+
+/**
+ * Classifies an ontology by splitting its logical axioms into partitions that do not share any
+ * entities and classifying them concurrently, each with its own reasoner. The taxonomies of the
+ * partitions are stitched together under <i>owl:Thing</i> and their unsatisfiable classes are
+ * merged into a single bottom node, so the class hierarchy is the same as if the whole ontology
+ * had been classified at once.
+ *
+ * <p>Only the class hierarchy can be queried. The other methods throw
+ * {@link UnsupportedOperationException}. Changes to the ontology after it is classified are
+ * ignored.
+ */
+public class PartitionedReasoner implements OWLReasoner {
+
+  private static final Log log = LogFactory.getLog(PartitionedReasoner.class);
+
+  private final OWLOntology rootOntology;
+  private final List<OWLReasoner> reasoners;
+  private final Map<OWLClass, OWLReasoner> index = new HashMap<>();
+  private final Set<Node<OWLClass>> isolated = new HashSet<>();
+  private final Node<OWLClass> bottom;
+
+  // The children of Thing and the parents of the bottom node span all the partitions, so they are
+  // only merged once, indexed by the direct flag
+  private final NodeSet<OWLClass>[] thingSubClasses = newNodeSetArray();
+  private final NodeSet<OWLClass>[] bottomSuperClasses = newNodeSetArray();
+
+  private PartitionedReasoner(OWLOntology rootOntology, List<OWLReasoner> reasoners) {
+    this.rootOntology = rootOntology;
+    this.reasoners = reasoners;
+
+    final Set<OWLClass> unsatisfiable = new HashSet<>();
+    for (OWLReasoner reasoner : reasoners) {
+      for (OWLClass owlClass : reasoner.getRootOntology().getClassesInSignature()) {
+        index.put(owlClass, reasoner);
+      }
+      unsatisfiable.addAll(reasoner.getBottomClassNode().getEntities());
+    }
+    bottom = new OWLClassNode(unsatisfiable);
+
+    // Classes without logical axioms are direct children of Thing
+    for (OWLClass owlClass : rootOntology.getClassesInSignature(Imports.INCLUDED)) {
+      if (!index.containsKey(owlClass) && !owlClass.isOWLThing() && !owlClass.isOWLNothing()) {
+        isolated.add(new OWLClassNode(owlClass));
+      }
+    }
+  }
+
+  /**
+   * Classifies an ontology and its imports. The partitions are distributed among at most
+   * <i>threads</i> reasoners, balancing the number of axioms of each one. If the ontology cannot
+   * be split, is inconsistent, or has classes that are equivalent to <i>owl:Thing</i>, which
+   * would be ancestors of the classes of all the partitions, it is classified as a whole.
+   *
+   * @param ont The ontology.
+   * @param factory The factory used to create the reasoners.
+   * @param config The configuration of each reasoner.
+   * @param threads The maximum number of reasoners that classify partitions concurrently.
+   * @return A reasoner that has classified the ontology.
+   * @throws OWLOntologyCreationException If the ontologies of the partitions cannot be created.
+   */
+  public static OWLReasoner classify(OWLOntology ont, OWLReasonerFactory factory,
+      OWLReasonerConfiguration config, int threads) throws OWLOntologyCreationException {
+    final List<OWLAxiom> axioms = new ArrayList<>();
+    for (OWLOntology o : ont.getImportsClosure()) {
+      axioms.addAll(o.getLogicalAxioms());
+    }
+    final List<Set<OWLAxiom>> partitions = new AxiomPartitioner().partition(axioms);
+    final int numGroups = Math.min(threads, partitions.size());
+    if (numGroups < 2) {
+      log.info("The ontology cannot be split into independent partitions, so it is classified "
+          + "as a whole");
+      return classifyWhole(ont, factory, config);
+    }
+    log.info("Classifying " + partitions.size() + " independent partitions of the ontology "
+        + "with " + numGroups + " reasoners. The largest partition has "
+        + partitions.get(0).size() + " of the " + axioms.size() + " logical axioms.");
+    axioms.clear();
+
+    // Largest partitions first, each to the group with the fewest axioms
+    final List<Set<OWLAxiom>> groups = new ArrayList<>();
+    for (int i = 0; i < numGroups; i++) {
+      groups.add(new HashSet<>());
+    }
+    for (Set<OWLAxiom> partition : partitions) {
+      Set<OWLAxiom> smallest = groups.get(0);
+      for (Set<OWLAxiom> group : groups) {
+        if (group.size() < smallest.size()) {
+          smallest = group;
+        }
+      }
+      smallest.addAll(partition);
+    }
+    partitions.clear();
+
+    // Each partition has its own manager, so they are not added to the one of the ontology
+    final List<OWLReasoner> reasoners = new ArrayList<>();
+    final ExecutorService executor = Executors.newFixedThreadPool(numGroups);
+    try {
+      final List<Future<OWLReasoner>> futures = new ArrayList<>();
+      for (Set<OWLAxiom> group : groups) {
+        final OWLOntology partitionOnt = OWLManager.createOWLOntologyManager()
+            .createOntology(group);
+        futures.add(executor.submit(() -> {
+          final OWLReasoner reasoner = factory.createReasoner(partitionOnt, config);
+          reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+          return reasoner;
+        }));
+      }
+      groups.clear();
+      for (Future<OWLReasoner> future : futures) {
+        reasoners.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      dispose(reasoners);
+      throw new ReasonerInterruptedException(e);
+    } catch (ExecutionException e) {
+      dispose(reasoners);
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new OWLRuntimeException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (OWLReasoner reasoner : reasoners) {
+      if (!reasoner.isConsistent() || reasoner.getTopClassNode().getSize() > 1) {
+        log.info("A partition is inconsistent or has classes that are equivalent to owl:Thing, "
+            + "so the ontology is classified as a whole");
+        dispose(reasoners);
+        return classifyWhole(ont, factory, config);
+      }
+    }
+    return new PartitionedReasoner(ont, reasoners);
+  }
+
+  private static OWLReasoner classifyWhole(OWLOntology ont, OWLReasonerFactory factory,
+      OWLReasonerConfiguration config) {
+    final OWLReasoner reasoner = factory.createReasoner(ont, config);
+    reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+    return reasoner;
+  }
+
+  private static void dispose(List<OWLReasoner> reasoners) {
+    for (OWLReasoner reasoner : reasoners) {
+      reasoner.dispose();
+    }
+  }
+
+  @Override
+  public String getReasonerName() {
+    return "Partitioned " + reasoners.get(0).getReasonerName();
+  }
+
+  @Override
+  public Version getReasonerVersion() {
+    return reasoners.get(0).getReasonerVersion();
+  }
+
+  @Override
+  public BufferingMode getBufferingMode() {
+    return BufferingMode.BUFFERING;
+  }
+
+  @Override
+  public void flush() {
+    // Changes are ignored
+  }
+
+  @Override
+  public List<OWLOntologyChange> getPendingChanges() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public Set<OWLAxiom> getPendingAxiomAdditions() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public Set<OWLAxiom> getPendingAxiomRemovals() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public OWLOntology getRootOntology() {
+    return rootOntology;
+  }
+
+  @Override
+  public void interrupt() {
+    for (OWLReasoner reasoner : reasoners) {
+      reasoner.interrupt();
+    }
+  }
+
+  @Override
+  public void precomputeInferences(InferenceType... inferenceTypes) {
+    // The class hierarchy is computed when the reasoner is created
+  }
+
+  @Override
+  public boolean isPrecomputed(InferenceType inferenceType) {
+    return inferenceType == InferenceType.CLASS_HIERARCHY;
+  }
+
+  @Override
+  public Set<InferenceType> getPrecomputableInferenceTypes() {
+    return EnumSet.of(InferenceType.CLASS_HIERARCHY);
+  }
+
+  @Override
+  public boolean isConsistent() {
+    return true;
+  }
+
+  @Override
+  public boolean isSatisfiable(OWLClassExpression classExpression) {
+    return !bottom.contains(asClass(classExpression));
+  }
+
+  @Override
+  public Node<OWLClass> getUnsatisfiableClasses() {
+    return bottom;
+  }
+
+  @Override
+  public Node<OWLClass> getTopClassNode() {
+    return OWLClassNode.getTopNode();
+  }
+
+  @Override
+  public Node<OWLClass> getBottomClassNode() {
+    return bottom;
+  }
+
+  @Override
+  public NodeSet<OWLClass> getSubClasses(OWLClassExpression ce, boolean direct) {
+    final OWLClass owlClass = asClass(ce);
+    if (bottom.contains(owlClass)) {
+      return new OWLClassNodeSet();
+    } else if (owlClass.isOWLThing()) {
+      final int idx = direct ? 1 : 0;
+      if (thingSubClasses[idx] != null) {
+        return thingSubClasses[idx];
+      }
+      
+      // The bottom node is only a direct child of Thing if all the classes are unsatisfiable
+      final Set<Node<OWLClass>> nodes = new HashSet<>(isolated);
+      for (OWLReasoner reasoner : reasoners) {
+        for (Node<OWLClass> node : reasoner.getSubClasses(owlClass, direct)) {
+          if (!node.isBottomNode()) {
+            nodes.add(node);
+          }
+        }
+      }
+      if (!direct || nodes.isEmpty()) {
+        nodes.add(bottom);
+      }
+      thingSubClasses[idx] = new OWLClassNodeSet(nodes);
+      return thingSubClasses[idx];
+    }
+    final OWLReasoner reasoner = index.get(owlClass);
+    if (reasoner == null) {
+      return new OWLClassNodeSet(bottom);
+    }
+    return stitch(reasoner.getSubClasses(owlClass, direct));
+  }
+
+  @Override
+  public NodeSet<OWLClass> getSuperClasses(OWLClassExpression ce, boolean direct) {
+    final OWLClass owlClass = asClass(ce);
+    if (owlClass.isOWLThing()) {
+      return new OWLClassNodeSet();
+    } else if (bottom.contains(owlClass)) {
+      final int idx = direct ? 1 : 0;
+      if (bottomSuperClasses[idx] != null) {
+        return bottomSuperClasses[idx];
+      }
+      
+      // Thing is only a direct parent of the bottom node if all the classes are unsatisfiable
+      final Set<Node<OWLClass>> nodes = new HashSet<>(isolated);
+      for (OWLReasoner reasoner : reasoners) {
+        for (Node<OWLClass> node : reasoner.getSuperClasses(
+            reasoner.getBottomClassNode().getRepresentativeElement(), direct)) {
+          if (!node.isTopNode()) {
+            nodes.add(node);
+          }
+        }
+      }
+      if (!direct || nodes.isEmpty()) {
+        nodes.add(OWLClassNode.getTopNode());
+      }
+      bottomSuperClasses[idx] = new OWLClassNodeSet(nodes);
+      return bottomSuperClasses[idx];
+    }
+    final OWLReasoner reasoner = index.get(owlClass);
+    if (reasoner == null) {
+      return new OWLClassNodeSet(OWLClassNode.getTopNode());
+    }
+    return reasoner.getSuperClasses(owlClass, direct);
+  }
+
+  @Override
+  public Node<OWLClass> getEquivalentClasses(OWLClassExpression ce) {
+    final OWLClass owlClass = asClass(ce);
+    if (owlClass.isOWLThing()) {
+      return OWLClassNode.getTopNode();
+    } else if (bottom.contains(owlClass)) {
+      return bottom;
+    }
+    final OWLReasoner reasoner = index.get(owlClass);
+    if (reasoner == null) {
+      return new OWLClassNode(owlClass);
+    }
+    return reasoner.getEquivalentClasses(owlClass);
+  }
+
+  @Override
+  public long getTimeOut() {
+    return reasoners.get(0).getTimeOut();
+  }
+
+  @Override
+  public FreshEntityPolicy getFreshEntityPolicy() {
+    return FreshEntityPolicy.ALLOW;
+  }
+
+  @Override
+  public IndividualNodeSetPolicy getIndividualNodeSetPolicy() {
+    return IndividualNodeSetPolicy.BY_NAME;
+  }
+
+  @Override
+  public void dispose() {
+    dispose(reasoners);
+  }
+
+  /**
+   * Replaces the bottom node of a partition with the one that has the unsatisfiable classes of
+   * all of them.
+   */
+  private NodeSet<OWLClass> stitch(NodeSet<OWLClass> nodes) {
+    final Set<Node<OWLClass>> res = new HashSet<>();
+    for (Node<OWLClass> node : nodes) {
+      res.add(node.isBottomNode() ? bottom : node);
+    }
+    return new OWLClassNodeSet(res);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static NodeSet<OWLClass>[] newNodeSetArray() {
+    return new NodeSet[2];
+  }
+
+  private static OWLClass asClass(OWLClassExpression ce) {
+    if (ce.isAnonymous()) {
+      throw new UnsupportedOperationException("Only named classes can be queried when the "
+          + "ontology is classified in partitions.");
+    }
+    return ce.asOWLClass();
+  }
+
+  private static UnsupportedOperationException unsupported() {
+    return new UnsupportedOperationException("Only the class hierarchy can be queried when the "
+        + "ontology is classified in partitions.");
+  }
+
+  @Override
+  public boolean isEntailed(OWLAxiom axiom) {
+    throw unsupported();
+  }
+
+  @Override
+  public boolean isEntailed(Set<? extends OWLAxiom> axioms) {
+    throw unsupported();
+  }
+
+  @Override
+  public boolean isEntailmentCheckingSupported(AxiomType<?> axiomType) {
+    return false;
+  }
+
+  @Override
+  public NodeSet<OWLClass> getDisjointClasses(OWLClassExpression ce) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getTopObjectPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getBottomObjectPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getSubObjectProperties(
+      OWLObjectPropertyExpression pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getSuperObjectProperties(
+      OWLObjectPropertyExpression pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getEquivalentObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getDisjointObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getInverseObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getObjectPropertyDomains(OWLObjectPropertyExpression pe,
+      boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getObjectPropertyRanges(OWLObjectPropertyExpression pe,
+      boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLDataProperty> getTopDataPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLDataProperty> getBottomDataPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getSubDataProperties(OWLDataProperty pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getSuperDataProperties(OWLDataProperty pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLDataProperty> getEquivalentDataProperties(OWLDataProperty pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getDisjointDataProperties(OWLDataPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getDataPropertyDomains(OWLDataProperty pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getTypes(OWLNamedIndividual ind, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getInstances(OWLClassExpression ce, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getObjectPropertyValues(OWLNamedIndividual ind,
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public Set<OWLLiteral> getDataPropertyValues(OWLNamedIndividual ind, OWLDataProperty pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLNamedIndividual> getSameIndividuals(OWLNamedIndividual ind) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getDifferentIndividuals(OWLNamedIndividual ind) {
+    throw unsupported();
+  }
+
+}
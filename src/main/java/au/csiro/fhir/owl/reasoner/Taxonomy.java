@@ -0,0 +1,317 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.reasoner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.reasoner.Node;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+
+/**
+ * The classified class hierarchy of an ontology, as a graph of nodes of equivalent classes that
+ * is independent of the reasoner that computed it, so it can be kept after the reasoner is
+ * disposed and stored in a file.
+ *
+ * <p>Node {@link #TOP} has <i>owl:Thing</i> and node {@link #BOTTOM} has <i>owl:Nothing</i> and
+ * the unsatisfiable classes. As in the OWL API, the bottom node is the only child of the nodes
+ * that have no other children.
+ */
+public class Taxonomy {
+
+  /**
+   * The index of the node of <i>owl:Thing</i>.
+   */
+  public static final int TOP = 0;
+
+  /**
+   * The index of the node of <i>owl:Nothing</i>.
+   */
+  public static final int BOTTOM = 1;
+
+  private static final String HEADER = "fhir-owl-taxonomy 1";
+
+  private static final int[] NONE = new int[0];
+
+  private final List<Set<OWLClass>> nodes;
+  private final int[][] parents;
+  private final int[][] children;
+  private final Map<OWLClass, Integer> index = new HashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param nodes The classes of each node, starting with the top and bottom nodes.
+   * @param parents The indexes of the direct parents of each node. The parents of the top and
+   *     bottom nodes are ignored, and nodes without parents are children of the top node.
+   */
+  Taxonomy(List<Set<OWLClass>> nodes, List<int[]> parents) {
+    this.nodes = nodes;
+    this.parents = new int[nodes.size()][];
+    final int[] numChildren = new int[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++) {
+      for (OWLClass owlClass : nodes.get(i)) {
+        index.put(owlClass, i);
+      }
+      if (i == TOP || i == BOTTOM) {
+        this.parents[i] = NONE;
+        continue;
+      }
+      int[] nodeParents = parents.get(i);
+      if (nodeParents.length == 0) {
+        nodeParents = new int[] { TOP };
+      }
+      this.parents[i] = nodeParents;
+      for (int parent : nodeParents) {
+        numChildren[parent]++;
+      }
+    }
+
+    // The nodes without children are the parents of the bottom node
+    this.children = new int[nodes.size()][];
+    final List<Integer> leaves = new ArrayList<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      if (i == BOTTOM) {
+        children[i] = NONE;
+      } else if (numChildren[i] == 0) {
+        children[i] = new int[] { BOTTOM };
+        leaves.add(i);
+      } else {
+        children[i] = new int[numChildren[i]];
+      }
+    }
+    for (int i = 0; i < nodes.size(); i++) {
+      for (int parent : this.parents[i]) {
+        children[parent][--numChildren[parent]] = i;
+      }
+    }
+    this.parents[BOTTOM] = new int[leaves.size()];
+    for (int i = 0; i < leaves.size(); i++) {
+      this.parents[BOTTOM][i] = leaves.get(i);
+    }
+  }
+
+  /**
+   * Copies the class hierarchy computed by a reasoner.
+   *
+   * @param reasoner The reasoner, after classification.
+   * @param classes The classes in the hierarchy. The classes that are equivalent to them and
+   *     their ancestors are also included.
+   * @return The taxonomy.
+   */
+  public static Taxonomy fromReasoner(OWLReasoner reasoner, Set<OWLClass> classes) {
+    final List<Set<OWLClass>> nodes = new ArrayList<>();
+    final Map<OWLClass, Integer> index = new HashMap<>();
+    final Deque<Integer> pending = new ArrayDeque<>();
+    addNode(reasoner.getTopClassNode(), nodes, index, pending);
+    addNode(reasoner.getBottomClassNode(), nodes, index, pending);
+    pending.clear();
+    for (OWLClass owlClass : classes) {
+      if (!index.containsKey(owlClass)) {
+        addNode(reasoner.getEquivalentClasses(owlClass), nodes, index, pending);
+      }
+    }
+
+    final List<int[]> parents = new ArrayList<>(Collections.nCopies(nodes.size(), NONE));
+    while (!pending.isEmpty()) {
+      final int i = pending.pop();
+      final Set<Integer> nodeParents = new LinkedHashSet<>();
+      final OWLClass representative = nodes.get(i).iterator().next();
+      for (Node<OWLClass> parent : reasoner.getSuperClasses(representative, true)) {
+        Integer parentIdx = index.get(parent.getRepresentativeElement());
+        if (parentIdx == null) {
+          parentIdx = addNode(parent, nodes, index, pending);
+          parents.add(NONE);
+        }
+        nodeParents.add(parentIdx);
+      }
+      parents.set(i, toArray(nodeParents));
+    }
+    return new Taxonomy(nodes, parents);
+  }
+
+  /**
+   * Reads a taxonomy from a file written by {@link #write(File)}.
+   *
+   * @param file The file.
+   * @param factory The factory used to create the classes.
+   * @return The taxonomy.
+   * @throws IOException If the file cannot be read or is not a taxonomy.
+   */
+  public static Taxonomy read(File file, OWLDataFactory factory) throws IOException {
+    final List<Set<OWLClass>> nodes = new ArrayList<>();
+    final List<int[]> parents = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(new FileInputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+      if (!HEADER.equals(reader.readLine())) {
+        throw new IOException("File " + file + " is not a taxonomy.");
+      }
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        final int tab = line.indexOf('\t');
+        if (tab < 0) {
+          throw new IOException("Invalid line in taxonomy " + file + ": " + line);
+        }
+        final Set<OWLClass> classes = new HashSet<>();
+        for (String iri : line.substring(tab + 1).split(" ")) {
+          classes.add(factory.getOWLClass(IRI.create(iri)));
+        }
+        nodes.add(classes);
+        parents.add(tab == 0 ? NONE : parseInts(line.substring(0, tab)));
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid parent in taxonomy " + file + ": " + e.getMessage());
+    }
+    if (nodes.size() < 2) {
+      throw new IOException("Taxonomy " + file + " has no top and bottom nodes.");
+    }
+    for (int[] nodeParents : parents) {
+      for (int parent : nodeParents) {
+        if (parent < 0 || parent >= nodes.size() || parent == BOTTOM) {
+          throw new IOException("Invalid parent in taxonomy " + file + ": " + parent);
+        }
+      }
+    }
+    return new Taxonomy(nodes, parents);
+  }
+
+  /**
+   * Writes the taxonomy to a compressed text file with one line per node, with the indexes of its
+   * parents and the IRIs of its classes.
+   *
+   * @param file The file.
+   * @throws IOException If the file cannot be written.
+   */
+  public void write(File file) throws IOException {
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new GZIPOutputStream(new FileOutputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+      writer.write(HEADER);
+      writer.write('\n');
+      for (int i = 0; i < nodes.size(); i++) {
+        if (i != TOP && i != BOTTOM) {
+          for (int j = 0; j < parents[i].length; j++) {
+            if (j > 0) {
+              writer.write(',');
+            }
+            writer.write(Integer.toString(parents[i][j]));
+          }
+        }
+        writer.write('\t');
+        boolean first = true;
+        for (OWLClass owlClass : nodes.get(i)) {
+          if (!first) {
+            writer.write(' ');
+          }
+          writer.write(owlClass.getIRI().toString());
+          first = false;
+        }
+        writer.write('\n');
+      }
+    }
+  }
+
+  /**
+   * Returns the number of nodes.
+   *
+   * @return The number of nodes.
+   */
+  public int size() {
+    return nodes.size();
+  }
+
+  /**
+   * Returns the node of a class.
+   *
+   * @param owlClass The class.
+   * @return The index of the node, or -1 if the class is not in the taxonomy.
+   */
+  public int getNode(OWLClass owlClass) {
+    final Integer res = index.get(owlClass);
+    return res != null ? res : -1;
+  }
+
+  /**
+   * Returns the classes of a node.
+   *
+   * @param node The index of the node.
+   * @return The equivalent classes in the node.
+   */
+  public Set<OWLClass> getClasses(int node) {
+    return Collections.unmodifiableSet(nodes.get(node));
+  }
+
+  /**
+   * Returns the direct parents of a node.
+   *
+   * @param node The index of the node.
+   * @return The indexes of the parents. Empty for the top node.
+   */
+  public int[] getParents(int node) {
+    return parents[node];
+  }
+
+  /**
+   * Returns the direct children of a node.
+   *
+   * @param node The index of the node.
+   * @return The indexes of the children. Empty for the bottom node.
+   */
+  public int[] getChildren(int node) {
+    return children[node];
+  }
+
+  private static int addNode(Node<OWLClass> node, List<Set<OWLClass>> nodes,
+      Map<OWLClass, Integer> index, Deque<Integer> pending) {
+    final int res = nodes.size();
+    nodes.add(new HashSet<>(node.getEntities()));
+    for (OWLClass owlClass : node.getEntities()) {
+      index.put(owlClass, res);
+    }
+    pending.push(res);
+    return res;
+  }
+
+  private static int[] parseInts(String s) {
+    final String[] parts = s.split(",");
+    final int[] res = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      res[i] = Integer.parseInt(parts[i]);
+    }
+    return res;
+  }
+
+  private static int[] toArray(Set<Integer> values) {
+    final int[] res = new int[values.size()];
+    int i = 0;
+    for (int value : values) {
+      res[i++] = value;
+    }
+    return res;
+  }
+
+}
@@ -0,0 +1,492 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.reasoner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.clarkparsia.owlapi.modularity.locality.LocalityClass;
+import com.clarkparsia.owlapi.modularity.locality.SyntacticLocalityEvaluator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLEntity;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.OWLReasonerConfiguration;
+import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
+import org.semanticweb.owlapi.reasoner.ReasonerInterruptedException;
+
+import uk.ac.manchester.cs.owlapi.modularity.ModuleType;
+import uk.ac.manchester.cs.owlapi.modularity.SyntacticLocalityModuleExtractor;
+
+/**
+ * Reuses the classification of the imports of an ontology, so ontologies that import the same
+ * modules only classify them once. The imports are identified by their logical axioms and
+ * declarations.
+ *
+ * <p>The reasoner that classified the imports most recently is kept, with the axioms of the last
+ * importing ontology. The next ontology with the same imports is classified incrementally: the
+ * axioms of the previous one are removed and its own axioms are added, and the reasoner only
+ * reclassifies the part of the hierarchy that they affect. The reasoner must support incremental
+ * reasoning, e.g. ELK with incremental mode allowed, or it will classify from scratch. Because
+ * incremental classification can be slower than classifying from scratch, it is interrupted if it
+ * takes longer than classifying the imports did.
+ *
+ * <p>The taxonomies of the imports are also kept in memory and stored in the cache directory, so
+ * they can be reused in later runs, when the reasoner is not available. They can only be reused
+ * if the axioms of the importing ontology cannot change the hierarchy of the imported classes,
+ * which is the case when all of them are syntactically bottom-local with respect to the
+ * signature of the imports, e.g. <i>SubClassOf(A, B)</i> where <i>A</i> is a new class. Then only
+ * the bottom module of the new classes is classified, which includes all their ancestors, and its
+ * taxonomy is merged with the one of the imports. Otherwise the imports are classified again.
+ * The stored taxonomies are named after the SHA-256 digest of the axioms of the imports.
+ */
+public class TaxonomyCache {
+
+  private static final Log log = LogFactory.getLog(TaxonomyCache.class);
+
+  /**
+   * The maximum number of taxonomies that are kept in memory.
+   */
+  private static final int MAX_TAXONOMIES = 4;
+
+  /**
+   * The minimum time given to incremental classification, so it is not interrupted because of
+   * timing noise when the imports are small.
+   */
+  private static final long MIN_INCREMENTAL_MILLIS = 1000;
+
+  private final File cacheDir;
+
+  private final Map<String, Taxonomy> taxonomies = new LinkedHashMap<String, Taxonomy>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Taxonomy> eldest) {
+      return size() > MAX_TAXONOMIES;
+    }
+  };
+
+  // The reasoner that classified the imports most recently, their axioms and taxonomy and the
+  // axioms it has been given on top of them
+  private Set<OWLAxiom> liveImported;
+  private Taxonomy liveTaxonomy;
+  private OWLOntology liveOnt;
+  private OWLReasoner liveReasoner;
+  private Set<OWLAxiom> liveAdded = Collections.emptySet();
+  private long liveMillis;
+
+  /**
+   * Constructor.
+   *
+   * @param cacheDir The directory where the taxonomies are stored.
+   */
+  public TaxonomyCache(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * Classifies an ontology, reusing the classification of its imports if possible.
+   *
+   * @param ont The ontology.
+   * @param factory The factory used to create the reasoners.
+   * @param config The configuration of the reasoners.
+   * @return A reasoner that has classified the ontology, or null if the ontology has no imports,
+   *     is inconsistent or took too long to classify incrementally, so it has to be classified as
+   *     usual.
+   * @throws OWLOntologyCreationException If the ontologies given to the reasoners cannot be
+   *     created.
+   */
+  public synchronized OWLReasoner classify(OWLOntology ont, OWLReasonerFactory factory,
+      OWLReasonerConfiguration config) throws OWLOntologyCreationException {
+    final Set<OWLAxiom> imported = new HashSet<>();
+    for (OWLOntology o : ont.getImportsClosure()) {
+      if (!o.equals(ont)) {
+        addClassificationAxioms(o, imported);
+      }
+    }
+    if (imported.isEmpty()) {
+      return null;
+    }
+    final Set<OWLAxiom> own = new HashSet<>();
+    addClassificationAxioms(ont, own);
+    own.removeAll(imported);
+
+    Taxonomy res;
+    if (imported.equals(liveImported)) {
+      // Removing the axioms of the previous ontology from the reasoner can be costly, so the
+      // module is classified instead when possible
+      res = null;
+      if (isLocal(own, imported)) {
+        log.info("Reusing the classification of the imports, which cannot be changed by the "
+            + "axioms of the ontology");
+        res = classifyModule(liveTaxonomy, imported, own, factory, config);
+      }
+      if (res == null) {
+        log.info("Classifying the ontology incrementally on top of the classification of its "
+            + "imports");
+        res = classifyIncrementally(own);
+      }
+    } else {
+      final String key = digest(imported);
+      final Taxonomy importsTaxonomy = getTaxonomy(key, ont);
+      res = null;
+      if (importsTaxonomy != null && isLocal(own, imported)) {
+        log.info("Reusing the cached classification of the imports, which cannot be changed by "
+            + "the axioms of the ontology");
+        res = classifyModule(importsTaxonomy, imported, own, factory, config);
+      }
+      if (res == null) {
+        log.info("Classifying the imports of the ontology, " + imported.size() + " axioms");
+        if (!classifyImports(key, imported, importsTaxonomy, factory, config)) {
+          return null;
+        }
+        log.info("Classifying the ontology incrementally on top of the classification of its "
+            + "imports");
+        res = classifyIncrementally(own);
+      }
+    }
+    return res != null ? new TaxonomyReasoner(ont, res) : null;
+  }
+
+  /**
+   * Replaces the reasoner that is kept with one that has classified the imports. Their taxonomy
+   * is stored if it was not cached.
+   *
+   * @return False if the imports are inconsistent.
+   */
+  private boolean classifyImports(String key, Set<OWLAxiom> imported, Taxonomy importsTaxonomy,
+      OWLReasonerFactory factory, OWLReasonerConfiguration config)
+      throws OWLOntologyCreationException {
+    discardReasoner();
+    liveOnt = OWLManager.createOWLOntologyManager().createOntology(imported);
+    final long start = System.currentTimeMillis();
+    final OWLReasoner reasoner = factory.createReasoner(liveOnt, config);
+    reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+    liveMillis = System.currentTimeMillis() - start;
+    if (!reasoner.isConsistent()) {
+      reasoner.dispose();
+      liveOnt = null;
+      return false;
+    }
+    if (importsTaxonomy == null) {
+      importsTaxonomy = Taxonomy.fromReasoner(reasoner, liveOnt.getClassesInSignature());
+      storeTaxonomy(key, importsTaxonomy);
+    }
+    liveImported = imported;
+    liveTaxonomy = importsTaxonomy;
+    liveReasoner = reasoner;
+    return true;
+  }
+
+  private void discardReasoner() {
+    if (liveReasoner != null) {
+      liveReasoner.dispose();
+    }
+    liveImported = null;
+    liveTaxonomy = null;
+    liveOnt = null;
+    liveReasoner = null;
+    liveAdded = Collections.emptySet();
+  }
+
+  /**
+   * Replaces the axioms that were added to the imports in the reasoner that is kept with the
+   * axioms of the ontology and classifies them. Incremental classification is usually much faster
+   * than classifying from scratch, but not always, e.g. when the changes affect many classes
+   * through transitive properties. It is interrupted if it takes longer than classifying the
+   * imports did, and then the reasoner is discarded.
+   *
+   * @return The taxonomy of the ontology, or null if it is inconsistent or classification was
+   *     interrupted.
+   */
+  private Taxonomy classifyIncrementally(Set<OWLAxiom> own) {
+    final Set<OWLAxiom> removed = new HashSet<>(liveAdded);
+    removed.removeAll(own);
+    final Set<OWLAxiom> added = new HashSet<>(own);
+    added.removeAll(liveAdded);
+    log.info("Removing " + removed.size() + " axioms and adding " + added.size());
+
+    final OWLOntologyManager manager = liveOnt.getOWLOntologyManager();
+    manager.removeAxioms(liveOnt, removed);
+    manager.addAxioms(liveOnt, added);
+    liveAdded = own;
+
+    final OWLReasoner reasoner = liveReasoner;
+    final boolean[] finished = { false };
+    final Timer timer = new Timer("incremental-timeout", true);
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        synchronized (finished) {
+          if (!finished[0]) {
+            reasoner.interrupt();
+          }
+        }
+      }
+    }, Math.max(liveMillis, MIN_INCREMENTAL_MILLIS));
+    try {
+      reasoner.flush();
+      reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+      synchronized (finished) {
+        finished[0] = true;
+      }
+    } catch (ReasonerInterruptedException e) {
+      log.info("Incremental classification took longer than classifying the imports, so the "
+          + "ontology is classified from scratch");
+      discardReasoner();
+      return null;
+    } finally {
+      timer.cancel();
+    }
+    if (!reasoner.isConsistent()) {
+      return null;
+    }
+    return Taxonomy.fromReasoner(reasoner, liveOnt.getClassesInSignature());
+  }
+
+  /**
+   * Classifies the bottom module of the classes that are not in the imports and merges its
+   * taxonomy with the one of the imports. The axioms of the ontology must be local with respect
+   * to the signature of the imports.
+   *
+   * @return The taxonomy of the ontology, or null if it is inconsistent or the module unexpectedly
+   *     changes the hierarchy of the imported classes.
+   */
+  private Taxonomy classifyModule(Taxonomy importsTaxonomy, Set<OWLAxiom> imported,
+      Set<OWLAxiom> own, OWLReasonerFactory factory, OWLReasonerConfiguration config)
+      throws OWLOntologyCreationException {
+    final Set<OWLEntity> newClasses = new HashSet<>();
+    final Set<OWLAxiom> logicalAxioms = new HashSet<>();
+    final Set<OWLAxiom> declarations = new HashSet<>();
+    for (OWLAxiom axiom : own) {
+      for (OWLClass owlClass : axiom.getClassesInSignature()) {
+        if (importsTaxonomy.getNode(owlClass) < 0) {
+          newClasses.add(owlClass);
+        }
+      }
+      (axiom.isLogicalAxiom() ? logicalAxioms : declarations).add(axiom);
+    }
+    for (OWLAxiom axiom : imported) {
+      if (axiom.isLogicalAxiom()) {
+        logicalAxioms.add(axiom);
+      }
+    }
+
+    final OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    final SyntacticLocalityModuleExtractor extractor = new SyntacticLocalityModuleExtractor(
+        manager, (IRI) null, logicalAxioms, ModuleType.BOT);
+    final Set<OWLAxiom> module = extractor.extract(newClasses);
+    log.info("Classifying the module of the " + newClasses.size() + " new classes, "
+        + module.size() + " logical axioms");
+    module.addAll(declarations);
+    final OWLOntology moduleOnt = manager.createOntology(module);
+    final OWLReasoner reasoner = factory.createReasoner(moduleOnt, config);
+    try {
+      reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+      if (!reasoner.isConsistent()) {
+        return null;
+      }
+      final Taxonomy moduleTaxonomy = Taxonomy.fromReasoner(reasoner,
+          moduleOnt.getClassesInSignature());
+      return merge(importsTaxonomy, moduleTaxonomy);
+    } finally {
+      reasoner.dispose();
+    }
+  }
+
+  /**
+   * Adds the nodes of the new classes of a module to the taxonomy of the imports. The new classes
+   * cannot be equivalent to or ancestors of imported classes, so the imported nodes keep their
+   * parents.
+   *
+   * @return The merged taxonomy, or null if the module contradicts the taxonomy of the imports.
+   */
+  private static Taxonomy merge(Taxonomy importsTaxonomy, Taxonomy moduleTaxonomy) {
+    final List<Set<OWLClass>> nodes = new ArrayList<>();
+    final List<int[]> parents = new ArrayList<>();
+    for (int i = 0; i < importsTaxonomy.size(); i++) {
+      nodes.add(new HashSet<>(importsTaxonomy.getClasses(i)));
+      parents.add(importsTaxonomy.getParents(i));
+    }
+
+    // The nodes of the module are mapped to the nodes of the imported classes or to new nodes
+    final int[] mapping = new int[moduleTaxonomy.size()];
+    for (int i = 0; i < moduleTaxonomy.size(); i++) {
+      int imported = -1;
+      final Set<OWLClass> newClasses = new HashSet<>();
+      for (OWLClass owlClass : moduleTaxonomy.getClasses(i)) {
+        final int node = importsTaxonomy.getNode(owlClass);
+        if (node < 0) {
+          newClasses.add(owlClass);
+        } else if (imported < 0) {
+          imported = node;
+        } else if (imported != node) {
+          return null;
+        }
+      }
+      if (i == Taxonomy.BOTTOM) {
+        if (imported >= 0 && imported != Taxonomy.BOTTOM) {
+          return null;
+        }
+        nodes.get(Taxonomy.BOTTOM).addAll(newClasses);
+        mapping[i] = Taxonomy.BOTTOM;
+      } else if (imported >= 0) {
+        if (!newClasses.isEmpty() || imported == Taxonomy.BOTTOM) {
+          return null;
+        }
+        mapping[i] = imported;
+      } else {
+        mapping[i] = nodes.size();
+        nodes.add(newClasses);
+        parents.add(null);
+      }
+    }
+    for (int i = 0; i < moduleTaxonomy.size(); i++) {
+      if (mapping[i] >= importsTaxonomy.size()) {
+        final int[] moduleParents = moduleTaxonomy.getParents(i);
+        final int[] nodeParents = new int[moduleParents.length];
+        for (int j = 0; j < moduleParents.length; j++) {
+          nodeParents[j] = mapping[moduleParents[j]];
+        }
+        parents.set(mapping[i], nodeParents);
+      }
+    }
+    return new Taxonomy(nodes, parents);
+  }
+
+  /**
+   * Returns the taxonomy of the imports from memory or from the cache directory.
+   */
+  private Taxonomy getTaxonomy(String key, OWLOntology ont) {
+    Taxonomy res = taxonomies.get(key);
+    if (res != null) {
+      return res;
+    }
+    final File file = getFile(key);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      res = Taxonomy.read(file, ont.getOWLOntologyManager().getOWLDataFactory());
+      log.info("Read the classification of the imports from " + file);
+      taxonomies.put(key, res);
+      return res;
+    } catch (IOException e) {
+      log.warn("Unable to read the classification of the imports from " + file + ": "
+          + e.getMessage());
+      return null;
+    }
+  }
+
+  private void storeTaxonomy(String key, Taxonomy taxonomy) {
+    taxonomies.put(key, taxonomy);
+    final File file = getFile(key);
+    File tmp = null;
+    try {
+      Files.createDirectories(cacheDir.toPath());
+      tmp = File.createTempFile("taxonomy", ".tmp", cacheDir);
+      taxonomy.write(tmp);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      log.info("Stored the classification of the imports in " + file);
+    } catch (IOException e) {
+      log.warn("Unable to store the classification of the imports in " + file + ": "
+          + e.getMessage());
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private File getFile(String key) {
+    return new File(cacheDir, key + ".txt.gz");
+  }
+
+  /**
+   * Adds the axioms of an ontology that are used for classification, without their annotations.
+   */
+  private static void addClassificationAxioms(OWLOntology ont, Set<OWLAxiom> axioms) {
+    for (OWLAxiom axiom : ont.getLogicalAxioms()) {
+      axioms.add(axiom.getAxiomWithoutAnnotations());
+    }
+    for (OWLAxiom axiom : ont.getAxioms(AxiomType.DECLARATION)) {
+      axioms.add(axiom.getAxiomWithoutAnnotations());
+    }
+  }
+
+  /**
+   * Checks if all the logical axioms of the ontology are bottom-local with respect to the
+   * signature of the imports, so they are satisfied when the new classes and properties are
+   * empty and cannot change the hierarchy of the imported classes.
+   */
+  private static boolean isLocal(Set<OWLAxiom> own, Set<OWLAxiom> imported) {
+    final Set<OWLEntity> signature = new HashSet<>();
+    for (OWLAxiom axiom : imported) {
+      signature.addAll(axiom.getSignature());
+    }
+    final SyntacticLocalityEvaluator evaluator = new SyntacticLocalityEvaluator(
+        LocalityClass.BOTTOM_BOTTOM);
+    for (OWLAxiom axiom : own) {
+      if (axiom.isLogicalAxiom() && !evaluator.isLocal(axiom, signature)) {
+        log.info("The axioms of the ontology can change the hierarchy of the imported classes, "
+            + "e.g. " + axiom);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the SHA-256 digest of the axioms, in hex, independently of their order.
+   */
+  private static String digest(Set<OWLAxiom> axioms) {
+    final List<String> strings = new ArrayList<>(axioms.size());
+    for (OWLAxiom axiom : axioms) {
+      strings.add(axiom.toString());
+    }
+    Collections.sort(strings);
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    for (String s : strings) {
+      md.update(s.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) '\n');
+    }
+    final StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.reasoner;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLDataProperty;
+import org.semanticweb.owlapi.model.OWLDataPropertyExpression;
+import org.semanticweb.owlapi.model.OWLLiteral;
+import org.semanticweb.owlapi.model.OWLNamedIndividual;
+import org.semanticweb.owlapi.model.OWLObjectPropertyExpression;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.reasoner.BufferingMode;
+import org.semanticweb.owlapi.reasoner.FreshEntityPolicy;
+import org.semanticweb.owlapi.reasoner.IndividualNodeSetPolicy;
+import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.Node;
+import org.semanticweb.owlapi.reasoner.NodeSet;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+import org.semanticweb.owlapi.reasoner.impl.OWLClassNode;
+import org.semanticweb.owlapi.reasoner.impl.OWLClassNodeSet;
+import org.semanticweb.owlapi.util.Version;
+
+/**
+ * Answers queries about the class hierarchy of an ontology from a {@link Taxonomy} that was
+ * computed beforehand, e.g. by reusing the classification of its imports.
+ *
+ * <p>Only the class hierarchy can be queried. The other methods throw
+ * {@link UnsupportedOperationException}. Changes to the ontology are ignored.
+ */
+public class TaxonomyReasoner implements OWLReasoner {
+
+  private final OWLOntology rootOntology;
+  private final Taxonomy taxonomy;
+  private final Node<OWLClass>[] nodes;
+
+  /**
+   * Constructor.
+   *
+   * @param rootOntology The ontology whose classes are in the taxonomy.
+   * @param taxonomy The classified class hierarchy of the ontology.
+   */
+  @SuppressWarnings("unchecked")
+  public TaxonomyReasoner(OWLOntology rootOntology, Taxonomy taxonomy) {
+    this.rootOntology = rootOntology;
+    this.taxonomy = taxonomy;
+    this.nodes = new Node[taxonomy.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = new OWLClassNode(taxonomy.getClasses(i));
+    }
+  }
+
+  @Override
+  public String getReasonerName() {
+    return "Taxonomy";
+  }
+
+  @Override
+  public Version getReasonerVersion() {
+    return new Version(1, 0, 0, 0);
+  }
+
+  @Override
+  public BufferingMode getBufferingMode() {
+    return BufferingMode.BUFFERING;
+  }
+
+  @Override
+  public void flush() {
+    // Changes are ignored
+  }
+
+  @Override
+  public List<OWLOntologyChange> getPendingChanges() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public Set<OWLAxiom> getPendingAxiomAdditions() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public Set<OWLAxiom> getPendingAxiomRemovals() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public OWLOntology getRootOntology() {
+    return rootOntology;
+  }
+
+  @Override
+  public void interrupt() {
+    // Queries are answered without reasoning
+  }
+
+  @Override
+  public void precomputeInferences(InferenceType... inferenceTypes) {
+    // The class hierarchy is computed beforehand
+  }
+
+  @Override
+  public boolean isPrecomputed(InferenceType inferenceType) {
+    return inferenceType == InferenceType.CLASS_HIERARCHY;
+  }
+
+  @Override
+  public Set<InferenceType> getPrecomputableInferenceTypes() {
+    return EnumSet.of(InferenceType.CLASS_HIERARCHY);
+  }
+
+  @Override
+  public boolean isConsistent() {
+    return true;
+  }
+
+  @Override
+  public boolean isSatisfiable(OWLClassExpression classExpression) {
+    return taxonomy.getNode(asClass(classExpression)) != Taxonomy.BOTTOM;
+  }
+
+  @Override
+  public Node<OWLClass> getUnsatisfiableClasses() {
+    return nodes[Taxonomy.BOTTOM];
+  }
+
+  @Override
+  public Node<OWLClass> getTopClassNode() {
+    return nodes[Taxonomy.TOP];
+  }
+
+  @Override
+  public Node<OWLClass> getBottomClassNode() {
+    return nodes[Taxonomy.BOTTOM];
+  }
+
+  @Override
+  public NodeSet<OWLClass> getSubClasses(OWLClassExpression ce, boolean direct) {
+    final int node = taxonomy.getNode(asClass(ce));
+    if (node < 0) {
+      return new OWLClassNodeSet(nodes[Taxonomy.BOTTOM]);
+    } else if (direct) {
+      return toNodeSet(taxonomy.getChildren(node));
+    }
+    return toNodeSet(traverse(node, false));
+  }
+
+  @Override
+  public NodeSet<OWLClass> getSuperClasses(OWLClassExpression ce, boolean direct) {
+    final int node = taxonomy.getNode(asClass(ce));
+    if (node < 0) {
+      return new OWLClassNodeSet(nodes[Taxonomy.TOP]);
+    } else if (direct) {
+      return toNodeSet(taxonomy.getParents(node));
+    }
+    return toNodeSet(traverse(node, true));
+  }
+
+  @Override
+  public Node<OWLClass> getEquivalentClasses(OWLClassExpression ce) {
+    final OWLClass owlClass = asClass(ce);
+    final int node = taxonomy.getNode(owlClass);
+    return node < 0 ? new OWLClassNode(owlClass) : nodes[node];
+  }
+
+  @Override
+  public long getTimeOut() {
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public FreshEntityPolicy getFreshEntityPolicy() {
+    return FreshEntityPolicy.ALLOW;
+  }
+
+  @Override
+  public IndividualNodeSetPolicy getIndividualNodeSetPolicy() {
+    return IndividualNodeSetPolicy.BY_NAME;
+  }
+
+  @Override
+  public void dispose() {
+    // Nothing to release
+  }
+
+  /**
+   * Returns the ancestors or the descendants of a node, not including the node itself.
+   */
+  private int[] traverse(int node, boolean up) {
+    final Set<Integer> visited = new HashSet<>();
+    final Deque<Integer> pending = new ArrayDeque<>();
+    pending.push(node);
+    while (!pending.isEmpty()) {
+      final int current = pending.pop();
+      for (int next : up ? taxonomy.getParents(current) : taxonomy.getChildren(current)) {
+        if (visited.add(next)) {
+          pending.push(next);
+        }
+      }
+    }
+    final int[] res = new int[visited.size()];
+    int i = 0;
+    for (int value : visited) {
+      res[i++] = value;
+    }
+    return res;
+  }
+
+  private NodeSet<OWLClass> toNodeSet(int[] indexes) {
+    final Set<Node<OWLClass>> res = new HashSet<>();
+    for (int i : indexes) {
+      res.add(nodes[i]);
+    }
+    return new OWLClassNodeSet(res);
+  }
+
+  private static OWLClass asClass(OWLClassExpression ce) {
+    if (ce.isAnonymous()) {
+      throw new UnsupportedOperationException("Only named classes can be queried when the "
+          + "taxonomy of the ontology is reused.");
+    }
+    return ce.asOWLClass();
+  }
+
+  private static UnsupportedOperationException unsupported() {
+    return new UnsupportedOperationException("Only the class hierarchy can be queried when the "
+        + "taxonomy of the ontology is reused.");
+  }
+
+  @Override
+  public boolean isEntailed(OWLAxiom axiom) {
+    throw unsupported();
+  }
+
+  @Override
+  public boolean isEntailed(Set<? extends OWLAxiom> axioms) {
+    throw unsupported();
+  }
+
+  @Override
+  public boolean isEntailmentCheckingSupported(AxiomType<?> axiomType) {
+    return false;
+  }
+
+  @Override
+  public NodeSet<OWLClass> getDisjointClasses(OWLClassExpression ce) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getTopObjectPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getBottomObjectPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getSubObjectProperties(
+      OWLObjectPropertyExpression pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getSuperObjectProperties(
+      OWLObjectPropertyExpression pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getEquivalentObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLObjectPropertyExpression> getDisjointObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLObjectPropertyExpression> getInverseObjectProperties(
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getObjectPropertyDomains(OWLObjectPropertyExpression pe,
+      boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getObjectPropertyRanges(OWLObjectPropertyExpression pe,
+      boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLDataProperty> getTopDataPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLDataProperty> getBottomDataPropertyNode() {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getSubDataProperties(OWLDataProperty pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getSuperDataProperties(OWLDataProperty pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLDataProperty> getEquivalentDataProperties(OWLDataProperty pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLDataProperty> getDisjointDataProperties(OWLDataPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getDataPropertyDomains(OWLDataProperty pe, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLClass> getTypes(OWLNamedIndividual ind, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getInstances(OWLClassExpression ce, boolean direct) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getObjectPropertyValues(OWLNamedIndividual ind,
+      OWLObjectPropertyExpression pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public Set<OWLLiteral> getDataPropertyValues(OWLNamedIndividual ind, OWLDataProperty pe) {
+    throw unsupported();
+  }
+
+  @Override
+  public Node<OWLNamedIndividual> getSameIndividuals(OWLNamedIndividual ind) {
+    throw unsupported();
+  }
+
+  @Override
+  public NodeSet<OWLNamedIndividual> getDifferentIndividuals(OWLNamedIndividual ind) {
+    throw unsupported();
+  }
+
+}
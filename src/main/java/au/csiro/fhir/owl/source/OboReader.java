@@ -0,0 +1,374 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.source;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads an ontology in OBO format without building the OWL object model. The file is read line by
+ * line and each [Term] stanza is mapped to a class, using the same IRIs and annotation properties
+ * as the OBO to OWL translation of the OWL API:
+ * <ul>
+ *   <li><i>id</i> becomes the IRI, e.g. <i>HP:0000001</i> becomes
+ *   <i>http://purl.obolibrary.org/obo/HP_0000001</i>, and an <i>oboInOwl:id</i> annotation.</li>
+ *   <li><i>name</i> becomes an <i>rdfs:label</i> annotation.</li>
+ *   <li><i>synonym</i> becomes an <i>oboInOwl:hasExactSynonym</i>,
+ *   <i>oboInOwl:hasNarrowSynonym</i>, <i>oboInOwl:hasBroadSynonym</i> or
+ *   <i>oboInOwl:hasRelatedSynonym</i> annotation, depending on its scope. Synonyms without
+ *   one of these scopes are related synonyms.</li>
+ *   <li><i>is_a</i> becomes a parent and <i>is_obsolete</i> marks the class as deprecated.</li>
+ *   <li><i>def</i>, <i>comment</i>, <i>xref</i>, <i>alt_id</i>, <i>replaced_by</i>,
+ *   <i>consider</i> and <i>property_value</i> become the corresponding annotations.</li>
+ * </ul>
+ *
+ * <p>Relationships and other stanzas, such as [Typedef], are ignored. Terms with logical
+ * definitions (<i>intersection_of</i>, <i>union_of</i> or <i>equivalent_to</i>) and ontologies
+ * with imports can only be handled by a reasoner, so reading stops when one is found and the
+ * vocabulary is marked as requiring classification.
+ */
+public class OboReader {
+
+  private static final Log log = LogFactory.getLog(OboReader.class);
+
+  private static final String OBO = "http://purl.obolibrary.org/obo/";
+  private static final String OBO_IN_OWL = "http://www.geneontology.org/formats/oboInOwl#";
+  private static final String RDFS_LABEL = "http://www.w3.org/2000/01/rdf-schema#label";
+  private static final String RDFS_COMMENT = "http://www.w3.org/2000/01/rdf-schema#comment";
+
+  private static final Map<String, String> TAGS = new HashMap<>();
+
+  private static final Set<String> SYNONYM_SCOPES = new HashSet<>(
+      Arrays.asList("EXACT", "BROAD", "NARROW", "RELATED"));
+
+  static {
+    TAGS.put("id", OBO_IN_OWL + "id");
+    TAGS.put("name", RDFS_LABEL);
+    TAGS.put("def", OBO + "IAO_0000115");
+    TAGS.put("comment", RDFS_COMMENT);
+    TAGS.put("remark", RDFS_COMMENT);
+    TAGS.put("xref", OBO_IN_OWL + "hasDbXref");
+    TAGS.put("alt_id", OBO_IN_OWL + "hasAlternativeId");
+    TAGS.put("replaced_by", OBO + "IAO_0100001");
+    TAGS.put("consider", OBO_IN_OWL + "consider");
+    TAGS.put("created_by", OBO_IN_OWL + "created_by");
+    TAGS.put("creation_date", OBO_IN_OWL + "creation_date");
+  }
+
+  private final Set<String> annotationProperties;
+
+  /**
+   * Constructor.
+   *
+   * @param annotationProperties The IRIs of the annotation properties whose values are kept, for
+   *     both the classes and the ontology.
+   */
+  public OboReader(Set<String> annotationProperties) {
+    this.annotationProperties = annotationProperties;
+  }
+
+  /**
+   * Reads a vocabulary.
+   *
+   * @param file The OBO file.
+   * @return The vocabulary.
+   * @throws IOException If the file cannot be read.
+   */
+  public SourceVocabulary read(File file) throws IOException {
+    log.info("Reading OBO stanzas from " + file.getAbsolutePath());
+    try (InputStream in = new FileInputStream(file)) {
+      return read(in);
+    }
+  }
+
+  /**
+   * Reads a vocabulary from a stream, e.g. one that decompresses an archived file.
+   *
+   * @param in The stream. It is not closed.
+   * @return The vocabulary.
+   * @throws IOException If the stream cannot be read.
+   */
+  public SourceVocabulary read(InputStream in) throws IOException {
+    final SourceVocabulary vocabulary = new SourceVocabulary();
+    final Map<String, List<String>> header = new HashMap<>();
+    String ontology = null;
+    String dataVersion = null;
+    int numTerms = 0;
+
+    // The reader is not closed because that would close the stream
+    final BufferedReader br = new BufferedReader(new InputStreamReader(in,
+        StandardCharsets.UTF_8), 64 * 1024);
+    // The tags of the current stanza, which start with the id
+    final List<String[]> stanza = new ArrayList<>();
+    String type = null;
+    String line;
+    while ((line = br.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("!")) {
+        continue;
+      }
+
+      if (line.startsWith("[")) {
+        if ("Term".equals(type)) {
+          if (!addTerm(vocabulary, stanza, ontology)) {
+            return vocabulary;
+          }
+          numTerms++;
+        } else if (type == null) {
+          setHeader(vocabulary, header, ontology, dataVersion);
+        }
+        type = line.substring(1, line.indexOf(']') > 0 ? line.indexOf(']') : line.length());
+        stanza.clear();
+        continue;
+      }
+
+      final int idx = line.indexOf(':');
+      if (idx < 0) {
+        continue;
+      }
+      final String tag = line.substring(0, idx).trim();
+      final String value = line.substring(idx + 1).trim();
+      if (type == null) {
+        if ("ontology".equals(tag)) {
+          ontology = stripComment(value);
+        } else if ("data-version".equals(tag)) {
+          dataVersion = stripComment(value);
+        } else if ("import".equals(tag)) {
+          log.info("The OBO file has imports");
+          vocabulary.setClassificationRequired(true);
+          return vocabulary;
+        } else {
+          addAnnotation(header, tag, value, ontology);
+        }
+      } else if ("Term".equals(type)) {
+        stanza.add(new String[] { tag, value });
+      }
+    }
+    if (type == null) {
+      setHeader(vocabulary, header, ontology, dataVersion);
+    } else if ("Term".equals(type)) {
+      if (!addTerm(vocabulary, stanza, ontology)) {
+        return vocabulary;
+      }
+      numTerms++;
+    }
+    log.info("Read " + numTerms + " terms");
+    return vocabulary;
+  }
+
+  private void setHeader(SourceVocabulary vocabulary, Map<String, List<String>> header,
+      String ontology, String dataVersion) {
+    vocabulary.setHeader(header);
+    if (ontology != null) {
+      vocabulary.setOntologyIri(getOntologyIri(ontology));
+      if (dataVersion != null) {
+        // Same version IRI as the OBO to OWL translation
+        vocabulary.setVersionIri(OBO + ontology + "/" + dataVersion + "/" + ontology + ".owl");
+      }
+    }
+  }
+
+  /**
+   * Adds a [Term] stanza to the vocabulary.
+   *
+   * @return false if the term has a logical definition, so the vocabulary requires
+   *     classification.
+   */
+  private boolean addTerm(SourceVocabulary vocabulary, List<String[]> stanza, String ontology) {
+    String id = null;
+    for (String[] tv : stanza) {
+      if ("id".equals(tv[0])) {
+        id = stripComment(tv[1]);
+        break;
+      }
+    }
+    if (id == null) {
+      return true;
+    }
+
+    final SourceConcept concept = vocabulary.getOrCreateConcept(getIri(id, ontology));
+    concept.setDeclared(true);
+    final Map<String, List<String>> annotations = new HashMap<>();
+    for (String[] tv : stanza) {
+      final String tag = tv[0];
+      final String value = tv[1];
+      if ("is_a".equals(tag)) {
+        final String parent = getIri(stripComment(value), ontology);
+        concept.addParent(parent);
+        vocabulary.getOrCreateConcept(parent).setDeclared(true);
+      } else if ("is_obsolete".equals(tag)) {
+        concept.setDeprecated("true".equals(stripComment(value)));
+      } else if ("intersection_of".equals(tag) || "union_of".equals(tag)
+          || "equivalent_to".equals(tag)) {
+        log.info("Term " + id + " has a logical definition");
+        vocabulary.setClassificationRequired(true);
+        return false;
+      } else {
+        addAnnotation(annotations, tag, value, ontology);
+      }
+    }
+    for (Map.Entry<String, List<String>> entry : annotations.entrySet()) {
+      for (String value : entry.getValue()) {
+        concept.addAnnotation(entry.getKey(), value);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the annotation that corresponds to a tag, if it is one of the requested annotation
+   * properties.
+   */
+  private void addAnnotation(Map<String, List<String>> annotations, String tag, String value,
+      String ontology) {
+    String prop;
+    String val;
+    if ("synonym".equals(tag)) {
+      final int end = findClosingQuote(value);
+      if (end < 0) {
+        return;
+      }
+      final String[] rest = value.substring(end + 1).trim().split("\\s+");
+      // The scope is optional and defaults to RELATED, so the first token might be an xref list
+      final String scope = SYNONYM_SCOPES.contains(rest[0]) ? rest[0] : "RELATED";
+      prop = OBO_IN_OWL + "has" + scope.charAt(0) + scope.substring(1).toLowerCase(Locale.ROOT)
+          + "Synonym";
+      val = unquote(value, end);
+    } else if ("property_value".equals(tag)) {
+      final int space = value.indexOf(' ');
+      if (space < 0) {
+        return;
+      }
+      prop = getIri(value.substring(0, space), ontology);
+      final String rest = value.substring(space + 1).trim();
+      final int end = findClosingQuote(rest);
+      if (end >= 0) {
+        val = unquote(rest, end);
+      } else {
+        val = getIri(rest.split("\\s+")[0], ontology);
+      }
+    } else {
+      prop = TAGS.get(tag);
+      if (prop == null) {
+        return;
+      }
+      final int end = findClosingQuote(value);
+      if (end >= 0) {
+        val = unquote(value, end);
+      } else if ("xref".equals(tag)) {
+        val = stripComment(value).split("\\s+")[0];
+      } else {
+        val = stripComment(value);
+      }
+    }
+
+    if (annotationProperties.contains(prop)) {
+      annotations.computeIfAbsent(prop, k -> new ArrayList<>()).add(val);
+    }
+  }
+
+  /**
+   * Returns the position of the closing quote of a value that starts with a quoted string.
+   *
+   * @return The position or -1 if the value does not start with a quoted string.
+   */
+  private int findClosingQuote(String value) {
+    if (!value.startsWith("\"")) {
+      return -1;
+    }
+    for (int i = 1; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '"') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private String unquote(String value, int end) {
+    return unescape(value.substring(1, end));
+  }
+
+  /**
+   * Removes the trailing modifiers and comments of an unquoted value and resolves escapes.
+   */
+  private String stripComment(String value) {
+    int end = value.length();
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '!' || c == '{') {
+        end = i;
+        break;
+      }
+    }
+    return unescape(value.substring(0, end).trim());
+  }
+
+  private String unescape(String value) {
+    if (value.indexOf('\\') < 0) {
+      return value;
+    }
+    final StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        c = value.charAt(++i);
+        if (c == 'n') {
+          c = '\n';
+        } else if (c == 't') {
+          c = '\t';
+        } else if (c == 'W') {
+          c = ' ';
+        }
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private String getOntologyIri(String ontology) {
+    if (ontology.startsWith("http://") || ontology.startsWith("https://")) {
+      return ontology;
+    }
+    return OBO + ontology + ".owl";
+  }
+
+  /**
+   * Returns the IRI of an OBO identifier. Prefixed identifiers are mapped to OBO PURLs and
+   * unprefixed ones to the namespace of the ontology.
+   */
+  private String getIri(String id, String ontology) {
+    if (id.startsWith("http://") || id.startsWith("https://")) {
+      return id;
+    }
+    final int idx = id.indexOf(':');
+    if (idx > 0 && idx < id.length() - 1) {
+      return OBO + id.substring(0, idx) + "_" + id.substring(idx + 1);
+    }
+    return OBO + (ontology != null ? ontology : "") + "#" + id;
+  }
+
+}
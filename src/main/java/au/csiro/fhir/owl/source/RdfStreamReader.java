@@ -0,0 +1,186 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.source;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.BasicParserSettings;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+/**
+ * Reads a hierarchy-only vocabulary from an RDF file without building the OWL object model. The
+ * triples are streamed and only the ones that matter are kept: class declarations,
+ * <i>rdfs:subClassOf</i> and <i>skos:broader</i> between named resources, <i>owl:deprecated</i>,
+ * the ontology IRI and version IRI and the values of the requested annotation properties. Triples
+ * with blank node subjects or objects, such as restrictions, are ignored, and imports are not
+ * followed.
+ *
+ * <p>The format is determined from the file extension, e.g. <i>.ttl</i> for Turtle or <i>.nt</i>
+ * for N-Triples. Files with other extensions, such as <i>.owl</i>, are read as RDF/XML.
+ */
+public class RdfStreamReader {
+
+  private static final Log log = LogFactory.getLog(RdfStreamReader.class);
+
+  private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+  private static final String RDFS_SUBCLASS_OF = "http://www.w3.org/2000/01/rdf-schema#subClassOf";
+  private static final String RDFS_CLASS = "http://www.w3.org/2000/01/rdf-schema#Class";
+  private static final String OWL_CLASS = "http://www.w3.org/2002/07/owl#Class";
+  private static final String OWL_ONTOLOGY = "http://www.w3.org/2002/07/owl#Ontology";
+  private static final String OWL_VERSION_IRI = "http://www.w3.org/2002/07/owl#versionIRI";
+  private static final String OWL_DEPRECATED = "http://www.w3.org/2002/07/owl#deprecated";
+  private static final String SKOS_CONCEPT = "http://www.w3.org/2004/02/skos/core#Concept";
+  private static final String SKOS_BROADER = "http://www.w3.org/2004/02/skos/core#broader";
+
+  private final Set<String> annotationProperties;
+
+  /**
+   * Constructor.
+   *
+   * @param annotationProperties The IRIs of the annotation properties whose values are kept, for
+   *     both the classes and the ontology.
+   */
+  public RdfStreamReader(Set<String> annotationProperties) {
+    this.annotationProperties = annotationProperties;
+  }
+
+  /**
+   * Reads a vocabulary.
+   *
+   * @param file The RDF file.
+   * @return The vocabulary.
+   * @throws IOException If the file cannot be read or parsed.
+   */
+  public SourceVocabulary read(File file) throws IOException {
+    try (InputStream is = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+      return read(is, file.getName(), file.toURI().toString());
+    }
+  }
+
+  /**
+   * Reads a vocabulary from a stream, e.g. one that decompresses an archived file.
+   *
+   * @param is The stream. It is not closed.
+   * @param name The file name of the document, used to determine the format.
+   * @param baseUri The base URI used to resolve relative IRIs.
+   * @return The vocabulary.
+   * @throws IOException If the stream cannot be read or parsed.
+   */
+  public SourceVocabulary read(InputStream is, String name, String baseUri) throws IOException {
+    final RDFFormat format = Rio.getParserFormatForFileName(name, RDFFormat.RDFXML);
+    log.info("Streaming " + format.getName() + " triples from " + baseUri);
+
+    final RDFParser parser = Rio.createParser(format);
+    parser.getParserConfig().set(BasicParserSettings.VERIFY_DATATYPE_VALUES, false);
+    final Handler handler = new Handler();
+    parser.setRDFHandler(handler);
+    try {
+      parser.parse(is, baseUri);
+    } catch (RDFParseException | RDFHandlerException e) {
+      throw new IOException("Could not parse " + baseUri + ": " + e.getMessage(), e);
+    }
+    log.info("Read " + handler.numStatements + " statements and kept " + handler.numKept);
+    return handler.finish();
+  }
+
+  private class Handler extends RDFHandlerBase {
+
+    private final SourceVocabulary vocabulary = new SourceVocabulary();
+    private final Map<String, String> versionIris = new HashMap<>();
+    private long numStatements = 0;
+    private long numKept = 0;
+
+    @Override
+    public void handleStatement(Statement st) {
+      numStatements++;
+      final Resource subject = st.getSubject();
+      if (!(subject instanceof URI)) {
+        return;
+      }
+      final String s = subject.stringValue();
+      final String p = st.getPredicate().stringValue();
+      final Value o = st.getObject();
+
+      if (RDF_TYPE.equals(p)) {
+        final String type = o.stringValue();
+        if (OWL_CLASS.equals(type) || RDFS_CLASS.equals(type) || SKOS_CONCEPT.equals(type)) {
+          vocabulary.getOrCreateConcept(s).setDeclared(true);
+          numKept++;
+        } else if (OWL_ONTOLOGY.equals(type) && vocabulary.getOntologyIri() == null) {
+          vocabulary.setOntologyIri(s);
+          numKept++;
+        }
+      } else if (RDFS_SUBCLASS_OF.equals(p) || SKOS_BROADER.equals(p)) {
+        if (o instanceof URI) {
+          final SourceConcept concept = vocabulary.getOrCreateConcept(s);
+          concept.setDeclared(true);
+          concept.addParent(o.stringValue());
+          vocabulary.getOrCreateConcept(o.stringValue()).setDeclared(true);
+          numKept++;
+        }
+      } else if (OWL_DEPRECATED.equals(p)) {
+        if (o instanceof Literal && isTrue(o.stringValue())) {
+          vocabulary.getOrCreateConcept(s).setDeprecated(true);
+          numKept++;
+        }
+      } else if (OWL_VERSION_IRI.equals(p)) {
+        versionIris.put(s, o.stringValue());
+        numKept++;
+      } else if (annotationProperties.contains(p)) {
+        vocabulary.getOrCreateConcept(s).addAnnotation(p, o.stringValue());
+        numKept++;
+      }
+    }
+
+    private boolean isTrue(String value) {
+      return "true".equalsIgnoreCase(value.trim()) || "1".equals(value.trim());
+    }
+
+    SourceVocabulary finish() {
+      // The ontology is read like a class, so its annotations become the header
+      final String ontologyIri = vocabulary.getOntologyIri();
+      if (ontologyIri != null) {
+        vocabulary.setVersionIri(versionIris.get(ontologyIri));
+        final SourceConcept ontology = vocabulary.removeConcept(ontologyIri);
+        if (ontology != null) {
+          final Map<String, List<String>> header = ontology.getAnnotations();
+          vocabulary.setHeader(header);
+        }
+      }
+
+      // Remove the resources that are not classes, e.g. annotated properties
+      final Iterator<SourceConcept> it = vocabulary.getConcepts().iterator();
+      while (it.hasNext()) {
+        if (!it.next().isDeclared()) {
+          it.remove();
+        }
+      }
+      return vocabulary;
+    }
+  }
+
+}
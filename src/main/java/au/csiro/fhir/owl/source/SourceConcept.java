@@ -0,0 +1,146 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.source;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class read directly from a source file, without building the OWL object model. Only the
+ * asserted parents, the deprecation flag and the values of the annotation properties that were
+ * requested are kept.
+ */
+public class SourceConcept {
+
+  private final String iri;
+  private boolean declared = false;
+  private boolean deprecated = false;
+  private final List<String> parents = new ArrayList<>(2);
+  private final Map<String, List<String>> annotations = new HashMap<>(4);
+
+  /**
+   * Constructor.
+   *
+   * @param iri The IRI of the class.
+   */
+  public SourceConcept(String iri) {
+    this.iri = iri;
+  }
+
+  /**
+   * Returns the IRI of the class.
+   *
+   * @return the iri
+   */
+  public String getIri() {
+    return iri;
+  }
+
+  /**
+   * Indicates if the resource is known to be a class, because it is declared as one or it is
+   * used in the hierarchy.
+   *
+   * @return the declared
+   */
+  public boolean isDeclared() {
+    return declared;
+  }
+
+  /**
+   * Sets the flag that indicates if the resource is known to be a class.
+   *
+   * @param declared the declared to set
+   */
+  public void setDeclared(boolean declared) {
+    this.declared = declared;
+  }
+
+  /**
+   * Indicates if the class is deprecated.
+   *
+   * @return the deprecated
+   */
+  public boolean isDeprecated() {
+    return deprecated;
+  }
+
+  /**
+   * Sets the flag that indicates if the class is deprecated.
+   *
+   * @param deprecated the deprecated to set
+   */
+  public void setDeprecated(boolean deprecated) {
+    this.deprecated = deprecated;
+  }
+
+  /**
+   * Returns the IRIs of the asserted parents.
+   *
+   * @return the parents
+   */
+  public List<String> getParents() {
+    return parents;
+  }
+
+  /**
+   * Adds an asserted parent.
+   *
+   * @param parent The IRI of the parent.
+   */
+  public void addParent(String parent) {
+    if (!parents.contains(parent)) {
+      parents.add(parent);
+    }
+  }
+
+  /**
+   * Removes an asserted parent.
+   *
+   * @param parent The IRI of the parent.
+   */
+  public void removeParent(String parent) {
+    parents.remove(parent);
+  }
+
+  /**
+   * Returns the values of an annotation property.
+   *
+   * @param property The IRI of the annotation property.
+   * @return The values, in the order they were read. Might be empty.
+   */
+  public List<String> getAnnotations(String property) {
+    final List<String> res = annotations.get(property);
+    return res != null ? res : Collections.<String>emptyList();
+  }
+
+  /**
+   * Returns the values of all the annotation properties.
+   *
+   * @return The values, indexed by annotation property IRI.
+   */
+  public Map<String, List<String>> getAnnotations() {
+    return annotations;
+  }
+
+  /**
+   * Adds a value of an annotation property.
+   *
+   * @param property The IRI of the annotation property.
+   * @param value The value.
+   */
+  public void addAnnotation(String property, String value) {
+    List<String> values = annotations.get(property);
+    if (values == null) {
+      values = new ArrayList<>(1);
+      annotations.put(property, values);
+    }
+    values.add(value);
+  }
+
+}
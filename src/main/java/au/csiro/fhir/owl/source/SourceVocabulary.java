@@ -0,0 +1,211 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.source;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A vocabulary read directly from a source file by one of the streaming readers. It contains the
+ * ontology header and the classes, in the order they were first seen, with their asserted
+ * hierarchy.
+ */
+public class SourceVocabulary {
+
+  private String ontologyIri = null;
+  private String versionIri = null;
+  private Map<String, List<String>> header = new HashMap<>();
+  private final Map<String, SourceConcept> concepts = new LinkedHashMap<>();
+  private boolean classificationRequired = false;
+
+  /**
+   * Returns the IRI of the ontology.
+   *
+   * @return the ontologyIri, or null if it was not found
+   */
+  public String getOntologyIri() {
+    return ontologyIri;
+  }
+
+  /**
+   * Sets the IRI of the ontology.
+   *
+   * @param ontologyIri the ontologyIri to set
+   */
+  public void setOntologyIri(String ontologyIri) {
+    this.ontologyIri = ontologyIri;
+  }
+
+  /**
+   * Returns the version IRI of the ontology.
+   *
+   * @return the versionIri, or null if it was not found
+   */
+  public String getVersionIri() {
+    return versionIri;
+  }
+
+  /**
+   * Sets the version IRI of the ontology.
+   *
+   * @param versionIri the versionIri to set
+   */
+  public void setVersionIri(String versionIri) {
+    this.versionIri = versionIri;
+  }
+
+  /**
+   * Returns the first value of an annotation property of the ontology.
+   *
+   * @param property The IRI of the annotation property.
+   * @return The value or null if the ontology has no value for this property.
+   */
+  public String getHeaderAnnotation(String property) {
+    final List<String> values = header.get(property);
+    return values != null && !values.isEmpty() ? values.get(0) : null;
+  }
+
+  /**
+   * Sets the annotations of the ontology.
+   *
+   * @param header The values of the annotation properties of the ontology, indexed by property
+   *     IRI.
+   */
+  public void setHeader(Map<String, List<String>> header) {
+    this.header = header != null ? header : Collections.<String, List<String>>emptyMap();
+  }
+
+  /**
+   * Returns a class, creating it if it has not been seen yet.
+   *
+   * @param iri The IRI of the class.
+   * @return The class.
+   */
+  public SourceConcept getOrCreateConcept(String iri) {
+    SourceConcept res = concepts.get(iri);
+    if (res == null) {
+      res = new SourceConcept(iri);
+      concepts.put(iri, res);
+    }
+    return res;
+  }
+
+  /**
+   * Returns a class.
+   *
+   * @param iri The IRI of the class.
+   * @return The class or null if it has not been seen.
+   */
+  public SourceConcept getConcept(String iri) {
+    return concepts.get(iri);
+  }
+
+  /**
+   * Removes a class.
+   *
+   * @param iri The IRI of the class.
+   * @return The removed class or null if it had not been seen.
+   */
+  public SourceConcept removeConcept(String iri) {
+    return concepts.remove(iri);
+  }
+
+  /**
+   * Returns all the classes, in the order they were first seen.
+   *
+   * @return The classes.
+   */
+  public Collection<SourceConcept> getConcepts() {
+    return concepts.values();
+  }
+
+  /**
+   * Removes the asserted parents of each class that are also ancestors of its other parents, so
+   * only the direct parents are left, as they would be after classification. For example, if
+   * <i>A</i> is a <i>B</i> and a <i>C</i>, and <i>B</i> is a <i>C</i>, then only <i>B</i> is kept.
+   * Parents that are in a cycle with other parents are equivalent to them and are kept.
+   *
+   * @param thing The IRI of <i>owl:Thing</i>, which is an ancestor of all the other classes.
+   * @return The number of parents that were removed.
+   */
+  public int reduceParents(String thing) {
+    int res = 0;
+    for (SourceConcept concept : concepts.values()) {
+      final List<String> parents = concept.getParents();
+      if (parents.size() < 2) {
+        continue;
+      }
+      final Map<String, Set<String>> ancestors = new HashMap<>();
+      for (String parent : parents) {
+        ancestors.put(parent, getAncestors(parent));
+      }
+      final List<String> redundant = new ArrayList<>();
+      for (String parent : parents) {
+        for (String other : parents) {
+          if (!other.equals(parent) && (parent.equals(thing)
+              || (ancestors.get(other).contains(parent)
+              && !ancestors.get(parent).contains(other)))) {
+            redundant.add(parent);
+            break;
+          }
+        }
+      }
+      for (String parent : redundant) {
+        concept.removeParent(parent);
+      }
+      res += redundant.size();
+    }
+    return res;
+  }
+
+  private Set<String> getAncestors(String iri) {
+    final Set<String> res = new HashSet<>();
+    final Deque<String> pending = new ArrayDeque<>();
+    pending.push(iri);
+    while (!pending.isEmpty()) {
+      final SourceConcept concept = concepts.get(pending.pop());
+      if (concept == null) {
+        continue;
+      }
+      for (String parent : concept.getParents()) {
+        if (res.add(parent)) {
+          pending.push(parent);
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Indicates if the source has constructs that the streaming readers do not handle, such as
+   * logical definitions, so it has to be loaded with the OWL API and classified instead. In this
+   * case the vocabulary is incomplete and should not be used.
+   *
+   * @return the classificationRequired
+   */
+  public boolean isClassificationRequired() {
+    return classificationRequired;
+  }
+
+  /**
+   * Sets the flag that indicates if the source has to be loaded and classified.
+   *
+   * @param classificationRequired the classificationRequired to set
+   */
+  public void setClassificationRequired(boolean classificationRequired) {
+    this.classificationRequired = classificationRequired;
+  }
+
+}
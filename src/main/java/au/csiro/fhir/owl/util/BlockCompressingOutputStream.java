@@ -0,0 +1,159 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream that splits the data into fixed-size blocks and compresses each block
+ * independently in a thread pool, in the style of pigz. Each compressed block is a complete
+ * gzip member or zstd frame, so the concatenated output is a valid file for the standard tools.
+ * Compressed blocks are written in order and the number of blocks in flight is bounded.
+ *
+ * <p>Like {@link java.util.zip.GZIPOutputStream}, {@link #flush()} does not compress the current
+ * incomplete block. Its contents are only written when the block fills or the stream is closed.
+ */
+public class BlockCompressingOutputStream extends OutputStream {
+
+  /**
+   * Compresses a single block of data into a self-contained gzip member or zstd frame.
+   */
+  public interface BlockCompressor {
+
+    /**
+     * Compresses a block.
+     *
+     * @param block The buffer that contains the block.
+     * @param len The number of bytes in the block.
+     * @return The compressed block.
+     */
+    byte[] compress(byte[] block, int len);
+  }
+
+  private final OutputStream out;
+  private final BlockCompressor compressor;
+  private final ExecutorService executor;
+  private final int blockSize;
+  private final int maxPending;
+  private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+  private byte[] buf;
+  private int count = 0;
+  private boolean empty = true;
+  private boolean closed = false;
+
+  /**
+   * Constructor.
+   *
+   * @param out The underlying output stream. Closed when this stream is closed.
+   * @param compressor The block compressor.
+   * @param executor The executor used to compress the blocks. Not shut down when this stream is
+   *     closed.
+   * @param blockSize The size of the uncompressed blocks, in bytes.
+   * @param maxPending The maximum number of blocks that can be waiting to be written.
+   */
+  public BlockCompressingOutputStream(OutputStream out, BlockCompressor compressor,
+      ExecutorService executor, int blockSize, int maxPending) {
+    this.out = out;
+    this.compressor = compressor;
+    this.executor = executor;
+    this.blockSize = blockSize;
+    this.maxPending = maxPending;
+    this.buf = new byte[blockSize];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    buf[count++] = (byte) b;
+    if (count == blockSize) {
+      submitBlock();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      final int n = Math.min(len, blockSize - count);
+      System.arraycopy(b, off, buf, count, n);
+      count += n;
+      off += n;
+      len -= n;
+      if (count == blockSize) {
+        submitBlock();
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+      writeFirstPending();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      // An empty stream still produces one (empty) member so the output is a valid file
+      if (count > 0 || empty) {
+        submitBlock();
+      }
+      while (!pending.isEmpty()) {
+        writeFirstPending();
+      }
+    } finally {
+      closed = true;
+      for (Future<byte[]> f : pending) {
+        f.cancel(true);
+      }
+      out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    final byte[] block = buf;
+    final int len = count;
+    pending.addLast(executor.submit(() -> compressor.compress(block, len)));
+    buf = new byte[blockSize];
+    count = 0;
+    empty = false;
+
+    while (pending.size() > maxPending) {
+      writeFirstPending();
+    }
+  }
+
+  private void writeFirstPending() throws IOException {
+    try {
+      out.write(pending.removeFirst().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing output.", e);
+    } catch (ExecutionException e) {
+      throw new IOException("There was a problem compressing output.", e.getCause());
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed.");
+    }
+  }
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.util;
+
+import au.csiro.fhir.owl.util.BlockCompressingOutputStream.BlockCompressor;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression utility methods. The compression format is selected from the file extension:
+ * <i>.gz</i> for gzip and <i>.zst</i> for zstd. Any other extension produces an uncompressed file.
+ */
+public class CompressionUtils {
+
+  private static final int BLOCK_SIZE = 1024 * 1024;
+
+  private static final int ZSTD_LEVEL = 3;
+
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+      new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "compressor-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * Indicates if a file will be compressed, based on its extension.
+   *
+   * @param file The file.
+   * @return true if the file will be compressed with gzip or zstd.
+   */
+  public static boolean isCompressed(File file) {
+    return isGzip(file) || isZstd(file);
+  }
+
+  /**
+   * Returns the name of a file without its compression extension, if it has one.
+   *
+   * @param file The file.
+   * @return The name of the file without the compression extension.
+   */
+  public static String getUncompressedName(File file) {
+    final String name = file.getName();
+    if (isCompressed(file)) {
+      return name.substring(0, name.lastIndexOf('.'));
+    }
+    return name;
+  }
+
+  /**
+   * Returns the compression extension of a file, including the dot, or an empty string if the
+   * file will not be compressed.
+   *
+   * @param file The file.
+   * @return The compression extension.
+   */
+  public static String getCompressionExtension(File file) {
+    if (isCompressed(file)) {
+      final String name = file.getName();
+      return name.substring(name.lastIndexOf('.'));
+    }
+    return "";
+  }
+
+  /**
+   * Opens an output stream to a file. If the file has a <i>.gz</i> or <i>.zst</i> extension then
+   * the data is compressed in independent blocks using all the available processors.
+   *
+   * @param file The file.
+   * @return The output stream.
+   * @throws IOException If the file cannot be opened.
+   */
+  public static OutputStream newOutputStream(File file) throws IOException {
+    final OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    if (isGzip(file)) {
+      return new BlockCompressingOutputStream(os, CompressionUtils::gzipBlock, executor,
+          BLOCK_SIZE, THREADS * 2);
+    } else if (isZstd(file)) {
+      return new BlockCompressingOutputStream(os, CompressionUtils::zstdBlock, executor,
+          BLOCK_SIZE, THREADS * 2);
+    } else {
+      return os;
+    }
+  }
+
+  /**
+   * Opens an input stream from a file. If the file has a <i>.gz</i> or <i>.zst</i> extension then
+   * the data is decompressed as it is read. Multi-member gzip and multi-frame zstd files are 
+   * supported.
+   *
+   * @param file The file.
+   * @return The input stream.
+   * @throws IOException If the file cannot be opened.
+   */
+  public static InputStream newInputStream(File file) throws IOException {
+    final InputStream is = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    if (isGzip(file)) {
+      return new GZIPInputStream(is, 64 * 1024);
+    } else if (isZstd(file)) {
+      return new BufferedInputStream(new ZstdInputStream(is), 64 * 1024);
+    } else {
+      return is;
+    }
+  }
+
+  private static boolean isGzip(File file) {
+    final String name = file.getName().toLowerCase(Locale.ROOT);
+    return name.endsWith(".gz") || name.endsWith(".gzip");
+  }
+
+  private static boolean isZstd(File file) {
+    final String name = file.getName().toLowerCase(Locale.ROOT);
+    return name.endsWith(".zst") || name.endsWith(".zstd");
+  }
+
+  /**
+   * Compresses a block into a complete gzip member. Members can be concatenated and the result is
+   * still a valid gzip file.
+   */
+  private static byte[] gzipBlock(byte[] block, int len) {
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 4 + 64);
+
+    // Header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    baos.write(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff }, 0, 10);
+
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(block, 0, len);
+      deflater.finish();
+      final byte[] buf = new byte[64 * 1024];
+      while (!deflater.finished()) {
+        final int n = deflater.deflate(buf);
+        baos.write(buf, 0, n);
+      }
+    } finally {
+      deflater.end();
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(block, 0, len);
+    writeIntLe(baos, (int) crc.getValue());
+    writeIntLe(baos, len);
+    return baos.toByteArray();
+  }
+
+  private static byte[] zstdBlock(byte[] block, int len) {
+    final byte[] dst = new byte[(int) Zstd.compressBound(len)];
+    final long n = Zstd.compressByteArray(dst, 0, dst.length, block, 0, len, ZSTD_LEVEL);
+    if (Zstd.isError(n)) {
+      throw new IllegalStateException("zstd compression failed: " + Zstd.getErrorName(n));
+    }
+    final byte[] res = new byte[(int) n];
+    System.arraycopy(dst, 0, res, 0, (int) n);
+    return res;
+  }
+
+  private static void writeIntLe(ByteArrayOutputStream baos, int i) {
+    baos.write(i & 0xff);
+    baos.write((i >> 8) & 0xff);
+    baos.write((i >> 16) & 0xff);
+    baos.write((i >> 24) & 0xff);
+  }
+
+}
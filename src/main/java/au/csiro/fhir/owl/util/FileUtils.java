@@ -7,6 +7,9 @@ package au.csiro.fhir.owl.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -60,4 +63,21 @@ public class FileUtils {
     }
     return unableToDelete;
   }
+  
+  /**
+   * Renames a file, replacing the target if it exists. The rename is atomic if the file system 
+   * supports it, so readers never see a partially written target.
+   *
+   * @param source The file to rename.
+   * @param target The new name.
+   * @throws IOException If the file cannot be renamed.
+   */
+  public static void replace(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
 }
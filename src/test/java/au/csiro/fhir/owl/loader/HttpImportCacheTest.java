@@ -0,0 +1,143 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLRuntimeException;
+import uk.ac.manchester.cs.owl.owlapi.OWLDataFactoryImpl;
+import uk.ac.manchester.cs.owl.owlapi.OWLOntologyManagerImpl;
+
+/**
+ * Tests the requests that {@link HttpImportCache} sends to a local stand-in HTTP server.
+ */
+public class HttpImportCacheTest {
+
+  private static final String ETAG = "\"v1\"";
+
+  private static final String DOCUMENT = "<?xml version=\"1.0\"?>\n"
+      + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" "
+      + "xmlns:owl=\"http://www.w3.org/2002/07/owl#\">\n"
+      + "  <owl:Ontology rdf:about=\"http://example.org/onto\"/>\n"
+      + "</rdf:RDF>\n";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private String baseUrl;
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/onto.owl", exchange -> {
+      if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        requests.add("GET /onto.owl 304");
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      requests.add("GET /onto.owl 200");
+      final byte[] body = DOCUMENT.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("ETag", ETAG);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    });
+    server.createContext("/moved.owl", exchange -> {
+      requests.add("GET /moved.owl 302");
+      exchange.getResponseHeaders().add("Location", "/onto.owl");
+      exchange.sendResponseHeaders(302, -1);
+      exchange.close();
+    });
+    server.start();
+    baseUrl = "http://localhost:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testDownload() throws IOException {
+    final File cacheDir = folder.newFolder();
+    assertEquals(DOCUMENT, resolve(cacheDir, false, "/onto.owl"));
+    assertEquals(Collections.singletonList("GET /onto.owl 200"), requests);
+  }
+
+  @Test
+  public void testNotModified() throws IOException {
+    final File cacheDir = folder.newFolder();
+    resolve(cacheDir, false, "/onto.owl");
+    requests.clear();
+
+    // A new cache, as in a later run
+    assertEquals(DOCUMENT, resolve(cacheDir, false, "/onto.owl"));
+    assertEquals(Collections.singletonList("GET /onto.owl 304"), requests);
+  }
+
+  @Test
+  public void testRedirect() throws IOException {
+    final File cacheDir = folder.newFolder();
+    assertEquals(DOCUMENT, resolve(cacheDir, false, "/moved.owl"));
+    assertEquals(2, requests.size());
+    assertEquals("GET /moved.owl 302", requests.get(0));
+    assertEquals("GET /onto.owl 200", requests.get(1));
+  }
+
+  @Test
+  public void testOffline() throws IOException {
+    final File cacheDir = folder.newFolder();
+    resolve(cacheDir, false, "/onto.owl");
+    requests.clear();
+
+    assertEquals(DOCUMENT, resolve(cacheDir, true, "/onto.owl"));
+    try {
+      resolve(cacheDir, true, "/moved.owl");
+      fail("Expected an uncached import to fail in offline mode");
+    } catch (OWLRuntimeException e) {
+      // Expected
+    }
+    assertEquals(Collections.emptyList(), requests);
+  }
+
+  private String resolve(File cacheDir, boolean offline, String path) throws IOException {
+    // OWLManager uses Guice, which only runs on Java 8, and no other IRI mappers are needed
+    final HttpImportCache cache = new HttpImportCache(cacheDir, offline, 2,
+        new OWLOntologyManagerImpl(new OWLDataFactoryImpl(), new ReentrantReadWriteLock()));
+    try {
+      final IRI document = cache.getDocumentIRI(IRI.create(baseUrl + path));
+      return new String(Files.readAllBytes(new File(document.toURI()).toPath()),
+          StandardCharsets.UTF_8);
+    } finally {
+      cache.shutdown();
+    }
+  }
+
+}
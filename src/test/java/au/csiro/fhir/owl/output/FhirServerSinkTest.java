@@ -0,0 +1,238 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com). All rights reserved. Use is subject to
+ * license terms and conditions.
+ */
+
+package au.csiro.fhir.owl.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the requests that {@link FhirServerSink} and {@link FhirUploader} send to a local stand-in
+ * FHIR server.
+ */
+public class FhirServerSinkTest {
+
+  private static final FhirContext ctx = FhirContext.forR4();
+
+  private HttpServer server;
+  private String baseUrl;
+  private final List<Recorded> requests = Collections.synchronizedList(new ArrayList<>());
+  private final Deque<Integer> statuses = new ArrayDeque<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private volatile long delayMillis = 0;
+
+  private static class Recorded {
+    final String method;
+    final String path;
+    final String ifNoneExist;
+    final String body;
+
+    Recorded(String method, String path, String ifNoneExist, String body) {
+      this.method = method;
+      this.path = path;
+      this.ifNoneExist = ifNoneExist;
+      this.body = body;
+    }
+  }
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/fhir", exchange -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (InputStream is = exchange.getRequestBody()) {
+        final byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+          baos.write(buf, 0, n);
+        }
+      }
+      requests.add(new Recorded(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+          exchange.getRequestHeaders().getFirst("If-None-Exist"),
+          new String(baos.toByteArray(), StandardCharsets.UTF_8)));
+
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      final Integer status;
+      synchronized (statuses) {
+        status = statuses.poll();
+      }
+      inFlight.decrementAndGet();
+      final byte[] response = "{}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status != null ? status : 201, response.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(response);
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testSingleRequest() throws IOException {
+    upload(createCodeSystem("test"), 3, 10);
+
+    assertEquals(1, requests.size());
+    final Recorded request = requests.get(0);
+    assertEquals("PUT", request.method);
+    assertEquals("/fhir/CodeSystem/test", request.path);
+    final CodeSystem cs = ctx.newJsonParser().parseResource(CodeSystem.class, request.body);
+    assertEquals(3, cs.getConcept().size());
+    assertEquals("c2", cs.getConcept().get(2).getCode());
+  }
+
+  @Test
+  public void testConditionalPost() throws IOException {
+    upload(createCodeSystem(null), 3, 10);
+
+    assertEquals(1, requests.size());
+    final Recorded request = requests.get(0);
+    assertEquals("POST", request.method);
+    assertEquals("/fhir/CodeSystem", request.path);
+    assertEquals("url=http%3A%2F%2Fexample.org%2Fcs&version=1", request.ifNoneExist);
+  }
+
+  @Test
+  public void testSpooled() throws IOException {
+    upload(createCodeSystem("test"), 25, 10);
+
+    assertEquals(1, requests.size());
+    final Recorded request = requests.get(0);
+    assertEquals("PUT", request.method);
+    assertEquals("/fhir/CodeSystem/test", request.path);
+    final CodeSystem cs = ctx.newJsonParser().parseResource(CodeSystem.class, request.body);
+    assertEquals(CodeSystemContentMode.COMPLETE, cs.getContent());
+    assertEquals("http://example.org/cs", cs.getUrl());
+    assertEquals(25, cs.getConcept().size());
+    assertEquals("c24", cs.getConcept().get(24).getCode());
+    assertEquals("Concept 24", cs.getConcept().get(24).getDisplay());
+  }
+
+  @Test
+  public void testSpooledConditionalPost() throws IOException {
+    upload(createCodeSystem(null), 25, 10);
+
+    assertEquals(1, requests.size());
+    final Recorded request = requests.get(0);
+    assertEquals("POST", request.method);
+    assertEquals("/fhir/CodeSystem", request.path);
+    assertEquals("url=http%3A%2F%2Fexample.org%2Fcs&version=1", request.ifNoneExist);
+    final CodeSystem cs = ctx.newJsonParser().parseResource(CodeSystem.class, request.body);
+    assertEquals(25, cs.getConcept().size());
+  }
+
+  @Test
+  public void testConcurrentUploads() throws IOException {
+    delayMillis = 300;
+    final FhirUploader uploader = new FhirUploader(ctx, new Gson(), 2);
+    try {
+      for (int i = 0; i < 5; i++) {
+        final FhirServerSink sink = new FhirServerSink(uploader, baseUrl, 10);
+        final CodeSystem cs = createCodeSystem("test" + i);
+        sink.start(cs);
+        sink.accept(new CodeSystem.ConceptDefinitionComponent().setCode("c0"));
+        sink.finish(cs);
+      }
+      uploader.await();
+    } finally {
+      uploader.close();
+    }
+
+    assertEquals(5, requests.size());
+    assertEquals(2, maxInFlight.get());
+  }
+
+  @Test
+  public void testRetry() throws IOException {
+    statuses.add(503);
+    upload(createCodeSystem("test"), 3, 10);
+
+    assertEquals(2, requests.size());
+    assertEquals(requests.get(0).body, requests.get(1).body);
+  }
+
+  @Test
+  public void testNoRetryOfUnconditionalPost() {
+    statuses.add(503);
+    final CodeSystem cs = createCodeSystem(null);
+    cs.setUrl(null);
+    try {
+      upload(cs, 3, 10);
+      fail("Expected the upload to fail");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertEquals(1, requests.size());
+    assertNull(requests.get(0).ifNoneExist);
+  }
+
+  private void upload(CodeSystem cs, int numConcepts, int threshold) throws IOException {
+    final FhirUploader uploader = new FhirUploader(ctx, new Gson(), 2);
+    try {
+      final FhirServerSink sink = new FhirServerSink(uploader, baseUrl, threshold);
+      sink.start(cs);
+      for (int i = 0; i < numConcepts; i++) {
+        sink.accept(new CodeSystem.ConceptDefinitionComponent().setCode("c" + i)
+            .setDisplay("Concept " + i));
+      }
+      sink.finish(cs);
+      uploader.await();
+    } finally {
+      uploader.close();
+    }
+  }
+
+  private static CodeSystem createCodeSystem(String id) {
+    final CodeSystem cs = new CodeSystem();
+    if (id != null) {
+      cs.setId(id);
+    }
+    cs.setUrl("http://example.org/cs");
+    cs.setVersion("1");
+    cs.setContent(CodeSystemContentMode.COMPLETE);
+    return cs;
+  }
+
+}